@@ -103,6 +103,20 @@ public final class Eviction {
       public int compare(Cache.Entry<Object, Object> a, Cache.Entry<Object, Object> b) {
         return Long.signum(b.getCreationTime(TimeUnit.NANOSECONDS) - a.getCreationTime(TimeUnit.NANOSECONDS));
       }
+    },
+
+    /**
+     * Window TinyLFU eviction policy.
+     * <p>
+     * Tiers supporting it admit new entries through a small recency window, then only retain them over existing
+     * ones when they have been requested more frequently in the recent past, which resists scans and one hit
+     * wonders. Other tiers rank eviction candidates like {@link #LRU}.
+     */
+    TINY_LFU {
+      @Override
+      public int compare(Cache.Entry<Object, Object> a, Cache.Entry<Object, Object> b) {
+        return LRU.compare(a, b);
+      }
     };
   }
 }
@@ -0,0 +1,30 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.spi.serialization;
+
+/**
+ * A {@link Serializer} producing canonical serial forms: two instances are equal, as defined by
+ * {@link Object#equals(Object)}, if and only if their serial forms are equal byte for byte.
+ * <p>
+ * Stores can rely on this contract to compare instances against stored values without de-serializing the latter.
+ * Implementations must also implement {@link #equals(Object, java.nio.ByteBuffer)} without de-serializing the
+ * binary representation.
+ *
+ * @param <T> the type of the instances to serialize
+ */
+public interface BinaryComparableSerializer<T> extends Serializer<T> {
+}
@@ -396,41 +396,7 @@ public class Ehcache<K, V> implements Cache<K, V>, UserManagedCache<K, V> {
     }
     
     Function<Iterable<? extends K>, Iterable<? extends Map.Entry<? extends K, ? extends V>>> computeFunction =
-        new Function<Iterable<? extends K>, Iterable<? extends Map.Entry<? extends K, ? extends V>>>() {
-      @Override
-      public Iterable<? extends Map.Entry<? extends K, ? extends V>> apply(Iterable<? extends K> keys) {
-        Map<K, V> computeResult = new LinkedHashMap<K ,V>();
-        
-        // put all the entries to get ordering correct
-        for (K key : keys) {
-          computeResult.put(key, null);
-        }
-
-        if (cacheLoaderWriter != null) {
-          Map<? super K, ? extends V> loaded = Collections.emptyMap();
-          try {
-            loaded = cacheLoaderWriter.loadAll(computeResult.keySet());
-          } catch(BulkCacheLoadingException bcle) {
-            collectSuccessesAndFailures(bcle, successes, failures);
-          } catch (Exception e) {
-            for (K key : computeResult.keySet()) {
-              failures.put(key, e);
-            }
-          }
-
-          if (!loaded.isEmpty()) {
-            for (K key : computeResult.keySet()) {
-              V value = loaded.get(key);
-              successes.put(key, value);
-              computeResult.put(key, value);
-            }
-          }
-
-        }
-
-        return computeResult.entrySet();
-      }
-    };
+        new GetAllLoadFunction(successes, failures);
 
     Map<K, V> result = new HashMap<K, V>();
     try {
@@ -482,6 +448,56 @@ public class Ehcache<K, V> implements Cache<K, V>, UserManagedCache<K, V> {
     }
   }
 
+  /**
+   * Loads keys of a {@link #getAll(Set)} through the loader, recording the keys it loaded and those it failed to.
+   * The absent keys are loaded as a single batch: a loader failing only some of them reports so with a
+   * {@link BulkCacheLoadingException}, any other exception failing the whole batch.
+   */
+  private final class GetAllLoadFunction implements Function<Iterable<? extends K>, Iterable<? extends Map.Entry<? extends K, ? extends V>>> {
+
+    private final Map<K, V> successes;
+    private final Map<K, Exception> failures;
+
+    GetAllLoadFunction(Map<K, V> successes, Map<K, Exception> failures) {
+      this.successes = successes;
+      this.failures = failures;
+    }
+
+    @Override
+    public Iterable<? extends Map.Entry<? extends K, ? extends V>> apply(Iterable<? extends K> keys) {
+      Map<K, V> computeResult = new LinkedHashMap<K ,V>();
+
+      // put all the entries to get ordering correct
+      for (K key : keys) {
+        computeResult.put(key, null);
+      }
+
+      if (cacheLoaderWriter != null) {
+        Map<? super K, ? extends V> loaded = Collections.emptyMap();
+        try {
+          loaded = cacheLoaderWriter.loadAll(computeResult.keySet());
+        } catch(BulkCacheLoadingException bcle) {
+          collectSuccessesAndFailures(bcle, successes, failures);
+        } catch (Exception e) {
+          for (K key : computeResult.keySet()) {
+            failures.put(key, e);
+          }
+        }
+
+        if (!loaded.isEmpty()) {
+          for (K key : computeResult.keySet()) {
+            V value = loaded.get(key);
+            successes.put(key, value);
+            computeResult.put(key, value);
+          }
+        }
+
+      }
+
+      return computeResult.entrySet();
+    }
+  }
+
   LinkedHashSet<Map.Entry<? extends K, ? extends V>> nullValuesForKeys(final Iterable<? extends K> keys) {
     final LinkedHashSet<Map.Entry<? extends K, ? extends V>> entries = new LinkedHashSet<Map.Entry<? extends K, ? extends V>>();
     for (K key : keys) {
@@ -325,7 +325,7 @@ public class EhcacheManager implements PersistentCacheManager {
         }
       }
     }
-    Store.Configuration<K, V> storeConfiguration = new StoreConfigurationImpl<K, V>(config, keySerializer, valueSerializer);
+    final Store.Configuration<K, V> storeConfiguration = new StoreConfigurationImpl<K, V>(config, keySerializer, valueSerializer);
     final Store<K, V> store = storeProvider.createStore(storeConfiguration, serviceConfigs);
 
     lifeCycledList.add(new LifeCycled() {
@@ -396,6 +396,10 @@ public class EhcacheManager implements PersistentCacheManager {
       public void init() throws Exception {
         StatisticsManager.associate(ehCache).withParent(EhcacheManager.this);
         StatisticsManager.associate(ehcacheStatsSettings).withParent(ehCache);
+        if (storeConfiguration.getValueSerializer() != null) {
+          // serializers can expose statistics of their own, like compression ones
+          StatisticsManager.associate(storeConfiguration.getValueSerializer()).withParent(store);
+        }
         if (managementRegistry != null) {
           managementRegistry.register(Ehcache.class, ehCache);
         }
@@ -406,6 +410,9 @@ public class EhcacheManager implements PersistentCacheManager {
         if (managementRegistry != null) {
           managementRegistry.unregister(Ehcache.class, ehCache);
         }
+        if (storeConfiguration.getValueSerializer() != null) {
+          StatisticsManager.dissociate(storeConfiguration.getValueSerializer()).fromParent(store);
+        }
         StatisticsManager.dissociate(ehCache).fromParent(EhcacheManager.this);
       }
     });
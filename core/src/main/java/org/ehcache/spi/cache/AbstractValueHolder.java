@@ -27,6 +27,8 @@ import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 public abstract class AbstractValueHolder<V> implements Store.ValueHolder<V>, Serializable {
 
   private static final AtomicLongFieldUpdater<AbstractValueHolder> HITS_UPDATER = AtomicLongFieldUpdater.newUpdater(AbstractValueHolder.class, "hits");
+  @SuppressWarnings("rawtypes")
+  private static final AtomicLongFieldUpdater<AbstractValueHolder> ACCESSTIME_UPDATER = AtomicLongFieldUpdater.newUpdater(AbstractValueHolder.class, "lastAccessTime");
   private final long id;
   private final long creationTime;
   private volatile long lastAccessTime;
@@ -80,10 +82,22 @@ public abstract class AbstractValueHolder<V> implements Store.ValueHolder<V>, Se
         setExpirationTime(newExpirationTime, timeUnit);
       }
     }
-    setLastAccessTime(now, timeUnit);
+    updateLastAccessTime(now);
     HITS_UPDATER.getAndIncrement(this);
   }
 
+  /**
+   * Moves the last access time forward, without ever moving it back when racing with other readers.
+   */
+  private void updateLastAccessTime(long now) {
+    while (true) {
+      long current = lastAccessTime;
+      if (current >= now || ACCESSTIME_UPDATER.compareAndSet(this, current, now)) {
+        return;
+      }
+    }
+  }
+
   @Override
   public long expirationTime(TimeUnit unit) {
     final long expire = this.expirationTime;
@@ -67,4 +67,21 @@ public interface StoreOperationOutcomes {
     SUCCESS
   }
 
+  /**
+   * Outcomes for shrinking a store to a reduced capacity
+   */
+  enum ShrinkOutcome implements StoreOperationOutcomes {
+    SUCCESS, FAILURE
+  }
+
+  /**
+   * Outcomes for compressing the serial form of values
+   */
+  enum CompressionOutcome implements StoreOperationOutcomes {
+    /** stored compressed */
+    COMPRESSED,
+    /** stored as is, compressing did not make it smaller */
+    SKIPPED
+  }
+
 }
@@ -29,9 +29,6 @@ public class ResourcePoolMerger {
     if(!existing.getResourceTypeSet().containsAll(toBeUpdated.getResourceTypeSet())) {
       throw new IllegalArgumentException("Pools to be updated cannot contain previously undefined resources pools");
     }
-    if(toBeUpdated.getResourceTypeSet().contains(ResourceType.Core.OFFHEAP)) {
-      throw new UnsupportedOperationException("Updating OFFHEAP resource is not supported");
-    }
     for(ResourceType currentResourceType : toBeUpdated.getResourceTypeSet()) {
       if (toBeUpdated.getPoolForResource(currentResourceType).getSize() <= 0) {
         throw new IllegalArgumentException("Unacceptable size for resource pools provided");
@@ -45,6 +42,12 @@ public class ResourcePoolMerger {
         throw new UnsupportedOperationException("Updating ResourceUnit is not supported");
       }
     }
+    // offheap memory is reserved upfront: it can only shrink within it
+    if(toBeUpdated.getResourceTypeSet().contains(ResourceType.Core.OFFHEAP)
+       && toBeUpdated.getPoolForResource(ResourceType.Core.OFFHEAP).getSize() >
+          existing.getPoolForResource(ResourceType.Core.OFFHEAP).getSize()) {
+      throw new UnsupportedOperationException("Growing OFFHEAP resource beyond its initial size is not supported");
+    }
 
     ResourcePoolsBuilder mergedPoolsBuilder = ResourcePoolsBuilder.newResourcePoolsBuilder(existing);
     for(ResourceType currentResourceType : toBeUpdated.getResourceTypeSet()) {
@@ -53,7 +56,8 @@ public class ResourcePoolMerger {
     }
     ResourcePools mergedResourcePools = mergedPoolsBuilder.build();
 
-    if(mergedResourcePools.getPoolForResource(ResourceType.Core.DISK) != null
+    if(mergedResourcePools.getPoolForResource(ResourceType.Core.HEAP) != null
+       && mergedResourcePools.getPoolForResource(ResourceType.Core.DISK) != null
        && checkForTierSizingViolation(mergedResourcePools)) {
       throw new IllegalArgumentException("Updating resource pools leads authoritative tier being smaller than caching tier");
     }
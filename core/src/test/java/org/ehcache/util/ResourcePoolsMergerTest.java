@@ -52,10 +52,19 @@ public class ResourcePoolsMergerTest {
     try {
       merger.validateAndMerge(existing, toBeUpdated);
     } catch (UnsupportedOperationException uoe) {
-      assertThat(uoe.getMessage(), is("Updating OFFHEAP resource is not supported"));
+      assertThat(uoe.getMessage(), is("Growing OFFHEAP resource beyond its initial size is not supported"));
     }
   }
 
+  @Test
+  public void testShrinkingOffHeap() {
+    ResourcePools existing = ResourcePoolsBuilder.newResourcePoolsBuilder().offheap(10L, MemoryUnit.MB).build();
+    ResourcePools toBeUpdated = ResourcePoolsBuilder.newResourcePoolsBuilder().offheap(5L, MemoryUnit.MB).build();
+    ResourcePoolMerger merger = new ResourcePoolMerger();
+    ResourcePools merged = merger.validateAndMerge(existing, toBeUpdated);
+    assertThat(merged.getPoolForResource(ResourceType.Core.OFFHEAP).getSize(), is(5L));
+  }
+
   @Test
   public void testUpdatingHeapSizeToLargerThanDisk() {
     ResourcePoolsBuilder existingPoolsBuilder = ResourcePoolsBuilder.newResourcePoolsBuilder();
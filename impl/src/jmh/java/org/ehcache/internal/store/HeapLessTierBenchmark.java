@@ -0,0 +1,147 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.store;
+
+import org.ehcache.Cache;
+import org.ehcache.CacheManager;
+import org.ehcache.CacheManagerBuilder;
+import org.ehcache.config.CacheConfigurationBuilder;
+import org.ehcache.config.ResourcePoolsBuilder;
+import org.ehcache.config.persistence.CacheManagerPersistenceConfiguration;
+import org.ehcache.config.units.EntryUnit;
+import org.ehcache.config.units.MemoryUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares caches fronted by a heap tier with heap-less off-heap, disk and off-heap over disk caches, under uniformly
+ * random, low reuse, access to {@link #entries} mappings. Run it with the GC profiler to compare allocation rates and
+ * collection counts between the {@link #layout}s.
+ * <P>
+ *   Run with e.g. {@code gradle :impl:jmh -Pjmh.include=HeapLessTierBenchmark -Pjmh.args='-prof gc'}
+ * </P>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx512m")
+@Threads(4)
+public class HeapLessTierBenchmark {
+
+  @Param({"heap-offheap", "offheap", "heap-disk", "disk", "offheap-disk"})
+  public String layout;
+
+  @Param({"100000"})
+  public int entries;
+
+  private File persistenceDir;
+  private CacheManager cacheManager;
+  private Cache<Long, String> cache;
+  private String value;
+
+  @State(Scope.Thread)
+  public static class Keys {
+    private final Random random = new Random();
+
+    long next(int entries) {
+      return random.nextInt(entries);
+    }
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    ResourcePoolsBuilder resources = ResourcePoolsBuilder.newResourcePoolsBuilder();
+    if (layout.startsWith("heap-")) {
+      resources = resources.heap(entries / 10, EntryUnit.ENTRIES);
+    }
+    if (layout.contains("offheap")) {
+      resources = resources.offheap(layout.endsWith("disk") ? 16 : 128, MemoryUnit.MB);
+    }
+    if (layout.endsWith("disk")) {
+      persistenceDir = File.createTempFile("heap-less-benchmark", "");
+      if (!persistenceDir.delete()) {
+        throw new IOException("Cannot delete " + persistenceDir);
+      }
+      cacheManager = CacheManagerBuilder.newCacheManagerBuilder()
+          .with(new CacheManagerPersistenceConfiguration(persistenceDir))
+          .withCache("heapless", CacheConfigurationBuilder.newCacheConfigurationBuilder()
+              .withResourcePools(resources.disk(256, MemoryUnit.MB)).buildConfig(Long.class, String.class))
+          .build(true);
+    } else {
+      cacheManager = CacheManagerBuilder.newCacheManagerBuilder()
+          .withCache("heapless", CacheConfigurationBuilder.newCacheConfigurationBuilder()
+              .withResourcePools(resources).buildConfig(Long.class, String.class))
+          .build(true);
+    }
+    cache = cacheManager.getCache("heapless", Long.class, String.class);
+
+    char[] padding = new char[512];
+    Arrays.fill(padding, 'x');
+    value = new String(padding);
+    for (long i = 0; i < entries; i++) {
+      cache.put(i, value);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    cacheManager.close();
+    if (persistenceDir != null) {
+      delete(persistenceDir);
+    }
+  }
+
+  @Benchmark
+  public String get(Keys keys) {
+    return cache.get(keys.next(entries));
+  }
+
+  @Benchmark
+  public void put(Keys keys) {
+    cache.put(keys.next(entries), value);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
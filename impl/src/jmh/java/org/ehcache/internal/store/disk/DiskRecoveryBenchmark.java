@@ -0,0 +1,130 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.store.disk;
+
+import org.ehcache.config.StoreConfigurationImpl;
+import org.ehcache.config.persistence.CacheManagerPersistenceConfiguration;
+import org.ehcache.config.units.MemoryUnit;
+import org.ehcache.exceptions.CacheAccessException;
+import org.ehcache.exceptions.CachePersistenceException;
+import org.ehcache.expiry.Expirations;
+import org.ehcache.internal.SystemTimeSource;
+import org.ehcache.internal.persistence.DefaultLocalPersistenceService;
+import org.ehcache.internal.serialization.LongSerializer;
+import org.ehcache.internal.serialization.StringSerializer;
+import org.ehcache.spi.service.FileBasedPersistenceContext;
+import org.ehcache.spi.service.LocalPersistenceService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long a disk store filled with {@link #entries} mappings takes to restart, both until it is available
+ * and until all of its segments are recovered.
+ * <P>
+ *   Run with e.g. {@code gradle :impl:jmh -Pjmh.include=DiskRecoveryBenchmark}
+ * </P>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DiskRecoveryBenchmark {
+
+  @Param({"500000"})
+  public int entries;
+
+  @Param({"1", "4", "16"})
+  public int diskSegments;
+
+  private File persistenceDir;
+  private LocalPersistenceService persistenceService;
+  private OffHeapDiskStore<Long, String> store;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, CachePersistenceException, CacheAccessException {
+    persistenceDir = File.createTempFile("disk-recovery-benchmark", "");
+    if (!persistenceDir.delete()) {
+      throw new IOException("Cannot delete " + persistenceDir);
+    }
+    persistenceService = new DefaultLocalPersistenceService(new CacheManagerPersistenceConfiguration(persistenceDir));
+    persistenceService.start(null);
+    FileBasedPersistenceContext persistenceContext = persistenceService.createPersistenceContextWithin(
+        persistenceService.getOrCreatePersistenceSpace("recovery"), "store");
+
+    ClassLoader classLoader = getClass().getClassLoader();
+    StoreConfigurationImpl<Long, String> storeConfiguration = new StoreConfigurationImpl<Long, String>(Long.class, String.class,
+        null, null, classLoader, Expirations.noExpiration(), null, new LongSerializer(classLoader), new StringSerializer(classLoader));
+    store = new OffHeapDiskStore<Long, String>(persistenceContext, storeConfiguration, SystemTimeSource.INSTANCE,
+        MemoryUnit.MB.toBytes(512), new OffHeapDiskStoreServiceConfiguration().diskSegments(diskSegments));
+    OffHeapDiskStore.Provider.init(store);
+    for (long i = 0; i < entries; i++) {
+      store.put(i, "value" + i);
+    }
+    OffHeapDiskStore.Provider.close(store);
+  }
+
+  @TearDown(Level.Invocation)
+  public void closeStore() throws IOException {
+    OffHeapDiskStore.Provider.close(store);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    persistenceService.stop();
+    delete(persistenceDir);
+  }
+
+  @Benchmark
+  public OffHeapDiskStore<Long, String> restartUntilAvailable() {
+    OffHeapDiskStore.Provider.init(store);
+    return store;
+  }
+
+  @Benchmark
+  public boolean restartUntilRecovered() {
+    OffHeapDiskStore.Provider.init(store);
+    return ((EhcachePersistentConcurrentOffHeapClockCache<?, ?>) store.backingMap()).awaitRecovery();
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.store.disk;
+
+import org.ehcache.Cache;
+import org.ehcache.CacheManager;
+import org.ehcache.CacheManagerBuilder;
+import org.ehcache.config.CacheConfigurationBuilder;
+import org.ehcache.config.ResourcePoolsBuilder;
+import org.ehcache.config.persistence.CacheManagerPersistenceConfiguration;
+import org.ehcache.config.units.EntryUnit;
+import org.ehcache.config.units.MemoryUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sweeps the number of disk writer threads against the put throughput of a disk tier under concurrent load.
+ * <P>
+ *   Run with e.g. {@code gradle :impl:jmh -Pjmh.include=DiskWriterConcurrencyBenchmark}
+ * </P>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class DiskWriterConcurrencyBenchmark {
+
+  private static final int KEY_SPACE = 100000;
+
+  @Param({"1", "2", "4", "8"})
+  public int writerConcurrency;
+
+  @Param({"16"})
+  public int diskSegments;
+
+  private File persistenceDir;
+  private CacheManager cacheManager;
+  private Cache<Long, byte[]> cache;
+  private byte[] value;
+
+  @Setup
+  public void setUp() throws IOException {
+    persistenceDir = File.createTempFile("disk-writer-benchmark", "");
+    if (!persistenceDir.delete()) {
+      throw new IOException("Cannot delete " + persistenceDir);
+    }
+    cacheManager = CacheManagerBuilder.newCacheManagerBuilder()
+        .with(new CacheManagerPersistenceConfiguration(persistenceDir))
+        .withCache("disk", CacheConfigurationBuilder.newCacheConfigurationBuilder()
+            .withResourcePools(ResourcePoolsBuilder.newResourcePoolsBuilder()
+                .heap(100, EntryUnit.ENTRIES).disk(256, MemoryUnit.MB))
+            .add(new OffHeapDiskStoreServiceConfiguration().diskSegments(diskSegments).writerConcurrency(writerConcurrency))
+            .buildConfig(Long.class, byte[].class))
+        .build(true);
+    cache = cacheManager.getCache("disk", Long.class, byte[].class);
+    value = new byte[1024];
+    Arrays.fill(value, (byte) 42);
+  }
+
+  @TearDown
+  public void tearDown() {
+    cacheManager.close();
+    delete(persistenceDir);
+  }
+
+  @State(Scope.Thread)
+  public static class Keys {
+    private final Random random = new Random();
+
+    long next() {
+      return random.nextInt(KEY_SPACE);
+    }
+  }
+
+  @Benchmark
+  public void put(Keys keys) {
+    cache.put(keys.next(), value);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store.heap;
+
+import org.ehcache.config.ResourcePoolsBuilder;
+import org.ehcache.config.StoreConfigurationImpl;
+import org.ehcache.config.units.EntryUnit;
+import org.ehcache.exceptions.CacheAccessException;
+import org.ehcache.expiry.Duration;
+import org.ehcache.expiry.Expirations;
+import org.ehcache.function.BiFunction;
+import org.ehcache.function.NullaryFunction;
+import org.ehcache.internal.SystemTimeSource;
+import org.ehcache.internal.copy.IdentityCopier;
+import org.ehcache.spi.cache.Store;
+import org.ehcache.spi.copy.Copier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the lock-free {@link OnHeapStore#get(Object)} read path with a read going through the map's
+ * {@code computeIfPresent}, which is what {@code get} used to do.
+ * <P>
+ *   Run with e.g. {@code gradle :impl:jmh -Pjmh.include=OnHeapStoreGetBenchmark -Pjmh.args='-t 8'}
+ * </P>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class OnHeapStoreGetBenchmark {
+
+  private static final NullaryFunction<Boolean> REPLACE_EQUALS_FALSE = new NullaryFunction<Boolean>() {
+    @Override
+    public Boolean apply() {
+      return Boolean.FALSE;
+    }
+  };
+
+  private static final BiFunction<Long, String, String> IDENTITY = new BiFunction<Long, String, String>() {
+    @Override
+    public String apply(Long key, String value) {
+      return value;
+    }
+  };
+
+  /**
+   * Number of distinct keys being read, a small value means hot keys sharing few map bins.
+   */
+  @Param({"16", "65536"})
+  public int keyCount;
+
+  private OnHeapStore<Long, String> store;
+
+  @Setup
+  public void setUp() throws CacheAccessException {
+    Copier<Long> keyCopier = new IdentityCopier<Long>();
+    Copier<String> valueCopier = new IdentityCopier<String>();
+    Store.Configuration<Long, String> configuration = new StoreConfigurationImpl<Long, String>(Long.class, String.class,
+        null, null, getClass().getClassLoader(), Expirations.timeToIdleExpiration(new Duration(1, TimeUnit.HOURS)),
+        ResourcePoolsBuilder.newResourcePoolsBuilder().heap(keyCount, EntryUnit.ENTRIES).build(), null, null);
+    store = new OnHeapStore<Long, String>(configuration, SystemTimeSource.INSTANCE, keyCopier, valueCopier);
+    for (long i = 0; i < keyCount; i++) {
+      store.put(i, "value" + i);
+    }
+  }
+
+  @Benchmark
+  public Store.ValueHolder<String> get(Keys keys) throws CacheAccessException {
+    return store.get(keys.next());
+  }
+
+  @Benchmark
+  public Store.ValueHolder<String> lockedComputeGet(Keys keys) throws CacheAccessException {
+    return store.computeIfPresent(keys.next(), IDENTITY, REPLACE_EQUALS_FALSE);
+  }
+
+  /**
+   * Per thread pre-computed random key sequence, keeping key generation out of the measurement.
+   */
+  @State(Scope.Thread)
+  public static class Keys {
+
+    private final Long[] keys = new Long[4096];
+    private int index;
+
+    @Setup
+    public void setUp(OnHeapStoreGetBenchmark benchmark) {
+      Random random = new Random();
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = (long) random.nextInt(benchmark.keyCount);
+      }
+    }
+
+    Long next() {
+      return keys[index++ & (keys.length - 1)];
+    }
+  }
+}
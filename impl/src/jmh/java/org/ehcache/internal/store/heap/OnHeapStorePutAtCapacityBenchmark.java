@@ -0,0 +1,94 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.store.heap;
+
+import org.ehcache.config.ResourcePoolsBuilder;
+import org.ehcache.config.StoreConfigurationImpl;
+import org.ehcache.config.units.EntryUnit;
+import org.ehcache.exceptions.CacheAccessException;
+import org.ehcache.expiry.Expirations;
+import org.ehcache.internal.SystemTimeSource;
+import org.ehcache.internal.copy.IdentityCopier;
+import org.ehcache.spi.cache.Store;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link OnHeapStore#put(Object, Object)} on a full store, where every put evicts a mapping. Meant to be
+ * run with the GC profiler to observe the garbage created by eviction.
+ * <P>
+ *   Run with e.g. {@code gradle :impl:jmh -Pjmh.include=OnHeapStorePutAtCapacityBenchmark -Pjmh.profilers=gc}
+ * </P>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class OnHeapStorePutAtCapacityBenchmark {
+
+  private static final int CAPACITY = 10000;
+  private static final String VALUE = "value";
+
+  @Param({"Long", "String"})
+  public String keyType;
+
+  private OnHeapStore<Object, String> store;
+  private Object[] keys;
+  private int next;
+
+  @Setup
+  @SuppressWarnings("unchecked")
+  public void setUp() throws CacheAccessException {
+    Class<?> type = "Long".equals(keyType) ? Long.class : String.class;
+    // twice the capacity worth of keys, cycled through so that each put maps an absent key
+    keys = new Object[CAPACITY * 2];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = "Long".equals(keyType) ? (Object) (long) i : (Object) ("key" + i);
+    }
+    Store.Configuration<Object, String> configuration = new StoreConfigurationImpl<Object, String>((Class<Object>) type, String.class,
+        null, null, getClass().getClassLoader(), Expirations.noExpiration(),
+        ResourcePoolsBuilder.newResourcePoolsBuilder().heap(CAPACITY, EntryUnit.ENTRIES).build(), null, null);
+    store = new OnHeapStore<Object, String>(configuration, SystemTimeSource.INSTANCE, new IdentityCopier<Object>(), new IdentityCopier<String>());
+    for (int i = 0; i < CAPACITY; i++) {
+      store.put(keys[next++], VALUE);
+    }
+  }
+
+  @Benchmark
+  public void putAtCapacity() throws CacheAccessException {
+    store.put(keys[next], VALUE);
+    if (++next == keys.length) {
+      next = 0;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store.heap;
+
+import org.ehcache.config.ResourcePoolsBuilder;
+import org.ehcache.config.StoreConfigurationImpl;
+import org.ehcache.config.units.EntryUnit;
+import org.ehcache.exceptions.CacheAccessException;
+import org.ehcache.expiry.Duration;
+import org.ehcache.expiry.Expirations;
+import org.ehcache.internal.SystemTimeSource;
+import org.ehcache.internal.TickingTimeSource;
+import org.ehcache.internal.TimeSource;
+import org.ehcache.internal.copy.IdentityCopier;
+import org.ehcache.spi.cache.Store;
+import org.ehcache.spi.copy.Copier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of reading the clock on the {@link OnHeapStore#get(Object)} path, comparing the
+ * {@link SystemTimeSource} with a {@link TickingTimeSource}.
+ * <P>
+ *   Run with e.g. {@code gradle :impl:jmh -Pjmh.include=TimeSourceGetBenchmark}
+ * </P>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class TimeSourceGetBenchmark {
+
+  private static final int KEY_COUNT = 1024;
+
+  @Param({"system", "ticking"})
+  public String timeSource;
+
+  private TickingTimeSource tickingTimeSource;
+  private OnHeapStore<Long, String> store;
+  private long key;
+
+  @Setup
+  public void setUp() throws CacheAccessException {
+    TimeSource source;
+    if ("ticking".equals(timeSource)) {
+      tickingTimeSource = new TickingTimeSource(1, TimeUnit.MILLISECONDS);
+      tickingTimeSource.start();
+      source = tickingTimeSource;
+    } else {
+      source = SystemTimeSource.INSTANCE;
+    }
+    Copier<Long> keyCopier = new IdentityCopier<Long>();
+    Copier<String> valueCopier = new IdentityCopier<String>();
+    Store.Configuration<Long, String> configuration = new StoreConfigurationImpl<Long, String>(Long.class, String.class,
+        null, null, getClass().getClassLoader(), Expirations.timeToIdleExpiration(new Duration(1, TimeUnit.HOURS)),
+        ResourcePoolsBuilder.newResourcePoolsBuilder().heap(KEY_COUNT, EntryUnit.ENTRIES).build(), null, null);
+    store = new OnHeapStore<Long, String>(configuration, source, keyCopier, valueCopier);
+    for (long i = 0; i < KEY_COUNT; i++) {
+      store.put(i, "value" + i);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (tickingTimeSource != null) {
+      tickingTimeSource.stop();
+    }
+  }
+
+  @Benchmark
+  public Store.ValueHolder<String> get() throws CacheAccessException {
+    return store.get(key++ & (KEY_COUNT - 1));
+  }
+}
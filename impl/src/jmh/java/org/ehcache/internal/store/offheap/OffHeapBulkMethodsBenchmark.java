@@ -0,0 +1,130 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.store.offheap;
+
+import org.ehcache.Cache;
+import org.ehcache.CacheManager;
+import org.ehcache.CacheManagerBuilder;
+import org.ehcache.config.CacheConfigurationBuilder;
+import org.ehcache.config.ResourcePoolsBuilder;
+import org.ehcache.config.persistence.CacheManagerPersistenceConfiguration;
+import org.ehcache.config.units.EntryUnit;
+import org.ehcache.config.units.MemoryUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Cache#putAll(Map)} and {@link Cache#getAll(Set)} of 10k entries, which the off-heap and disk
+ * tiers run as bulk computes.
+ * <P>
+ *   Run with e.g. {@code gradle :impl:jmh -Pjmh.include=OffHeapBulkMethodsBenchmark}
+ * </P>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class OffHeapBulkMethodsBenchmark {
+
+  private static final int BATCH_SIZE = 10000;
+
+  @Param({"offheap", "disk"})
+  public String tier;
+
+  private File persistenceDir;
+  private CacheManager cacheManager;
+  private Cache<Long, String> cache;
+  private Map<Long, String> entries;
+
+  @Setup
+  public void setUp() throws IOException {
+    ResourcePoolsBuilder resources = ResourcePoolsBuilder.newResourcePoolsBuilder().heap(100, EntryUnit.ENTRIES);
+    if ("disk".equals(tier)) {
+      persistenceDir = File.createTempFile("bulk-benchmark", "");
+      if (!persistenceDir.delete()) {
+        throw new IOException("Cannot delete " + persistenceDir);
+      }
+      cacheManager = CacheManagerBuilder.newCacheManagerBuilder()
+          .with(new CacheManagerPersistenceConfiguration(persistenceDir))
+          .withCache("bulk", CacheConfigurationBuilder.newCacheConfigurationBuilder()
+              .withResourcePools(resources.disk(64, MemoryUnit.MB)).buildConfig(Long.class, String.class))
+          .build(true);
+    } else {
+      cacheManager = CacheManagerBuilder.newCacheManagerBuilder()
+          .withCache("bulk", CacheConfigurationBuilder.newCacheConfigurationBuilder()
+              .withResourcePools(resources.offheap(64, MemoryUnit.MB)).buildConfig(Long.class, String.class))
+          .build(true);
+    }
+    cache = cacheManager.getCache("bulk", Long.class, String.class);
+
+    entries = new HashMap<Long, String>();
+    for (long i = 0; i < BATCH_SIZE; i++) {
+      entries.put(i, "value" + i);
+    }
+    cache.putAll(entries);
+  }
+
+  @TearDown
+  public void tearDown() {
+    cacheManager.close();
+    if (persistenceDir != null) {
+      delete(persistenceDir);
+    }
+  }
+
+  @Benchmark
+  public void putAll() {
+    cache.putAll(entries);
+  }
+
+  @Benchmark
+  public Map<Long, String> getAll() {
+    return cache.getAll(entries.keySet());
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
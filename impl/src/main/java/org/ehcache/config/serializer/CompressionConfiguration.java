@@ -0,0 +1,55 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.config.serializer;
+
+import org.ehcache.spi.serialization.SerializationProvider;
+import org.ehcache.spi.service.ServiceConfiguration;
+
+/**
+ * Makes the {@link org.ehcache.spi.serialization.DefaultSerializationProvider} compress the serial form of a cache's
+ * values, as stored by its off-heap and disk tiers and by its heap tier when it copies values by serialization.
+ * <p>
+ * Only serial forms of at least {@code threshold} bytes get compressed. Data persisted with compression enabled
+ * can only be read back with compression enabled, whatever the threshold.
+ */
+public class CompressionConfiguration implements ServiceConfiguration<SerializationProvider> {
+
+  public static final int DEFAULT_THRESHOLD = 512;
+
+  private final int threshold;
+
+  public CompressionConfiguration() {
+    this(DEFAULT_THRESHOLD);
+  }
+
+  public CompressionConfiguration(int threshold) {
+    if (threshold < 0) {
+      throw new IllegalArgumentException("Compression threshold cannot be negative: " + threshold);
+    }
+    this.threshold = threshold;
+  }
+
+  public int getThreshold() {
+    return threshold;
+  }
+
+  @Override
+  public Class<SerializationProvider> getServiceType() {
+    return SerializationProvider.class;
+  }
+}
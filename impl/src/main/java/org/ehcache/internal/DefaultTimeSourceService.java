@@ -27,6 +27,9 @@ public class DefaultTimeSourceService implements TimeSourceService {
 
   public DefaultTimeSourceService(TimeSourceConfiguration config) {
     if (config != null) {
+      if (config.isTicking()) {
+        throw new IllegalArgumentException("A ticking time source is provided by " + TickingTimeSourceService.class.getName());
+      }
       timeSource = config.getTimeSource();
     } else {
       timeSource = SystemTimeSource.INSTANCE;
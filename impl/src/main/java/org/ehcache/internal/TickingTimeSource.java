@@ -0,0 +1,100 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link TimeSource} publishing the system clock as read by a single background thread at a fixed resolution.
+ * <P>
+ * Reading the time then costs a volatile read, at the price of the time being up to one resolution late.
+ * While not started, the system clock is read directly.
+ * </P>
+ */
+public class TickingTimeSource implements TimeSource {
+
+  private static final long NOT_TICKING = Long.MIN_VALUE;
+
+  private final long resolution;
+  private final TimeUnit unit;
+
+  private volatile long currentTime = NOT_TICKING;
+  private Thread ticker;
+
+  public TickingTimeSource(long resolution, TimeUnit unit) {
+    if (resolution <= 0) {
+      throw new IllegalArgumentException("Resolution must be positive: " + resolution);
+    }
+    if (unit == null) {
+      throw new NullPointerException("Resolution unit must not be null");
+    }
+    this.resolution = resolution;
+    this.unit = unit;
+  }
+
+  @Override
+  public long getTimeMillis() {
+    long time = currentTime;
+    if (time == NOT_TICKING) {
+      return System.currentTimeMillis();
+    }
+    return time;
+  }
+
+  /**
+   * Starts the thread updating the time.
+   */
+  public synchronized void start() {
+    if (ticker != null) {
+      throw new IllegalStateException("Already started");
+    }
+    currentTime = System.currentTimeMillis();
+    ticker = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+          try {
+            unit.sleep(resolution);
+          } catch (InterruptedException e) {
+            return;
+          }
+          currentTime = System.currentTimeMillis();
+        }
+      }
+    }, "Ehcache TickingTimeSource");
+    ticker.setDaemon(true);
+    ticker.start();
+  }
+
+  /**
+   * Stops the thread updating the time, falling back to reading the system clock.
+   */
+  public synchronized void stop() {
+    if (ticker == null) {
+      return;
+    }
+    ticker.interrupt();
+    try {
+      ticker.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    ticker = null;
+    currentTime = NOT_TICKING;
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal;
+
+import org.ehcache.spi.ServiceProvider;
+
+/**
+ * A {@link TimeSourceService} providing a {@link TickingTimeSource} running for as long as the service is started.
+ */
+public class TickingTimeSourceService implements TimeSourceService {
+
+  private final TickingTimeSource timeSource;
+
+  public TickingTimeSourceService(TimeSourceConfiguration config) {
+    if (!config.isTicking()) {
+      throw new IllegalArgumentException("No tick resolution configured");
+    }
+    this.timeSource = new TickingTimeSource(config.getTickResolution(), config.getTickResolutionUnit());
+  }
+
+  @Override
+  public TimeSource getTimeSource() {
+    return timeSource;
+  }
+
+  @Override
+  public void start(ServiceProvider serviceProvider) {
+    timeSource.start();
+  }
+
+  @Override
+  public void stop() {
+    timeSource.stop();
+  }
+}
@@ -17,6 +17,8 @@ package org.ehcache.internal;
 
 import org.ehcache.spi.service.ServiceCreationConfiguration;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Configuration for the {@link TimeSourceService}
  *
@@ -25,6 +27,8 @@ import org.ehcache.spi.service.ServiceCreationConfiguration;
 public class TimeSourceConfiguration implements ServiceCreationConfiguration<TimeSourceService> {
 
   private final TimeSource timeSource;
+  private final long tickResolution;
+  private final TimeUnit tickResolutionUnit;
 
   /**
    * Constructor for this configuration object which takes the {@link TimeSource} to use.
@@ -33,6 +37,27 @@ public class TimeSourceConfiguration implements ServiceCreationConfiguration<Tim
    */
   public TimeSourceConfiguration(TimeSource timeSource) {
     this.timeSource = timeSource;
+    this.tickResolution = 0;
+    this.tickResolutionUnit = null;
+  }
+
+  /**
+   * Constructor for this configuration object which selects a {@link TickingTimeSource}: the system clock is read
+   * by a single background thread at the given resolution instead of on every cache operation.
+   *
+   * @param tickResolution the period at which the clock is read
+   * @param unit the unit of {@code tickResolution}
+   */
+  public TimeSourceConfiguration(long tickResolution, TimeUnit unit) {
+    if (tickResolution <= 0) {
+      throw new IllegalArgumentException("Tick resolution must be positive: " + tickResolution);
+    }
+    if (unit == null) {
+      throw new NullPointerException("Tick resolution unit must not be null");
+    }
+    this.timeSource = null;
+    this.tickResolution = tickResolution;
+    this.tickResolutionUnit = unit;
   }
   
   @Override
@@ -43,10 +68,37 @@ public class TimeSourceConfiguration implements ServiceCreationConfiguration<Tim
   /**
    * Exposes the {@link TimeSource} configured.
    *
-   * @return the {@code TimeSource}
+   * @return the {@code TimeSource}, or {@code null} when a {@link TickingTimeSource} is configured
    */
   public TimeSource getTimeSource() {
     return this.timeSource;
   }
 
+  /**
+   * Indicates whether this configuration selects a {@link TickingTimeSource}.
+   *
+   * @return {@code true} if a tick resolution was configured
+   */
+  public boolean isTicking() {
+    return this.tickResolutionUnit != null;
+  }
+
+  /**
+   * Exposes the tick resolution configured.
+   *
+   * @return the tick resolution, expressed in {@link #getTickResolutionUnit()}
+   */
+  public long getTickResolution() {
+    return this.tickResolution;
+  }
+
+  /**
+   * Exposes the unit of the tick resolution configured.
+   *
+   * @return the tick resolution unit, or {@code null} when a {@link TimeSource} instance is configured
+   */
+  public TimeUnit getTickResolutionUnit() {
+    return this.tickResolutionUnit;
+  }
+
 }
@@ -25,7 +25,11 @@ import org.ehcache.spi.service.ServiceFactory;
 public class TimeSourceServiceFactory implements ServiceFactory<TimeSourceService> {
   @Override
   public TimeSourceService create(ServiceCreationConfiguration<TimeSourceService> configuration) {
-    return new DefaultTimeSourceService((TimeSourceConfiguration) configuration);
+    TimeSourceConfiguration timeSourceConfiguration = (TimeSourceConfiguration) configuration;
+    if (timeSourceConfiguration != null && timeSourceConfiguration.isTicking()) {
+      return new TickingTimeSourceService(timeSourceConfiguration);
+    }
+    return new DefaultTimeSourceService(timeSourceConfiguration);
   }
 
   @Override
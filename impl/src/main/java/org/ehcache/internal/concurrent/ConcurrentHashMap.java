@@ -6356,6 +6356,32 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
         return sampled;
     }
     
+    /**
+     * Visits the mappings, starting from a bin picked by {@code seed} and wrapping around, until the visitor
+     * returns {@code true} or all mappings were visited. Unlike
+     * {@link #getRandomValues(Random, int, Predicate)}, nothing gets allocated per visited mapping.
+     */
+    public void visitFrom(int seed, BiFunction<? super K, ? super V, Boolean> visitor) {
+        Node<K,V>[] tab = table;
+        if (tab == null) {
+            return;
+        }
+        int n = tab.length;
+        int start = seed & (n - 1);
+        Traverser<K, V> t1 = new Traverser<K, V>(tab, n, start, n);
+        for (Node<K,V> p; (p = t1.advance()) != null; ) {
+            if (visitor.apply(p.key, p.val)) {
+                return;
+            }
+        }
+        Traverser<K, V> t2 = new Traverser<K, V>(tab, n, 0, start);
+        for (Node<K,V> p; (p = t2.advance()) != null; ) {
+            if (visitor.apply(p.key, p.val)) {
+                return;
+            }
+        }
+    }
+
     private static <T> boolean add(Set<? super T> to, Predicate<? super T> veto, T value) {
       return !veto.test(value) && to.add(value);
     }
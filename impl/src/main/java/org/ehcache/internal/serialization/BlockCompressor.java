@@ -0,0 +1,202 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.serialization;
+
+/**
+ * A pure Java LZ77 block compressor writing the LZ4 block format: sequences of literals, each followed by a match
+ * copied from at most 64KB back in the uncompressed output.
+ * <p>
+ * It favours speed over ratio, finding matches through a single hash table probe.
+ */
+final class BlockCompressor {
+
+  private static final int MIN_MATCH = 4;
+  private static final int MAX_DISTANCE = (1 << 16) - 1;
+  // the format requires the last 5 bytes to be literals, and the last match to start 12 bytes before the end
+  private static final int LAST_LITERALS = 5;
+  private static final int MF_LIMIT = 12;
+  private static final int MAX_HASH_LOG = 12;
+  private static final int SKIP_TRIGGER = 6;
+  private static final int RUN_MASK = 0x0F;
+
+  private BlockCompressor() {
+  }
+
+  /**
+   * Returns the size of a buffer large enough for compressing {@code length} bytes, whatever they are.
+   */
+  static int maxCompressedLength(int length) {
+    return length + length / 255 + 16;
+  }
+
+  /**
+   * Compresses {@code srcLen} bytes of {@code src} into {@code dst}, which must have room for
+   * {@link #maxCompressedLength(int)} bytes.
+   *
+   * @return the compressed length
+   */
+  static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+    final int srcEnd = srcOff + srcLen;
+    final int matchLimit = srcEnd - LAST_LITERALS;
+    final int mfLimit = srcEnd - MF_LIMIT;
+    int anchor = srcOff;
+    int dOff = dstOff;
+
+    if (srcLen > MF_LIMIT) {
+      final int hashLog = Math.min(MAX_HASH_LOG, 32 - Integer.numberOfLeadingZeros(srcLen));
+      // positions relative to srcOff: the initial zeroes point at the first byte, a valid if unlikely candidate
+      final int[] table = new int[1 << hashLog];
+      int sOff = srcOff + 1;
+      int searchCount = 1 << SKIP_TRIGGER;
+
+      while (sOff < mfLimit) {
+        int sequence = readInt(src, sOff);
+        int h = hash(sequence, hashLog);
+        int ref = srcOff + table[h];
+        table[h] = sOff - srcOff;
+        if (sOff - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+          // step faster through data that does not compress
+          sOff += searchCount++ >>> SKIP_TRIGGER;
+          continue;
+        }
+        searchCount = 1 << SKIP_TRIGGER;
+
+        while (sOff > anchor && ref > srcOff && src[sOff - 1] == src[ref - 1]) {
+          sOff--;
+          ref--;
+        }
+        int matchLen = MIN_MATCH;
+        while (sOff + matchLen < matchLimit && src[sOff + matchLen] == src[ref + matchLen]) {
+          matchLen++;
+        }
+
+        dOff = writeLiterals(src, anchor, sOff - anchor, matchLen - MIN_MATCH, dst, dOff);
+        int distance = sOff - ref;
+        dst[dOff++] = (byte) distance;
+        dst[dOff++] = (byte) (distance >>> 8);
+        if (matchLen - MIN_MATCH >= RUN_MASK) {
+          dOff = writeLength(matchLen - MIN_MATCH - RUN_MASK, dst, dOff);
+        }
+
+        sOff += matchLen;
+        anchor = sOff;
+        if (sOff < mfLimit) {
+          table[hash(readInt(src, sOff - 2), hashLog)] = sOff - 2 - srcOff;
+        }
+      }
+    }
+
+    dOff = writeLiterals(src, anchor, srcEnd - anchor, 0, dst, dOff);
+    return dOff - dstOff;
+  }
+
+  /**
+   * Decompresses the {@code srcLen} bytes of {@code src} into exactly {@code dstLen} bytes of {@code dst}.
+   *
+   * @throws IllegalArgumentException if the compressed bytes are corrupted
+   */
+  static void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) {
+    final int srcEnd = srcOff + srcLen;
+    final int dstEnd = dstOff + dstLen;
+    int sOff = srcOff;
+    int dOff = dstOff;
+    try {
+      while (true) {
+        int token = src[sOff++] & 0xFF;
+
+        int literalLen = token >>> 4;
+        if (literalLen == RUN_MASK) {
+          int b;
+          do {
+            b = src[sOff++] & 0xFF;
+            literalLen += b;
+          } while (b == 0xFF);
+        }
+        if (sOff + literalLen > srcEnd || dOff + literalLen > dstEnd) {
+          throw new IllegalArgumentException("Corrupted compressed data: literals overflow");
+        }
+        System.arraycopy(src, sOff, dst, dOff, literalLen);
+        sOff += literalLen;
+        dOff += literalLen;
+        if (sOff == srcEnd) {
+          break;
+        }
+
+        int distance = (src[sOff++] & 0xFF) | ((src[sOff++] & 0xFF) << 8);
+        int ref = dOff - distance;
+        if (distance == 0 || ref < dstOff) {
+          throw new IllegalArgumentException("Corrupted compressed data: match distance out of range");
+        }
+        int matchLen = token & RUN_MASK;
+        if (matchLen == RUN_MASK) {
+          int b;
+          do {
+            b = src[sOff++] & 0xFF;
+            matchLen += b;
+          } while (b == 0xFF);
+        }
+        matchLen += MIN_MATCH;
+        if (dOff + matchLen > dstEnd) {
+          throw new IllegalArgumentException("Corrupted compressed data: match overflow");
+        }
+        if (distance >= matchLen) {
+          System.arraycopy(dst, ref, dst, dOff, matchLen);
+          dOff += matchLen;
+        } else {
+          // overlapping copy repeating the last distance bytes
+          for (int end = dOff + matchLen; dOff < end; ) {
+            dst[dOff++] = dst[ref++];
+          }
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Corrupted compressed data: truncated", e);
+    }
+    if (dOff != dstEnd) {
+      throw new IllegalArgumentException("Corrupted compressed data: " + (dOff - dstOff) + " bytes instead of " + dstLen);
+    }
+  }
+
+  private static int writeLiterals(byte[] src, int srcOff, int literalLen, int matchLenToken, byte[] dst, int dOff) {
+    int token = Math.min(matchLenToken, RUN_MASK);
+    if (literalLen >= RUN_MASK) {
+      dst[dOff++] = (byte) ((RUN_MASK << 4) | token);
+      dOff = writeLength(literalLen - RUN_MASK, dst, dOff);
+    } else {
+      dst[dOff++] = (byte) ((literalLen << 4) | token);
+    }
+    System.arraycopy(src, srcOff, dst, dOff, literalLen);
+    return dOff + literalLen;
+  }
+
+  private static int writeLength(int length, byte[] dst, int dOff) {
+    for (; length >= 0xFF; length -= 0xFF) {
+      dst[dOff++] = (byte) 0xFF;
+    }
+    dst[dOff++] = (byte) length;
+    return dOff;
+  }
+
+  private static int readInt(byte[] buf, int off) {
+    return (buf[off] & 0xFF) | (buf[off + 1] & 0xFF) << 8 | (buf[off + 2] & 0xFF) << 16 | buf[off + 3] << 24;
+  }
+
+  private static int hash(int sequence, int hashLog) {
+    return (sequence * -1640531535) >>> (32 - hashLog);
+  }
+}
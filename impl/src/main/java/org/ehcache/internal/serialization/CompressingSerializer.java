@@ -0,0 +1,249 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.serialization;
+
+import org.ehcache.exceptions.SerializerException;
+import org.ehcache.spi.serialization.BinaryComparableSerializer;
+import org.ehcache.spi.serialization.Serializer;
+import org.ehcache.statistics.StoreOperationOutcomes;
+import org.terracotta.statistics.StatisticsManager;
+import org.terracotta.statistics.observer.OperationObserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.terracotta.statistics.StatisticBuilder.operation;
+
+/**
+ * A {@link Serializer} compressing the serial form of another one with {@link BlockCompressor} when it is at least
+ * {@code threshold} bytes long and compression makes it smaller.
+ * <p>
+ * Values that are not compressed keep the serial form of the delegate, as is. Compressed ones start with a two byte
+ * marker and a {@code COMPRESSED} flag, followed by the uncompressed length as an {@code int}. The rare serial forms
+ * that start with the marker themselves get it prepended with an {@code ESCAPED} flag. Besides how many values got
+ * compressed, it reports the overall compression ratio and the time spent compressing and decompressing, in
+ * nanoseconds, as statistics.
+ * <p>
+ * Stores persisting serial forms record {@link #FORMAT_VERSION}, as values written without compression cannot be told
+ * apart from compressed ones that happen to start like them.
+ * <p>
+ * Compressing is deterministic, so that the serial forms of a {@link BinaryComparableSerializer} stay canonical:
+ * {@link #wrap(Serializer, int)} keeps such a delegate's contract.
+ */
+public class CompressingSerializer<T> implements Serializer<T> {
+
+  /**
+   * The version of the serial form of compressing serializers, {@code 0} standing for the one of other serializers.
+   */
+  public static final int FORMAT_VERSION = 1;
+
+  private static final byte MARKER_0 = (byte) 0xEC;
+  private static final byte MARKER_1 = (byte) 0x5A;
+  private static final byte ESCAPED = 0;
+  private static final byte COMPRESSED = 1;
+  private static final int HEADER_SIZE = 3;
+  private static final int COMPRESSED_HEADER_SIZE = HEADER_SIZE + 4;
+
+  private final Serializer<T> delegate;
+  private final int threshold;
+
+  private final OperationObserver<StoreOperationOutcomes.CompressionOutcome> compressionObserver = operation(StoreOperationOutcomes.CompressionOutcome.class).named("compression").of(this).tag("compression").build();
+  private final AtomicLong serializedBytes = new AtomicLong();
+  private final AtomicLong storedBytes = new AtomicLong();
+  private final AtomicLong compressionNanos = new AtomicLong();
+  private final AtomicLong decompressionNanos = new AtomicLong();
+
+  public CompressingSerializer(Serializer<T> delegate, int threshold) {
+    if (delegate == null) {
+      throw new NullPointerException("Serializer to compress cannot be null");
+    }
+    if (threshold < 0) {
+      throw new IllegalArgumentException("Compression threshold cannot be negative: " + threshold);
+    }
+    this.delegate = delegate;
+    this.threshold = threshold;
+
+    Set<String> tags = Collections.singleton("compression");
+    StatisticsManager.createPassThroughStatistic(this, "compressionRatio", tags, new Callable<Double>() {
+      @Override
+      public Double call() {
+        return getCompressionRatio();
+      }
+    });
+    StatisticsManager.createPassThroughStatistic(this, "compressionTime", tags, new Callable<Long>() {
+      @Override
+      public Long call() {
+        return compressionNanos.get();
+      }
+    });
+    StatisticsManager.createPassThroughStatistic(this, "decompressionTime", tags, new Callable<Long>() {
+      @Override
+      public Long call() {
+        return decompressionNanos.get();
+      }
+    });
+  }
+
+  /**
+   * Creates a compressing serializer that is a {@link BinaryComparableSerializer} if {@code delegate} is one.
+   *
+   * @param delegate the serializer producing the serial forms to compress
+   * @param threshold the size from which serial forms get compressed
+   * @param <T> the type of the instances to serialize
+   * @return the compressing serializer
+   */
+  public static <T> CompressingSerializer<T> wrap(Serializer<T> delegate, int threshold) {
+    if (delegate instanceof BinaryComparableSerializer) {
+      return new BinaryComparableCompressingSerializer<T>(delegate, threshold);
+    }
+    return new CompressingSerializer<T>(delegate, threshold);
+  }
+
+  /**
+   * Returns how many times smaller than their serial form the values stored so far are, {@code 1.0} before any.
+   */
+  public double getCompressionRatio() {
+    long stored = storedBytes.get();
+    return stored == 0 ? 1.0 : (double) serializedBytes.get() / stored;
+  }
+
+  @Override
+  public ByteBuffer serialize(T object) throws SerializerException {
+    ByteBuffer serialized = delegate.serialize(object);
+    int length = serialized.remaining();
+    ByteBuffer result = null;
+    if (length >= threshold) {
+      compressionObserver.begin();
+      long start = System.nanoTime();
+      result = compress(serialized);
+      compressionNanos.addAndGet(System.nanoTime() - start);
+      compressionObserver.end(result == null ? StoreOperationOutcomes.CompressionOutcome.SKIPPED : StoreOperationOutcomes.CompressionOutcome.COMPRESSED);
+    }
+    if (result == null) {
+      if (startsWithMarker(serialized)) {
+        result = ByteBuffer.allocate(HEADER_SIZE + length);
+        result.put(MARKER_0).put(MARKER_1).put(ESCAPED).put(serialized.duplicate()).flip();
+      } else {
+        result = serialized;
+      }
+    }
+    serializedBytes.addAndGet(length);
+    storedBytes.addAndGet(result.remaining());
+    return result;
+  }
+
+  private static boolean startsWithMarker(ByteBuffer binary) {
+    int position = binary.position();
+    return binary.remaining() >= HEADER_SIZE && binary.get(position) == MARKER_0 && binary.get(position + 1) == MARKER_1;
+  }
+
+  /**
+   * @return the compressed serial form, {@code null} if compressing does not make it smaller
+   */
+  private static ByteBuffer compress(ByteBuffer serialized) {
+    int length = serialized.remaining();
+    byte[] src;
+    int srcOff;
+    if (serialized.hasArray()) {
+      src = serialized.array();
+      srcOff = serialized.arrayOffset() + serialized.position();
+    } else {
+      src = new byte[length];
+      serialized.duplicate().get(src);
+      srcOff = 0;
+    }
+    byte[] dst = new byte[COMPRESSED_HEADER_SIZE + BlockCompressor.maxCompressedLength(length)];
+    int compressedLength = COMPRESSED_HEADER_SIZE + BlockCompressor.compress(src, srcOff, length, dst, COMPRESSED_HEADER_SIZE);
+    if (compressedLength >= length) {
+      return null;
+    }
+    dst[0] = MARKER_0;
+    dst[1] = MARKER_1;
+    dst[2] = COMPRESSED;
+    ByteBuffer.wrap(dst, HEADER_SIZE, 4).putInt(length);
+    // trimmed: heap stores keep the serial form around
+    return ByteBuffer.wrap(Arrays.copyOf(dst, compressedLength));
+  }
+
+  @Override
+  public T read(ByteBuffer binary) throws ClassNotFoundException, SerializerException {
+    return delegate.read(uncompress(binary));
+  }
+
+  @Override
+  public boolean equals(T object, ByteBuffer binary) throws ClassNotFoundException, SerializerException {
+    return delegate.equals(object, uncompress(binary));
+  }
+
+  private ByteBuffer uncompress(ByteBuffer binary) {
+    if (!startsWithMarker(binary)) {
+      return binary;
+    }
+    byte flag = binary.get(binary.position() + 2);
+    binary.position(binary.position() + HEADER_SIZE);
+    if (flag == ESCAPED) {
+      return binary;
+    } else if (flag != COMPRESSED) {
+      throw new SerializerException("Unknown compression flag " + flag);
+    }
+    long start = System.nanoTime();
+    int length = binary.getInt();
+    int compressedLength = binary.remaining();
+    byte[] src;
+    int srcOff;
+    if (binary.hasArray()) {
+      src = binary.array();
+      srcOff = binary.arrayOffset() + binary.position();
+    } else {
+      src = new byte[compressedLength];
+      binary.duplicate().get(src);
+      srcOff = 0;
+    }
+    byte[] dst = new byte[length];
+    try {
+      BlockCompressor.decompress(src, srcOff, compressedLength, dst, 0, length);
+    } catch (IllegalArgumentException e) {
+      throw new SerializerException(e);
+    }
+    binary.position(binary.limit());
+    decompressionNanos.addAndGet(System.nanoTime() - start);
+    return ByteBuffer.wrap(dst);
+  }
+
+  @Override
+  public void close() throws IOException {
+    delegate.close();
+  }
+
+  @Override
+  public String toString() {
+    return "CompressingSerializer{delegate=" + delegate + ", threshold=" + threshold + "}";
+  }
+
+  private static final class BinaryComparableCompressingSerializer<T> extends CompressingSerializer<T> implements BinaryComparableSerializer<T> {
+
+    BinaryComparableCompressingSerializer(Serializer<T> delegate, int threshold) {
+      super(delegate, threshold);
+    }
+  }
+}
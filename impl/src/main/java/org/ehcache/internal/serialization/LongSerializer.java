@@ -0,0 +1,57 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.serialization;
+
+import org.ehcache.spi.serialization.BinaryComparableSerializer;
+import org.ehcache.spi.service.FileBasedPersistenceContext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link BinaryComparableSerializer} for {@link Long}s, storing them as 8 big-endian bytes.
+ */
+public class LongSerializer implements BinaryComparableSerializer<Long> {
+
+  public LongSerializer(ClassLoader classLoader) {
+  }
+
+  public LongSerializer(ClassLoader classLoader, FileBasedPersistenceContext persistence) {
+  }
+
+  @Override
+  public ByteBuffer serialize(Long object) {
+    ByteBuffer byteBuffer = ByteBuffer.allocate(8);
+    byteBuffer.putLong(object).flip();
+    return byteBuffer;
+  }
+
+  @Override
+  public Long read(ByteBuffer binary) {
+    return binary.getLong(binary.position());
+  }
+
+  @Override
+  public boolean equals(Long object, ByteBuffer binary) {
+    return binary.remaining() == 8 && binary.getLong(binary.position()) == object;
+  }
+
+  @Override
+  public void close() throws IOException {
+    // no-op
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.serialization;
+
+import org.ehcache.spi.serialization.BinaryComparableSerializer;
+import org.ehcache.spi.service.FileBasedPersistenceContext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link BinaryComparableSerializer} for {@link String}s.
+ * <p>
+ * Strings only made of characters below 256 are stored as one byte per character, all others as two bytes per
+ * character. A leading byte records which of the two encodings was used so that the serial form stays canonical.
+ */
+public class StringSerializer implements BinaryComparableSerializer<String> {
+
+  private static final byte ONE_BYTE_CHARS = 0;
+  private static final byte TWO_BYTE_CHARS = 1;
+
+  public StringSerializer(ClassLoader classLoader) {
+  }
+
+  public StringSerializer(ClassLoader classLoader, FileBasedPersistenceContext persistence) {
+  }
+
+  @Override
+  public ByteBuffer serialize(String object) {
+    int length = object.length();
+    boolean oneByteChars = true;
+    for (int i = 0; i < length; i++) {
+      if (object.charAt(i) > 0xff) {
+        oneByteChars = false;
+        break;
+      }
+    }
+
+    ByteBuffer byteBuffer;
+    if (oneByteChars) {
+      byteBuffer = ByteBuffer.allocate(1 + length);
+      byteBuffer.put(ONE_BYTE_CHARS);
+      for (int i = 0; i < length; i++) {
+        byteBuffer.put((byte) object.charAt(i));
+      }
+    } else {
+      byteBuffer = ByteBuffer.allocate(1 + 2 * length);
+      byteBuffer.put(TWO_BYTE_CHARS);
+      for (int i = 0; i < length; i++) {
+        byteBuffer.putChar(object.charAt(i));
+      }
+    }
+    byteBuffer.flip();
+    return byteBuffer;
+  }
+
+  @Override
+  public String read(ByteBuffer binary) {
+    int position = binary.position();
+    char[] chars;
+    if (binary.get(position) == ONE_BYTE_CHARS) {
+      chars = new char[binary.remaining() - 1];
+      for (int i = 0; i < chars.length; i++) {
+        chars[i] = (char) (binary.get(position + 1 + i) & 0xff);
+      }
+    } else {
+      chars = new char[(binary.remaining() - 1) / 2];
+      for (int i = 0; i < chars.length; i++) {
+        chars[i] = binary.getChar(position + 1 + 2 * i);
+      }
+    }
+    return new String(chars);
+  }
+
+  @Override
+  public boolean equals(String object, ByteBuffer binary) {
+    int position = binary.position();
+    int length = object.length();
+    if (binary.get(position) == ONE_BYTE_CHARS) {
+      if (binary.remaining() - 1 != length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (object.charAt(i) != (char) (binary.get(position + 1 + i) & 0xff)) {
+          return false;
+        }
+      }
+    } else {
+      if (binary.remaining() - 1 != 2 * length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (object.charAt(i) != binary.getChar(position + 1 + 2 * i)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    // no-op
+  }
+}
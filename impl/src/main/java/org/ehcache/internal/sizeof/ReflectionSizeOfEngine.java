@@ -0,0 +1,202 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.sizeof;
+
+import org.ehcache.spi.copy.Copier;
+import org.ehcache.spi.serialization.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link SizeOfEngine} walking object graphs using reflection.
+ * <P>
+ * Sizes are estimated from the field layout of each class, assuming a HotSpot like memory layout with 8 bytes
+ * alignment. The shallow size and the reference fields of a class are computed only once.
+ * Shared infrastructure instances (classes, class loaders, threads, enums, serializers and copiers) are never
+ * accounted, and fields that cannot be made accessible are skipped. The graph is walked down to a maximum depth,
+ * anything deeper is ignored.
+ * </P>
+ */
+public class ReflectionSizeOfEngine implements SizeOfEngine {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ReflectionSizeOfEngine.class);
+
+  private static final int OBJECT_ALIGNMENT = 8;
+  private static final boolean IS_64_BIT = is64Bit();
+  private static final boolean COMPRESSED_OOPS = IS_64_BIT && Runtime.getRuntime().maxMemory() < 32L * 1024 * 1024 * 1024;
+  static final int REFERENCE_SIZE = (!IS_64_BIT || COMPRESSED_OOPS) ? 4 : 8;
+  static final int OBJECT_HEADER_SIZE = !IS_64_BIT ? 8 : (COMPRESSED_OOPS ? 12 : 16);
+  static final int ARRAY_HEADER_SIZE = OBJECT_HEADER_SIZE + 4;
+
+  private final int maxDepth;
+  private final ConcurrentMap<Class<?>, ClassLayout> layouts = new ConcurrentHashMap<Class<?>, ClassLayout>();
+  private final AtomicBoolean depthWarningLogged = new AtomicBoolean();
+
+  public ReflectionSizeOfEngine(int maxDepth) {
+    if (maxDepth <= 0) {
+      throw new IllegalArgumentException("Max depth must be positive: " + maxDepth);
+    }
+    this.maxDepth = maxDepth;
+  }
+
+  @Override
+  public long sizeof(Object... objects) {
+    Map<Object, Object> visited = new IdentityHashMap<Object, Object>();
+    List<Object> stack = new ArrayList<Object>();
+    List<Integer> depths = new ArrayList<Integer>();
+    for (Object object : objects) {
+      stack.add(object);
+      depths.add(0);
+    }
+
+    long size = 0;
+    while (!stack.isEmpty()) {
+      Object object = stack.remove(stack.size() - 1);
+      int depth = depths.remove(depths.size() - 1);
+      if (object == null || isShared(object) || visited.put(object, object) != null) {
+        continue;
+      }
+      if (depth > maxDepth) {
+        if (depthWarningLogged.compareAndSet(false, true)) {
+          LOG.warn("Object graph of {} is deeper than the configured max depth of {}, its size will be underestimated",
+              object.getClass().getName(), maxDepth);
+        }
+        continue;
+      }
+
+      Class<?> klazz = object.getClass();
+      if (klazz.isArray()) {
+        Class<?> componentType = klazz.getComponentType();
+        int length = Array.getLength(object);
+        if (componentType.isPrimitive()) {
+          size += align(ARRAY_HEADER_SIZE + (long) length * primitiveSize(componentType));
+        } else {
+          size += align(ARRAY_HEADER_SIZE + (long) length * REFERENCE_SIZE);
+          for (Object element : (Object[]) object) {
+            if (element != null) {
+              stack.add(element);
+              depths.add(depth + 1);
+            }
+          }
+        }
+      } else if (object instanceof String) {
+        size += layout(String.class).shallowSize + align(ARRAY_HEADER_SIZE + 2L * ((String) object).length());
+      } else {
+        ClassLayout layout = layout(klazz);
+        size += layout.shallowSize;
+        for (Field field : layout.referenceFields) {
+          Object referent;
+          try {
+            referent = field.get(object);
+          } catch (IllegalAccessException e) {
+            continue;
+          }
+          if (referent != null) {
+            stack.add(referent);
+            depths.add(depth + 1);
+          }
+        }
+      }
+    }
+    return size;
+  }
+
+  private ClassLayout layout(Class<?> klazz) {
+    ClassLayout layout = layouts.get(klazz);
+    if (layout == null) {
+      layout = new ClassLayout(klazz);
+      ClassLayout racer = layouts.putIfAbsent(klazz, layout);
+      if (racer != null) {
+        layout = racer;
+      }
+    }
+    return layout;
+  }
+
+  private static boolean isShared(Object object) {
+    return object instanceof Class || object instanceof ClassLoader || object instanceof Thread
+           || object instanceof Enum || object instanceof Serializer || object instanceof Copier;
+  }
+
+  static long align(long size) {
+    return (size + OBJECT_ALIGNMENT - 1) & ~(OBJECT_ALIGNMENT - 1);
+  }
+
+  static int primitiveSize(Class<?> type) {
+    if (type == long.class || type == double.class) {
+      return 8;
+    } else if (type == int.class || type == float.class) {
+      return 4;
+    } else if (type == char.class || type == short.class) {
+      return 2;
+    } else {
+      return 1;
+    }
+  }
+
+  private static boolean is64Bit() {
+    String dataModel = System.getProperty("sun.arch.data.model");
+    if (dataModel != null) {
+      return dataModel.equals("64");
+    }
+    String arch = System.getProperty("os.arch");
+    return arch != null && arch.contains("64");
+  }
+
+  private static final class ClassLayout {
+
+    private final long shallowSize;
+    private final Field[] referenceFields;
+
+    ClassLayout(Class<?> klazz) {
+      long fieldsSize = 0;
+      List<Field> references = new ArrayList<Field>();
+      for (Class<?> c = klazz; c != null; c = c.getSuperclass()) {
+        for (Field field : c.getDeclaredFields()) {
+          if (Modifier.isStatic(field.getModifiers())) {
+            continue;
+          }
+          Class<?> type = field.getType();
+          if (type.isPrimitive()) {
+            fieldsSize += primitiveSize(type);
+          } else {
+            fieldsSize += REFERENCE_SIZE;
+            try {
+              field.setAccessible(true);
+              references.add(field);
+            } catch (RuntimeException e) {
+              LOG.debug("Field {} cannot be made accessible and will not be sized", field, e);
+            }
+          }
+        }
+      }
+      this.shallowSize = align(OBJECT_HEADER_SIZE + fieldsSize);
+      this.referenceFields = references.toArray(new Field[references.size()]);
+    }
+  }
+}
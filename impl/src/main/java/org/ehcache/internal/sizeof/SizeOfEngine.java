@@ -0,0 +1,33 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.sizeof;
+
+/**
+ * Estimates the heap footprint of object graphs.
+ */
+public interface SizeOfEngine {
+
+  /**
+   * Estimates the number of bytes retained by the given objects. Objects reachable from more than one of the
+   * roots are only accounted once.
+   *
+   * @param objects the roots of the graphs to size
+   * @return the estimated size in bytes
+   */
+  long sizeof(Object... objects);
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store;
+
+import org.ehcache.spi.serialization.Serializer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Implemented by {@link org.ehcache.spi.cache.Store.ValueHolder}s that may hold their value in serial form, so that
+ * tiers can move that form between each other instead of de-serializing and re-serializing the value.
+ *
+ * @param <V> the value type
+ */
+public interface BinaryValueHolder<V> {
+
+  /**
+   * Returns the serial form of the value, if it is held in the form produced by the given serializer.
+   *
+   * @param serializer the serializer the caller would use to serialize the value
+   * @return a read-only view of the serial form, or {@code null} if not available
+   */
+  ByteBuffer getBinaryValue(Serializer<V> serializer);
+}
@@ -37,6 +37,8 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ConcurrentMap;
 
+import static org.ehcache.spi.ServiceLocator.findSingletonAmongst;
+
 /**
  * @author Ludovic Orban
  */
@@ -60,25 +62,45 @@ public class DefaultStoreProvider implements Store.Provider {
 
     if (diskPool != null) {
       if (heapPool == null) {
-        throw new IllegalArgumentException("Cannot store to disk without heap resource");
-      }
-      provider = serviceProvider.getService(CacheStore.Provider.class);
-      if (offHeapPool != null) {
-        enhancedServiceConfigs.add(new CompoundCachingTierServiceConfiguration().higherProvider(OnHeapStore.Provider.class)
-            .lowerProvider(OffHeapStore.Provider.class));
+        if (offHeapPool == null) {
+          provider = serviceProvider.getService(OffHeapDiskStore.Provider.class);
+        } else {
+          provider = serviceProvider.getService(CacheStore.Provider.class);
+          enhancedServiceConfigs.add(new CacheStoreServiceConfiguration().cachingTierProvider(OffHeapStore.Provider.class)
+              .authoritativeTierProvider(OffHeapDiskStore.Provider.class));
+        }
+      } else if (offHeapPool != null) {
+        provider = serviceProvider.getService(CacheStore.Provider.class);
+        CompoundCachingTierServiceConfiguration compoundCachingTierServiceConfiguration = new CompoundCachingTierServiceConfiguration()
+            .higherProvider(OnHeapStore.Provider.class).lowerProvider(OffHeapStore.Provider.class);
+        CompoundCachingTierServiceConfiguration configured = findSingletonAmongst(CompoundCachingTierServiceConfiguration.class, (Object[]) serviceConfigs);
+        if (configured != null) {
+          // completed on a copy, the given configuration possibly being shared by other caches
+          enhancedServiceConfigs.remove(configured);
+          if (configured.higherProvider() != null) {
+            compoundCachingTierServiceConfiguration.higherProvider(configured.higherProvider());
+          }
+          if (configured.lowerProvider() != null) {
+            compoundCachingTierServiceConfiguration.lowerProvider(configured.lowerProvider());
+          }
+          compoundCachingTierServiceConfiguration.demotionQueueSize(configured.demotionQueueSize()).inclusive(configured.inclusive());
+        }
+        enhancedServiceConfigs.add(compoundCachingTierServiceConfiguration);
         enhancedServiceConfigs.add(new CacheStoreServiceConfiguration().cachingTierProvider(CompoundCachingTier.Provider.class)
             .authoritativeTierProvider(OffHeapDiskStore.Provider.class));
       } else {
+        provider = serviceProvider.getService(CacheStore.Provider.class);
         enhancedServiceConfigs.add(new CacheStoreServiceConfiguration().cachingTierProvider(OnHeapStore.Provider.class)
             .authoritativeTierProvider(OffHeapDiskStore.Provider.class));
       }
     } else if (offHeapPool != null) {
       if (heapPool == null) {
-        throw new IllegalArgumentException("Cannot store to offheap without heap resource");
+        provider = serviceProvider.getService(OffHeapStore.Provider.class);
+      } else {
+        provider = serviceProvider.getService(CacheStore.Provider.class);
+        enhancedServiceConfigs.add(new CacheStoreServiceConfiguration().cachingTierProvider(OnHeapStore.Provider.class)
+            .authoritativeTierProvider(OffHeapStore.Provider.class));
       }
-      provider = serviceProvider.getService(CacheStore.Provider.class);
-      enhancedServiceConfigs.add(new CacheStoreServiceConfiguration().cachingTierProvider(OnHeapStore.Provider.class)
-          .authoritativeTierProvider(OffHeapStore.Provider.class));
     } else {
       // default to on-heap cache
       provider = serviceProvider.getService(OnHeapStore.Provider.class);
@@ -0,0 +1,164 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store;
+
+import org.ehcache.function.Function;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The loads of absent keys in flight in a store, which other operations on these keys wait for rather than loading
+ * them again.
+ */
+public final class InFlightLoads<K, V> {
+
+  private final ConcurrentHashMap<K, Load<V>> loads = new ConcurrentHashMap<K, Load<V>>();
+
+  /**
+   * Loads the value of an absent key, unless a load of that key is already in flight, in which case its outcome is
+   * used instead. Only falls back to {@code mappingFunction} when the load in flight failed.
+   */
+  public V load(K key, Function<? super K, ? extends V> mappingFunction) {
+    Load<V> load = new Load<V>();
+    Load<V> inFlight = loads.putIfAbsent(key, load);
+    if (inFlight != null) {
+      if (inFlight.await()) {
+        return inFlight.value;
+      } else {
+        return mappingFunction.apply(key);
+      }
+    }
+    try {
+      V value = mappingFunction.apply(key);
+      load.complete(value);
+      return value;
+    } finally {
+      load.release();
+      loads.remove(key, load);
+    }
+  }
+
+  /**
+   * Waits for the load of {@code key} in flight to end, if any.
+   */
+  public void await(K key) {
+    Load<V> inFlight = loads.get(key);
+    if (inFlight != null) {
+      inFlight.await();
+    }
+  }
+
+  /**
+   * Registers a load for each of {@code keys} that is not already being loaded, to be completed in a single batch.
+   *
+   * @return the batch, to be released once its values are installed
+   */
+  public Batch register(Iterable<? extends K> keys) {
+    Map<K, Load<V>> registered = new HashMap<K, Load<V>>();
+    for (K key : keys) {
+      Load<V> load = new Load<V>();
+      if (loads.putIfAbsent(key, load) == null) {
+        registered.put(key, load);
+      }
+    }
+    return new Batch(registered);
+  }
+
+  /**
+   * Loads registered together, for keys that are then loaded by a single invocation of a mapping function.
+   */
+  public final class Batch {
+
+    private final Map<K, Load<V>> registered;
+
+    private Batch(Map<K, Load<V>> registered) {
+      this.registered = registered;
+    }
+
+    /**
+     * @return the keys this batch is loading
+     */
+    public Set<K> keys() {
+      return Collections.unmodifiableSet(registered.keySet());
+    }
+
+    /**
+     * Completes the loads of this batch, the keys missing from {@code values} being loaded as absent.
+     */
+    public void complete(Map<? super K, ? extends V> values) {
+      for (Map.Entry<K, Load<V>> load : registered.entrySet()) {
+        load.getValue().complete(values.get(load.getKey()));
+      }
+    }
+
+    /**
+     * Ends the loads of this batch, as failures for the ones that did not complete.
+     */
+    public void release() {
+      for (Map.Entry<K, Load<V>> load : registered.entrySet()) {
+        load.getValue().release();
+        loads.remove(load.getKey(), load.getValue());
+      }
+    }
+  }
+
+  private static final class Load<V> {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean loaded;
+    private volatile V value;
+
+    void complete(V value) {
+      this.value = value;
+      this.loaded = true;
+      done.countDown();
+    }
+
+    /**
+     * Ends the load, as a failure if it did not complete.
+     */
+    void release() {
+      done.countDown();
+    }
+
+    /**
+     * @return {@code true} if the load completed, {@code false} if it failed
+     */
+    boolean await() {
+      boolean interrupted = false;
+      try {
+        while (true) {
+          try {
+            done.await();
+            return loaded;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+}
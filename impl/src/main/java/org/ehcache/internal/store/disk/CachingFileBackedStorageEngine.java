@@ -0,0 +1,224 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.store.disk;
+
+import org.terracotta.offheapstore.disk.paging.MappedPageSource;
+import org.terracotta.offheapstore.storage.portability.Portability;
+import org.terracotta.offheapstore.storage.portability.WriteBackPortability;
+import org.terracotta.offheapstore.storage.portability.WriteContext;
+import org.terracotta.offheapstore.util.Factory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link CoalescingFileBackedStorageEngine} serving the keys and values it reads from a {@link DiskReadCache},
+ * rather than from the data file through the operating system page cache.
+ * <P>
+ *   Records are cached as they are read, updated when their value is written back in place and invalidated when
+ *   freed. Reads missing the cache go through the regular positional reads of the storage engine, which also see the
+ *   writes still queued for the data file.
+ * </P>
+ * <P>
+ *   Keys and values are decoded straight from the cached records, which stay pinned for the duration of the decoding.
+ *   Binary reads, whose buffers outlive the call, get copies.
+ * </P>
+ */
+public class CachingFileBackedStorageEngine<K, V> extends CoalescingFileBackedStorageEngine<K, V> {
+
+  private static final int CACHE_CONCURRENCY = 4;
+
+  private final DiskReadCache cache;
+
+  public static <K, V> Factory<CachingFileBackedStorageEngine<K, V>> createFactory(final MappedPageSource source,
+          final Portability<? super K> keyPortability, final Portability<? super V> valuePortability,
+          final DiskWriteThreadPool writeWorkers, final boolean bootstrap, final long cacheSize) {
+    return new Factory<CachingFileBackedStorageEngine<K, V>>() {
+      @Override
+      public CachingFileBackedStorageEngine<K, V> newInstance() {
+        return new CachingFileBackedStorageEngine<K, V>(source, keyPortability, valuePortability,
+            writeWorkers.newInstance(), bootstrap, cacheSize);
+      }
+    };
+  }
+
+  /**
+   * Creates a storage engine caching at most {@code cacheSize} bytes of records in direct memory.
+   *
+   * @param source the page source of the data file
+   * @param keyPortability the key portability
+   * @param valuePortability the value portability
+   * @param writeExecutor the executor writing to the data file
+   * @param bootstrap {@code true} when creating a new engine, {@code false} when recovering one
+   * @param cacheSize the capacity of the read cache in bytes
+   */
+  public CachingFileBackedStorageEngine(MappedPageSource source, Portability<? super K> keyPortability,
+          Portability<? super V> valuePortability, DiskWriteExecutor writeExecutor, boolean bootstrap, long cacheSize) {
+    super(source, keyPortability, valuePortability, writeExecutor, bootstrap);
+    this.cache = new DiskReadCache(cacheSize, CACHE_CONCURRENCY);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public K readKey(long address, int hash) {
+    DiskReadCache.CachedRecord cached = cache.get(keyRecord(address));
+    if (cached == null) {
+      return super.readKey(address, hash);
+    }
+    try {
+      if (keyPortability instanceof WriteBackPortability<?>) {
+        return (K) ((WriteBackPortability<? super K>) keyPortability).decode(cached.buffer(), getKeyWriteContext(address));
+      } else {
+        return (K) keyPortability.decode(cached.buffer());
+      }
+    } finally {
+      cached.release();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public V readValue(long address) {
+    DiskReadCache.CachedRecord cached = cache.get(valueRecord(address));
+    if (cached == null) {
+      return super.readValue(address);
+    }
+    try {
+      if (valuePortability instanceof WriteBackPortability<?>) {
+        return (V) ((WriteBackPortability<? super V>) valuePortability).decode(cached.buffer(), getValueWriteContext(address));
+      } else {
+        return (V) valuePortability.decode(cached.buffer());
+      }
+    } finally {
+      cached.release();
+    }
+  }
+
+  @Override
+  public boolean equalsKey(Object key, long address) {
+    DiskReadCache.CachedRecord cached = cache.get(keyRecord(address));
+    if (cached == null) {
+      return super.equalsKey(key, address);
+    }
+    try {
+      return keyPortability.equals(key, cached.buffer());
+    } finally {
+      cached.release();
+    }
+  }
+
+  @Override
+  public boolean equalsValue(Object value, long address) {
+    DiskReadCache.CachedRecord cached = cache.get(valueRecord(address));
+    if (cached == null) {
+      return super.equalsValue(value, address);
+    }
+    try {
+      return valuePortability.equals(value, cached.buffer());
+    } finally {
+      cached.release();
+    }
+  }
+
+  @Override
+  protected ByteBuffer readKeyBuffer(long address) {
+    return read(keyRecord(address), address, true);
+  }
+
+  @Override
+  protected ByteBuffer readValueBuffer(long address) {
+    return read(valueRecord(address), address, false);
+  }
+
+  /**
+   * Reads a record, from a copy of the cached one on a hit, caching it on a miss.
+   */
+  private ByteBuffer read(long record, long address, boolean key) {
+    DiskReadCache.CachedRecord cached = cache.get(record);
+    if (cached != null) {
+      try {
+        ByteBuffer copy = ByteBuffer.allocate(cached.buffer().remaining());
+        copy.put(cached.buffer()).flip();
+        return copy;
+      } finally {
+        cached.release();
+      }
+    }
+    long stamp = cache.stamp(record);
+    ByteBuffer read = key ? super.readKeyBuffer(address) : super.readValueBuffer(address);
+    cache.put(record, read, stamp);
+    return read;
+  }
+
+  @Override
+  protected WriteContext getValueWriteContext(final long address) {
+    final WriteContext delegate = super.getValueWriteContext(address);
+    return new WriteContext() {
+      @Override
+      public void setLong(int offset, long value) {
+        delegate.setLong(offset, value);
+        cache.update(valueRecord(address), offset, value);
+      }
+
+      @Override
+      public void flush() {
+        delegate.flush();
+      }
+    };
+  }
+
+  @Override
+  protected void free(long address) {
+    super.free(address);
+    cache.invalidate(keyRecord(address));
+    cache.invalidate(valueRecord(address));
+  }
+
+  @Override
+  protected void clearInternal() {
+    super.clearInternal();
+    cache.clear();
+  }
+
+  @Override
+  public void destroy() {
+    super.destroy();
+    cache.clear();
+  }
+
+  @Override
+  public void close() throws IOException {
+    super.close();
+    cache.clear();
+  }
+
+  /**
+   * @return the read cache of this engine
+   */
+  DiskReadCache getReadCache() {
+    return cache;
+  }
+
+  private static long keyRecord(long address) {
+    return address << 1;
+  }
+
+  private static long valueRecord(long address) {
+    return (address << 1) | 1;
+  }
+}
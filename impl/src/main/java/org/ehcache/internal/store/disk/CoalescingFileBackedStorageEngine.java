@@ -0,0 +1,224 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store.disk;
+
+import org.ehcache.internal.store.disk.DiskWriteExecutor.QueuedWrite;
+import org.terracotta.offheapstore.disk.paging.MappedPageSource;
+import org.terracotta.offheapstore.disk.storage.FileBackedStorageEngine;
+import org.terracotta.offheapstore.storage.portability.Portability;
+import org.terracotta.offheapstore.util.Factory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A {@link FileBackedStorageEngine} queuing its writes to a bounded {@link DiskWriteExecutor}.
+ * <P>
+ *   The engine tracks the records whose write is still queued. When such a record is freed, because its mapping got
+ *   overwritten, removed or evicted, its write is removed from the queue rather than left there to be skipped. A write
+ *   superseding a queued write of the same key is always admitted, as the write it replaces leaves the queue right
+ *   after. Other writes finding the queue full are handled according to the executor's {@link DiskWriteBackpressure}.
+ * </P>
+ */
+public class CoalescingFileBackedStorageEngine<K, V> extends FileBackedStorageEngine<K, V> {
+
+  private final DiskWriteExecutor writeExecutor;
+  private final ConcurrentMap<Long, QueuedWrite> queuedWrites = new ConcurrentHashMap<Long, QueuedWrite>();
+
+  private volatile Owner owner;
+  private boolean writeQueueFull;
+  private ByteBuffer writtenKey;
+  private ByteBuffer writtenValue;
+
+  public static <K, V> Factory<CoalescingFileBackedStorageEngine<K, V>> createFactory(final MappedPageSource source,
+          final Portability<? super K> keyPortability, final Portability<? super V> valuePortability,
+          final DiskWriteThreadPool writeWorkers, final boolean bootstrap) {
+    return new Factory<CoalescingFileBackedStorageEngine<K, V>>() {
+      @Override
+      public CoalescingFileBackedStorageEngine<K, V> newInstance() {
+        return new CoalescingFileBackedStorageEngine<K, V>(source, keyPortability, valuePortability,
+            writeWorkers.newInstance(), bootstrap);
+      }
+    };
+  }
+
+  /**
+   * Creates a storage engine queuing its writes to {@code writeExecutor}.
+   *
+   * @param source the page source of the data file
+   * @param keyPortability the key portability
+   * @param valuePortability the value portability
+   * @param writeExecutor the executor writing to the data file
+   * @param bootstrap {@code true} when creating a new engine, {@code false} when recovering one
+   */
+  public CoalescingFileBackedStorageEngine(MappedPageSource source, Portability<? super K> keyPortability,
+          Portability<? super V> valuePortability, DiskWriteExecutor writeExecutor, boolean bootstrap) {
+    super(source, keyPortability, valuePortability, writeExecutor, bootstrap);
+    this.writeExecutor = writeExecutor;
+  }
+
+  @Override
+  public void bind(Owner owner) {
+    super.bind(owner);
+    this.owner = owner;
+  }
+
+  @Override
+  protected Long writeMappingBuffers(ByteBuffer keyBuffer, ByteBuffer valueBuffer, int hash) {
+    QueuedWrite write = reserve(keyBuffer, hash);
+    if (write == null) {
+      writeQueueFull = true;
+      return null;
+    }
+    writeQueueFull = false;
+    ByteBuffer key = keyBuffer.duplicate();
+    ByteBuffer value = valueBuffer.duplicate();
+    Long address;
+    try {
+      address = super.writeMappingBuffers(keyBuffer, valueBuffer, hash);
+    } finally {
+      writeExecutor.endReservation(write);
+    }
+    if (address != null) {
+      writtenKey = key;
+      writtenValue = value;
+      if (write.isQueued()) {
+        write.track(queuedWrites, address);
+      }
+    }
+    return address;
+  }
+
+  /**
+   * Takes the encoded key of the last mapping written, so that it does not have to be encoded again. Only to be called
+   * under the owner's write lock, right after the write.
+   *
+   * @return the encoded key, or {@code null} if taken already
+   */
+  public ByteBuffer takeWrittenKey() {
+    ByteBuffer key = writtenKey;
+    writtenKey = null;
+    return key;
+  }
+
+  /**
+   * Takes the encoded value of the last mapping written, along with {@link #takeWrittenKey()}.
+   *
+   * @return the encoded value, or {@code null} if taken already
+   */
+  public ByteBuffer takeWrittenValue() {
+    ByteBuffer value = writtenValue;
+    writtenValue = null;
+    return value;
+  }
+
+  private QueuedWrite reserve(ByteBuffer keyBuffer, int hash) {
+    DiskWriteBackpressure backpressure = writeExecutor.getBackpressure();
+    QueuedWrite write = writeExecutor.reserve(backpressure == DiskWriteBackpressure.BLOCK);
+    if (write != null) {
+      return write;
+    } else if (supersedesQueuedWrite(keyBuffer, hash)) {
+      return writeExecutor.forceReserve();
+    } else if (backpressure == DiskWriteBackpressure.FAIL) {
+      writeExecutor.writeRejected();
+      throw new RejectedExecutionException("The disk write queue is full");
+    } else {
+      return null;
+    }
+  }
+
+  private boolean supersedesQueuedWrite(ByteBuffer keyBuffer, int hash) {
+    Owner current = owner;
+    if (current == null || queuedWrites.isEmpty()) {
+      return false;
+    }
+    Long existing = current.getEncodingForHashAndBinary(hash, keyBuffer.duplicate());
+    return existing != null && queuedWrites.containsKey(existing);
+  }
+
+  @Override
+  protected void free(long address) {
+    super.free(address);
+    QueuedWrite write = queuedWrites.remove(address);
+    if (write != null) {
+      writeExecutor.cancel(write);
+    }
+  }
+
+  @Override
+  protected void clearInternal() {
+    super.clearInternal();
+    cancelQueuedWrites();
+  }
+
+  @Override
+  public void destroy() {
+    super.destroy();
+    queuedWrites.clear();
+  }
+
+  @Override
+  public void close() throws IOException {
+    super.close();
+    queuedWrites.clear();
+  }
+
+  private void cancelQueuedWrites() {
+    for (Long address : queuedWrites.keySet()) {
+      QueuedWrite write = queuedWrites.remove(address);
+      if (write != null) {
+        writeExecutor.cancel(write);
+      }
+    }
+  }
+
+  /**
+   * Returns {@code true} if the last write of a mapping was refused because the write queue was full, in which case
+   * the owner of this engine should drop one of the {@link #getQueuedWriteAddresses() queued writes}, or wait for
+   * room in the queue with {@link #awaitWriteQueue()}, before writing again. Only meaningful under the owner's lock.
+   */
+  public boolean isWriteQueueFull() {
+    return writeQueueFull;
+  }
+
+  /**
+   * @return the addresses of the records of this engine whose write is still queued
+   */
+  public Set<Long> getQueuedWriteAddresses() {
+    return queuedWrites.keySet();
+  }
+
+  /**
+   * Records that a mapping was evicted to drop its queued write.
+   */
+  public void writeDropped() {
+    writeExecutor.writeDropped();
+  }
+
+  /**
+   * Waits for the write queue to have room for a write.
+   *
+   * @throws RejectedExecutionException if the writer is shut down while waiting
+   */
+  public void awaitWriteQueue() {
+    writeExecutor.awaitCapacity();
+  }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.store.disk;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded cache of the records read from a disk store data file, held in direct buffers.
+ * <P>
+ *   The cache is split in stripes, each one evicting its least recently used records once it holds its share of the
+ *   capacity. The buffers of evicted records are pooled by power of two size class and reused for the records
+ *   cached next, so that the direct memory of the cache is allocated once and never exceeds its capacity.
+ * </P>
+ * <P>
+ *   Hits are served from views of the cached records rather than from copies of them. A hit pins its record until
+ *   {@link CachedRecord#release() released}: the buffer of a record evicted or invalidated while pinned only returns to
+ *   the pool once the last reader releases it, so a view is never overwritten by another record.
+ * </P>
+ * <P>
+ *   Records are cached by an arbitrary {@code long} key. As a record can be invalidated while it is being read, a
+ *   reader takes a {@link #stamp(long) stamp} before reading it and {@link #put(long, ByteBuffer, long) puts} it with
+ *   that stamp: the record is not cached if an invalidation happened in between.
+ * </P>
+ */
+final class DiskReadCache {
+
+  private static final int MIN_BUFFER_SIZE = 64;
+
+  private final Stripe[] stripes;
+
+  /**
+   * Creates a cache holding at most {@code capacity} bytes of records.
+   *
+   * @param capacity the capacity of the cache in bytes
+   * @param concurrency the number of stripes, rounded up to a power of two
+   */
+  DiskReadCache(long capacity, int concurrency) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+    }
+    int stripeCount = Integer.highestOneBit(Math.max(1, concurrency) * 2 - 1);
+    stripes = new Stripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = new Stripe(capacity / stripeCount);
+    }
+  }
+
+  /**
+   * Returns the record cached under {@code key}, pinned until {@link CachedRecord#release() released}, or
+   * {@code null} if it is not cached.
+   */
+  CachedRecord get(long key) {
+    return stripeFor(key).get(key);
+  }
+
+  /**
+   * Returns the stamp to pass to {@link #put(long, ByteBuffer, long)} for a record read from now on.
+   */
+  long stamp(long key) {
+    return stripeFor(key).stamp();
+  }
+
+  /**
+   * Caches a copy of the remaining bytes of {@code record} under {@code key}, unless the key was invalidated since the
+   * stamp was taken or the record is too large for the cache. The record buffer is left untouched.
+   */
+  void put(long key, ByteBuffer record, long stamp) {
+    stripeFor(key).put(key, record, stamp);
+  }
+
+  /**
+   * Removes the record cached under {@code key}, preventing any concurrent read of it from being cached.
+   */
+  void invalidate(long key) {
+    stripeFor(key).invalidate(key);
+  }
+
+  /**
+   * Writes {@code value} at {@code offset} in the record cached under {@code key}, if any. Otherwise prevents any
+   * concurrent read of the record from being cached.
+   */
+  void update(long key, int offset, long value) {
+    stripeFor(key).update(key, offset, value);
+  }
+
+  /**
+   * Removes all records and releases the pooled buffers.
+   */
+  void clear() {
+    for (Stripe stripe : stripes) {
+      stripe.clear();
+    }
+  }
+
+  /**
+   * @return the number of bytes of direct memory held by the cache
+   */
+  long getAllocatedMemory() {
+    long allocated = 0;
+    for (Stripe stripe : stripes) {
+      allocated += stripe.allocated();
+    }
+    return allocated;
+  }
+
+  /**
+   * @return the number of records in the cache
+   */
+  int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      size += stripe.size();
+    }
+    return size;
+  }
+
+  private Stripe stripeFor(long key) {
+    int hash = (int) (key ^ (key >>> 32));
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+    return stripes[hash & (stripes.length - 1)];
+  }
+
+  /**
+   * A record of the cache, pinned by a reader.
+   * <P>
+   *   The record is reference counted: the cache holds one reference for as long as the record is cached and each
+   *   reader one until it releases the record. Whoever drops the last reference returns the buffer to the pool.
+   * </P>
+   */
+  static final class CachedRecord {
+
+    private final Stripe stripe;
+    private final ByteBuffer buffer;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private CachedRecord(Stripe stripe, ByteBuffer buffer) {
+      this.stripe = stripe;
+      this.buffer = buffer;
+    }
+
+    /**
+     * Returns a view of the record, positioned at zero. The view must not be written to, nor used once the record is
+     * released.
+     */
+    ByteBuffer buffer() {
+      return buffer.duplicate();
+    }
+
+    /**
+     * Unpins the record.
+     */
+    void release() {
+      if (references.decrementAndGet() == 0) {
+        stripe.reclaim(buffer);
+      }
+    }
+
+    private void pin() {
+      references.incrementAndGet();
+    }
+  }
+
+  private static final class Stripe {
+
+    private final long capacity;
+    private final LinkedHashMap<Long, CachedRecord> records = new LinkedHashMap<Long, CachedRecord>(16, 0.75f, true);
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<ByteBuffer>[] pool = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[Integer.SIZE];
+    private long allocated;
+    private long invalidations;
+    /**
+     * Whether a stamp was taken since the last invalidation, only then has an invalidation any read to prevent from
+     * being cached.
+     */
+    private boolean stamped;
+
+    Stripe(long capacity) {
+      this.capacity = capacity;
+    }
+
+    synchronized CachedRecord get(long key) {
+      CachedRecord cached = records.get(key);
+      if (cached != null) {
+        cached.pin();
+      }
+      return cached;
+    }
+
+    synchronized long stamp() {
+      stamped = true;
+      return invalidations;
+    }
+
+    synchronized void put(long key, ByteBuffer record, long stamp) {
+      if (stamp != invalidations || records.containsKey(key)) {
+        return;
+      }
+      int size = record.remaining();
+      ByteBuffer buffer = acquire(size);
+      if (buffer != null) {
+        buffer.clear();
+        buffer.put(record.duplicate()).flip();
+        records.put(key, new CachedRecord(this, buffer));
+      }
+    }
+
+    synchronized void invalidate(long key) {
+      invalidateReads();
+      CachedRecord removed = records.remove(key);
+      if (removed != null) {
+        removed.release();
+      }
+    }
+
+    synchronized void update(long key, int offset, long value) {
+      CachedRecord cached = records.get(key);
+      if (cached == null) {
+        invalidateReads();
+      } else {
+        cached.buffer.putLong(offset, value);
+      }
+    }
+
+    synchronized void clear() {
+      invalidations++;
+      for (CachedRecord record : records.values()) {
+        record.release();
+      }
+      records.clear();
+      for (ArrayDeque<ByteBuffer> pooled : pool) {
+        while (pooled != null && !pooled.isEmpty()) {
+          allocated -= pooled.poll().capacity();
+        }
+      }
+    }
+
+    synchronized void reclaim(ByteBuffer buffer) {
+      int sizeClass = Integer.numberOfTrailingZeros(buffer.capacity());
+      ArrayDeque<ByteBuffer> pooled = pool[sizeClass];
+      if (pooled == null) {
+        pooled = pool[sizeClass] = new ArrayDeque<ByteBuffer>();
+      }
+      pooled.offer(buffer);
+    }
+
+    synchronized long allocated() {
+      return allocated;
+    }
+
+    synchronized int size() {
+      return records.size();
+    }
+
+    private void invalidateReads() {
+      if (stamped) {
+        invalidations++;
+        stamped = false;
+      }
+    }
+
+    /**
+     * Takes a pooled buffer able to hold {@code size} bytes, evicting records and dropping pooled buffers of other
+     * size classes until there is one or enough memory left to allocate it. Buffers pinned by readers are neither
+     * reusable nor droppable, so this can give up.
+     */
+    private ByteBuffer acquire(int size) {
+      int sizeClass = sizeClass(size);
+      if (sizeClass >= Integer.SIZE - 1 || (1L << sizeClass) > capacity) {
+        return null;
+      }
+      int bufferSize = 1 << sizeClass;
+      while (true) {
+        ArrayDeque<ByteBuffer> pooled = pool[sizeClass];
+        if (pooled != null && !pooled.isEmpty()) {
+          return pooled.poll();
+        }
+        if (allocated + bufferSize <= capacity) {
+          allocated += bufferSize;
+          return ByteBuffer.allocateDirect(bufferSize);
+        }
+        if (!evictEldest() && !dropPooled(sizeClass)) {
+          return null;
+        }
+      }
+    }
+
+    private boolean evictEldest() {
+      Iterator<CachedRecord> it = records.values().iterator();
+      if (!it.hasNext()) {
+        return false;
+      }
+      CachedRecord evicted = it.next();
+      it.remove();
+      evicted.release();
+      return true;
+    }
+
+    /**
+     * Gives up on a pooled buffer of another size class, its memory then being available to allocate a new one.
+     */
+    private boolean dropPooled(int excludedSizeClass) {
+      for (int i = 0; i < pool.length; i++) {
+        ArrayDeque<ByteBuffer> pooled = pool[i];
+        if (i != excludedSizeClass && pooled != null && !pooled.isEmpty()) {
+          allocated -= pooled.poll().capacity();
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static int sizeClass(int size) {
+      int bufferSize = Math.max(MIN_BUFFER_SIZE, size);
+      return Integer.SIZE - Integer.numberOfLeadingZeros(bufferSize - 1);
+    }
+  }
+}
@@ -0,0 +1,510 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.store.disk;
+
+import org.ehcache.internal.store.disk.factories.EhcachePersistentSegmentFactory.EhcachePersistentSegment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terracotta.offheapstore.storage.portability.Portability;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes made to a disk store, from which the store gets rebuilt after an unclean shutdown.
+ * <P>
+ *   Changes are framed into records by the threads making them, from the key and value binaries the storage engine
+ *   already encoded, and queued in order. A journal thread appends the queued records in batches, outside of the
+ *   segment locks, so they reach the file system shortly after the changes happen and survive the JVM dying. They are
+ *   forced to the device on every checkpoint. Once the log outgrows twice the live data, a checkpoint rewrites the
+ *   live mappings into a new log file ordered before the current one and deletes the older files.
+ * </P>
+ */
+class DiskStoreJournal<K, V> implements EhcachePersistentSegment.ChangeListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DiskStoreJournal.class);
+
+  static final long DEFAULT_MINIMUM_COMPACTION_SIZE = 16L * 1024 * 1024;
+
+  private static final String FILE_PREFIX = "ehcache-disk-store.journal.";
+
+  private static final byte PUT = 1;
+  private static final byte REMOVE = 2;
+  private static final byte CLEAR = 3;
+
+  private static final int PENDING_CAPACITY = 64 * 1024;
+  private static final int BATCH_SIZE = 256;
+  private static final Object STOP = new Object();
+
+  private final File directory;
+  private final Portability<K> keyPortability;
+  private final Portability<V> valuePortability;
+  private final long minimumCompactionSize;
+
+  private FileChannel channel;
+  private long channelIndex;
+  private long size;
+  private volatile boolean enabled;
+
+  private final BlockingQueue<Object> pending = new LinkedBlockingQueue<Object>(PENDING_CAPACITY);
+  private volatile Thread appender;
+
+  DiskStoreJournal(File directory, Portability<K> keyPortability, Portability<V> valuePortability) {
+    this(directory, keyPortability, valuePortability, DEFAULT_MINIMUM_COMPACTION_SIZE);
+  }
+
+  DiskStoreJournal(File directory, Portability<K> keyPortability, Portability<V> valuePortability, long minimumCompactionSize) {
+    this.directory = directory;
+    this.keyPortability = keyPortability;
+    this.valuePortability = valuePortability;
+    this.minimumCompactionSize = minimumCompactionSize;
+  }
+
+  boolean exists() {
+    return !files(directory).isEmpty();
+  }
+
+  /**
+   * Applies the logged changes to the given map, in order. A torn or corrupt record ends the replay of its file.
+   *
+   * @param map the map to rebuild
+   * @return the number of records replayed
+   * @throws IOException if a log file cannot be read
+   */
+  long replay(Map<K, V> map) throws IOException {
+    long records = 0;
+    for (File file : files(directory)) {
+      records += replay(file, map);
+    }
+    return records;
+  }
+
+  private long replay(File file, Map<K, V> map) throws IOException {
+    long records = 0;
+    long length = file.length();
+    DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      CRC32 crc = new CRC32();
+      while (true) {
+        byte[] body;
+        int checksum;
+        try {
+          int bodyLength = input.readInt();
+          if (bodyLength <= 0 || bodyLength > length) {
+            LOGGER.warn("Corrupt record in journal file {}, ignoring the rest of the file", file.getName());
+            break;
+          }
+          body = new byte[bodyLength];
+          input.readFully(body);
+          checksum = input.readInt();
+        } catch (EOFException eofe) {
+          break;
+        }
+        crc.reset();
+        crc.update(body);
+        if ((int) crc.getValue() != checksum) {
+          LOGGER.warn("Corrupt record in journal file {}, ignoring the rest of the file", file.getName());
+          break;
+        }
+        apply(ByteBuffer.wrap(body), map);
+        records++;
+      }
+    } finally {
+      input.close();
+    }
+    return records;
+  }
+
+  private void apply(ByteBuffer record, Map<K, V> map) {
+    byte type = record.get();
+    if (type == CLEAR) {
+      map.clear();
+      return;
+    }
+    int keyLength = record.getInt();
+    ByteBuffer key = record.slice();
+    key.limit(keyLength);
+    record.position(record.position() + keyLength);
+    if (type == PUT) {
+      map.put(keyPortability.decode(key), valuePortability.decode(record.slice()));
+    } else {
+      map.remove(keyPortability.decode(key));
+    }
+  }
+
+  /**
+   * Starts logging the changes into a new file, after the existing ones.
+   *
+   * @throws IOException if the file cannot be created
+   */
+  synchronized void open() throws IOException {
+    List<File> files = files(directory);
+    size = 0;
+    for (File file : files) {
+      size += file.length();
+    }
+    channelIndex = files.isEmpty() ? 0 : indexOf(files.get(files.size() - 1)) + 1;
+    channel = openChannel(channelIndex);
+    enabled = true;
+    appender = new Thread(new Appender(), "Ehcache Disk Journal Thread [" + directory.getName() + "]");
+    appender.setDaemon(true);
+    appender.start();
+  }
+
+  @Override
+  public void onPut(ByteBuffer key, ByteBuffer value) {
+    if (enabled) {
+      log(PUT, key, value);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public void onRemoval(Object key) {
+    if (enabled) {
+      log(REMOVE, keyPortability.encode((K) key), null);
+    }
+  }
+
+  void onClear() {
+    if (enabled) {
+      log(CLEAR, null, null);
+    }
+  }
+
+  /**
+   * Queues the record of a change for the journal thread, waiting for room when the journal thread falls behind.
+   */
+  private void log(byte type, ByteBuffer key, ByteBuffer value) {
+    enqueue(record(type, key, value));
+  }
+
+  private void enqueue(Object item) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          pending.put(item);
+          return;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Waits for the records queued so far to be appended to the log.
+   */
+  void flush() {
+    Thread current = appender;
+    if (current == null || !current.isAlive()) {
+      return;
+    }
+    CountDownLatch flushed = new CountDownLatch(1);
+    enqueue(flushed);
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          flushed.await();
+          return;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private synchronized void append(List<ByteBuffer> records) {
+    if (channel == null || records.isEmpty()) {
+      return;
+    }
+    try {
+      ByteBuffer[] buffers = records.toArray(new ByteBuffer[records.size()]);
+      ByteBuffer last = buffers[buffers.length - 1];
+      while (last.hasRemaining()) {
+        size += channel.write(buffers);
+      }
+    } catch (IOException ioe) {
+      LOGGER.warn("Unable to write to the journal in {}, disabling it: the disk store will not survive an unclean shutdown", directory, ioe);
+      enabled = false;
+      closeQuietly(channel);
+      channel = null;
+      delete(directory);
+    }
+  }
+
+  /**
+   * Appends the queued records in batches, in the order they were queued, releasing flushes once the records queued
+   * before them are appended.
+   */
+  private final class Appender implements Runnable {
+
+    @Override
+    public void run() {
+      List<Object> items = new ArrayList<Object>(BATCH_SIZE);
+      List<ByteBuffer> records = new ArrayList<ByteBuffer>(BATCH_SIZE);
+      while (true) {
+        try {
+          items.add(pending.take());
+        } catch (InterruptedException e) {
+          continue;
+        }
+        pending.drainTo(items, BATCH_SIZE - 1);
+        for (Object item : items) {
+          if (item instanceof ByteBuffer) {
+            records.add((ByteBuffer) item);
+          } else {
+            append(records);
+            records.clear();
+            if (item == STOP) {
+              return;
+            }
+            ((CountDownLatch) item).countDown();
+          }
+        }
+        append(records);
+        records.clear();
+        items.clear();
+      }
+    }
+  }
+
+  /**
+   * Forces the logged changes to the device, then compacts the log if it grew past twice the size of the live data.
+   *
+   * @param live the live mappings
+   * @param liveSize the size of the live data
+   * @throws IOException if the log cannot be forced or compacted
+   */
+  void checkpoint(Iterable<Map.Entry<K, V>> live, long liveSize) throws IOException {
+    flush();
+    synchronized (this) {
+      if (channel == null) {
+        return;
+      }
+      channel.force(false);
+      if (size <= Math.max(2 * liveSize, minimumCompactionSize)) {
+        return;
+      }
+    }
+    compact(live);
+  }
+
+  /**
+   * Writes the live mappings into a new log file that replays before the changes logged from now on, then deletes
+   * the files it supersedes. Changes made while the live mappings are being written land in the later file.
+   *
+   * @param live the live mappings
+   * @throws IOException if the log cannot be compacted
+   */
+  void compact(Iterable<Map.Entry<K, V>> live) throws IOException {
+    long snapshotIndex;
+    synchronized (this) {
+      if (channel == null) {
+        return;
+      }
+      snapshotIndex = channelIndex + 1;
+      channel.close();
+      channelIndex = snapshotIndex + 1;
+      channel = openChannel(channelIndex);
+      size = 0;
+    }
+
+    long snapshotSize = 0;
+    FileChannel snapshot = openChannel(snapshotIndex);
+    try {
+      for (Map.Entry<K, V> entry : live) {
+        snapshotSize += write(snapshot, PUT, keyPortability.encode(entry.getKey()), valuePortability.encode(entry.getValue()));
+      }
+      snapshot.force(false);
+    } finally {
+      snapshot.close();
+    }
+
+    for (File file : files(directory)) {
+      if (indexOf(file) < snapshotIndex && !file.delete()) {
+        LOGGER.warn("Unable to delete superseded journal file {}", file.getAbsolutePath());
+      }
+    }
+    synchronized (this) {
+      size += snapshotSize;
+    }
+  }
+
+  long size() {
+    flush();
+    synchronized (this) {
+      return size;
+    }
+  }
+
+  /**
+   * Stops logging, keeping the log files.
+   *
+   * @throws IOException if the log cannot be forced to the device
+   */
+  void close() throws IOException {
+    enabled = false;
+    Thread current = appender;
+    if (current != null) {
+      appender = null;
+      enqueue(STOP);
+      boolean interrupted = false;
+      while (current.isAlive()) {
+        try {
+          current.join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    closeChannel();
+  }
+
+  private synchronized void closeChannel() throws IOException {
+    if (channel != null) {
+      try {
+        channel.force(false);
+      } finally {
+        channel.close();
+        channel = null;
+      }
+    }
+  }
+
+  private FileChannel openChannel(long index) throws IOException {
+    return new FileOutputStream(new File(directory, FILE_PREFIX + index), true).getChannel();
+  }
+
+  private static int write(FileChannel channel, byte type, ByteBuffer key, ByteBuffer value) throws IOException {
+    ByteBuffer record = record(type, key, value);
+    while (record.hasRemaining()) {
+      channel.write(record);
+    }
+    return record.limit();
+  }
+
+  private static ByteBuffer record(byte type, ByteBuffer key, ByteBuffer value) {
+    int bodyLength = 1;
+    if (key != null) {
+      bodyLength += 4 + key.remaining();
+    }
+    if (value != null) {
+      bodyLength += value.remaining();
+    }
+    ByteBuffer record = ByteBuffer.allocate(bodyLength + 8);
+    record.putInt(bodyLength).put(type);
+    if (key != null) {
+      record.putInt(key.remaining()).put(key.duplicate());
+    }
+    if (value != null) {
+      record.put(value.duplicate());
+    }
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), 4, bodyLength);
+    record.putInt((int) crc.getValue());
+    record.flip();
+    return record;
+  }
+
+  private static void closeQuietly(FileChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException ioe) {
+      LOGGER.debug("Error closing journal file", ioe);
+    }
+  }
+
+  /**
+   * Deletes the journal files found in the given directory.
+   *
+   * @param directory the disk store directory
+   */
+  static void delete(File directory) {
+    for (File file : files(directory)) {
+      if (!file.delete()) {
+        LOGGER.warn("Unable to delete journal file {}", file.getAbsolutePath());
+      }
+    }
+  }
+
+  private static List<File> files(File directory) {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(FILE_PREFIX) && indexOf(name) >= 0;
+      }
+    });
+    if (files == null) {
+      return Collections.emptyList();
+    }
+    List<File> sorted = new ArrayList<File>();
+    Collections.addAll(sorted, files);
+    Collections.sort(sorted, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        long indexA = indexOf(a);
+        long indexB = indexOf(b);
+        return indexA < indexB ? -1 : (indexA == indexB ? 0 : 1);
+      }
+    });
+    return sorted;
+  }
+
+  private static long indexOf(File file) {
+    return indexOf(file.getName());
+  }
+
+  private static long indexOf(String name) {
+    try {
+      return Long.parseLong(name.substring(FILE_PREFIX.length()));
+    } catch (NumberFormatException nfe) {
+      return -1;
+    }
+  }
+}
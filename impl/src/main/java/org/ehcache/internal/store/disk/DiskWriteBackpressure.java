@@ -0,0 +1,42 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store.disk;
+
+/**
+ * What a disk store does with a write when the queue of writes waiting for its data file is full.
+ *
+ * @see OffHeapDiskStoreServiceConfiguration#getWriteQueueBackpressure()
+ */
+public enum DiskWriteBackpressure {
+
+  /**
+   * The writing thread waits for the queue to have room for its write.
+   */
+  BLOCK,
+
+  /**
+   * Mappings whose writes are still queued are evicted, dropping their writes, until the queue has room for the new
+   * write. The writing thread only waits when none of the queued writes can be dropped.
+   */
+  EVICT,
+
+  /**
+   * The store fails the write with a {@link org.ehcache.exceptions.CacheAccessException}, caused by a
+   * {@link java.util.concurrent.RejectedExecutionException}.
+   */
+  FAIL
+}
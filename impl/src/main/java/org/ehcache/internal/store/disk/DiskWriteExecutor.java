@@ -0,0 +1,338 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store.disk;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The single threaded executor writing records to a disk store data file, which holds at most {@code capacity} writes
+ * in its queue.
+ * <P>
+ *   A storage engine reserves room in the queue with {@link #reserve(boolean)} before writing a record, the write the
+ *   engine then submits from the same thread is queued as the {@link QueuedWrite} returned by the reservation. A
+ *   queued write that got superseded, because its record was freed before being written, is removed from the queue
+ *   with {@link #cancel(QueuedWrite)}. Other tasks, such as the flushes of the engines, are queued as usual and do not
+ *   count against the capacity.
+ * </P>
+ */
+public class DiskWriteExecutor extends ThreadPoolExecutor {
+
+  private final int capacity;
+  private final Object capacityLock = new Object();
+  private final ThreadLocal<QueuedWrite> reservation = new ThreadLocal<QueuedWrite>();
+  private final AtomicLong coalescedWrites = new AtomicLong();
+  private final AtomicLong droppedWrites = new AtomicLong();
+  private final AtomicLong rejectedWrites = new AtomicLong();
+
+  private volatile DiskWriteBackpressure backpressure = DiskWriteBackpressure.BLOCK;
+  private int reserved = 0;
+
+  /**
+   * Creates an executor queuing at most {@code capacity} writes.
+   *
+   * @param threadFactory the factory of the writing thread
+   * @param capacity the capacity of the write queue
+   */
+  public DiskWriteExecutor(ThreadFactory threadFactory, int capacity) {
+    super(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Write queue capacity must be at least 1: " + capacity);
+    }
+    this.capacity = capacity;
+  }
+
+  /**
+   * Reserves room for a write in the queue, waiting for it when {@code block} is {@code true}. The next task submitted
+   * by the calling thread is queued as the returned write, the reservation must then be ended with
+   * {@link #endReservation(QueuedWrite)}.
+   *
+   * @param block whether to wait for room in the queue
+   * @return the reserved write, {@code null} if the queue is full and {@code block} is {@code false}
+   * @throws RejectedExecutionException if this executor is shut down while waiting
+   */
+  QueuedWrite reserve(boolean block) {
+    synchronized (capacityLock) {
+      if (reserved >= capacity) {
+        if (!block) {
+          return null;
+        }
+        awaitCapacity();
+      }
+      reserved++;
+    }
+    QueuedWrite write = new QueuedWrite();
+    reservation.set(write);
+    return write;
+  }
+
+  /**
+   * Reserves room for a write in the queue even if it is full, for a write that is about to supersede one already
+   * queued.
+   *
+   * @return the reserved write
+   */
+  QueuedWrite forceReserve() {
+    synchronized (capacityLock) {
+      reserved++;
+    }
+    QueuedWrite write = new QueuedWrite();
+    reservation.set(write);
+    return write;
+  }
+
+  /**
+   * Ends a reservation, giving its room back if no write was queued under it.
+   *
+   * @param write the reserved write
+   */
+  void endReservation(QueuedWrite write) {
+    reservation.remove();
+    if (!write.isQueued()) {
+      release();
+    }
+  }
+
+  /**
+   * Waits for the queue to have room for a write, without reserving it.
+   *
+   * @throws RejectedExecutionException if this executor is shut down while waiting
+   */
+  void awaitCapacity() {
+    synchronized (capacityLock) {
+      boolean interrupted = false;
+      try {
+        while (reserved >= capacity) {
+          if (isShutdown()) {
+            throw new RejectedExecutionException("Disk writer is shut down");
+          }
+          try {
+            capacityLock.wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes a superseded write from the queue, unless it is already being written.
+   *
+   * @param write the superseded write
+   * @return {@code true} if the write was removed
+   */
+  boolean cancel(QueuedWrite write) {
+    if (getQueue().remove(write)) {
+      coalescedWrites.incrementAndGet();
+      release();
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  void writeDropped() {
+    droppedWrites.incrementAndGet();
+  }
+
+  void writeRejected() {
+    rejectedWrites.incrementAndGet();
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    QueuedWrite write = reservation.get();
+    if (write != null && write.queue(command)) {
+      super.execute(write);
+    } else {
+      super.execute(command);
+    }
+  }
+
+  @Override
+  protected void beforeExecute(Thread t, Runnable r) {
+    if (r instanceof QueuedWrite) {
+      release();
+    }
+    super.beforeExecute(t, r);
+  }
+
+  @Override
+  public void shutdown() {
+    super.shutdown();
+    wakeWaiters();
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    List<Runnable> tasks = super.shutdownNow();
+    wakeWaiters();
+    return tasks;
+  }
+
+  private void release() {
+    synchronized (capacityLock) {
+      reserved--;
+      capacityLock.notifyAll();
+    }
+  }
+
+  private void wakeWaiters() {
+    synchronized (capacityLock) {
+      capacityLock.notifyAll();
+    }
+  }
+
+  /**
+   * @return what the storage engines writing through this executor do with a write finding the queue full
+   */
+  public DiskWriteBackpressure getBackpressure() {
+    return backpressure;
+  }
+
+  /**
+   * Sets what the storage engines writing through this executor do with a write finding the queue full, which is
+   * {@link DiskWriteBackpressure#BLOCK} until set otherwise.
+   *
+   * @param backpressure the new backpressure
+   */
+  public void setBackpressure(DiskWriteBackpressure backpressure) {
+    if (backpressure == null) {
+      throw new NullPointerException("Backpressure must not be null");
+    }
+    this.backpressure = backpressure;
+  }
+
+  /**
+   * @return the capacity of the write queue
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return the number of writes waiting in the queue
+   */
+  public int getQueuedWrites() {
+    int count = 0;
+    for (Runnable r : getQueue()) {
+      if (r instanceof QueuedWrite) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns how long the oldest write of the queue has been waiting.
+   *
+   * @param unit the unit of the returned age
+   * @return the age of the oldest queued write, {@code 0} when the queue is empty
+   */
+  public long getOldestQueuedWriteAge(TimeUnit unit) {
+    for (Runnable r : getQueue()) {
+      if (r instanceof QueuedWrite) {
+        return unit.convert(System.nanoTime() - ((QueuedWrite) r).queuedAt, TimeUnit.NANOSECONDS);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return the number of queued writes removed from the queue because they got superseded
+   */
+  public long getCoalescedWrites() {
+    return coalescedWrites.get();
+  }
+
+  /**
+   * @return the number of mappings evicted to make room in the full queue
+   */
+  public long getDroppedWrites() {
+    return droppedWrites.get();
+  }
+
+  /**
+   * @return the number of writes that failed because the queue was full
+   */
+  public long getRejectedWrites() {
+    return rejectedWrites.get();
+  }
+
+  /**
+   * A write of a record to the data file, queued under a reservation. Once its record address is known the write is
+   * tracked by its storage engine until it is written, so that it can be cancelled if the record gets freed first.
+   */
+  static final class QueuedWrite implements Runnable {
+
+    private volatile Runnable task;
+    private volatile long queuedAt;
+    private volatile long address;
+    private volatile Map<Long, QueuedWrite> owner;
+    private volatile boolean done;
+
+    boolean queue(Runnable task) {
+      if (this.task == null) {
+        this.queuedAt = System.nanoTime();
+        this.task = task;
+        return true;
+      } else {
+        return false;
+      }
+    }
+
+    boolean isQueued() {
+      return task != null;
+    }
+
+    /**
+     * Tracks this write in {@code owner} under its record address until it is written.
+     */
+    void track(Map<Long, QueuedWrite> owner, long address) {
+      this.address = address;
+      this.owner = owner;
+      owner.put(address, this);
+      if (done) {
+        owner.remove(address, this);
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        task.run();
+      } finally {
+        done = true;
+        Map<Long, QueuedWrite> tracker = owner;
+        if (tracker != null) {
+          tracker.remove(address, this);
+        }
+      }
+    }
+  }
+}
@@ -20,34 +20,41 @@ import org.terracotta.offheapstore.util.Factory;
 
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
-public class DiskWriteThreadPool implements Factory<ThreadPoolExecutor> {
+public class DiskWriteThreadPool implements Factory<DiskWriteExecutor> {
 
-  private final List<ThreadPoolExecutor> writers = new CopyOnWriteArrayList<ThreadPoolExecutor>();
+  public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+  private final List<DiskWriteExecutor> writers = new CopyOnWriteArrayList<DiskWriteExecutor>();
   private final String                   name;
   private final int                      threads;
+  private final int                      queueCapacity;
+  private volatile DiskWriteBackpressure backpressure = DiskWriteBackpressure.BLOCK;
 
   private int                            index   = 0;
 
   public DiskWriteThreadPool(String name, int threads) {
+    this(name, threads, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  public DiskWriteThreadPool(String name, int threads, int queueCapacity) {
     this.name = name;
     this.threads = threads;
+    this.queueCapacity = queueCapacity;
   }
 
-  public ThreadPoolExecutor newInstance() {
-    ThreadPoolExecutor writer;
+  public DiskWriteExecutor newInstance() {
+    DiskWriteExecutor writer;
     if (writers.size() < threads) {
       final int threadIndex = writers.size();
-      writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
-                                      new ThreadFactory() {
-                                        public Thread newThread(Runnable r) {
-                                          return new Thread(r, "Ehcache Disk Write Thread [" + name + "] - " + threadIndex);
-                                        }
-                                      });
+      writer = new DiskWriteExecutor(new ThreadFactory() {
+                                       public Thread newThread(Runnable r) {
+                                         return new Thread(r, "Ehcache Disk Write Thread [" + name + "] - " + threadIndex);
+                                       }
+                                     }, queueCapacity);
+      writer.setBackpressure(backpressure);
       writers.add(writer);
     } else {
       writer = writers.get(index++);
@@ -58,11 +65,63 @@ public class DiskWriteThreadPool implements Factory<ThreadPoolExecutor> {
     return writer;
   }
 
+  /**
+   * Sets the backpressure of all writers of this pool, those already created and those to come.
+   *
+   * @param backpressure the new backpressure
+   * @see DiskWriteExecutor#setBackpressure(DiskWriteBackpressure)
+   */
+  public void setBackpressure(DiskWriteBackpressure backpressure) {
+    this.backpressure = backpressure;
+    for (DiskWriteExecutor e : writers) {
+      e.setBackpressure(backpressure);
+    }
+  }
+
   public long getTotalQueueSize() {
     long size = 0;
-    for (ThreadPoolExecutor e : writers) {
-      size += e.getQueue().size();
+    for (DiskWriteExecutor e : writers) {
+      size += e.getQueuedWrites();
     }
     return size;
   }
+
+  /**
+   * @return how long, in milliseconds, the oldest queued write has been waiting to be written
+   */
+  public long getQueueLag() {
+    long lag = 0;
+    for (DiskWriteExecutor e : writers) {
+      lag = Math.max(lag, e.getOldestQueuedWriteAge(TimeUnit.MILLISECONDS));
+    }
+    return lag;
+  }
+
+  public long getCoalescedWrites() {
+    long count = 0;
+    for (DiskWriteExecutor e : writers) {
+      count += e.getCoalescedWrites();
+    }
+    return count;
+  }
+
+  public long getDroppedWrites() {
+    long count = 0;
+    for (DiskWriteExecutor e : writers) {
+      count += e.getDroppedWrites();
+    }
+    return count;
+  }
+
+  public long getRejectedWrites() {
+    long count = 0;
+    for (DiskWriteExecutor e : writers) {
+      count += e.getRejectedWrites();
+    }
+    return count;
+  }
+
+  List<DiskWriteExecutor> getWriters() {
+    return writers;
+  }
 }
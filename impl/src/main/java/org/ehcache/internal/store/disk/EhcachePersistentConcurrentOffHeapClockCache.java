@@ -19,11 +19,29 @@ package org.ehcache.internal.store.disk;
 import org.ehcache.function.BiFunction;
 import org.ehcache.function.Function;
 import org.ehcache.internal.store.disk.factories.EhcachePersistentSegmentFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terracotta.offheapstore.Segment;
 import org.terracotta.offheapstore.disk.persistent.AbstractPersistentConcurrentOffHeapCache;
+import org.terracotta.offheapstore.disk.persistent.Persistent;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import org.ehcache.internal.store.offheap.EhcacheOffHeapBackingMap;
 
 /**
@@ -32,7 +50,15 @@ import org.ehcache.internal.store.offheap.EhcacheOffHeapBackingMap;
  */
 public class EhcachePersistentConcurrentOffHeapClockCache<K, V> extends AbstractPersistentConcurrentOffHeapCache<K, V> implements EhcacheOffHeapBackingMap<K, V> {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(EhcachePersistentConcurrentOffHeapClockCache.class);
+
+  private static final int RECOVERED = 0;
+  private static final int RECOVERING = 1;
+  private static final int FAILED = 2;
+
   private final AtomicLong[] counters;
+  private final AtomicIntegerArray recovering;
+  private volatile CountDownLatch recovery = new CountDownLatch(0);
 
   public EhcachePersistentConcurrentOffHeapClockCache(ObjectInput input, EhcachePersistentSegmentFactory<K, V> segmentFactory) throws IOException {
     this(segmentFactory, readSegmentCount(input));
@@ -44,6 +70,304 @@ public class EhcachePersistentConcurrentOffHeapClockCache<K, V> extends Abstract
     for(int i = 0; i < segments.length; i++) {
       counters[i] = new AtomicLong();
     }
+    recovering = new AtomicIntegerArray(segments.length);
+  }
+
+  /**
+   * @return the number of segments of this map
+   */
+  public int getSegmentCount() {
+    return segments.length;
+  }
+
+  /**
+   * Persists each segment to its own index file, so that they can later be bootstrapped independently.
+   *
+   * @param segmentIndexes the index file of each segment
+   * @throws IOException if an index file cannot be written
+   * @see #bootstrap(File[], int, String)
+   */
+  public void persist(File[] segmentIndexes) throws IOException {
+    checkSegmentIndexes(segmentIndexes);
+    for (int i = 0; i < segments.length; i++) {
+      ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(segmentIndexes[i]));
+      try {
+        ((Persistent) segments[i]).persist(output);
+      } finally {
+        output.close();
+      }
+    }
+  }
+
+  /**
+   * Bootstraps the segments from their own index file on {@code threads} threads.
+   * <P>
+   *   All segments are write locked by their recovery thread before this method returns: operations on a segment
+   *   block until it is recovered while recovered segments are already usable.
+   *   Use {@link #isRecovering(Object)} to avoid waiting on a segment and {@link #awaitRecovery()} to wait for all
+   *   of them. A segment that fails to be bootstrapped stays unusable, see {@link #isFailed(Object)}.
+   * </P>
+   *
+   * @param segmentIndexes the index file of each segment
+   * @param threads the number of recovery threads
+   * @param name the name used for the recovery threads
+   */
+  public void bootstrap(final File[] segmentIndexes, int threads, String name) {
+    checkSegmentIndexes(segmentIndexes);
+    final int stride = Math.max(1, Math.min(threads, segments.length));
+    final CountDownLatch locked = new CountDownLatch(stride);
+    recovery = new CountDownLatch(segments.length);
+    for (int i = 0; i < segments.length; i++) {
+      recovering.set(i, RECOVERING);
+    }
+    for (int t = 0; t < stride; t++) {
+      final int first = t;
+      Thread worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = first; i < segments.length; i += stride) {
+            segments[i].writeLock().lock();
+          }
+          locked.countDown();
+          for (int i = first; i < segments.length; i += stride) {
+            try {
+              bootstrapSegment(segments[i], segmentIndexes[i]);
+              recovering.set(i, RECOVERED);
+            } catch (Throwable e) {
+              // set before unlocking, so that no operation waiting for the segment ever reaches it
+              recovering.set(i, FAILED);
+              LOGGER.error("Recovery of segment {} from {} failed, it stays unavailable until the store gets rebuilt", i, segmentIndexes[i].getName(), e);
+            } finally {
+              segments[i].writeLock().unlock();
+              recovery.countDown();
+            }
+          }
+        }
+      }, "Ehcache Disk Recovery Thread [" + name + "] - " + t);
+      worker.setDaemon(true);
+      worker.start();
+    }
+
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          locked.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static void bootstrapSegment(Segment<?, ?> segment, File segmentIndex) throws IOException {
+    ObjectInputStream input = new ObjectInputStream(new FileInputStream(segmentIndex));
+    try {
+      ((Persistent) segment).bootstrap(input);
+    } finally {
+      input.close();
+    }
+  }
+
+  private void checkSegmentIndexes(File[] segmentIndexes) {
+    if (segmentIndexes.length != segments.length) {
+      throw new IllegalArgumentException("Expected " + segments.length + " segment indexes, got " + segmentIndexes.length);
+    }
+  }
+
+  /**
+   * Tells whether the segment holding {@code key} is still being bootstrapped, or failed to.
+   *
+   * @param key the key to check
+   * @return {@code true} if an operation on {@code key} would wait for, or hit, an unrecovered segment
+   */
+  public boolean isRecovering(Object key) {
+    return recovering.get(getIndexFor(key.hashCode())) != RECOVERED;
+  }
+
+  /**
+   * Tells whether the segment holding {@code key} failed to be bootstrapped, waiting for its recovery to end if needed.
+   * A failed segment is left in an undefined state: none of its operations may be invoked.
+   *
+   * @param key the key to check
+   * @return {@code true} if the segment holding {@code key} is unusable
+   */
+  public boolean isFailed(Object key) {
+    return isFailed(getIndexFor(key.hashCode()));
+  }
+
+  private boolean isFailed(int index) {
+    if (recovering.get(index) == RECOVERING) {
+      // the recovery thread holds the write lock until the segment is settled
+      Lock lock = segments[index].readLock();
+      lock.lock();
+      lock.unlock();
+    }
+    return recovering.get(index) == FAILED;
+  }
+
+  /**
+   * Waits, uninterruptibly, for the bootstrapping of all segments to end.
+   *
+   * @return {@code true} if all segments were recovered, {@code false} if some failed to
+   */
+  public boolean awaitRecovery() {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          recovery.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    for (int i = 0; i < segments.length; i++) {
+      if (recovering.get(i) != RECOVERED) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Starts a relocation pass over a segment, moving its mappings towards the start of its storage, segments that are
+   * not recovered are left untouched.
+   *
+   * @param segment the index of the segment
+   * @return the relocation pass, or {@code null} if the segment is not recovered
+   * @see EhcachePersistentSegmentFactory.EhcachePersistentSegment#startRelocation()
+   */
+  public EhcachePersistentSegmentFactory.EhcachePersistentSegment<K, V>.RelocationPass startRelocation(int segment) {
+    if (recovering.get(segment) != RECOVERED) {
+      return null;
+    }
+    return ((EhcachePersistentSegmentFactory.EhcachePersistentSegment<K, V>) segments[segment]).startRelocation();
+  }
+
+  /**
+   * Clears all segments but the ones that failed to be recovered.
+   */
+  @Override
+  public void clear() {
+    writeLockAll();
+    try {
+      for (int i = 0; i < segments.length; i++) {
+        if (recovering.get(i) != FAILED) {
+          segments[i].clear();
+        }
+      }
+    } finally {
+      writeUnlockAll();
+    }
+  }
+
+  /**
+   * Returns the mappings of the segments that did not fail to be recovered.
+   */
+  @Override
+  public Set<Map.Entry<K, V>> entrySet() {
+    final Set<Map.Entry<K, V>> entrySet = super.entrySet();
+    return new AbstractSet<Map.Entry<K, V>>() {
+      @Override
+      public Iterator<Map.Entry<K, V>> iterator() {
+        return new RecoveredSegmentsIterator<Map.Entry<K, V>>() {
+          @Override
+          Iterator<Map.Entry<K, V>> iteratorOf(Segment<K, V> segment) {
+            return segment.entrySet().iterator();
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return entrySet.size();
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        return o instanceof Map.Entry<?, ?> && !isFailed(((Map.Entry<?, ?>) o).getKey()) && entrySet.contains(o);
+      }
+    };
+  }
+
+  /**
+   * Returns the keys of the segments that did not fail to be recovered.
+   */
+  @Override
+  public Set<K> keySet() {
+    final Set<K> keySet = super.keySet();
+    return new AbstractSet<K>() {
+      @Override
+      public Iterator<K> iterator() {
+        return new RecoveredSegmentsIterator<K>() {
+          @Override
+          Iterator<K> iteratorOf(Segment<K, V> segment) {
+            return segment.keySet().iterator();
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return keySet.size();
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        return !isFailed(o) && keySet.contains(o);
+      }
+    };
+  }
+
+  /**
+   * Iterates over the segments one after the other, skipping the ones that failed to be recovered.
+   */
+  private abstract class RecoveredSegmentsIterator<T> implements Iterator<T> {
+
+    private int next = 0;
+    private Iterator<T> current = Collections.<T>emptyList().iterator();
+    private Iterator<T> last;
+
+    abstract Iterator<T> iteratorOf(Segment<K, V> segment);
+
+    @Override
+    public boolean hasNext() {
+      while (!current.hasNext() && next < segments.length) {
+        int index = next++;
+        if (!isFailed(index)) {
+          current = iteratorOf(segments[index]);
+        }
+      }
+      return current.hasNext();
+    }
+
+    @Override
+    public T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      last = current;
+      return current.next();
+    }
+
+    @Override
+    public void remove() {
+      if (last == null) {
+        throw new IllegalStateException();
+      }
+      last.remove();
+    }
   }
 
   @Override
@@ -22,11 +22,16 @@ import org.ehcache.config.EvictionVeto;
 import org.ehcache.config.ResourcePool;
 import org.ehcache.config.ResourceType;
 import org.ehcache.config.units.MemoryUnit;
+import org.ehcache.exceptions.CacheAccessException;
 import org.ehcache.exceptions.CachePersistenceException;
+import org.ehcache.function.BiFunction;
+import org.ehcache.function.Function;
+import org.ehcache.function.NullaryFunction;
 import org.ehcache.function.Predicate;
 import org.ehcache.function.Predicates;
 import org.ehcache.internal.TimeSource;
 import org.ehcache.internal.TimeSourceService;
+import org.ehcache.internal.serialization.CompressingSerializer;
 import org.ehcache.internal.store.disk.factories.EhcachePersistentSegmentFactory;
 import org.ehcache.internal.store.offheap.OffHeapValueHolder;
 import org.ehcache.internal.store.offheap.portability.OffHeapValueHolderPortability;
@@ -50,6 +55,7 @@ import org.terracotta.offheapstore.disk.persistent.PersistentPortability;
 import org.terracotta.offheapstore.disk.storage.FileBackedStorageEngine;
 import org.terracotta.offheapstore.storage.portability.Portability;
 import org.terracotta.offheapstore.util.Factory;
+import org.terracotta.statistics.StatisticsManager;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -59,27 +65,41 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Proxy;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import org.ehcache.internal.store.offheap.AbstractOffHeapStore;
 import org.ehcache.internal.store.offheap.EhcacheOffHeapBackingMap;
 import static org.ehcache.spi.ServiceLocator.findSingletonAmongst;
 import org.ehcache.spi.service.LocalPersistenceService.PersistenceSpaceIdentifier;
+import org.terracotta.context.annotations.ContextAttribute;
 
 /**
  *
  * @author Chris Dennis
  */
+@ContextAttribute("this")
 public class OffHeapDiskStore<K, V> extends AbstractOffHeapStore<K, V> implements AuthoritativeTier<K, V> {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(OffHeapDiskStore.class);
 
+  static final int INDEX_MAGIC = 0x45484453;
+  private static final long MAX_COMPACTION_BATCH = 64 * 1024;
+
   protected final AtomicReference<Status> status = new AtomicReference<Status>(Status.UNINITIALIZED);
 
   private final Predicate<Map.Entry<K, OffHeapValueHolder<V>>> evictionVeto;
@@ -87,12 +107,38 @@ public class OffHeapDiskStore<K, V> extends AbstractOffHeapStore<K, V> implement
   private final Serializer<V> valueSerializer;
   private final long sizeInBytes;
   private final FileBasedPersistenceContext fileBasedPersistenceContext;
+  private final long checkpointInterval;
+  private final int diskSegments;
+  private final int writerConcurrency;
+  private final boolean missWhileRecovering;
+  private final long compactionBytesPerSecond;
+  private final long readCacheSize;
+  private final int writeQueueCapacity;
+  private final DiskWriteBackpressure writeQueueBackpressure;
+  private final Object checkpointLock = new Object();
+  private final AtomicReference<Compaction> compaction = new AtomicReference<Compaction>();
+  private final AtomicLong compactionReclaimedBytes = new AtomicLong();
 
   private volatile EhcachePersistentConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>> map;
+  private volatile DiskStoreJournal<K, OffHeapValueHolder<V>> journal;
+  private volatile ScheduledFuture<?> checkpointTask;
+  private volatile DiskWriteThreadPool writeWorkers;
 
   public OffHeapDiskStore(FileBasedPersistenceContext fileBasedPersistenceContext, final Configuration<K, V> config, TimeSource timeSource, long sizeInBytes) {
+    this(fileBasedPersistenceContext, config, timeSource, sizeInBytes, new OffHeapDiskStoreServiceConfiguration());
+  }
+
+  public OffHeapDiskStore(FileBasedPersistenceContext fileBasedPersistenceContext, final Configuration<K, V> config, TimeSource timeSource, long sizeInBytes, OffHeapDiskStoreServiceConfiguration diskStoreConfig) {
     super("local-disk", config, timeSource);
     this.fileBasedPersistenceContext = fileBasedPersistenceContext;
+    this.checkpointInterval = diskStoreConfig.getCheckpointIntervalMillis();
+    this.diskSegments = diskStoreConfig.getDiskSegments();
+    this.writerConcurrency = diskStoreConfig.getWriterConcurrency();
+    this.missWhileRecovering = diskStoreConfig.isMissWhileRecovering();
+    this.compactionBytesPerSecond = diskStoreConfig.getCompactionBytesPerSecond();
+    this.readCacheSize = diskStoreConfig.getReadCacheSize();
+    this.writeQueueCapacity = diskStoreConfig.getWriteQueueCapacity();
+    this.writeQueueBackpressure = diskStoreConfig.getWriteQueueBackpressure();
     EvictionVeto<? super K, ? super V> veto = config.getEvictionVeto();
     if (veto != null) {
       evictionVeto = wrap(veto, timeSource);
@@ -106,6 +152,96 @@ public class OffHeapDiskStore<K, V> extends AbstractOffHeapStore<K, V> implement
     if (!status.compareAndSet(Status.UNINITIALIZED, Status.AVAILABLE)) {
       throw new AssertionError();
     }
+
+    registerCompactionStatistics(this);
+    registerWriteQueueStatistics(this);
+  }
+
+  /**
+   * Exposes the fragmentation of the data file and what compactions reclaimed of it. The statistics only hold the
+   * store weakly, so that they do not keep it from being collected once the store is gone.
+   */
+  private static void registerCompactionStatistics(OffHeapDiskStore<?, ?> store) {
+    final WeakReference<OffHeapDiskStore<?, ?>> storeRef = new WeakReference<OffHeapDiskStore<?, ?>>(store);
+    Set<String> tags = Collections.singleton("local-disk");
+    StatisticsManager.createPassThroughStatistic(store, "fragmentation", tags, new Callable<Double>() {
+      @Override
+      public Double call() {
+        OffHeapDiskStore<?, ?> current = storeRef.get();
+        return current == null ? 0.0 : current.getFragmentation();
+      }
+    });
+    StatisticsManager.createPassThroughStatistic(store, "compactionReclaimedBytes", tags, new Callable<Long>() {
+      @Override
+      public Long call() {
+        OffHeapDiskStore<?, ?> current = storeRef.get();
+        return current == null ? 0L : current.compactionReclaimedBytes.get();
+      }
+    });
+  }
+
+  /**
+   * Exposes the depth and lag of the write queues of the data file, and what became of the writes finding them full.
+   */
+  private static void registerWriteQueueStatistics(OffHeapDiskStore<?, ?> store) {
+    final WeakReference<OffHeapDiskStore<?, ?>> storeRef = new WeakReference<OffHeapDiskStore<?, ?>>(store);
+    Set<String> tags = Collections.singleton("local-disk");
+    StatisticsManager.createPassThroughStatistic(store, "writeQueueSize", tags, new Callable<Long>() {
+      @Override
+      public Long call() {
+        DiskWriteThreadPool pool = writeWorkers(storeRef);
+        return pool == null ? 0L : pool.getTotalQueueSize();
+      }
+    });
+    StatisticsManager.createPassThroughStatistic(store, "writeQueueLag", tags, new Callable<Long>() {
+      @Override
+      public Long call() {
+        DiskWriteThreadPool pool = writeWorkers(storeRef);
+        return pool == null ? 0L : pool.getQueueLag();
+      }
+    });
+    StatisticsManager.createPassThroughStatistic(store, "coalescedWrites", tags, new Callable<Long>() {
+      @Override
+      public Long call() {
+        DiskWriteThreadPool pool = writeWorkers(storeRef);
+        return pool == null ? 0L : pool.getCoalescedWrites();
+      }
+    });
+    StatisticsManager.createPassThroughStatistic(store, "droppedWrites", tags, new Callable<Long>() {
+      @Override
+      public Long call() {
+        DiskWriteThreadPool pool = writeWorkers(storeRef);
+        return pool == null ? 0L : pool.getDroppedWrites();
+      }
+    });
+    StatisticsManager.createPassThroughStatistic(store, "rejectedWrites", tags, new Callable<Long>() {
+      @Override
+      public Long call() {
+        DiskWriteThreadPool pool = writeWorkers(storeRef);
+        return pool == null ? 0L : pool.getRejectedWrites();
+      }
+    });
+  }
+
+  private static DiskWriteThreadPool writeWorkers(WeakReference<OffHeapDiskStore<?, ?>> storeRef) {
+    OffHeapDiskStore<?, ?> current = storeRef.get();
+    return current == null ? null : current.writeWorkers;
+  }
+
+  /**
+   * Returns the share of the space allocated in the data file that holds no mapping, {@code 0} when nothing is
+   * allocated.
+   */
+  double getFragmentation() {
+    EhcachePersistentConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>> localMap = map;
+    if (localMap == null) {
+      return 0.0;
+    }
+    long allocated = localMap.getDataAllocatedMemory();
+    if (allocated == 0) {
+      return 0.0;
+    }
+    return 1.0 - ((double) localMap.getDataOccupiedMemory() / allocated);
   }
 
   @Override
@@ -116,16 +252,70 @@ public class OffHeapDiskStore<K, V> extends AbstractOffHeapStore<K, V> implement
   private EhcachePersistentConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>> getBackingMap(long size, Serializer<K> keySerializer, Serializer<V> valueSerializer, Predicate<Map.Entry<K, OffHeapValueHolder<V>>> evictionVeto) {
     File dataFile = getDataFile();
     File indexFile = getIndexFile();
-    
+
+    if (checkpointInterval > 0) {
+      journal = new DiskStoreJournal<K, OffHeapValueHolder<V>>(fileBasedPersistenceContext.getDirectory(),
+          new SerializerPortability<K>(keySerializer), new OffHeapValueHolderPortability<V>(valueSerializer));
+    } else {
+      journal = null;
+      DiskStoreJournal.delete(fileBasedPersistenceContext.getDirectory());
+    }
+
+    EhcachePersistentConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>> backingMap;
     if (dataFile.isFile() && indexFile.isFile()) {
       try {
-        return recoverBackingMap(size, keySerializer, valueSerializer, evictionVeto);
+        backingMap = recoverBackingMap(size, keySerializer, valueSerializer, evictionVeto);
       } catch (IOException ex) {
         throw new RuntimeException(ex);
       }
     } else {
-      return createBackingMap(size, keySerializer, valueSerializer, evictionVeto);
+      backingMap = rebuildBackingMap(size, keySerializer, valueSerializer, evictionVeto);
+    }
+    // the journal got replayed under the default blocking backpressure, so that none of its writes was dropped
+    writeWorkers.setBackpressure(writeQueueBackpressure);
+
+    if (journal != null) {
+      // from now on the journal is what survives a crash, the index only gets rewritten on a clean shutdown
+      if (indexFile.isFile() && !indexFile.delete()) {
+        LOGGER.warn("Unable to delete the index file {}, a crash would leave it out of date", indexFile.getAbsolutePath());
+      }
+      try {
+        boolean journaled = journal.exists();
+        journal.open();
+        if (!journaled && !backingMap.isEmpty()) {
+          journal.compact(backingMap.entrySet());
+        }
+      } catch (IOException ex) {
+        try {
+          backingMap.close();
+        } catch (IOException closeEx) {
+          LOGGER.debug("Error closing backing map", closeEx);
+        }
+        throw new RuntimeException(ex);
+      }
+    }
+    return backingMap;
+  }
+
+  /**
+   * Creates an empty backing map and replays the journal, if any, into it.
+   */
+  private EhcachePersistentConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>> rebuildBackingMap(long size, Serializer<K> keySerializer, Serializer<V> valueSerializer, Predicate<Map.Entry<K, OffHeapValueHolder<V>>> evictionVeto) {
+    EhcachePersistentConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>> backingMap = createBackingMap(size, keySerializer, valueSerializer, evictionVeto);
+    DiskStoreJournal<K, OffHeapValueHolder<V>> journal = this.journal;
+    if (journal != null && journal.exists()) {
+      long start = System.nanoTime();
+      try {
+        long records = journal.replay(backingMap);
+        LOGGER.info("Rebuilt the store of data file {} from {} journal records in {}ms, {} mappings recovered.",
+            getDataFile().getName(), records, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), backingMap.size());
+      } catch (IOException e) {
+        LOGGER.warn("Unable to replay the journal of data file {}, {} mappings recovered.", getDataFile().getName(), backingMap.size(), e);
+      } catch (RuntimeException e) {
+        LOGGER.warn("Unable to replay the journal of data file {}, {} mappings recovered.", getDataFile().getName(), backingMap.size(), e);
+      }
     }
+    return backingMap;
   }
   
   private EhcachePersistentConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>> recoverBackingMap(long size, Serializer<K> keySerializer, Serializer<V> valueSerializer, Predicate<Map.Entry<K, OffHeapValueHolder<V>>> evictionVeto) throws IOException {
@@ -142,44 +332,46 @@ public class OffHeapDiskStore<K, V> extends AbstractOffHeapStore<K, V> implement
         LOGGER.info("The index for data file {} is more recent than the data file itself by {}ms : this is harmless.",
                     dataFile.getName(), -delta);
       } else if (delta > TimeUnit.SECONDS.toMillis(1)) {
-        LOGGER.warn("The index for data file {} is out of date by {}ms, probably due to an unclean shutdown. Creating a new empty store.",
+        LOGGER.warn("The index for data file {} is out of date by {}ms, probably due to an unclean shutdown. Creating a new store.",
                     dataFile.getName(), delta);
-        return createBackingMap(size, keySerializer, valueSerializer, evictionVeto);
+        return rebuildBackingMap(size, keySerializer, valueSerializer, evictionVeto);
       } else if (delta > 0) {
         LOGGER.info("The index for data file {} is out of date by {}ms, assuming this small delta is a result of the OS/filesystem.",
                     dataFile.getName(), delta);
       }
 
+      File[] segmentIndexes = getSegmentIndexFiles(readSegmentCount(input, valueFormatVersion(valueSerializer)));
+      for (File segmentIndex : segmentIndexes) {
+        if (!segmentIndex.isFile()) {
+          throw new IOException("Missing segment index " + segmentIndex.getName());
+        }
+      }
+
       MappedPageSource source = new MappedPageSource(dataFile, false, size);
       try {
         PersistentPortability<K> keyPortability = persistent(new SerializerPortability<K>(keySerializer));
         PersistentPortability<OffHeapValueHolder<V>> elementPortability = persistent(new OffHeapValueHolderPortability<V>(valueSerializer));
-        DiskWriteThreadPool writeWorkers = new DiskWriteThreadPool("identifier", 1);
-
-        Factory<FileBackedStorageEngine<K, OffHeapValueHolder<V>>> storageEngineFactory = FileBackedStorageEngine.createFactory(source,
-                keyPortability, elementPortability, writeWorkers, false);
+        Factory<? extends FileBackedStorageEngine<K, OffHeapValueHolder<V>>> storageEngineFactory = createStorageEngineFactory(source,
+            keyPortability, elementPortability, false, segmentIndexes.length);
 
         EhcachePersistentSegmentFactory<K, OffHeapValueHolder<V>> factory = new EhcachePersistentSegmentFactory<K, OffHeapValueHolder<V>>(
             source,
             storageEngineFactory,
             64,
             evictionVeto,
-            mapEvictionListener, false);
-            EhcachePersistentConcurrentOffHeapClockCache m = new EhcachePersistentConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>>(input, factory);
-
-
-
-
-        m.bootstrap(input);
+            mapEvictionListener, changeListener(), false);
+        EhcachePersistentConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>> m = new EhcachePersistentConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>>(factory, segmentIndexes.length);
+        // segments are recovered in the background, each one becoming usable as soon as it is done
+        m.bootstrap(segmentIndexes, Runtime.getRuntime().availableProcessors(), getThreadNameQualifier());
         return m;
-      } catch (IOException e) {
+      } catch (RuntimeException e) {
         source.close();
         throw e;
       }
     } catch (Exception e) {
       LOGGER.info("Index file was corrupt. Deleting data file " + dataFile.getAbsolutePath() +". " + e.getMessage());
       LOGGER.debug("Exception during recovery", e);
-      return createBackingMap(size, keySerializer, valueSerializer, evictionVeto);
+      return rebuildBackingMap(size, keySerializer, valueSerializer, evictionVeto);
     } finally {
       fin.close();
     }
@@ -195,26 +387,368 @@ public class OffHeapDiskStore<K, V> extends AbstractOffHeapStore<K, V> implement
     }
     PersistentPortability<K> keyPortability = persistent(new SerializerPortability<K>(keySerializer));
     PersistentPortability<OffHeapValueHolder<V>> elementPortability = persistent(new OffHeapValueHolderPortability<V>(valueSerializer));
-    DiskWriteThreadPool writeWorkers = new DiskWriteThreadPool("identifier", 1);
-
-    Factory<FileBackedStorageEngine<K, OffHeapValueHolder<V>>> storageEngineFactory = FileBackedStorageEngine.createFactory(source,
-        keyPortability, elementPortability, writeWorkers, true);
+    Factory<? extends FileBackedStorageEngine<K, OffHeapValueHolder<V>>> storageEngineFactory = createStorageEngineFactory(source,
+        keyPortability, elementPortability, true, diskSegments);
 
     EhcachePersistentSegmentFactory<K, OffHeapValueHolder<V>> factory = new EhcachePersistentSegmentFactory<K, OffHeapValueHolder<V>>(
         source,
         storageEngineFactory,
         64,
         evictionVeto,
-        mapEvictionListener, true);
-    return new EhcachePersistentConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>>(factory, 16);
+        mapEvictionListener, changeListener(), true);
+    return new EhcachePersistentConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>>(factory, diskSegments);
 
   }
 
+  /**
+   * Creates the factory of the segments' storage engines, each of them getting an equal share of the read cache if
+   * there is one, along with the pool of threads the engines write through.
+   */
+  private Factory<? extends FileBackedStorageEngine<K, OffHeapValueHolder<V>>> createStorageEngineFactory(MappedPageSource source,
+      PersistentPortability<K> keyPortability, PersistentPortability<OffHeapValueHolder<V>> elementPortability,
+      boolean bootstrap, int segments) {
+    DiskWriteThreadPool writeWorkers = new DiskWriteThreadPool(getThreadNameQualifier(), writerConcurrency, writeQueueCapacity);
+    this.writeWorkers = writeWorkers;
+    if (readCacheSize > 0) {
+      return CachingFileBackedStorageEngine.createFactory(source, keyPortability, elementPortability, writeWorkers,
+          bootstrap, readCacheSize / segments);
+    } else {
+      return CoalescingFileBackedStorageEngine.createFactory(source, keyPortability, elementPortability, writeWorkers, bootstrap);
+    }
+  }
+
+  DiskWriteThreadPool getWriteWorkers() {
+    return writeWorkers;
+  }
+
+  private EhcachePersistentSegmentFactory.EhcachePersistentSegment.ChangeListener changeListener() {
+    DiskStoreJournal<K, OffHeapValueHolder<V>> journal = this.journal;
+    if (journal == null) {
+      return EhcachePersistentSegmentFactory.EhcachePersistentSegment.NOOP_CHANGE_LISTENER;
+    }
+    return journal;
+  }
+
   @Override
   protected EhcacheOffHeapBackingMap<K, OffHeapValueHolder<V>> backingMap() {
     return map;
   }
 
+  @Override
+  public ValueHolder<V> get(K key) {
+    if (isRecovering(key) || isFailed(key)) {
+      return null;
+    }
+    return super.get(key);
+  }
+
+  @Override
+  public boolean containsKey(K key) {
+    return !isRecovering(key) && !isFailed(key) && super.containsKey(key);
+  }
+
+  @Override
+  public ValueHolder<V> getAndFault(K key) throws CacheAccessException {
+    if (isRecovering(key) || isFailed(key)) {
+      return null;
+    }
+    return super.getAndFault(key);
+  }
+
+  @Override
+  public void put(K key, V value) throws CacheAccessException {
+    checkRecovered(key);
+    try {
+      super.put(key, value);
+    } catch (RejectedExecutionException e) {
+      throw writeRejected(e);
+    }
+  }
+
+  @Override
+  public ValueHolder<V> putIfAbsent(K key, V value) throws NullPointerException, CacheAccessException {
+    checkRecovered(key);
+    try {
+      return super.putIfAbsent(key, value);
+    } catch (RejectedExecutionException e) {
+      throw writeRejected(e);
+    }
+  }
+
+  @Override
+  public void remove(K key) {
+    if (!isFailed(key)) {
+      super.remove(key);
+    }
+  }
+
+  @Override
+  public boolean remove(K key, V value) throws NullPointerException {
+    return !isFailed(key) && super.remove(key, value);
+  }
+
+  @Override
+  public ValueHolder<V> replace(K key, V value) throws NullPointerException, CacheAccessException {
+    checkRecovered(key);
+    try {
+      return super.replace(key, value);
+    } catch (RejectedExecutionException e) {
+      throw writeRejected(e);
+    }
+  }
+
+  @Override
+  public boolean replace(K key, V oldValue, V newValue) throws NullPointerException, IllegalArgumentException, CacheAccessException {
+    checkRecovered(key);
+    try {
+      return super.replace(key, oldValue, newValue);
+    } catch (RejectedExecutionException e) {
+      throw writeRejected(e);
+    }
+  }
+
+  @Override
+  public ValueHolder<V> compute(K key, BiFunction<? super K, ? super V, ? extends V> mappingFunction, NullaryFunction<Boolean> replaceEqual) throws CacheAccessException {
+    checkRecovered(key);
+    try {
+      return super.compute(key, mappingFunction, replaceEqual);
+    } catch (RejectedExecutionException e) {
+      throw writeRejected(e);
+    }
+  }
+
+  @Override
+  public ValueHolder<V> computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) throws CacheAccessException {
+    checkRecovered(key);
+    try {
+      return super.computeIfAbsent(key, mappingFunction);
+    } catch (RejectedExecutionException e) {
+      throw writeRejected(e);
+    }
+  }
+
+  @Override
+  public ValueHolder<V> computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction, NullaryFunction<Boolean> replaceEqual) throws CacheAccessException {
+    checkRecovered(key);
+    try {
+      return super.computeIfPresent(key, remappingFunction, replaceEqual);
+    } catch (RejectedExecutionException e) {
+      throw writeRejected(e);
+    }
+  }
+
+  @Override
+  public Map<K, ValueHolder<V>> bulkCompute(Set<? extends K> keys, Function<Iterable<? extends Map.Entry<? extends K, ? extends V>>, Iterable<? extends Map.Entry<? extends K, ? extends V>>> remappingFunction, NullaryFunction<Boolean> replaceEqual) throws CacheAccessException {
+    for (K key : keys) {
+      checkRecovered(key);
+    }
+    try {
+      return super.bulkCompute(keys, remappingFunction, replaceEqual);
+    } catch (RejectedExecutionException e) {
+      throw writeRejected(e);
+    }
+  }
+
+  @Override
+  public Map<K, ValueHolder<V>> bulkComputeIfAbsent(Set<? extends K> keys, Function<Iterable<? extends K>, Iterable<? extends Map.Entry<? extends K, ? extends V>>> mappingFunction) throws CacheAccessException {
+    for (K key : keys) {
+      checkRecovered(key);
+    }
+    try {
+      return super.bulkComputeIfAbsent(keys, mappingFunction);
+    } catch (RejectedExecutionException e) {
+      throw writeRejected(e);
+    }
+  }
+
+  @Override
+  public ValueHolder<V> computeIfAbsentAndFault(K key, Function<? super K, ? extends V> mappingFunction) throws CacheAccessException {
+    checkRecovered(key);
+    try {
+      return super.computeIfAbsentAndFault(key, mappingFunction);
+    } catch (RejectedExecutionException e) {
+      throw writeRejected(e);
+    }
+  }
+
+  @Override
+  public boolean flush(K key, ValueHolder<V> valueFlushed) {
+    return !isFailed(key) && super.flush(key, valueFlushed);
+  }
+
+  /**
+   * Tells whether the segment holding the key failed to be recovered. Such a segment holds nothing until the store
+   * gets rebuilt on next start, and cannot store anything either.
+   */
+  private boolean isFailed(K key) {
+    EhcachePersistentConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>> localMap = map;
+    return localMap != null && localMap.isFailed(key);
+  }
+
+  private void checkRecovered(K key) throws CacheAccessException {
+    if (isFailed(key)) {
+      throw new CacheAccessException("The segment holding key '" + key + "' of data file " + getDataFile().getName()
+          + " failed to be recovered");
+    }
+  }
+
+  /**
+   * With the {@link DiskWriteBackpressure#FAIL FAIL} backpressure, a write that does not fit in the full disk write
+   * queue is rejected by the storage engine, and fails like any other write the store cannot take.
+   */
+  private CacheAccessException writeRejected(RejectedExecutionException e) {
+    return new CacheAccessException("The write to data file " + getDataFile().getName() + " was rejected", e);
+  }
+
+  /**
+   * When configured, reads on a segment still being recovered are misses rather than waiting for the recovery to end,
+   * which leaves the caller free to use its loader. Writes always wait for the segment.
+   */
+  private boolean isRecovering(K key) {
+    if (!missWhileRecovering) {
+      return false;
+    }
+    EhcachePersistentConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>> localMap = map;
+    return localMap != null && localMap.isRecovering(key);
+  }
+
+  @Override
+  public void clear() throws CacheAccessException {
+    DiskStoreJournal<K, OffHeapValueHolder<V>> journal = this.journal;
+    if (journal != null) {
+      journal.onClear();
+    }
+    super.clear();
+  }
+
+  /**
+   * Forces the journal to the device, compacting it when it grew too large.
+   */
+  void checkpoint() {
+    synchronized (checkpointLock) {
+      DiskStoreJournal<K, OffHeapValueHolder<V>> journal = this.journal;
+      EhcachePersistentConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>> localMap = map;
+      if (journal != null && localMap != null) {
+        try {
+          journal.checkpoint(localMap.entrySet(), localMap.getDataOccupiedMemory());
+        } catch (IOException e) {
+          LOGGER.warn("Journal checkpoint of data file {} failed", getDataFile().getName(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Starts compacting the data file in the background, unless a compaction is already running.
+   * <P>
+   *   Segment after segment, the mappings stored the furthest into the data file are moved to the lowest free
+   *   regions able to hold them, rewriting at most the configured number of bytes per second. This gathers the space
+   *   freed by removals and evictions and stops the data file from growing to hold new mappings, it does not make
+   *   the file any smaller though.
+   * </P>
+   *
+   * @return {@code true} if a compaction was started
+   */
+  public boolean compact() {
+    if (map == null) {
+      return false;
+    }
+    Compaction newCompaction = new Compaction();
+    if (!compaction.compareAndSet(null, newCompaction)) {
+      return false;
+    }
+    newCompaction.start();
+    return true;
+  }
+
+  private void stopCompaction() {
+    Compaction running = compaction.get();
+    if (running != null) {
+      running.halt();
+    }
+  }
+
+  /**
+   * Compacts all segments, one batch at a time, until no mapping can move any lower or {@code stop} is released.
+   *
+   * @return the number of bytes reclaimed
+   */
+  long compactSegments(CountDownLatch stop) throws InterruptedException {
+    long batch = Math.max(1, Math.min(MAX_COMPACTION_BATCH, compactionBytesPerSecond / 10));
+    long start = System.nanoTime();
+    long relocated = 0;
+    long reclaimed = 0;
+    for (int segment = 0; ; segment++) {
+      EhcachePersistentSegmentFactory.EhcachePersistentSegment<K, OffHeapValueHolder<V>>.RelocationPass pass = null;
+      EhcachePersistentConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>> passMap = null;
+      while (true) {
+        EhcachePersistentSegmentFactory.EhcachePersistentSegment.Relocation relocation;
+        synchronized (checkpointLock) {
+          // the lock keeps the map from being closed under the relocation
+          EhcachePersistentConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>> localMap = map;
+          if (localMap == null || segment >= localMap.getSegmentCount()) {
+            return reclaimed;
+          }
+          if (passMap != localMap) {
+            passMap = localMap;
+            pass = localMap.startRelocation(segment);
+          }
+          relocation = pass == null ? EhcachePersistentSegmentFactory.EhcachePersistentSegment.Relocation.NONE : pass.relocate(batch);
+        }
+        reclaimed += relocation.getReclaimedBytes();
+        compactionReclaimedBytes.addAndGet(relocation.getReclaimedBytes());
+        if (relocation.getRelocatedBytes() == 0) {
+          break;
+        }
+        relocated += relocation.getRelocatedBytes();
+        long ahead = (long) (TimeUnit.SECONDS.toNanos(1) * ((double) relocated / compactionBytesPerSecond)) - (System.nanoTime() - start);
+        if (ahead > 0 ? stop.await(ahead, TimeUnit.NANOSECONDS) : stop.getCount() == 0) {
+          return reclaimed;
+        }
+      }
+    }
+  }
+
+  /**
+   * A background compaction of the data file.
+   */
+  private final class Compaction extends Thread {
+
+    private final CountDownLatch stop = new CountDownLatch(1);
+
+    Compaction() {
+      super("Ehcache Disk Compaction Thread [" + getThreadNameQualifier() + "]");
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        long start = System.nanoTime();
+        long reclaimed = compactSegments(stop);
+        LOGGER.info("Compacted data file {} in {}ms, {} bytes reclaimed.",
+            getDataFile().getName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), reclaimed);
+      } catch (InterruptedException e) {
+        LOGGER.debug("Compaction of data file {} interrupted", getDataFile().getName());
+      } catch (RuntimeException e) {
+        LOGGER.warn("Compaction of data file {} failed", getDataFile().getName(), e);
+      } finally {
+        compaction.compareAndSet(this, null);
+      }
+    }
+
+    void halt() {
+      stop.countDown();
+    }
+  }
+
+  private String getThreadNameQualifier() {
+    // the persistence space directory is named after the cache alias
+    File directory = fileBasedPersistenceContext.getDirectory();
+    File space = directory.getParentFile();
+    return space == null ? directory.getName() : space.getName();
+  }
+
   private File getDataFile() {
     return new File(fileBasedPersistenceContext.getDirectory(), "ehcache-disk-store.data");
   }
@@ -223,12 +757,47 @@ public class OffHeapDiskStore<K, V> extends AbstractOffHeapStore<K, V> implement
     return new File(fileBasedPersistenceContext.getDirectory(), "ehcache-disk-store.index");
   }
 
+  private File[] getSegmentIndexFiles(int segmentCount) {
+    File[] segmentIndexes = new File[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      segmentIndexes[i] = new File(fileBasedPersistenceContext.getDirectory(), "ehcache-disk-store.index." + i);
+    }
+    return segmentIndexes;
+  }
+
+  /**
+   * @return the version of the serial form of the values, which changes when compression gets turned on or off
+   */
+  private static int valueFormatVersion(Serializer<?> valueSerializer) {
+    return valueSerializer instanceof CompressingSerializer ? CompressingSerializer.FORMAT_VERSION : 0;
+  }
+
+  private static int readSegmentCount(ObjectInputStream input, int valueFormatVersion) throws IOException {
+    if (input.readInt() != INDEX_MAGIC) {
+      throw new IOException("Unsupported index format");
+    }
+    int layoutVersion = input.readInt();
+    if (layoutVersion != OffHeapValueHolderPortability.LAYOUT_VERSION) {
+      throw new IOException("Unsupported value layout version " + layoutVersion);
+    }
+    int formatVersion = input.readInt();
+    if (formatVersion != valueFormatVersion) {
+      throw new IOException("Unsupported value format version " + formatVersion);
+    }
+    int segmentCount = input.readInt();
+    if (segmentCount < 1) {
+      throw new IOException("Invalid segment count " + segmentCount);
+    }
+    return segmentCount;
+  }
+
   @SupplementaryService
   @ServiceDependencies({TimeSourceService.class, SerializationProvider.class})
   public static class Provider implements Store.Provider, AuthoritativeTier.Provider {
 
     private volatile ServiceProvider serviceProvider;
     private final Set<Store<?, ?>> createdStores = Collections.newSetFromMap(new ConcurrentWeakIdentityHashMap<Store<?, ?>, Boolean>());
+    private ScheduledExecutorService checkpointExecutor;
 
     @Override
     public <K, V> OffHeapDiskStore<K, V> createStore(Configuration<K, V> storeConfig, ServiceConfiguration<?>... serviceConfigs) {
@@ -248,12 +817,17 @@ public class OffHeapDiskStore<K, V> extends AbstractOffHeapStore<K, V> implement
         throw new IllegalStateException("No LocalPersistenceService could be found - did you configure it at the CacheManager level?");
       }
 
+      OffHeapDiskStoreServiceConfiguration diskStoreConfig = findSingletonAmongst(OffHeapDiskStoreServiceConfiguration.class, (Object[]) serviceConfigs);
+      if (diskStoreConfig == null) {
+        diskStoreConfig = new OffHeapDiskStoreServiceConfiguration();
+      }
+
       PersistenceSpaceIdentifier space = findSingletonAmongst(PersistenceSpaceIdentifier.class, (Object[]) serviceConfigs);
       try {
         FileBasedPersistenceContext persistenceContext = localPersistenceService.createPersistenceContextWithin(space , "offheap-disk-store");
 
         OffHeapDiskStore<K, V> offHeapStore = new OffHeapDiskStore<K, V>(persistenceContext, storeConfig, timeSource, unit
-            .toBytes(offHeapPool.getSize()));
+            .toBytes(offHeapPool.getSize()), diskStoreConfig);
         createdStores.add(offHeapStore);
         return offHeapStore;
       } catch (CachePersistenceException cpex) {
@@ -274,18 +848,47 @@ public class OffHeapDiskStore<K, V> extends AbstractOffHeapStore<K, V> implement
     }
 
     static <K, V> void close(final OffHeapDiskStore<K, V> resource) throws IOException {
-      EhcachePersistentConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>> localMap = resource.map;
-      if (localMap != null) {
-        resource.map = null;
-        localMap.flush();
-        ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(resource.getIndexFile()));
-        try {
-          output.writeLong(System.currentTimeMillis());
-          localMap.persist(output);
-        } finally {
-          output.close();
+      resource.stopCompaction();
+      ScheduledFuture<?> checkpointTask = resource.checkpointTask;
+      if (checkpointTask != null) {
+        resource.checkpointTask = null;
+        checkpointTask.cancel(false);
+      }
+      synchronized (resource.checkpointLock) {
+        EhcachePersistentConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>> localMap = resource.map;
+        if (localMap != null) {
+          resource.map = null;
+          // the segment indexes are only valid once the main index referencing them is written
+          resource.getIndexFile().delete();
+          if (localMap.awaitRecovery()) {
+            localMap.flush();
+            localMap.persist(resource.getSegmentIndexFiles(localMap.getSegmentCount()));
+            ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(resource.getIndexFile()));
+            try {
+              output.writeLong(System.currentTimeMillis());
+              output.writeInt(INDEX_MAGIC);
+              output.writeInt(OffHeapValueHolderPortability.LAYOUT_VERSION);
+              output.writeInt(valueFormatVersion(resource.valueSerializer));
+              output.writeInt(localMap.getSegmentCount());
+            } finally {
+              output.close();
+            }
+            localMap.close();
+          } else {
+            LOGGER.warn("Data file {} was not fully recovered, no index written : the store will be rebuilt on next start.",
+                resource.getDataFile().getName());
+            try {
+              localMap.close();
+            } catch (Exception e) {
+              LOGGER.debug("Error closing partially recovered backing map", e);
+            }
+          }
+        }
+        DiskStoreJournal<K, OffHeapValueHolder<V>> journal = resource.journal;
+        if (journal != null) {
+          resource.journal = null;
+          journal.close();
         }
-        localMap.close();
       }
     }
 
@@ -294,13 +897,36 @@ public class OffHeapDiskStore<K, V> extends AbstractOffHeapStore<K, V> implement
       if (!createdStores.contains(resource)) {
         throw new IllegalArgumentException("Given store is not managed by this provider : " + resource);
       }
-      init((OffHeapDiskStore)resource);
+      final OffHeapDiskStore<?, ?> diskStore = (OffHeapDiskStore) resource;
+      init(diskStore);
+      if (diskStore.checkpointInterval > 0) {
+        diskStore.checkpointTask = getCheckpointExecutor().scheduleWithFixedDelay(new Runnable() {
+          @Override
+          public void run() {
+            diskStore.checkpoint();
+          }
+        }, diskStore.checkpointInterval, diskStore.checkpointInterval, TimeUnit.MILLISECONDS);
+      }
     }
 
     static <K, V> void init(final OffHeapDiskStore<K, V> resource) {
       resource.map = resource.getBackingMap(resource.sizeInBytes, resource.keySerializer, resource.valueSerializer, resource.evictionVeto);
     }
 
+    private synchronized ScheduledExecutorService getCheckpointExecutor() {
+      if (checkpointExecutor == null) {
+        checkpointExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "OffHeapDiskStore Checkpoint Thread");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+      }
+      return checkpointExecutor;
+    }
+
     @Override
     public void start(ServiceProvider serviceProvider) {
       this.serviceProvider = serviceProvider;
@@ -310,6 +936,12 @@ public class OffHeapDiskStore<K, V> extends AbstractOffHeapStore<K, V> implement
     public void stop() {
       this.serviceProvider = null;
       createdStores.clear();
+      synchronized (this) {
+        if (checkpointExecutor != null) {
+          checkpointExecutor.shutdownNow();
+          checkpointExecutor = null;
+        }
+      }
     }
 
     @Override
@@ -18,11 +18,212 @@ package org.ehcache.internal.store.disk;
 
 import org.ehcache.spi.service.ServiceConfiguration;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * @author Chris Dennis
  */
 public class OffHeapDiskStoreServiceConfiguration implements ServiceConfiguration<OffHeapDiskStore.Provider> {
 
+  public static final int DEFAULT_DISK_SEGMENTS = 16;
+  public static final int DEFAULT_WRITER_CONCURRENCY = 1;
+  public static final long DEFAULT_COMPACTION_BYTES_PER_SECOND = 8L * 1024 * 1024;
+  public static final int DEFAULT_WRITE_QUEUE_CAPACITY = DiskWriteThreadPool.DEFAULT_QUEUE_CAPACITY;
+  public static final DiskWriteBackpressure DEFAULT_WRITE_QUEUE_BACKPRESSURE = DiskWriteBackpressure.BLOCK;
+
+  private long checkpointIntervalMillis = 0;
+  private int diskSegments = DEFAULT_DISK_SEGMENTS;
+  private int writerConcurrency = DEFAULT_WRITER_CONCURRENCY;
+  private boolean missWhileRecovering = false;
+  private long compactionBytesPerSecond = DEFAULT_COMPACTION_BYTES_PER_SECOND;
+  private long readCacheSize = 0;
+  private int writeQueueCapacity = DEFAULT_WRITE_QUEUE_CAPACITY;
+  private DiskWriteBackpressure writeQueueBackpressure = DEFAULT_WRITE_QUEUE_BACKPRESSURE;
+
+  /**
+   * Makes the store journal its changes so that it can be rebuilt after an unclean shutdown. The journal is forced to
+   * the device, and compacted when needed, every {@code checkpointInterval}. A {@code 0} interval, the default,
+   * disables the journal, the store then only survives clean shutdowns.
+   *
+   * @param checkpointInterval the interval between two checkpoints, or {@code 0}
+   * @param unit the unit of the interval
+   * @return this configuration
+   */
+  public OffHeapDiskStoreServiceConfiguration checkpointInterval(long checkpointInterval, TimeUnit unit) {
+    if (unit == null) {
+      throw new NullPointerException("Time unit must not be null");
+    }
+    if (checkpointInterval < 0) {
+      throw new IllegalArgumentException("Checkpoint interval must not be negative: " + checkpointInterval);
+    }
+    long checkpointIntervalMillis = unit.toMillis(checkpointInterval);
+    if (checkpointInterval > 0 && checkpointIntervalMillis == 0) {
+      throw new IllegalArgumentException("Checkpoint interval must be at least a millisecond: " + checkpointInterval + " " + unit);
+    }
+    this.checkpointIntervalMillis = checkpointIntervalMillis;
+    return this;
+  }
+
+  /**
+   * Splits the store in {@code diskSegments} independently locked segments.
+   *
+   * @param diskSegments the number of segments of the store
+   * @return this configuration
+   */
+  public OffHeapDiskStoreServiceConfiguration diskSegments(int diskSegments) {
+    if (diskSegments < 1) {
+      throw new IllegalArgumentException("Disk segments must be at least 1: " + diskSegments);
+    }
+    this.diskSegments = diskSegments;
+    return this;
+  }
+
+  /**
+   * Makes {@code writerConcurrency} threads perform the writes of the store to the data file.
+   *
+   * @param writerConcurrency the number of threads writing to the data file
+   * @return this configuration
+   */
+  public OffHeapDiskStoreServiceConfiguration writerConcurrency(int writerConcurrency) {
+    if (writerConcurrency < 1) {
+      throw new IllegalArgumentException("Writer concurrency must be at least 1: " + writerConcurrency);
+    }
+    this.writerConcurrency = writerConcurrency;
+    return this;
+  }
+
+  /**
+   * Controls reads while the store recovers its segments on restart. By default a read waits for the segment holding
+   * its key to be recovered, when {@code missWhileRecovering} is {@code true} it is a miss instead, letting the cache
+   * fall through to its loader.
+   *
+   * @param missWhileRecovering whether reads on a segment being recovered are misses
+   * @return this configuration
+   */
+  public OffHeapDiskStoreServiceConfiguration missWhileRecovering(boolean missWhileRecovering) {
+    this.missWhileRecovering = missWhileRecovering;
+    return this;
+  }
+
+  /**
+   * Bounds the I/O of the store's compactions, which rewrite at most {@code compactionBytesPerSecond} bytes of
+   * mappings per second.
+   *
+   * @param compactionBytesPerSecond the number of bytes a compaction may rewrite per second
+   * @return this configuration
+   *
+   * @see OffHeapDiskStore#compact()
+   */
+  public OffHeapDiskStoreServiceConfiguration compactionBytesPerSecond(long compactionBytesPerSecond) {
+    if (compactionBytesPerSecond < 1) {
+      throw new IllegalArgumentException("Compaction bytes per second must be at least 1: " + compactionBytesPerSecond);
+    }
+    this.compactionBytesPerSecond = compactionBytesPerSecond;
+    return this;
+  }
+
+  /**
+   * Gives the store its own read cache. By default the store reads its data file through the operating system page
+   * cache, with a {@code readCacheSize} greater than {@code 0} the store instead keeps up to that many bytes of the
+   * mappings it read in memory, evicting the least recently used ones.
+   *
+   * @param readCacheSize the size of the read cache in bytes, or {@code 0}
+   * @return this configuration
+   */
+  public OffHeapDiskStoreServiceConfiguration readCacheSize(long readCacheSize) {
+    if (readCacheSize < 0) {
+      throw new IllegalArgumentException("Read cache size must not be negative: " + readCacheSize);
+    }
+    this.readCacheSize = readCacheSize;
+    return this;
+  }
+
+  /**
+   * Bounds the queue of each thread writing to the data file. Once {@code writeQueueCapacity} writes are waiting in a
+   * queue, a write superseding one of them is still queued, as the write it supersedes leaves the queue, while other
+   * writes are handled according to the {@link #writeQueueBackpressure(DiskWriteBackpressure) backpressure}.
+   *
+   * @param writeQueueCapacity the number of writes each writer thread may have queued
+   * @return this configuration
+   */
+  public OffHeapDiskStoreServiceConfiguration writeQueueCapacity(int writeQueueCapacity) {
+    if (writeQueueCapacity < 1) {
+      throw new IllegalArgumentException("Write queue capacity must be at least 1: " + writeQueueCapacity);
+    }
+    this.writeQueueCapacity = writeQueueCapacity;
+    return this;
+  }
+
+  /**
+   * Sets what to do with a write finding its queue full.
+   *
+   * @param writeQueueBackpressure what to do with a write finding its queue full
+   * @return this configuration
+   */
+  public OffHeapDiskStoreServiceConfiguration writeQueueBackpressure(DiskWriteBackpressure writeQueueBackpressure) {
+    if (writeQueueBackpressure == null) {
+      throw new NullPointerException("Write queue backpressure must not be null");
+    }
+    this.writeQueueBackpressure = writeQueueBackpressure;
+    return this;
+  }
+
+  /**
+   * @return the interval between two journal checkpoints in milliseconds, {@code 0} when the store is not journaled
+   */
+  public long getCheckpointIntervalMillis() {
+    return checkpointIntervalMillis;
+  }
+
+  /**
+   * @return the number of segments of the store
+   */
+  public int getDiskSegments() {
+    return diskSegments;
+  }
+
+  /**
+   * @return the number of threads writing to the data file
+   */
+  public int getWriterConcurrency() {
+    return writerConcurrency;
+  }
+
+  /**
+   * @return {@code true} if reads on a segment being recovered are misses rather than waiting for it
+   */
+  public boolean isMissWhileRecovering() {
+    return missWhileRecovering;
+  }
+
+  /**
+   * @return the number of bytes a compaction may rewrite per second
+   */
+  public long getCompactionBytesPerSecond() {
+    return compactionBytesPerSecond;
+  }
+
+  /**
+   * @return the size of the store's read cache in bytes, {@code 0} when it reads through the operating system page cache
+   */
+  public long getReadCacheSize() {
+    return readCacheSize;
+  }
+
+  /**
+   * @return the number of writes each thread writing to the data file may have queued
+   */
+  public int getWriteQueueCapacity() {
+    return writeQueueCapacity;
+  }
+
+  /**
+   * @return what the store does with a write finding its queue full
+   */
+  public DiskWriteBackpressure getWriteQueueBackpressure() {
+    return writeQueueBackpressure;
+  }
+
   @Override
   public Class<OffHeapDiskStore.Provider> getServiceType() {
     return OffHeapDiskStore.Provider.class;
@@ -19,14 +19,20 @@ package org.ehcache.internal.store.disk.factories;
 import org.ehcache.function.BiFunction;
 import org.ehcache.function.Function;
 import org.ehcache.function.Predicate;
+import org.ehcache.internal.store.disk.CoalescingFileBackedStorageEngine;
 import org.terracotta.offheapstore.Metadata;
 import org.terracotta.offheapstore.disk.paging.MappedPageSource;
 import org.terracotta.offheapstore.disk.persistent.PersistentReadWriteLockedOffHeapClockCache;
 import org.terracotta.offheapstore.disk.persistent.PersistentStorageEngine;
+import org.terracotta.offheapstore.disk.storage.FileBackedStorageEngine;
 import org.terracotta.offheapstore.pinning.PinnableSegment;
 import org.terracotta.offheapstore.util.Factory;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.locks.Lock;
 import org.ehcache.internal.store.offheap.factories.EhcacheSegmentFactory.EhcacheSegment;
 import org.ehcache.internal.store.offheap.factories.EhcacheSegmentFactory.EhcacheSegment.EvictionListener;
@@ -44,22 +50,28 @@ public class EhcachePersistentSegmentFactory<K, V> implements Factory<PinnableSe
 
   private final Predicate<Map.Entry<K, V>> evictionVeto;
   private final EhcacheSegment.EvictionListener<K, V> evictionListener;
+  private final EhcachePersistentSegment.ChangeListener changeListener;
 
   private final boolean bootstrap;
   
   public EhcachePersistentSegmentFactory(MappedPageSource source, Factory<? extends PersistentStorageEngine<? super K, ? super V>> storageEngineFactory, int initialTableSize, Predicate<Map.Entry<K, V>> evictionVeto, EhcacheSegment.EvictionListener<K, V> evictionListener, boolean bootstrap) {
+    this(source, storageEngineFactory, initialTableSize, evictionVeto, evictionListener, EhcachePersistentSegment.NOOP_CHANGE_LISTENER, bootstrap);
+  }
+
+  public EhcachePersistentSegmentFactory(MappedPageSource source, Factory<? extends PersistentStorageEngine<? super K, ? super V>> storageEngineFactory, int initialTableSize, Predicate<Map.Entry<K, V>> evictionVeto, EhcacheSegment.EvictionListener<K, V> evictionListener, EhcachePersistentSegment.ChangeListener changeListener, boolean bootstrap) {
     this.storageEngineFactory = storageEngineFactory;
     this.tableSource = source;
     this.tableSize = initialTableSize;
     this.evictionVeto = evictionVeto;
     this.evictionListener = evictionListener;
+    this.changeListener = changeListener;
     this.bootstrap = bootstrap;
   }
 
   public EhcachePersistentSegment<K, V> newInstance() {
     PersistentStorageEngine<? super K, ? super V> storageEngine = storageEngineFactory.newInstance();
     try {
-      return new EhcachePersistentSegment<K, V>(tableSource, storageEngine, tableSize, bootstrap, evictionVeto, evictionListener);
+      return new EhcachePersistentSegment<K, V>(tableSource, storageEngine, tableSize, bootstrap, evictionVeto, evictionListener, changeListener);
     } catch (RuntimeException e) {
       storageEngine.destroy();
       throw e;
@@ -68,13 +80,34 @@ public class EhcachePersistentSegmentFactory<K, V> implements Factory<PinnableSe
 
   public static class EhcachePersistentSegment<K, V> extends PersistentReadWriteLockedOffHeapClockCache<K, V> {
 
+    public static final ChangeListener NOOP_CHANGE_LISTENER = new ChangeListener() {
+      @Override
+      public void onPut(ByteBuffer key, ByteBuffer value) {
+        // nothing
+      }
+
+      @Override
+      public void onRemoval(Object key) {
+        // nothing
+      }
+    };
+
     private final Predicate<Entry<K, V>> evictionVeto;
     private final EvictionListener<K, V> evictionListener;
+    private final ChangeListener changeListener;
 
     EhcachePersistentSegment(MappedPageSource source, PersistentStorageEngine<? super K, ? super V> storageEngine, int tableSize, boolean bootstrap, Predicate<Entry<K, V>> evictionVeto, EvictionListener<K, V> evictionListener) {
+      this(source, storageEngine, tableSize, bootstrap, evictionVeto, evictionListener, EhcachePersistentSegment.NOOP_CHANGE_LISTENER);
+    }
+
+    EhcachePersistentSegment(MappedPageSource source, PersistentStorageEngine<? super K, ? super V> storageEngine, int tableSize, boolean bootstrap, Predicate<Entry<K, V>> evictionVeto, EvictionListener<K, V> evictionListener, ChangeListener changeListener) {
       super(source, storageEngine, tableSize, bootstrap);
+      if (changeListener != NOOP_CHANGE_LISTENER && !(storageEngine instanceof CoalescingFileBackedStorageEngine<?, ?>)) {
+        throw new IllegalArgumentException("Changes can only be listened to on a " + CoalescingFileBackedStorageEngine.class.getSimpleName());
+      }
       this.evictionVeto = evictionVeto;
       this.evictionListener = evictionListener;
+      this.changeListener = changeListener;
     }
 
     /**
@@ -184,6 +217,136 @@ public class EhcachePersistentSegmentFactory<K, V> implements Factory<PinnableSe
       return put(key, value, metadata);
     }
 
+    @Override
+    public V put(K key, V value, int metadata) {
+      Lock lock = writeLock();
+      lock.lock();
+      try {
+        V previous = super.put(key, value, metadata);
+        onPut();
+        return previous;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public V fill(K key, V value, int metadata) {
+      Lock lock = writeLock();
+      lock.lock();
+      try {
+        V previous = super.fill(key, value, metadata);
+        onPut();
+        return previous;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+      Lock lock = writeLock();
+      lock.lock();
+      try {
+        V existing = super.putIfAbsent(key, value);
+        if (existing == null) {
+          onPut();
+        }
+        return existing;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public V replace(K key, V value) {
+      Lock lock = writeLock();
+      lock.lock();
+      try {
+        V previous = super.replace(key, value);
+        if (previous != null) {
+          onPut();
+        }
+        return previous;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+      Lock lock = writeLock();
+      lock.lock();
+      try {
+        boolean replaced = super.replace(key, oldValue, newValue);
+        if (replaced) {
+          onPut();
+        }
+        return replaced;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public V remove(Object key) {
+      Lock lock = writeLock();
+      lock.lock();
+      try {
+        V removed = super.remove(key);
+        if (removed != null) {
+          changeListener.onRemoval(key);
+        }
+        return removed;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public boolean removeNoReturn(Object key) {
+      Lock lock = writeLock();
+      lock.lock();
+      try {
+        boolean removed = super.removeNoReturn(key);
+        if (removed) {
+          changeListener.onRemoval(key);
+        }
+        return removed;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+      Lock lock = writeLock();
+      lock.lock();
+      try {
+        boolean removed = super.remove(key, value);
+        if (removed) {
+          changeListener.onRemoval(key);
+        }
+        return removed;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Passes the key and value binaries of the mapping just written to the change listener.
+     */
+    private void onPut() {
+      if (changeListener != NOOP_CHANGE_LISTENER) {
+        CoalescingFileBackedStorageEngine<?, ?> engine = (CoalescingFileBackedStorageEngine<?, ?>) storageEngine;
+        ByteBuffer key = engine.takeWrittenKey();
+        ByteBuffer value = engine.takeWrittenValue();
+        if (key != null) {
+          changeListener.onPut(key, value);
+        }
+      }
+    }
+
     private int getVetoedStatus(final K key, final V value) {
       return evictionVeto.test(new SimpleImmutableEntry<K, V>(key, value)) ? VETOED : 0;
     }
@@ -207,6 +370,7 @@ public class EhcachePersistentSegmentFactory<K, V> implements Factory<PinnableSe
         Entry<K, V> entry = getEntryAtTableOffset(index);
         boolean evicted = super.evict(index, shrink);
         if (evicted) {
+          changeListener.onRemoval(entry.getKey());
           evictionListener.onEviction(entry.getKey(), entry.getValue());
         }
         return evicted;
@@ -214,5 +378,194 @@ public class EhcachePersistentSegmentFactory<K, V> implements Factory<PinnableSe
         lock.unlock();
       }
     }
+
+    /**
+     * When a write was refused because the disk write queue is full, evicts a mapping whose write is still queued,
+     * which drops that write from the queue. Waits for room in the queue if none of them can be evicted.
+     */
+    @Override
+    protected void storageEngineFailure(Object keyObject) {
+      if (storageEngine instanceof CoalescingFileBackedStorageEngine<?, ?>
+          && ((CoalescingFileBackedStorageEngine<?, ?>) storageEngine).isWriteQueueFull()) {
+        CoalescingFileBackedStorageEngine<?, ?> engine = (CoalescingFileBackedStorageEngine<?, ?>) storageEngine;
+        for (Long address : engine.getQueuedWriteAddresses()) {
+          Integer slot = getSlotForHashAndEncoding(engine.readKeyHash(address), address, ~0L);
+          if (slot != null) {
+            Integer metadata = getMetadata(getEntryAtTableOffset(slot).getKey(), VETOED | Metadata.PINNED);
+            if (metadata != null && metadata == 0 && evict(slot, false)) {
+              engine.writeDropped();
+              return;
+            }
+          }
+        }
+        engine.awaitWriteQueue();
+      } else {
+        super.storageEngineFailure(keyObject);
+      }
+    }
+
+    /**
+     * Starts a relocation pass over this segment, the encodings of its mappings being sorted once for the whole pass.
+     *
+     * @return the relocation pass, to be driven one batch at a time
+     */
+    public RelocationPass startRelocation() {
+      long[] encodings;
+      int expectedModCount;
+      Lock lock = readLock();
+      lock.lock();
+      try {
+        Set<Long> encodingSet = encodingSet();
+        encodings = new long[encodingSet.size()];
+        int count = 0;
+        for (Long encoding : encodingSet) {
+          encodings[count++] = encoding;
+        }
+        expectedModCount = modCount;
+      } finally {
+        lock.unlock();
+      }
+      Arrays.sort(encodings);
+      return new RelocationPass(encodings, expectedModCount);
+    }
+
+    /**
+     * A relocation pass over the mappings this segment held when it started, from the furthest into the storage down.
+     * The segment's write lock is only held for the duration of a batch, so that mappings may be written or removed
+     * between batches: once that happened, each remaining encoding is checked to still be mapped before it is moved.
+     */
+    public final class RelocationPass {
+
+      private final long[] encodings;
+      private int next;
+      private int expectedModCount;
+      private boolean validate;
+
+      RelocationPass(long[] encodings, int expectedModCount) {
+        this.encodings = encodings;
+        this.next = encodings.length - 1;
+        this.expectedModCount = expectedModCount;
+      }
+
+      /**
+       * Moves the next mappings of this pass to the lowest free region able to hold them, until {@code byteBudget}
+       * bytes were rewritten or a mapping cannot be moved any lower. A mapping is never moved if that would require
+       * the storage to grow. The mappings are rewritten as they are, they are neither notified to the change listener
+       * nor evicted.
+       *
+       * @param byteBudget the number of bytes this batch may rewrite
+       * @return the outcome of the batch, with nothing relocated once the segment cannot be compacted further
+       */
+      @SuppressWarnings("unchecked")
+      public Relocation relocate(long byteBudget) {
+        Lock lock = writeLock();
+        lock.lock();
+        try {
+          if (modCount != expectedModCount) {
+            validate = true;
+          }
+          long end = -1;
+          long newEnd = 0;
+          long relocated = 0;
+          try {
+            for (; next >= 0 && relocated < byteBudget; next--) {
+              long encoding = encodings[next];
+              if (validate && !isMapped(encoding)) {
+                continue;
+              }
+              if (end < 0) {
+                end = encoding;
+              }
+              K key = (K) storageEngine.readKey(encoding, 0);
+              V value = (V) storageEngine.readValue(encoding);
+              int hash = key.hashCode();
+
+              long allocated = storageEngine.getAllocatedMemory();
+              long occupied = storageEngine.getOccupiedMemory();
+              Long moved;
+              try {
+                moved = storageEngine.writeMapping(key, value, hash, 0);
+              } catch (RejectedExecutionException e) {
+                // the write queue is full, relocating can wait
+                break;
+              }
+              if (moved == null) {
+                break;
+              } else if (moved > encoding || storageEngine.getAllocatedMemory() != allocated
+                         || !updateEncoding(hash, encoding, moved, ~0L)) {
+                storageEngine.freeMapping(moved, hash, false);
+                break;
+              }
+              storageEngine.freeMapping(encoding, hash, false);
+              relocated += storageEngine.getOccupiedMemory() - occupied;
+              newEnd = Math.max(newEnd, moved);
+            }
+          } finally {
+            expectedModCount = modCount;
+          }
+          if (end < 0) {
+            return Relocation.NONE;
+          }
+          if (next >= 0) {
+            newEnd = Math.max(newEnd, encodings[next]);
+          }
+          return new Relocation(relocated, Math.max(0, end - newEnd));
+        } finally {
+          lock.unlock();
+        }
+      }
+
+      private boolean isMapped(long encoding) {
+        return storageEngine instanceof FileBackedStorageEngine<?, ?> && encoding < storageEngine.getAllocatedMemory()
+               && getSlotForHashAndEncoding(((FileBackedStorageEngine<?, ?>) storageEngine).readKeyHash(encoding), encoding, ~0L) != null;
+      }
+    }
+
+    /**
+     * The outcome of a {@link RelocationPass#relocate(long)} call.
+     */
+    public static final class Relocation {
+
+      /**
+       * Nothing relocated.
+       */
+      public static final Relocation NONE = new Relocation(0, 0);
+
+      private final long relocatedBytes;
+      private final long reclaimedBytes;
+
+      Relocation(long relocatedBytes, long reclaimedBytes) {
+        this.relocatedBytes = relocatedBytes;
+        this.reclaimedBytes = reclaimedBytes;
+      }
+
+      /**
+       * @return the number of bytes of mappings rewritten
+       */
+      public long getRelocatedBytes() {
+        return relocatedBytes;
+      }
+
+      /**
+       * @return how far back the last mapping of the segment moved, that space now being free in a single block
+       */
+      public long getReclaimedBytes() {
+        return reclaimedBytes;
+      }
+    }
+
+    /**
+     * Notified of the mappings written to or removed from a segment, under the segment's write lock.
+     */
+    public interface ChangeListener {
+
+      /**
+       * @param key the encoded key, not to be modified
+       * @param value the encoded value, not to be modified
+       */
+      void onPut(ByteBuffer key, ByteBuffer value);
+
+      void onRemoval(Object key);
+    }
   }
 }
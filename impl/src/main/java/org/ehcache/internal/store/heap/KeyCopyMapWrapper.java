@@ -0,0 +1,216 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store.heap;
+
+import org.ehcache.function.BiFunction;
+import org.ehcache.internal.TimeSource;
+import org.ehcache.internal.concurrent.ConcurrentHashMap;
+import org.ehcache.internal.sizeof.SizeOfEngine;
+import org.ehcache.internal.store.heap.OnHeapStore.EvictionSampler;
+import org.ehcache.internal.store.heap.OnHeapStore.SampledEntry;
+import org.ehcache.internal.store.heap.holders.CopiedOnHeapKey;
+import org.ehcache.internal.store.heap.holders.OnHeapKey;
+import org.ehcache.internal.store.heap.holders.OnHeapValueHolder;
+import org.ehcache.spi.copy.Copier;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.Map;
+
+/**
+ * Maps the keys, copied, in a {@link ConcurrentHashMap}.
+ */
+class KeyCopyMapWrapper<K, V> extends MapWrapper<K, V> {
+
+  private final ConcurrentHashMap<OnHeapKey<K>, OnHeapValueHolder<V>> keyCopyMap;
+  private final Copier<K> keyCopier;
+
+  KeyCopyMapWrapper(Copier<K> keyCopier, SizeOfEngine sizeOfEngine, WindowTinyLfuPolicy<OnHeapKey<K>> tinyLfuPolicy,
+                    TimerWheel<OnHeapKey<K>, OnHeapValueHolder<V>> expiryIndex) {
+    super(sizeOfEngine, tinyLfuPolicy, expiryIndex);
+    this.keyCopier = keyCopier;
+    keyCopyMap = new ConcurrentHashMap<OnHeapKey<K>, OnHeapValueHolder<V>>();
+  }
+
+  @Override
+  boolean remove(K key, OnHeapValueHolder<V> value) {
+    OnHeapKey<K> onHeapKey = lookupOnlyKey(key);
+    if (keyCopyMap.remove(onHeapKey, value)) {
+      installed(onHeapKey, value, null);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  OnHeapValueHolder<V> getMapping(OnHeapKey<K> key) {
+    return keyCopyMap.get(key);
+  }
+
+  @Override
+  boolean removeMapping(OnHeapKey<K> key, OnHeapValueHolder<V> value) {
+    if (keyCopyMap.remove(key, value)) {
+      installed(key, value, null);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  SampledEntry<K, V> newSampledEntry(TimeSource timeSource) {
+    return new KeySampledEntry<K, V>(timeSource);
+  }
+
+  @Override
+  void sample(int seed, final EvictionSampler<K, V> sampler) {
+    keyCopyMap.visitFrom(seed, new BiFunction<OnHeapKey<K>, OnHeapValueHolder<V>, Boolean>() {
+      @Override
+      public Boolean apply(OnHeapKey<K> key, OnHeapValueHolder<V> value) {
+        KeySampledEntry<K, V> candidate = (KeySampledEntry<K, V>) sampler.getCandidate();
+        candidate.key = key;
+        candidate.setValueHolder(value);
+        return sampler.offer();
+      }
+    });
+  }
+
+  @Override
+  int size() {
+    return keyCopyMap.size();
+  }
+
+  @Override
+  java.util.Iterator<Map.Entry<K, OnHeapValueHolder<V>>> entrySetIterator() {
+
+    final java.util.Iterator<Map.Entry<OnHeapKey<K>, OnHeapValueHolder<V>>> iter = keyCopyMap.entrySet().iterator();
+    return new java.util.Iterator<Map.Entry<K, OnHeapValueHolder<V>>>() {
+      @Override
+      public boolean hasNext() {
+        return iter.hasNext();
+      }
+
+      private Map.Entry<OnHeapKey<K>, OnHeapValueHolder<V>> last;
+
+      @Override
+      public Map.Entry<K, OnHeapValueHolder<V>> next() {
+        Map.Entry<OnHeapKey<K>, OnHeapValueHolder<V>> entry = iter.next();
+        last = entry;
+        return new SimpleEntry<K, OnHeapValueHolder<V>>(entry.getKey().getActualKeyObject(), entry.getValue());
+      }
+
+      @Override
+      public void remove() {
+        iter.remove();
+        installed(last.getKey(), last.getValue(), null);
+      }
+    };
+  }
+
+  @Override
+  OnHeapValueHolder<V> compute(final K key, final BiFunction<K, OnHeapValueHolder<V>, OnHeapValueHolder<V>> computeFunction) {
+
+    return keyCopyMap.compute(makeKey(key), new BiFunction<OnHeapKey<K>, OnHeapValueHolder<V>, OnHeapValueHolder<V>>() {
+      @Override
+      public OnHeapValueHolder<V> apply(OnHeapKey<K> mappedKey, OnHeapValueHolder<V> mappedValue) {
+        OnHeapValueHolder<V> newValue = computeFunction.apply(key, mappedValue);
+        if (newValue != mappedValue) {
+          measure(mappedKey, newValue);
+        }
+        return installed(mappedKey, mappedValue, newValue);
+      }
+    });
+  }
+
+  @Override
+  void clear() {
+    if (!isTracking()) {
+      keyCopyMap.clear();
+    } else {
+      for (java.util.Iterator<OnHeapKey<K>> it = keyCopyMap.keySet().iterator(); it.hasNext(); ) {
+        OnHeapKey<K> key = it.next();
+        installed(key, keyCopyMap.remove(key), null);
+      }
+    }
+  }
+
+  @Override
+  OnHeapValueHolder<V> remove(K key) {
+    OnHeapKey<K> onHeapKey = lookupOnlyKey(key);
+    OnHeapValueHolder<V> removed = keyCopyMap.remove(onHeapKey);
+    installed(onHeapKey, removed, null);
+    return removed;
+  }
+
+  @Override
+  OnHeapValueHolder<V> computeIfPresent(final K key, final BiFunction<K, OnHeapValueHolder<V>, OnHeapValueHolder<V>> computeFunction) {
+
+    return keyCopyMap.computeIfPresent(lookupOnlyKey(key), new BiFunction<OnHeapKey<K>, OnHeapValueHolder<V>, OnHeapValueHolder<V>>() {
+      @Override
+      public OnHeapValueHolder<V> apply(OnHeapKey<K> mappedKey, OnHeapValueHolder<V> mappedValue) {
+        OnHeapValueHolder<V> newValue = computeFunction.apply(key, mappedValue);
+        if (newValue != mappedValue) {
+          measure(mappedKey, newValue);
+        }
+        return installed(mappedKey, mappedValue, newValue);
+      }
+    });
+  }
+  
+  private OnHeapKey<K> makeKey(K key) {
+    return new CopiedOnHeapKey<K>(key, keyCopier);
+  }
+
+  private static final class KeySampledEntry<K, V> extends SampledEntry<K, V> {
+
+    private OnHeapKey<K> key;
+
+    KeySampledEntry(TimeSource timeSource) {
+      super(timeSource);
+    }
+
+    @Override
+    public K getKey() {
+      return key.getActualKeyObject();
+    }
+  }
+
+  @Override
+  public OnHeapValueHolder<V> get(K key) {
+    return keyCopyMap.get(lookupOnlyKey(key));
+  }
+
+  @Override
+  public OnHeapValueHolder<V> putIfAbsent(K key, OnHeapValueHolder<V> valueHolder) {
+    OnHeapKey<K> onHeapKey = makeKey(key);
+    OnHeapValueHolder<V> previous = keyCopyMap.putIfAbsent(onHeapKey, measure(onHeapKey, valueHolder));
+    if (previous == null) {
+      installed(onHeapKey, null, valueHolder);
+    }
+    return previous;
+  }
+
+  @Override
+  public boolean replace(K key, OnHeapValueHolder<V> oldValue, OnHeapValueHolder<V> newValue) {
+    // the policy and the expiry index keep hold of the keys of the mappings they track, so these must not
+    // reference the user's instance
+    OnHeapKey<K> onHeapKey = tinyLfuPolicy == null && expiryIndex == null ? lookupOnlyKey(key) : makeKey(key);
+    if (keyCopyMap.replace(onHeapKey, oldValue, measure(onHeapKey, newValue))) {
+      installed(onHeapKey, oldValue, newValue);
+      return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.store.heap;
+
+import org.ehcache.function.Function;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent map keyed by primitive {@code long}s, storing keys and values in parallel open-addressing arrays so
+ * that no per-mapping object gets allocated.
+ * <P>
+ * The map is split in segments, each guarded by a lock for writes. Reads are lock-free: a slot's value is always
+ * published after its key, and a slot never changes key until its segment gets rehashed into a new table, so that
+ * removed mappings leave a tombstone behind. {@code null} values are not supported.
+ * </P>
+ */
+final class LongKeyedConcurrentMap<V> {
+
+  private static final Object TOMBSTONE = new Object();
+  private static final int SEGMENTS = 16;
+  private static final int SEGMENT_SHIFT = 28;
+  private static final int MIN_SEGMENT_CAPACITY = 16;
+  private static final int MAX_SEGMENT_CAPACITY = 1 << 29;
+
+  private final Segment<V>[] segments;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  LongKeyedConcurrentMap() {
+    segments = new Segment[SEGMENTS];
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment<V>();
+    }
+  }
+
+  V get(long key) {
+    int hash = hash(key);
+    return segmentFor(hash).get(key, hash);
+  }
+
+  V putIfAbsent(long key, V value) {
+    if (value == null) {
+      throw new NullPointerException();
+    }
+    int hash = hash(key);
+    Segment<V> segment = segmentFor(hash);
+    segment.lock();
+    try {
+      Table table = segment.table;
+      int slot = table.slotFor(key, hash);
+      V mapped = live(table.values.get(slot));
+      if (mapped == null) {
+        segment.set(table, slot, key, hash, null, value);
+      }
+      return mapped;
+    } finally {
+      segment.unlock();
+    }
+  }
+
+  V remove(long key) {
+    int hash = hash(key);
+    Segment<V> segment = segmentFor(hash);
+    segment.lock();
+    try {
+      Table table = segment.table;
+      int slot = table.slotFor(key, hash);
+      V mapped = live(table.values.get(slot));
+      segment.set(table, slot, key, hash, mapped, null);
+      return mapped;
+    } finally {
+      segment.unlock();
+    }
+  }
+
+  boolean remove(long key, V value) {
+    return replace(key, value, null);
+  }
+
+  /**
+   * Replaces the mapping of {@code key} if it is {@code expected}, removing it if {@code value} is {@code null}.
+   */
+  boolean replace(long key, V expected, V value) {
+    int hash = hash(key);
+    Segment<V> segment = segmentFor(hash);
+    segment.lock();
+    try {
+      Table table = segment.table;
+      int slot = table.slotFor(key, hash);
+      V mapped = live(table.values.get(slot));
+      if (mapped == null || !(mapped == expected || mapped.equals(expected))) {
+        return false;
+      }
+      segment.set(table, slot, key, hash, mapped, value);
+      return true;
+    } finally {
+      segment.unlock();
+    }
+  }
+
+  /**
+   * Maps {@code key} to the result of the function applied to its current value, {@code null} if unmapped. A
+   * {@code null} result removes the mapping. The function is invoked under the segment's lock.
+   */
+  V compute(long key, Function<? super V, ? extends V> function) {
+    return compute(key, function, false);
+  }
+
+  /**
+   * Same as {@link #compute(long, Function)} but only invokes the function if {@code key} is mapped.
+   */
+  V computeIfPresent(long key, Function<? super V, ? extends V> function) {
+    return compute(key, function, true);
+  }
+
+  private V compute(long key, Function<? super V, ? extends V> function, boolean onlyIfPresent) {
+    int hash = hash(key);
+    Segment<V> segment = segmentFor(hash);
+    segment.lock();
+    try {
+      V mapped = segment.get(key, hash);
+      if (mapped == null && onlyIfPresent) {
+        return null;
+      }
+      V value = function.apply(mapped);
+      // the function may have written to this segment, hence the second look up
+      Table table = segment.table;
+      int slot = table.slotFor(key, hash);
+      segment.set(table, slot, key, hash, LongKeyedConcurrentMap.<V>live(table.values.get(slot)), value);
+      return value;
+    } finally {
+      segment.unlock();
+    }
+  }
+
+  int size() {
+    long size = 0;
+    for (Segment<V> segment : segments) {
+      size += segment.count;
+    }
+    return (int) Math.min(Integer.MAX_VALUE, size);
+  }
+
+  void clear() {
+    for (Segment<V> segment : segments) {
+      segment.lock();
+      try {
+        segment.table = new Table(MIN_SEGMENT_CAPACITY);
+        segment.count = 0;
+        segment.tombstones = 0;
+      } finally {
+        segment.unlock();
+      }
+    }
+  }
+
+  /**
+   * @return a weakly consistent cursor over all mappings
+   */
+  Cursor cursor() {
+    return new Cursor(0, 0);
+  }
+
+  /**
+   * @param seed picks the position the cursor starts from
+   * @return a weakly consistent cursor over all mappings
+   */
+  Cursor cursor(int seed) {
+    return new Cursor(seed >>> SEGMENT_SHIFT, seed & (MAX_SEGMENT_CAPACITY - 1));
+  }
+
+  private Segment<V> segmentFor(int hash) {
+    return segments[hash >>> SEGMENT_SHIFT];
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <V> V live(Object value) {
+    return value == TOMBSTONE ? null : (V) value;
+  }
+
+  private static int hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+
+  private static final class Table {
+
+    final long[] keys;
+    final AtomicReferenceArray<Object> values;
+    final int mask;
+
+    Table(int capacity) {
+      keys = new long[capacity];
+      values = new AtomicReferenceArray<Object>(capacity);
+      mask = capacity - 1;
+    }
+
+    /**
+     * @return the slot holding {@code key}, alive or not, or else the empty slot it would go in
+     */
+    int slotFor(long key, int hash) {
+      int slot = hash & mask;
+      while (true) {
+        Object value = values.get(slot);
+        if (value == null || keys[slot] == key) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+  }
+
+  private static final class Segment<V> extends ReentrantLock {
+
+    private static final long serialVersionUID = 1L;
+
+    volatile Table table = new Table(MIN_SEGMENT_CAPACITY);
+    volatile int count;
+    int tombstones;
+
+    V get(long key, int hash) {
+      Table t = table;
+      int slot = hash & t.mask;
+      for (int probes = 0; probes <= t.mask; probes++) {
+        // reading the value first makes the key written before it visible
+        Object value = t.values.get(slot);
+        if (value == null) {
+          return null;
+        } else if (t.keys[slot] == key) {
+          return live(value);
+        }
+        slot = (slot + 1) & t.mask;
+      }
+      return null;
+    }
+
+    /**
+     * Moves {@code slot}, currently holding {@code mapped}, to {@code value}. Must be called under the lock.
+     */
+    void set(Table t, int slot, long key, int hash, V mapped, V value) {
+      if (value == null) {
+        if (mapped != null) {
+          t.values.set(slot, TOMBSTONE);
+          tombstones++;
+          count--;
+        }
+      } else if (mapped != null) {
+        t.values.set(slot, value);
+      } else {
+        if (t.values.get(slot) == TOMBSTONE) {
+          tombstones--;
+        } else if (count + tombstones + 1 > threshold(t.mask + 1) && t.mask + 1 < MAX_SEGMENT_CAPACITY) {
+          t = rehash();
+          slot = t.slotFor(key, hash);
+        }
+        t.keys[slot] = key;
+        t.values.set(slot, value);
+        count++;
+      }
+    }
+
+    private static int threshold(int capacity) {
+      return (capacity >>> 1) + (capacity >>> 3);
+    }
+
+    private Table rehash() {
+      Table old = table;
+      // sized on the live mappings only, so that a table full of tombstones does not grow
+      int capacity = MIN_SEGMENT_CAPACITY;
+      while (capacity < MAX_SEGMENT_CAPACITY && (count + 1) > capacity >>> 1) {
+        capacity <<= 1;
+      }
+      Table rehashed = new Table(capacity);
+      for (int i = 0; i <= old.mask; i++) {
+        Object value = old.values.get(i);
+        if (value != null && value != TOMBSTONE) {
+          long key = old.keys[i];
+          int slot = rehashed.slotFor(key, hash(key));
+          rehashed.keys[slot] = key;
+          rehashed.values.set(slot, value);
+        }
+      }
+      tombstones = 0;
+      table = rehashed;
+      return rehashed;
+    }
+  }
+
+  /**
+   * Walks over the mappings without allocating, a mapping is only current until the next call to
+   * {@link #advance()}.
+   */
+  final class Cursor {
+
+    private final int firstSegment;
+    private final int offset;
+    private int segmentsVisited;
+    private Table table;
+    private int slotsVisited;
+    private long key;
+    private V value;
+
+    private Cursor(int firstSegment, int offset) {
+      this.firstSegment = firstSegment;
+      this.offset = offset;
+      this.table = segments[firstSegment].table;
+    }
+
+    /**
+     * @return {@code true} if the cursor moved to the next mapping, {@code false} if there is none left
+     */
+    boolean advance() {
+      while (table != null) {
+        while (slotsVisited <= table.mask) {
+          int slot = (offset + slotsVisited++) & table.mask;
+          V mapped = live(table.values.get(slot));
+          if (mapped != null) {
+            key = table.keys[slot];
+            value = mapped;
+            return true;
+          }
+        }
+        slotsVisited = 0;
+        if (++segmentsVisited < SEGMENTS) {
+          table = segments[(firstSegment + segmentsVisited) % SEGMENTS].table;
+        } else {
+          table = null;
+        }
+      }
+      value = null;
+      return false;
+    }
+
+    long key() {
+      checkCurrent();
+      return key;
+    }
+
+    V value() {
+      checkCurrent();
+      return value;
+    }
+
+    /**
+     * Removes the current mapping, unless it changed since the cursor reached it.
+     *
+     * @return {@code true} if the mapping was removed
+     */
+    boolean remove() {
+      checkCurrent();
+      return LongKeyedConcurrentMap.this.remove(key, value);
+    }
+
+    private void checkCurrent() {
+      if (value == null) {
+        throw new NoSuchElementException();
+      }
+    }
+  }
+}
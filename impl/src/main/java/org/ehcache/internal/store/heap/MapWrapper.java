@@ -0,0 +1,213 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store.heap;
+
+import org.ehcache.function.BiFunction;
+import org.ehcache.internal.TimeSource;
+import org.ehcache.internal.sizeof.SizeOfEngine;
+import org.ehcache.internal.store.heap.OnHeapStore.EvictionSampler;
+import org.ehcache.internal.store.heap.OnHeapStore.Fault;
+import org.ehcache.internal.store.heap.OnHeapStore.SampledEntry;
+import org.ehcache.internal.store.heap.holders.LookupOnlyOnHeapKey;
+import org.ehcache.internal.store.heap.holders.OnHeapKey;
+import org.ehcache.internal.store.heap.holders.OnHeapValueHolder;
+import org.ehcache.spi.cache.Store;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the mappings of an {@link OnHeapStore}, and keeps the byte size, the eviction policy and the expiry index up
+ * to date with them. It lets all the other code deal in terms of {@code <K>} and hides the potentially different key
+ * type of the underlying map.
+ */
+abstract class MapWrapper<K, V> {
+
+  private final SizeOfEngine sizeOfEngine;
+  final WindowTinyLfuPolicy<OnHeapKey<K>> tinyLfuPolicy;
+  final TimerWheel<OnHeapKey<K>, OnHeapValueHolder<V>> expiryIndex;
+  private final AtomicLong byteSize = new AtomicLong();
+
+  MapWrapper(SizeOfEngine sizeOfEngine, WindowTinyLfuPolicy<OnHeapKey<K>> tinyLfuPolicy,
+             TimerWheel<OnHeapKey<K>, OnHeapValueHolder<V>> expiryIndex) {
+    this.sizeOfEngine = sizeOfEngine;
+    this.tinyLfuPolicy = tinyLfuPolicy;
+    this.expiryIndex = expiryIndex;
+  }
+
+  abstract OnHeapValueHolder<V> get(K key);
+
+  abstract OnHeapValueHolder<V> putIfAbsent(K key, OnHeapValueHolder<V> valueHolder);
+
+  abstract boolean replace(K key, OnHeapValueHolder<V> oldValue, OnHeapValueHolder<V> newValue);
+
+  abstract boolean remove(K key, OnHeapValueHolder<V> value);
+
+  abstract OnHeapValueHolder<V> remove(K key);
+
+  abstract OnHeapValueHolder<V> compute(K key, BiFunction<K, OnHeapValueHolder<V>, OnHeapValueHolder<V>> computeFunction);
+
+  abstract OnHeapValueHolder<V> computeIfPresent(K key, BiFunction<K, OnHeapValueHolder<V>, OnHeapValueHolder<V>> computeFunction);
+
+  abstract void clear();
+
+  abstract int size();
+
+  abstract java.util.Iterator<Map.Entry<K, OnHeapValueHolder<V>>> entrySetIterator();
+
+  abstract SampledEntry<K, V> newSampledEntry(TimeSource timeSource);
+
+  /**
+   * Offers mappings to the sampler, starting from a position picked by {@code seed}, until it has enough.
+   */
+  abstract void sample(int seed, EvictionSampler<K, V> sampler);
+
+  /**
+   * @return the value mapped to the key tracked by the policy or the expiry index
+   */
+  abstract OnHeapValueHolder<V> getMapping(OnHeapKey<K> key);
+
+  abstract boolean removeMapping(OnHeapKey<K> key, OnHeapValueHolder<V> value);
+
+  /**
+   * Sum of the sizes of all mapped value holders, only maintained when sizing in bytes.
+   */
+  long byteSize() {
+    return byteSize.get();
+  }
+
+  boolean isTracking() {
+    return sizeOfEngine != null || tinyLfuPolicy != null || expiryIndex != null;
+  }
+
+  /**
+   * Accounts for the replacement of {@code oldValue} by {@code newValue}, either of them possibly {@code null}.
+   * A new value must have been {@link #measure(Object, OnHeapValueHolder) measured} first.
+   */
+  OnHeapValueHolder<V> installed(OnHeapKey<K> key, OnHeapValueHolder<V> oldValue, OnHeapValueHolder<V> newValue) {
+    if (oldValue == newValue) {
+      return newValue;
+    }
+    if (sizeOfEngine != null) {
+      long delta = 0;
+      if (newValue != null) {
+        delta += sizeOf(newValue);
+      }
+      if (oldValue != null) {
+        delta -= sizeOf(oldValue);
+      }
+      byteSize.addAndGet(delta);
+    }
+    if (tinyLfuPolicy != null) {
+      // faults are not tracked: the loaded value gets recorded when it replaces its fault
+      if (newValue != null && !(newValue instanceof Fault)) {
+        tinyLfuPolicy.recordWrite(key, newValue, sizeOfEngine == null ? 1 : sizeOf(newValue));
+      } else if (newValue == null && oldValue != null) {
+        tinyLfuPolicy.recordRemoval(key, oldValue);
+      }
+    }
+    if (expiryIndex != null) {
+      synchronized (expiryIndex) {
+        if (oldValue != null) {
+          unindex(oldValue);
+        }
+        if (newValue != null && !(newValue instanceof Fault)) {
+          index(key, newValue);
+        }
+      }
+    }
+    return newValue;
+  }
+
+  private void index(OnHeapKey<K> key, OnHeapValueHolder<V> value) {
+    long expirationTime = value.expirationTime(OnHeapValueHolder.TIME_UNIT);
+    if (expirationTime != Store.ValueHolder.NO_EXPIRE) {
+      expiryIndex.schedule(key, value, expirationTime);
+    }
+  }
+
+  private void unindex(OnHeapValueHolder<V> value) {
+    expiryIndex.cancel(value);
+  }
+
+  /**
+   * @return the indexed mappings due for expiration, no longer indexed
+   */
+  List<TimerWheel.Node<OnHeapKey<K>, OnHeapValueHolder<V>>> advanceExpiryIndex(long now) {
+    if (expiryIndex == null) {
+      return Collections.emptyList();
+    }
+    synchronized (expiryIndex) {
+      return expiryIndex.advance(now);
+    }
+  }
+
+  void reindex(OnHeapKey<K> key, OnHeapValueHolder<V> value) {
+    synchronized (expiryIndex) {
+      // the mapping may have been removed, or indexed again, since it was found due
+      if (getMapping(key) == value && !expiryIndex.isScheduled(value)) {
+        index(key, value);
+      }
+    }
+  }
+
+  OnHeapValueHolder<V> measure(Object key, OnHeapValueHolder<V> value) {
+    // a fault is only a transient placeholder, the loaded value gets sized when it replaces it
+    if (sizeOfEngine != null && value != null && !(value instanceof Fault)) {
+      ((SizedValueHolder) value).setSize(sizeOfEngine.sizeof(key, value));
+    }
+    return value;
+  }
+
+  /**
+   * @return the size of a value of a store sized in bytes, zero for a fault
+   */
+  private long sizeOf(OnHeapValueHolder<V> value) {
+    return value instanceof SizedValueHolder ? ((SizedValueHolder) value).size() : 0;
+  }
+
+  void recordAccess(K key) {
+    if (tinyLfuPolicy != null) {
+      tinyLfuPolicy.recordAccess(lookupOnlyKey(key));
+    }
+  }
+
+  /**
+   * Asks the Window TinyLFU policy for the mapping to evict.
+   *
+   * @return the victim, or {@code null} if the policy has none or picked a key that is no longer mapped
+   */
+  Map.Entry<K, OnHeapValueHolder<V>> getTinyLfuVictim() {
+    OnHeapKey<K> victimKey = tinyLfuPolicy.selectVictim();
+    if (victimKey == null) {
+      return null;
+    }
+    OnHeapValueHolder<V> victim = getMapping(victimKey);
+    if (victim == null) {
+      tinyLfuPolicy.forget(victimKey);
+      return null;
+    }
+    return new SimpleEntry<K, OnHeapValueHolder<V>>(victimKey.getActualKeyObject(), victim);
+  }
+
+  OnHeapKey<K> lookupOnlyKey(K key) {
+    return new LookupOnlyOnHeapKey<K>(key);
+  }
+}
@@ -22,10 +22,11 @@ import org.ehcache.CacheConfigurationChangeListener;
 import org.ehcache.CacheConfigurationProperty;
 import org.ehcache.config.Eviction;
 import org.ehcache.config.EvictionPrioritizer;
+import org.ehcache.config.EvictionVeto;
 import org.ehcache.config.ResourcePool;
 import org.ehcache.config.ResourcePools;
 import org.ehcache.config.ResourceType;
-import org.ehcache.config.units.EntryUnit;
+import org.ehcache.config.units.MemoryUnit;
 import org.ehcache.events.CacheEvents;
 import org.ehcache.events.StoreEventListener;
 import org.ehcache.exceptions.CacheAccessException;
@@ -39,10 +40,13 @@ import org.ehcache.function.Predicates;
 import org.ehcache.internal.TimeSource;
 import org.ehcache.internal.TimeSourceService;
 import org.ehcache.internal.concurrent.ConcurrentHashMap;
+import org.ehcache.internal.copy.IdentityCopier;
 import org.ehcache.internal.copy.SerializingCopier;
-import org.ehcache.internal.store.heap.holders.CopiedOnHeapKey;
+import org.ehcache.internal.sizeof.ReflectionSizeOfEngine;
+import org.ehcache.internal.sizeof.SizeOfEngine;
+import org.ehcache.internal.store.BinaryValueHolder;
+import org.ehcache.internal.store.InFlightLoads;
 import org.ehcache.internal.store.heap.holders.CopiedOnHeapValueHolder;
-import org.ehcache.internal.store.heap.holders.LookupOnlyOnHeapKey;
 import org.ehcache.internal.store.heap.holders.OnHeapKey;
 import org.ehcache.internal.store.heap.holders.OnHeapValueHolder;
 import org.ehcache.internal.store.heap.holders.SerializedOnHeapValueHolder;
@@ -63,7 +67,7 @@ import org.terracotta.context.annotations.ContextAttribute;
 import org.terracotta.statistics.StatisticsManager;
 import org.terracotta.statistics.observer.OperationObserver;
 
-import java.util.AbstractMap.SimpleEntry;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -75,12 +79,19 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
+import static org.ehcache.spi.ServiceLocator.findSingletonAmongst;
 import static org.terracotta.statistics.StatisticBuilder.operation;
 
 /**
@@ -92,6 +103,7 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
 
   private static final int ATTEMPT_RATIO = 4;
   private static final int EVICTION_RATIO = 2;
+  static final int SHRINK_BATCH_SIZE = 1000;
   static final int SAMPLE_SIZE = 8;
   
   private final MapWrapper<K, V> map;
@@ -101,29 +113,44 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
   private final Copier<V> valueCopier;
 
   private volatile long capacity;
-  private final Predicate<? extends Map.Entry<? super K, ? extends OnHeapValueHolder<? super V>>> evictionVeto;
-  private final Comparator<? extends Map.Entry<? super K, ? extends OnHeapValueHolder<? super V>>> evictionPrioritizer;
+  private final SizeOfEngine sizeOfEngine;
+  private final WindowTinyLfuPolicy<OnHeapKey<K>> tinyLfuPolicy;
+  private final Predicate<Cache.Entry<K, V>> evictionVeto;
+  private final Comparator<Cache.Entry<K, V>> evictionPrioritizer;
+  // racily updated: concurrent evictions only need to start sampling at different positions
+  private final AtomicInteger samplingSeed = new AtomicInteger((int) System.nanoTime() | 1);
   private final Expiry<? super K, ? super V> expiry;
   private final TimeSource timeSource;
   private volatile StoreEventListener<K, V> eventListener = CacheEvents.nullStoreEventListener();
   private volatile InvalidationListener<K, V> invalidationListener;
+  private final InFlightLoads<K, V> loads = new InFlightLoads<K, V>();
 
   private CacheConfigurationChangeListener cacheConfigurationChangeListener = new CacheConfigurationChangeListener() {
     @Override
     public void cacheConfigurationChange(CacheConfigurationChangeEvent event) {
       if(event.getProperty().equals(CacheConfigurationProperty.UPDATESIZE)) {
         ResourcePools updatedPools = (ResourcePools)event.getNewValue();
-        ResourcePools configuredPools = (ResourcePools)event.getOldValue();
-        if(updatedPools.getPoolForResource(ResourceType.Core.HEAP).getSize() !=
-           configuredPools.getPoolForResource(ResourceType.Core.HEAP).getSize()) {
+        // the old value is the pools the cache was configured with, not the current ones: compare against the capacity
+        long updatedCapacity = capacityOf(updatedPools.getPoolForResource(ResourceType.Core.HEAP));
+        if(updatedCapacity != capacity) {
           LOG.info("Setting size: " + updatedPools.getPoolForResource(ResourceType.Core.HEAP).getSize());
-          capacity = updatedPools.getPoolForResource(ResourceType.Core.HEAP).getSize();
+          capacity = updatedCapacity;
+          if (tinyLfuPolicy != null) {
+            tinyLfuPolicy.setMaximum(capacity);
+          }
+          if (isOverCapacity()) {
+            shrink();
+          }
         }
       }
     }
   };
 
   private final OperationObserver<StoreOperationOutcomes.EvictionOutcome> evictionObserver = operation(StoreOperationOutcomes.EvictionOutcome.class).named("eviction").of(this).tag("onheap-store").build();
+  private final OperationObserver<StoreOperationOutcomes.ShrinkOutcome> shrinkObserver = operation(StoreOperationOutcomes.ShrinkOutcome.class).named("shrink").of(this).tag("onheap-store").build();
+  private final AtomicBoolean shrinking = new AtomicBoolean();
+  private volatile Executor shrinkExecutor;
+  private volatile boolean shrinkCancelled;
   private final OperationObserver<StoreOperationOutcomes.ExpirationOutcome> expirationObserver = operation(StoreOperationOutcomes.ExpirationOutcome.class).named("expiration").of(this).tag("onheap-store").build();
   private final OnHeapStoreStatsSettings onHeapStoreStatsSettings;
 
@@ -135,6 +162,28 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
   };
 
   public OnHeapStore(final Configuration<K, V> config, TimeSource timeSource, Copier<K> keyCopier, Copier<V> valueCopier) {
+    this(config, timeSource, keyCopier, valueCopier, sizeOfEngineFor(config, OnHeapStoreServiceConfiguration.DEFAULT_MAX_OBJECT_GRAPH_DEPTH));
+  }
+
+  public OnHeapStore(final Configuration<K, V> config, TimeSource timeSource, Copier<K> keyCopier, Copier<V> valueCopier, SizeOfEngine sizeOfEngine) {
+    this(config, timeSource, keyCopier, valueCopier, sizeOfEngine, false);
+  }
+
+  /**
+   * @param indexExpiry whether mappings are indexed by expiration time, for {@link #expireIndexedMappings()} to
+   *                    remove them once expired
+   */
+  public OnHeapStore(final Configuration<K, V> config, TimeSource timeSource, Copier<K> keyCopier, Copier<V> valueCopier, SizeOfEngine sizeOfEngine, boolean indexExpiry) {
+    this(config, timeSource, keyCopier, valueCopier, sizeOfEngine, indexExpiry, false);
+  }
+
+  /**
+   * @param indexExpiry whether mappings are indexed by expiration time, for {@link #expireIndexedMappings()} to
+   *                    remove them once expired
+   * @param primitiveKeys whether {@code Long} or {@code Integer} keys are mapped as primitives, see
+   *                      {@link OnHeapStoreServiceConfiguration#withPrimitiveKeys()}
+   */
+  public OnHeapStore(final Configuration<K, V> config, TimeSource timeSource, Copier<K> keyCopier, Copier<V> valueCopier, SizeOfEngine sizeOfEngine, boolean indexExpiry, boolean primitiveKeys) {
     if (keyCopier == null) {
       throw new NullPointerException("keyCopier must not be null");
     }
@@ -145,23 +194,43 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
     if (heapPool == null) {
       throw new IllegalArgumentException("OnHeap store must be configured with a resource of type 'heap'");
     }
-    if (!heapPool.getUnit().equals(EntryUnit.ENTRIES)) {
-      throw new IllegalArgumentException("OnHeap store only handles resource unit 'entries'");
+    if (heapPool.getUnit() instanceof MemoryUnit) {
+      if (sizeOfEngine == null) {
+        throw new NullPointerException("sizeOfEngine must not be null when sizing in memory units");
+      }
+      this.sizeOfEngine = sizeOfEngine;
+    } else {
+      this.sizeOfEngine = null;
     }
-    this.capacity = heapPool.getSize();
+    this.capacity = capacityOf(heapPool);
     EvictionPrioritizer<? super K, ? super V> prioritizer = config.getEvictionPrioritizer();
     if(prioritizer == null) {
       prioritizer = Eviction.Prioritizer.LRU;
     }
+    if (prioritizer == Eviction.Prioritizer.TINY_LFU) {
+      this.tinyLfuPolicy = new WindowTinyLfuPolicy<OnHeapKey<K>>(capacity, this.sizeOfEngine != null);
+    } else {
+      this.tinyLfuPolicy = null;
+    }
     this.timeSource = timeSource;
-    this.evictionVeto = wrap(config.getEvictionVeto(), timeSource);
-    this.evictionPrioritizer = wrap(prioritizer, timeSource);
+    this.evictionVeto = veto(config.getEvictionVeto());
+    this.evictionPrioritizer = prioritizer(prioritizer);
     this.keyType = config.getKeyType();
     this.valueType = config.getValueType();
     this.expiry = config.getExpiry();
     this.keyCopier = keyCopier;
     this.valueCopier = valueCopier;
-    this.map = new MapWrapper<K, V>(this.keyCopier);
+    TimerWheel<OnHeapKey<K>, OnHeapValueHolder<V>> expiryIndex = null;
+    if (indexExpiry) {
+      expiryIndex = new TimerWheel<OnHeapKey<K>, OnHeapValueHolder<V>>(timeSource.getTimeMillis());
+    }
+    // keys copied by anything else than an IdentityCopier are left to the KeyCopyMapWrapper, so that their copier
+    // still gets invoked
+    if (primitiveKeys && PrimitiveKeyMapWrapper.supports(keyType) && keyCopier instanceof IdentityCopier) {
+      this.map = new PrimitiveKeyMapWrapper<K, V>(keyType, this.sizeOfEngine, this.tinyLfuPolicy, expiryIndex);
+    } else {
+      this.map = new KeyCopyMapWrapper<K, V>(this.keyCopier, this.sizeOfEngine, this.tinyLfuPolicy, expiryIndex);
+    }
     onHeapStoreStatsSettings = new OnHeapStoreStatsSettings(this);
     StatisticsManager.associate(onHeapStoreStatsSettings).withParent(this);
   }
@@ -173,23 +242,25 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
   }
   
   private OnHeapValueHolder<V> internalGet(final K key, final boolean updateAccess) throws CacheAccessException {
-    return map.computeIfPresent(key, new BiFunction<K, OnHeapValueHolder<V>, OnHeapValueHolder<V>>() {
-      @Override
-      public OnHeapValueHolder<V> apply(K mappedKey, OnHeapValueHolder<V> mappedValue) {
-        final long now = timeSource.getTimeMillis();
-
-        if (mappedValue.isExpired(now, TimeUnit.MILLISECONDS)) {
-          onExpiration(mappedKey, mappedValue);
-          return null;
-        }
-
-        if (updateAccess) {
-          setAccessTimeAndExpiry(key, mappedValue, now);
-        }
+    // Reads do not take the map's bin lock: access metadata lives in volatile/atomic fields of the value holder.
+    // Only an expired mapping goes through a (conditional, hence locked) removal.
+    final OnHeapValueHolder<V> mappedValue = map.get(key);
+    if (mappedValue == null) {
+      return null;
+    }
 
-        return mappedValue;
+    final long now = timeSource.getTimeMillis();
+    if (mappedValue.isExpired(now, TimeUnit.MILLISECONDS)) {
+      if (map.remove(key, mappedValue)) {
+        onExpiration(key, mappedValue);
       }
-    });
+      return null;
+    }
+
+    if (updateAccess) {
+      setAccessTimeAndExpiry(key, mappedValue, now);
+    }
+    return mappedValue;
   }
 
   @Override
@@ -229,6 +300,8 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
     
     if (entryActuallyAdded.get()) {
       enforceCapacity(1);
+    } else {
+      enforceCapacityIfSizedInBytes();
     }
     
     return valuePut;
@@ -335,6 +408,7 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
         }
       }
     });
+    enforceCapacityIfSizedInBytes();
     
     return returnValue.get();
   }
@@ -366,6 +440,7 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
         }
       }
     });
+    enforceCapacityIfSizedInBytes();
     
     return returnValue.get();
   }
@@ -376,13 +451,12 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
   }
 
   private void invalidate() {
-    if(map.keyCopyMap != null) {
-      for(OnHeapKey<K> key : map.keyCopyMap.keySet()) {
-        try {
-          invalidate(key.getActualKeyObject());
-        } catch (CacheAccessException cae) {
-          LOG.warn("Failed to invalidate mapping for key {}", key, cae);
-        }
+    for (java.util.Iterator<Map.Entry<K, OnHeapValueHolder<V>>> it = map.entrySetIterator(); it.hasNext(); ) {
+      K key = it.next().getKey();
+      try {
+        invalidate(key);
+      } catch (CacheAccessException cae) {
+        LOG.warn("Failed to invalidate mapping for key {}", key, cae);
       }
     }
     map.clear();
@@ -488,6 +562,7 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
           }
 
           if (backEnd.replace(key, fault, newValue)) {
+            enforceCapacityIfSizedInBytes();
             return getValue(newValue);
           } else {
             ValueHolder<V> p = getValue(backEnd.remove(key));
@@ -580,12 +655,68 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
     }
   }
 
+  /**
+   * Copied value holder of a store sized in bytes, the only kind carrying its size.
+   */
+  private static class SizedCopiedValueHolder<V> extends CopiedOnHeapValueHolder<V> implements SizedValueHolder {
+
+    private long size;
+
+    SizedCopiedValueHolder(V value, long creationTime, long expirationTime, Copier<V> valueCopier) {
+      super(value, creationTime, expirationTime, valueCopier);
+    }
+
+    SizedCopiedValueHolder(ValueHolder<V> valueHolder, V value, Copier<V> valueCopier, long now, Duration expiration) {
+      super(valueHolder, value, valueCopier, now, expiration);
+    }
+
+    @Override
+    public long size() {
+      return size;
+    }
+
+    @Override
+    public void setSize(long size) {
+      this.size = size;
+    }
+  }
+
+  /**
+   * Serialized value holder of a store sized in bytes, the only kind carrying its size.
+   */
+  private static class SizedSerializedValueHolder<V> extends SerializedOnHeapValueHolder<V> implements SizedValueHolder {
+
+    private long size;
+
+    SizedSerializedValueHolder(V value, long creationTime, long expirationTime, Serializer<V> serializer) {
+      super(value, creationTime, expirationTime, serializer);
+    }
+
+    SizedSerializedValueHolder(ValueHolder<V> valueHolder, V value, Serializer<V> serializer, long now, Duration expiration) {
+      super(valueHolder, value, serializer, now, expiration);
+    }
+
+    SizedSerializedValueHolder(ValueHolder<V> valueHolder, ByteBuffer binaryValue, Serializer<V> serializer, long now, Duration expiration) {
+      super(valueHolder, binaryValue, serializer, now, expiration);
+    }
+
+    @Override
+    public long size() {
+      return size;
+    }
+
+    @Override
+    public void setSize(long size) {
+      this.size = size;
+    }
+  }
+
   /**
    * Place holder used when loading an entry from the authority into this caching tier
    *
    * @param <V> the value type of the caching tier
    */
-  private static class Fault<V> extends OnHeapValueHolder<V> {
+  static class Fault<V> extends OnHeapValueHolder<V> {
 
     private static final int FAULT_ID = -1;
 
@@ -740,7 +871,7 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
           if (mappedValue != null) {
             onExpiration(mappedKey, mappedValue);
           }
-          V computedValue = mappingFunction.apply(mappedKey);
+          V computedValue = loads.load(mappedKey, mappingFunction);
           if (computedValue == null) {
             return null;
           }
@@ -772,7 +903,7 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
   public ValueHolder<V> computeIfPresent(final K key, final BiFunction<? super K, ? super V, ? extends V> remappingFunction, final NullaryFunction<Boolean> replaceEqual) {
     checkKey(key);
 
-    return map.computeIfPresent(key, new BiFunction<K, OnHeapValueHolder<V>, OnHeapValueHolder<V>>() {
+    OnHeapValueHolder<V> computeResult = map.computeIfPresent(key, new BiFunction<K, OnHeapValueHolder<V>, OnHeapValueHolder<V>>() {
       @Override
       public OnHeapValueHolder<V> apply(K mappedKey, OnHeapValueHolder<V> mappedValue) {
         final long now = timeSource.getTimeMillis();
@@ -799,35 +930,63 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
         return newUpdateValueHolder(key, existingValue, computedValue, now, expirationTime);
       }
     });
+    enforceCapacityIfSizedInBytes();
+    return computeResult;
   }
   
   @Override
   public Map<K, ValueHolder<V>> bulkComputeIfAbsent(Set<? extends K> keys, final Function<Iterable<? extends K>, Iterable<? extends Map.Entry<? extends K, ? extends V>>> mappingFunction) throws CacheAccessException {
     Map<K, ValueHolder<V>> result = new HashMap<K, ValueHolder<V>>();
+    Set<K> absentKeys = new LinkedHashSet<K>();
 
-    for (final K key : keys) {
-      final ValueHolder<V> newValue = computeIfAbsent(key, new Function<K, V>() {
-        @Override
-        public V apply(final K k) {
-          final Iterable<K> keySet = Collections.singleton(k);
-          final Iterable<? extends Map.Entry<? extends K, ? extends V>> entries = mappingFunction.apply(keySet);
-          final java.util.Iterator<? extends Map.Entry<? extends K, ? extends V>> iterator = entries.iterator();
-          final Map.Entry<? extends K, ? extends V> next = iterator.next();
-          
-          K computedKey = next.getKey();
-          V computedValue = next.getValue();
+    for (K key : keys) {
+      checkKey(key);
+      ValueHolder<V> present = internalGet(key, true);
+      if (present == null) {
+        absentKeys.add(key);
+      } else {
+        result.put(key, present);
+      }
+    }
+
+    if (absentKeys.isEmpty()) {
+      return result;
+    }
+
+    // The mapping function is invoked once for all the absent keys and outside of any map lock, so it can reach
+    // the loader in a single round trip. A load is registered for each of these keys first, so that a concurrent
+    // computeIfAbsent waits for the batch rather than loading the key again. Keys already being loaded by another
+    // operation are left to it.
+    InFlightLoads<K, V>.Batch batch = loads.register(absentKeys);
+
+    try {
+      if (!batch.keys().isEmpty()) {
+        Map<K, V> computed = new HashMap<K, V>();
+        for (Map.Entry<? extends K, ? extends V> entry : mappingFunction.apply(batch.keys())) {
+          K computedKey = entry.getKey();
           checkKey(computedKey);
-          if (computedValue == null) {
+          computed.put(computedKey, entry.getValue());
+        }
+        batch.complete(computed);
+      }
+
+      for (final K key : absentKeys) {
+        // resolves to the batch's load, or to the one of the operation that was already loading the key
+        ValueHolder<V> newValue = computeIfAbsent(key, new Function<K, V>() {
+          @Override
+          public V apply(K k) {
+            for (Map.Entry<? extends K, ? extends V> entry : mappingFunction.apply(Collections.singleton(k))) {
+              return entry.getValue();
+            }
             return null;
           }
-          
-          checkValue(computedValue);
-          return computedValue;
-        }
-      });
-      result.put(key, newValue);
+        });
+        result.put(key, newValue);
+      }
+      return result;
+    } finally {
+      batch.release();
     }
-    return result;
   }
 
   @Override
@@ -887,6 +1046,7 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
   
   private void setAccessTimeAndExpiry(K key, OnHeapValueHolder<V> valueHolder, long now) {
     valueHolder.accessed(now, expiry.getExpiryForAccess(key, valueHolder.value()));
+    map.recordAccess(key);
   }
 
   private OnHeapValueHolder<V> newUpdateValueHolder(K key, OnHeapValueHolder<V> oldValue, V newValue, long now) {
@@ -939,8 +1099,26 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
     V realValue = valueHolder.value();
     Duration expiration = expiry.getExpiryForAccess(key, realValue);
     if(valueCopier instanceof SerializingCopier) {
-      return new SerializedOnHeapValueHolder<V>(valueHolder, realValue, ((SerializingCopier)valueCopier).getSerializer(), now, expiration);
+      Serializer<V> serializer = ((SerializingCopier<V>) valueCopier).getSerializer();
+      if (valueHolder instanceof BinaryValueHolder) {
+        @SuppressWarnings("unchecked")
+        BinaryValueHolder<V> binaryValueHolder = (BinaryValueHolder<V>) valueHolder;
+        ByteBuffer binaryValue = binaryValueHolder.getBinaryValue(serializer);
+        if (binaryValue != null) {
+          if (sizeOfEngine != null) {
+            return new SizedSerializedValueHolder<V>(valueHolder, binaryValue, serializer, now, expiration);
+          }
+          return new SerializedOnHeapValueHolder<V>(valueHolder, binaryValue, serializer, now, expiration);
+        }
+      }
+      if (sizeOfEngine != null) {
+        return new SizedSerializedValueHolder<V>(valueHolder, realValue, serializer, now, expiration);
+      }
+      return new SerializedOnHeapValueHolder<V>(valueHolder, realValue, serializer, now, expiration);
     } else {
+      if (sizeOfEngine != null) {
+        return new SizedCopiedValueHolder<V>(valueHolder, realValue, valueCopier, now, expiration);
+      }
       return new CopiedOnHeapValueHolder<V>(valueHolder, realValue, valueCopier, now, expiration);
     }
   }
@@ -954,10 +1132,16 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
   }
 
   private OnHeapValueHolder<V> makeSerializedValue(V value, long creationTime, long expirationTime, Serializer<V> valueSerializer) {
+    if (sizeOfEngine != null) {
+      return new SizedSerializedValueHolder<V>(value, creationTime, expirationTime, valueSerializer);
+    }
     return new SerializedOnHeapValueHolder<V>(value, creationTime, expirationTime, valueSerializer);
   }
 
   private OnHeapValueHolder<V> makeCopiedValue(V value, long creationTime, long expirationTime, Copier<V> valueCopier) {
+    if (sizeOfEngine != null) {
+      return new SizedCopiedValueHolder<V>(value, creationTime, expirationTime, valueCopier);
+    }
     return new CopiedOnHeapValueHolder<V>(value, creationTime, expirationTime, valueCopier);
   }
 
@@ -976,6 +1160,15 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
   }
   
   private void enforceCapacity(int delta) {
+    if (sizeOfEngine != null) {
+      // a single mapping can be worth many others in bytes: evict until back under capacity
+      for (int failures = 0; failures < ATTEMPT_RATIO * delta && capacity < map.byteSize(); ) {
+        if (!evict()) {
+          failures++;
+        }
+      }
+      return;
+    }
     for (int attempts = 0, evicted = 0; attempts < ATTEMPT_RATIO * delta && evicted < EVICTION_RATIO * delta
             && capacity < map.size(); attempts++) {
       if (evict()) {
@@ -984,39 +1177,208 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
     }
   }
 
+  private boolean isOverCapacity() {
+    if (sizeOfEngine != null) {
+      return capacity < map.byteSize();
+    }
+    return capacity < map.size();
+  }
+
+  /**
+   * Sets the executor on which the store shrinks after its capacity got reduced. Without one, the thread updating the
+   * capacity does the shrinking.
+   */
+  void setShrinkExecutor(Executor shrinkExecutor) {
+    this.shrinkExecutor = shrinkExecutor;
+  }
+
+  /**
+   * Stops any running shrink at its next eviction, and prevents further ones. Used when the store gets released.
+   */
+  void cancelShrink() {
+    shrinkCancelled = true;
+  }
+
+  /**
+   * Evicts down to the capacity in batches of {@link #SHRINK_BATCH_SIZE} mappings, unless a shrink is already running:
+   * it reads the capacity again before each eviction.
+   */
+  private void shrink() {
+    if (shrinkCancelled || !shrinking.compareAndSet(false, true)) {
+      return;
+    }
+    shrinkObserver.begin();
+    final Executor executor = shrinkExecutor;
+    if (executor != null) {
+      try {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            if (shrinkBatch()) {
+              try {
+                executor.execute(this);
+              } catch (RejectedExecutionException e) {
+                LOG.debug("Finishing shrink on the current thread", e);
+                while (shrinkBatch()) {
+                  // keep going
+                }
+              }
+            }
+          }
+        });
+        return;
+      } catch (RejectedExecutionException e) {
+        LOG.debug("Shrinking on the calling thread", e);
+      }
+    }
+    while (shrinkBatch()) {
+      // keep going
+    }
+  }
+
+  /**
+   * Evicts a batch of mappings towards the capacity.
+   * @return true if more batches are needed, false once the shrink completed or gave up
+   */
+  boolean shrinkBatch() {
+    int failures = 0;
+    for (int evicted = 0; evicted < SHRINK_BATCH_SIZE; ) {
+      if (shrinkCancelled) {
+        shrinkObserver.end(StoreOperationOutcomes.ShrinkOutcome.FAILURE);
+        shrinking.set(false);
+        return false;
+      }
+      if (!isOverCapacity()) {
+        shrinkObserver.end(StoreOperationOutcomes.ShrinkOutcome.SUCCESS);
+        shrinking.set(false);
+        // a capacity update racing with the check above left its shrink to this one
+        if (isOverCapacity()) {
+          shrink();
+        }
+        return false;
+      }
+      if (evict()) {
+        evicted++;
+      } else if (++failures > ATTEMPT_RATIO * SHRINK_BATCH_SIZE) {
+        LOG.warn("Giving up shrinking to capacity {}, only vetoed or concurrently removed mappings were found", capacity);
+        shrinkObserver.end(StoreOperationOutcomes.ShrinkOutcome.FAILURE);
+        shrinking.set(false);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Updates never change the mapping count but can grow a store sized in bytes.
+   */
+  private void enforceCapacityIfSizedInBytes() {
+    if (sizeOfEngine != null) {
+      enforceCapacity(1);
+    }
+  }
+
+  /**
+   * @return an engine sizing to the given depth if the heap is sized in bytes, {@code null} otherwise
+   */
+  private static SizeOfEngine sizeOfEngineFor(Configuration<?, ?> config, int maxObjectGraphDepth) {
+    ResourcePool heapPool = config.getResourcePools().getPoolForResource(ResourceType.Core.HEAP);
+    if (heapPool != null && heapPool.getUnit() instanceof MemoryUnit) {
+      return new ReflectionSizeOfEngine(maxObjectGraphDepth);
+    }
+    return null;
+  }
+
+  private static long capacityOf(ResourcePool heapPool) {
+    if (heapPool.getUnit() instanceof MemoryUnit) {
+      return ((MemoryUnit) heapPool.getUnit()).toBytes(heapPool.getSize());
+    }
+    return heapPool.getSize();
+  }
+
   /**
    * Try to evict a mapping.
    * @return true if a mapping was evicted, false otherwise.
    */
   boolean evict() {
     evictionObserver.begin();
-    final Random random = new Random();
+    if (tinyLfuPolicy != null) {
+      Map.Entry<K, OnHeapValueHolder<V>> victim = map.getTinyLfuVictim();
+      if (victim == null && tinyLfuPolicy.size() > 0) {
+        // the policy picked an unmapped key, let the caller try again
+        evictionObserver.end(StoreOperationOutcomes.EvictionOutcome.FAILURE);
+        return false;
+      }
+      // a vetoed victim is left to the sampling below
+      if (victim != null && !evictionVeto.test(CacheStoreHelper.cacheEntry(victim.getKey(), victim.getValue(), timeSource))) {
+        return evict(victim.getKey(), victim.getValue());
+      }
+    }
+    final int seed = nextSamplingSeed();
 
-    @SuppressWarnings("unchecked")
-    Set<Map.Entry<K, OnHeapValueHolder<V>>> values = map.getRandomValues(random, SAMPLE_SIZE, (Predicate<Map.Entry<K, OnHeapValueHolder<V>>>)evictionVeto);
-   
-    if (values.isEmpty()) {
+    SampledEntry<K, V> candidate = map.newSampledEntry(timeSource);
+    SampledEntry<K, V> best = map.newSampledEntry(timeSource);
+    EvictionSampler<K, V> sampler = new EvictionSampler<K, V>(evictionVeto, evictionPrioritizer, candidate, best);
+    map.sample(seed, sampler);
+
+    if (sampler.getBest() == null) {
       // 2nd attempt without any veto
-      values = map.getRandomValues(random, SAMPLE_SIZE, Predicates.<Map.Entry<K, OnHeapValueHolder<V>>>none());
+      sampler = new EvictionSampler<K, V>(Predicates.<Cache.Entry<K, V>>none(), evictionPrioritizer, candidate, best);
+      map.sample(seed, sampler);
     }
 
-    if (values.isEmpty()) {
+    SampledEntry<K, V> evict = sampler.getBest();
+    if (evict == null) {
       return false;
     } else {
-      @SuppressWarnings("unchecked")
-      Map.Entry<K, OnHeapValueHolder<V>> evict = Collections.max(values, (Comparator<? super Map.Entry<K, OnHeapValueHolder<V>>>)evictionPrioritizer);
-      
-      if (map.remove(evict.getKey(), evict.getValue())) {
-        evictionObserver.end(StoreOperationOutcomes.EvictionOutcome.SUCCESS);
-        eventListener.onEviction(evict.getKey(), evict.getValue());
-        return true;
+      return evict(evict.getKey(), evict.getValueHolder());
+    }
+  }
+
+  private int nextSamplingSeed() {
+    // xorshift
+    while (true) {
+      int current = samplingSeed.get();
+      int seed = current;
+      seed ^= seed << 13;
+      seed ^= seed >>> 17;
+      seed ^= seed << 5;
+      if (samplingSeed.compareAndSet(current, seed)) {
+        return seed;
+      }
+    }
+  }
+
+  /**
+   * Removes the mappings the expiry index found expired since the last call, firing their expiration events.
+   * A no-op unless this store indexes expiry.
+   */
+  void expireIndexedMappings() {
+    final long now = timeSource.getTimeMillis();
+    for (TimerWheel.Node<OnHeapKey<K>, OnHeapValueHolder<V>> node : map.advanceExpiryIndex(now)) {
+      OnHeapValueHolder<V> value = node.getValue();
+      if (value.isExpired(now, TimeUnit.MILLISECONDS)) {
+        if (map.removeMapping(node.getKey(), value)) {
+          onExpiration(node.getKey().getActualKeyObject(), value);
+        }
       } else {
-        evictionObserver.end(StoreOperationOutcomes.EvictionOutcome.FAILURE);
-        return false;
+        // accessed since it was indexed, with a longer time to idle
+        map.reindex(node.getKey(), value);
       }
     }
   }
 
+  private boolean evict(K key, OnHeapValueHolder<V> value) {
+    if (map.remove(key, value)) {
+      evictionObserver.end(StoreOperationOutcomes.EvictionOutcome.SUCCESS);
+      eventListener.onEviction(key, value);
+      return true;
+    } else {
+      evictionObserver.end(StoreOperationOutcomes.EvictionOutcome.FAILURE);
+      return false;
+    }
+  }
+
   private void checkKey(K keyObject) {
     if (keyObject == null) {
       throw new NullPointerException();
@@ -1050,6 +1412,8 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
     
     private volatile ServiceProvider serviceProvider;
     private final Set<Store<?, ?>> createdStores = Collections.newSetFromMap(new ConcurrentWeakIdentityHashMap<Store<?, ?>, Boolean>());
+    private final Map<Store<?, ?>, ScheduledFuture<?>> expiryTasks = new ConcurrentHashMap<Store<?, ?>, ScheduledFuture<?>>();
+    private ScheduledExecutorService maintenanceExecutor;
 
     @Override
     public <K, V> OnHeapStore<K, V> createStore(final Configuration<K, V> storeConfig, final ServiceConfiguration<?>... serviceConfigs) {
@@ -1057,21 +1421,70 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
       CopyProvider copyProvider = serviceProvider.getService(CopyProvider.class);
       Copier<K> keyCopier  = copyProvider.createKeyCopier(storeConfig.getKeyType(), storeConfig.getKeySerializer(), serviceConfigs);
       Copier<V> valueCopier = copyProvider.createValueCopier(storeConfig.getValueType(), storeConfig.getValueSerializer(), serviceConfigs);
-      OnHeapStore<K, V> onHeapStore = new OnHeapStore<K, V>(storeConfig, timeSource, keyCopier, valueCopier);
+      OnHeapStoreServiceConfiguration onHeapStoreConfig = findSingletonAmongst(OnHeapStoreServiceConfiguration.class, (Object[]) serviceConfigs);
+      if (onHeapStoreConfig == null) {
+        onHeapStoreConfig = new OnHeapStoreServiceConfiguration();
+      }
+      SizeOfEngine sizeOfEngine = sizeOfEngineFor(storeConfig, onHeapStoreConfig.getMaxObjectGraphDepth());
+      final OnHeapStore<K, V> onHeapStore = new OnHeapStore<K, V>(storeConfig, timeSource, keyCopier, valueCopier, sizeOfEngine,
+          onHeapStoreConfig.isExpiryIndexed(), onHeapStoreConfig.hasPrimitiveKeys());
       createdStores.add(onHeapStore);
+      onHeapStore.setShrinkExecutor(new Executor() {
+        @Override
+        public void execute(Runnable command) {
+          getMaintenanceExecutor().execute(command);
+        }
+      });
+      if (onHeapStoreConfig.isExpiryIndexed()) {
+        expiryTasks.put(onHeapStore, getMaintenanceExecutor().scheduleWithFixedDelay(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              onHeapStore.expireIndexedMappings();
+            } catch (RuntimeException e) {
+              LOG.warn("Failed to remove expired mappings", e);
+            }
+          }
+        }, onHeapStoreConfig.getExpiryInterval(), onHeapStoreConfig.getExpiryInterval(), onHeapStoreConfig.getExpiryIntervalUnit()));
+      }
       return onHeapStore;
     }
 
+    /**
+     * @throws RejectedExecutionException if the provider is stopped, rather than starting a thread nothing would stop
+     */
+    private synchronized ScheduledExecutorService getMaintenanceExecutor() {
+      if (serviceProvider == null) {
+        throw new RejectedExecutionException("OnHeapStore.Provider is stopped");
+      }
+      if (maintenanceExecutor == null) {
+        maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "OnHeapStore Maintenance Thread");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+      }
+      return maintenanceExecutor;
+    }
+
     @Override
     public void releaseStore(Store<?, ?> resource) {
       if (!createdStores.remove(resource)) {
         throw new IllegalArgumentException("Given store is not managed by this provider : " + resource);
       }
+      ScheduledFuture<?> expiryTask = expiryTasks.remove(resource);
+      if (expiryTask != null) {
+        expiryTask.cancel(false);
+      }
       final OnHeapStore onHeapStore = (OnHeapStore)resource;
       close(onHeapStore);
     }
 
     static void close(final OnHeapStore onHeapStore) {
+      onHeapStore.cancelShrink();
       onHeapStore.map.clear();
       onHeapStore.disableStoreEventNotifications();
     }
@@ -1092,6 +1505,13 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
     public void stop() {
       this.serviceProvider = null;
       createdStores.clear();
+      expiryTasks.clear();
+      synchronized (this) {
+        if (maintenanceExecutor != null) {
+          maintenanceExecutor.shutdownNow();
+          maintenanceExecutor = null;
+        }
+      }
     }
 
     @Override
@@ -1111,137 +1531,106 @@ public class OnHeapStore<K, V> implements Store<K,V>, CachingTier<K, V> {
     }
   }
 
-  private static <K, V> Predicate<Map.Entry<K, OnHeapValueHolder<V>>> wrap(final Predicate<Cache.Entry<K, V>> predicate, final TimeSource timeSource) {
-    if (predicate == null) {
+  @SuppressWarnings("unchecked")
+  private static <K, V> Predicate<Cache.Entry<K, V>> veto(final EvictionVeto<? super K, ? super V> veto) {
+    if (veto == null) {
       return Predicates.none();
     } else {
-      return new Predicate<Map.Entry<K, OnHeapValueHolder<V>>>() {
-        @Override
-        public boolean test(final Map.Entry<K, OnHeapValueHolder<V>> argument) {
-          return predicate.test(wrap(argument, timeSource));
-        }
-      };
+      return (Predicate) veto;
     }
   }
 
-  private static <K, V> Comparator<Map.Entry<K, OnHeapValueHolder<V>>> wrap(final Comparator<Cache.Entry<K, V>> comparator, final TimeSource timeSource) {
-    return new Comparator<Map.Entry<K, OnHeapValueHolder<V>>>() {
-      @Override
-      public int compare(Map.Entry<K, OnHeapValueHolder<V>> t, Map.Entry<K, OnHeapValueHolder<V>> u) {
-        return comparator.compare(wrap(t, timeSource), wrap(u, timeSource));
-      }
-    };
+  @SuppressWarnings("unchecked")
+  private static <K, V> Comparator<Cache.Entry<K, V>> prioritizer(final EvictionPrioritizer<? super K, ? super V> prioritizer) {
+    return (Comparator) prioritizer;
   }
 
-  private static <K, V> Cache.Entry<K, V> wrap(final Map.Entry<K, OnHeapValueHolder<V>> value, final TimeSource timeSource) {
-    return CacheStoreHelper.cacheEntry(value.getKey(), value.getValue(), timeSource);
-  }
+  /**
+   * A reusable {@link Cache.Entry} view over a sampled mapping, only valid while being sampled.
+   */
+  static abstract class SampledEntry<K, V> implements Cache.Entry<K, V> {
 
-  // The idea of this wrapper is to let all the other code deal in terms of <K> and hide
-  // the potentially different key type of the underlying CHM 
-  private static class MapWrapper<K, V> {
+    private final TimeSource timeSource;
+    private OnHeapValueHolder<V> valueHolder;
 
-    private final ConcurrentHashMap<OnHeapKey<K>, OnHeapValueHolder<V>> keyCopyMap;
-    private final Copier<K> keyCopier;
-  
-    MapWrapper(Copier<K> keyCopier) {
-      this.keyCopier = keyCopier;
-      keyCopyMap = new ConcurrentHashMap<OnHeapKey<K>, OnHeapValueHolder<V>>();
-    }
-    
-    boolean remove(K key, OnHeapValueHolder<V> value) {
-      return keyCopyMap.remove(lookupOnlyKey(key), value);
+    SampledEntry(TimeSource timeSource) {
+      this.timeSource = timeSource;
     }
 
-    Set<Map.Entry<K, OnHeapValueHolder<V>>> getRandomValues(Random random, int size,
-         final Predicate<Map.Entry<K, OnHeapValueHolder<V>>> veto) {
-
-       Set<Map.Entry<OnHeapKey<K>, OnHeapValueHolder<V>>> values = keyCopyMap.getRandomValues(random, size, new Predicate<Map.Entry<OnHeapKey<K>, OnHeapValueHolder<V>>>() {
-         @Override
-         public boolean test(Map.Entry<OnHeapKey<K>, OnHeapValueHolder<V>> entry) {
-           return veto.test(new SimpleEntry<K, OnHeapValueHolder<V>>(entry.getKey().getActualKeyObject(), entry.getValue()));
-         }
-       });
-
-       Set<Map.Entry<K, OnHeapValueHolder<V>>> rv = new LinkedHashSet<Map.Entry<K,OnHeapValueHolder<V>>>(values.size());
-       for (Entry<OnHeapKey<K>, OnHeapValueHolder<V>> entry : values) {
-         rv.add(new SimpleEntry<K, OnHeapValueHolder<V>>(entry.getKey().getActualKeyObject(), entry.getValue()));
-       }
-       return rv;
+    OnHeapValueHolder<V> getValueHolder() {
+      return valueHolder;
     }
 
-    int size() {
-      return keyCopyMap.size();
+    void setValueHolder(OnHeapValueHolder<V> valueHolder) {
+      this.valueHolder = valueHolder;
     }
 
-    java.util.Iterator<Map.Entry<K, OnHeapValueHolder<V>>> entrySetIterator() {
-
-      final java.util.Iterator<Map.Entry<OnHeapKey<K>, OnHeapValueHolder<V>>> iter = keyCopyMap.entrySet().iterator();
-      return new java.util.Iterator<Map.Entry<K, OnHeapValueHolder<V>>>() {
-        @Override
-        public boolean hasNext() {
-          return iter.hasNext();
-        }
-
-        @Override
-        public Map.Entry<K, OnHeapValueHolder<V>> next() {
-          Map.Entry<OnHeapKey<K>, OnHeapValueHolder<V>> entry = iter.next();
-          return new SimpleEntry<K, OnHeapValueHolder<V>>(entry.getKey().getActualKeyObject(), entry.getValue());
-        }
-
-        @Override
-        public void remove() {
-          iter.remove();
-        }
-      };
+    @Override
+    public V getValue() {
+      return valueHolder.value();
     }
 
-    OnHeapValueHolder<V> compute(final K key, final BiFunction<K, OnHeapValueHolder<V>, OnHeapValueHolder<V>> computeFunction) {
-
-      return keyCopyMap.compute(makeKey(key), new BiFunction<OnHeapKey<K>, OnHeapValueHolder<V>, OnHeapValueHolder<V>>() {
-        @Override
-        public OnHeapValueHolder<V> apply(OnHeapKey<K> mappedKey, OnHeapValueHolder<V> mappedValue) {
-          return computeFunction.apply(key, mappedValue);
-        }
-      });
+    @Override
+    public long getCreationTime(TimeUnit unit) {
+      return valueHolder.creationTime(unit);
     }
 
-    void clear() {
-      keyCopyMap.clear();
+    @Override
+    public long getLastAccessTime(TimeUnit unit) {
+      return valueHolder.lastAccessTime(unit);
     }
 
-    OnHeapValueHolder<V> remove(K key) {
-      return keyCopyMap.remove(lookupOnlyKey(key));
+    @Override
+    public float getHitRate(TimeUnit unit) {
+      return valueHolder.hitRate(timeSource.getTimeMillis(), unit);
     }
+  }
 
-    OnHeapValueHolder<V> computeIfPresent(final K key, final BiFunction<K, OnHeapValueHolder<V>, OnHeapValueHolder<V>> computeFunction) {
-
-      return keyCopyMap.computeIfPresent(lookupOnlyKey(key), new BiFunction<OnHeapKey<K>, OnHeapValueHolder<V>, OnHeapValueHolder<V>>() {
-        @Override
-        public OnHeapValueHolder<V> apply(OnHeapKey<K> mappedKey, OnHeapValueHolder<V> mappedValue) {
-          return computeFunction.apply(key, mappedValue);
+  /**
+   * Samples up to {@link #SAMPLE_SIZE} mappings not vetoed, keeping the one to evict first. It only ever uses the
+   * two entries it was given: the candidate, filled in by the map before each {@link #offer()}, and the best so far.
+   */
+  static final class EvictionSampler<K, V> {
+
+    private final Predicate<Cache.Entry<K, V>> veto;
+    private final Comparator<Cache.Entry<K, V>> prioritizer;
+    private SampledEntry<K, V> candidate;
+    private SampledEntry<K, V> best;
+    private int sampled;
+
+    EvictionSampler(Predicate<Cache.Entry<K, V>> veto, Comparator<Cache.Entry<K, V>> prioritizer,
+                    SampledEntry<K, V> candidate, SampledEntry<K, V> best) {
+      this.veto = veto;
+      this.prioritizer = prioritizer;
+      this.candidate = candidate;
+      this.best = best;
+    }
+
+    SampledEntry<K, V> getCandidate() {
+      return candidate;
+    }
+
+    /**
+     * @return the entry to evict, {@code null} if none was sampled
+     */
+    SampledEntry<K, V> getBest() {
+      return sampled == 0 ? null : best;
+    }
+
+    /**
+     * Samples the candidate.
+     *
+     * @return {@code true} once enough mappings were sampled
+     */
+    boolean offer() {
+      if (!veto.test(candidate)) {
+        if (sampled++ == 0 || prioritizer.compare(candidate, best) > 0) {
+          SampledEntry<K, V> previous = best;
+          best = candidate;
+          candidate = previous;
         }
-      });
-    }
-    
-    private OnHeapKey<K> makeKey(K key) {
-      return new CopiedOnHeapKey<K>(key, keyCopier);
-    }
-
-    private OnHeapKey<K> lookupOnlyKey(K key) {
-      return new LookupOnlyOnHeapKey<K>(key);
-    }
-
-    public OnHeapValueHolder<V> get(K key) {
-      return keyCopyMap.get(lookupOnlyKey(key));
-    }
-
-    public OnHeapValueHolder<V> putIfAbsent(K key, OnHeapValueHolder<V> valueHolder) {
-      return keyCopyMap.putIfAbsent(makeKey(key), valueHolder);
-    }
-
-    public boolean replace(K key, OnHeapValueHolder<V> oldValue, OnHeapValueHolder<V> newValue) {
-      return keyCopyMap.replace(lookupOnlyKey(key), oldValue, newValue);
+      }
+      return sampled >= SAMPLE_SIZE;
     }
   }
 
@@ -0,0 +1,125 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.store.heap;
+
+import org.ehcache.spi.service.ServiceConfiguration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configures how an {@link OnHeapStore} sized in memory units measures its mappings, whether expired mappings
+ * are proactively removed, and whether {@code Long} or {@code Integer} keys are mapped as primitives.
+ */
+public class OnHeapStoreServiceConfiguration implements ServiceConfiguration<OnHeapStore.Provider> {
+
+  public static final int DEFAULT_MAX_OBJECT_GRAPH_DEPTH = 1000;
+
+  private final int maxObjectGraphDepth;
+  private final long expiryInterval;
+  private final TimeUnit expiryIntervalUnit;
+  private final boolean primitiveKeys;
+
+  public OnHeapStoreServiceConfiguration() {
+    this(DEFAULT_MAX_OBJECT_GRAPH_DEPTH);
+  }
+
+  /**
+   * @param maxObjectGraphDepth how deep the object graph of a mapping is walked when sizing it
+   */
+  public OnHeapStoreServiceConfiguration(int maxObjectGraphDepth) {
+    if (maxObjectGraphDepth <= 0) {
+      throw new IllegalArgumentException("Max object graph depth must be positive: " + maxObjectGraphDepth);
+    }
+    this.maxObjectGraphDepth = maxObjectGraphDepth;
+    this.expiryInterval = 0;
+    this.expiryIntervalUnit = null;
+    this.primitiveKeys = false;
+  }
+
+  /**
+   * @param maxObjectGraphDepth how deep the object graph of a mapping is walked when sizing it
+   * @param expiryInterval the period at which a background thread removes expired mappings, which are then indexed
+   *                       by expiration time
+   * @param unit the unit of {@code expiryInterval}
+   */
+  public OnHeapStoreServiceConfiguration(int maxObjectGraphDepth, long expiryInterval, TimeUnit unit) {
+    if (maxObjectGraphDepth <= 0) {
+      throw new IllegalArgumentException("Max object graph depth must be positive: " + maxObjectGraphDepth);
+    }
+    if (expiryInterval <= 0) {
+      throw new IllegalArgumentException("Expiry interval must be positive: " + expiryInterval);
+    }
+    if (unit == null) {
+      throw new NullPointerException("Expiry interval unit must not be null");
+    }
+    this.maxObjectGraphDepth = maxObjectGraphDepth;
+    this.expiryInterval = expiryInterval;
+    this.expiryIntervalUnit = unit;
+    this.primitiveKeys = false;
+  }
+
+  private OnHeapStoreServiceConfiguration(OnHeapStoreServiceConfiguration configuration, boolean primitiveKeys) {
+    this.maxObjectGraphDepth = configuration.maxObjectGraphDepth;
+    this.expiryInterval = configuration.expiryInterval;
+    this.expiryIntervalUnit = configuration.expiryIntervalUnit;
+    this.primitiveKeys = primitiveKeys;
+  }
+
+  /**
+   * Returns a copy of this configuration mapping {@code Long} or {@code Integer} keys, when not copied, as primitives
+   * so that a mapping costs no key object. Writes to such a store are then serialized over a fixed number of
+   * segments, with compute functions, and so cache loaders and writers, invoked under the segment's lock: a slow
+   * function holds up writes to all keys of its segment.
+   *
+   * @return a copy of this configuration with primitive keys enabled
+   */
+  public OnHeapStoreServiceConfiguration withPrimitiveKeys() {
+    return new OnHeapStoreServiceConfiguration(this, true);
+  }
+
+  public int getMaxObjectGraphDepth() {
+    return maxObjectGraphDepth;
+  }
+
+  /**
+   * @return whether expired mappings are proactively removed
+   */
+  public boolean isExpiryIndexed() {
+    return expiryIntervalUnit != null;
+  }
+
+  /**
+   * @return whether {@code Long} or {@code Integer} keys are mapped as primitives
+   */
+  public boolean hasPrimitiveKeys() {
+    return primitiveKeys;
+  }
+
+  public long getExpiryInterval() {
+    return expiryInterval;
+  }
+
+  public TimeUnit getExpiryIntervalUnit() {
+    return expiryIntervalUnit;
+  }
+
+  @Override
+  public Class<OnHeapStore.Provider> getServiceType() {
+    return OnHeapStore.Provider.class;
+  }
+}
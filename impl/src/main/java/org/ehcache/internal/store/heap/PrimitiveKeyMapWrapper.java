@@ -0,0 +1,246 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store.heap;
+
+import org.ehcache.function.BiFunction;
+import org.ehcache.function.Function;
+import org.ehcache.internal.TimeSource;
+import org.ehcache.internal.sizeof.SizeOfEngine;
+import org.ehcache.internal.store.heap.OnHeapStore.EvictionSampler;
+import org.ehcache.internal.store.heap.OnHeapStore.SampledEntry;
+import org.ehcache.internal.store.heap.holders.OnHeapKey;
+import org.ehcache.internal.store.heap.holders.OnHeapValueHolder;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Maps {@code Long} or {@code Integer} keys as primitives in a {@link LongKeyedConcurrentMap}, so that a mapping
+ * costs no other object than its value holder.
+ */
+class PrimitiveKeyMapWrapper<K, V> extends MapWrapper<K, V> {
+
+  private final LongKeyedConcurrentMap<OnHeapValueHolder<V>> primitiveKeyMap = new LongKeyedConcurrentMap<OnHeapValueHolder<V>>();
+  private final boolean integerKeys;
+
+  PrimitiveKeyMapWrapper(Class<K> keyType, SizeOfEngine sizeOfEngine, WindowTinyLfuPolicy<OnHeapKey<K>> tinyLfuPolicy,
+                         TimerWheel<OnHeapKey<K>, OnHeapValueHolder<V>> expiryIndex) {
+    super(sizeOfEngine, tinyLfuPolicy, expiryIndex);
+    if (keyType == Integer.class) {
+      this.integerKeys = true;
+    } else if (keyType == Long.class) {
+      this.integerKeys = false;
+    } else {
+      throw new IllegalArgumentException("Unsupported key type : " + keyType);
+    }
+  }
+
+  static boolean supports(Class<?> keyType) {
+    return keyType == Long.class || keyType == Integer.class;
+  }
+
+  private static long toPrimitive(Object key) {
+    return ((Number) key).longValue();
+  }
+
+  @SuppressWarnings("unchecked")
+  private K fromPrimitive(long key) {
+    if (integerKeys) {
+      return (K) Integer.valueOf((int) key);
+    } else {
+      return (K) Long.valueOf(key);
+    }
+  }
+
+  /**
+   * @return the key for the policy and the expiry index to track, {@code null} if nothing tracks keys
+   */
+  private OnHeapKey<K> trackedKey(K key) {
+    return tinyLfuPolicy == null && expiryIndex == null ? null : lookupOnlyKey(key);
+  }
+
+  @Override
+  OnHeapValueHolder<V> get(K key) {
+    return primitiveKeyMap.get(toPrimitive(key));
+  }
+
+  @Override
+  OnHeapValueHolder<V> putIfAbsent(K key, OnHeapValueHolder<V> valueHolder) {
+    // the boxed key is measured as a stand-in for the key's slot in the table
+    OnHeapValueHolder<V> previous = primitiveKeyMap.putIfAbsent(toPrimitive(key), measure(key, valueHolder));
+    if (previous == null) {
+      installed(trackedKey(key), null, valueHolder);
+    }
+    return previous;
+  }
+
+  @Override
+  boolean replace(K key, OnHeapValueHolder<V> oldValue, OnHeapValueHolder<V> newValue) {
+    if (primitiveKeyMap.replace(toPrimitive(key), oldValue, measure(key, newValue))) {
+      installed(trackedKey(key), oldValue, newValue);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  boolean remove(K key, OnHeapValueHolder<V> value) {
+    if (primitiveKeyMap.remove(toPrimitive(key), value)) {
+      installed(trackedKey(key), value, null);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  OnHeapValueHolder<V> remove(K key) {
+    OnHeapValueHolder<V> removed = primitiveKeyMap.remove(toPrimitive(key));
+    installed(trackedKey(key), removed, null);
+    return removed;
+  }
+
+  @Override
+  OnHeapValueHolder<V> compute(K key, BiFunction<K, OnHeapValueHolder<V>, OnHeapValueHolder<V>> computeFunction) {
+    return primitiveKeyMap.compute(toPrimitive(key), remapping(key, computeFunction));
+  }
+
+  @Override
+  OnHeapValueHolder<V> computeIfPresent(K key, BiFunction<K, OnHeapValueHolder<V>, OnHeapValueHolder<V>> computeFunction) {
+    return primitiveKeyMap.computeIfPresent(toPrimitive(key), remapping(key, computeFunction));
+  }
+
+  private Function<OnHeapValueHolder<V>, OnHeapValueHolder<V>> remapping(final K key, final BiFunction<K, OnHeapValueHolder<V>, OnHeapValueHolder<V>> computeFunction) {
+    return new Function<OnHeapValueHolder<V>, OnHeapValueHolder<V>>() {
+      @Override
+      public OnHeapValueHolder<V> apply(OnHeapValueHolder<V> mappedValue) {
+        OnHeapValueHolder<V> newValue = computeFunction.apply(key, mappedValue);
+        if (newValue != mappedValue) {
+          measure(key, newValue);
+        }
+        return installed(trackedKey(key), mappedValue, newValue);
+      }
+    };
+  }
+
+  @Override
+  void clear() {
+    if (!isTracking()) {
+      primitiveKeyMap.clear();
+    } else {
+      LongKeyedConcurrentMap<OnHeapValueHolder<V>>.Cursor cursor = primitiveKeyMap.cursor();
+      while (cursor.advance()) {
+        if (cursor.remove()) {
+          installed(trackedKey(fromPrimitive(cursor.key())), cursor.value(), null);
+        }
+      }
+    }
+  }
+
+  @Override
+  int size() {
+    return primitiveKeyMap.size();
+  }
+
+  @Override
+  java.util.Iterator<Map.Entry<K, OnHeapValueHolder<V>>> entrySetIterator() {
+    final LongKeyedConcurrentMap<OnHeapValueHolder<V>>.Cursor cursor = primitiveKeyMap.cursor();
+    return new java.util.Iterator<Map.Entry<K, OnHeapValueHolder<V>>>() {
+      private Map.Entry<K, OnHeapValueHolder<V>> next = advance();
+      private Map.Entry<K, OnHeapValueHolder<V>> last;
+
+      private Map.Entry<K, OnHeapValueHolder<V>> advance() {
+        if (cursor.advance()) {
+          return new SimpleEntry<K, OnHeapValueHolder<V>>(fromPrimitive(cursor.key()), cursor.value());
+        }
+        return null;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public Map.Entry<K, OnHeapValueHolder<V>> next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        last = next;
+        next = advance();
+        return last;
+      }
+
+      @Override
+      public void remove() {
+        if (last == null) {
+          throw new IllegalStateException();
+        }
+        PrimitiveKeyMapWrapper.this.remove(last.getKey(), last.getValue());
+        last = null;
+      }
+    };
+  }
+
+  @Override
+  SampledEntry<K, V> newSampledEntry(TimeSource timeSource) {
+    return new PrimitiveKeySampledEntry(timeSource);
+  }
+
+  @Override
+  void sample(int seed, EvictionSampler<K, V> sampler) {
+    LongKeyedConcurrentMap<OnHeapValueHolder<V>>.Cursor cursor = primitiveKeyMap.cursor(seed);
+    boolean done = false;
+    while (!done && cursor.advance()) {
+      PrimitiveKeySampledEntry candidate = (PrimitiveKeySampledEntry) sampler.getCandidate();
+      candidate.key = cursor.key();
+      candidate.setValueHolder(cursor.value());
+      done = sampler.offer();
+    }
+  }
+
+  /**
+   * Only boxes its key when asked for it, which the built-in prioritizers never do.
+   */
+  private final class PrimitiveKeySampledEntry extends SampledEntry<K, V> {
+
+    private long key;
+
+    PrimitiveKeySampledEntry(TimeSource timeSource) {
+      super(timeSource);
+    }
+
+    @Override
+    public K getKey() {
+      return fromPrimitive(key);
+    }
+  }
+
+  @Override
+  OnHeapValueHolder<V> getMapping(OnHeapKey<K> key) {
+    return primitiveKeyMap.get(toPrimitive(key.getActualKeyObject()));
+  }
+
+  @Override
+  boolean removeMapping(OnHeapKey<K> key, OnHeapValueHolder<V> value) {
+    if (primitiveKeyMap.remove(toPrimitive(key.getActualKeyObject()), value)) {
+      installed(key, value, null);
+      return true;
+    }
+    return false;
+  }
+}
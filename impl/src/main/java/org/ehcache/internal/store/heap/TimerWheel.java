@@ -0,0 +1,207 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.store.heap;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hierarchical timer wheel indexing mappings by expiration time, so that expired ones are found in time
+ * proportional to their number rather than to the size of the store.
+ * <P>
+ * Each of the four wheels has 64 buckets; a bucket of the first wheel spans 1024 milliseconds, and each wheel's
+ * bucket spans a full turn of the previous wheel (about 65 seconds, 70 minutes and 3 days). A mapping is put in the
+ * lowest wheel able to hold its delay, and is cascaded down to a lower wheel as time gets closer to its expiration.
+ * Expiration is therefore detected up to a second late.
+ * </P>
+ * <P>
+ * Mappings are found back by value identity, so that the values themselves do not have to carry their node. This
+ * class is not thread safe.
+ * </P>
+ */
+final class TimerWheel<K, V> {
+
+  private static final int[] SHIFTS = {10, 16, 22, 28};
+  private static final int BUCKETS = 64;
+  private static final int BUCKET_MASK = BUCKETS - 1;
+
+  private final Node<K, V>[][] wheels;
+  private final Map<V, Node<K, V>> nodes = new IdentityHashMap<V, Node<K, V>>();
+  private long time;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  TimerWheel(long now) {
+    this.time = now;
+    this.wheels = new Node[SHIFTS.length][BUCKETS];
+    for (Node<K, V>[] wheel : wheels) {
+      for (int i = 0; i < wheel.length; i++) {
+        wheel[i] = new Node<K, V>(null, null, 0);
+      }
+    }
+  }
+
+  /**
+   * Indexes a mapping, replacing the previous indexing of the same value if any.
+   *
+   * @param key the mapping's key
+   * @param value the mapping's value
+   * @param expirationTime the expiration time of the mapping, in milliseconds
+   */
+  void schedule(K key, V value, long expirationTime) {
+    Node<K, V> node = new Node<K, V>(key, value, expirationTime);
+    Node<K, V> previous = nodes.put(value, node);
+    if (previous != null) {
+      unlink(previous);
+    }
+    link(node);
+  }
+
+  /**
+   * Removes a mapping from the index, a no-op if it is not indexed.
+   *
+   * @param value the mapping's value
+   */
+  void cancel(V value) {
+    Node<K, V> node = nodes.remove(value);
+    if (node != null) {
+      unlink(node);
+    }
+  }
+
+  /**
+   * @param value the mapping's value
+   * @return {@code true} if the mapping is indexed
+   */
+  boolean isScheduled(V value) {
+    return nodes.containsKey(value);
+  }
+
+  /**
+   * Moves the wheel to the given time.
+   *
+   * @param now the current time, in milliseconds
+   * @return the nodes expiring at or before {@code now}, which are no longer indexed
+   */
+  List<Node<K, V>> advance(long now) {
+    long previous = time;
+    if (now <= previous) {
+      return new ArrayList<Node<K, V>>(0);
+    }
+    time = now;
+    List<Node<K, V>> expired = new ArrayList<Node<K, V>>();
+    for (int i = 0; i < SHIFTS.length; i++) {
+      long previousTicks = previous >>> SHIFTS[i];
+      long currentTicks = now >>> SHIFTS[i];
+      if (currentTicks <= previousTicks) {
+        break;
+      }
+      // the first wheel empties the buckets it left, upper wheels cascade the buckets they entered
+      long first = i == 0 ? previousTicks : previousTicks + 1;
+      long last = i == 0 ? currentTicks - 1 : currentTicks;
+      if (last - first >= BUCKETS) {
+        last = first + BUCKETS - 1;
+      }
+      for (long tick = first; tick <= last; tick++) {
+        expire(wheels[i][(int) (tick & BUCKET_MASK)], now, expired);
+      }
+    }
+    return expired;
+  }
+
+  int size() {
+    return nodes.size();
+  }
+
+  private void expire(Node<K, V> sentinel, long now, List<Node<K, V>> expired) {
+    Node<K, V> node = sentinel.next;
+    sentinel.next = sentinel;
+    sentinel.previous = sentinel;
+    while (node != sentinel) {
+      Node<K, V> next = node.next;
+      node.previous = null;
+      node.next = null;
+      if (node.expirationTime <= now) {
+        nodes.remove(node.value);
+        expired.add(node);
+      } else {
+        link(node);
+      }
+      node = next;
+    }
+  }
+
+  private void link(Node<K, V> node) {
+    long delay = node.expirationTime - time;
+    int level = SHIFTS.length - 1;
+    for (int i = 0; i < SHIFTS.length; i++) {
+      if (delay < 1L << (SHIFTS[i] + 6)) {
+        level = i;
+        break;
+      }
+    }
+    // an already expired mapping goes in the current bucket, to be found as soon as the current tick ends
+    long bucketTime = Math.max(node.expirationTime, time);
+    Node<K, V> sentinel = wheels[level][(int) ((bucketTime >>> SHIFTS[level]) & BUCKET_MASK)];
+    node.next = sentinel;
+    node.previous = sentinel.previous;
+    sentinel.previous.next = node;
+    sentinel.previous = node;
+  }
+
+  private static <K, V> void unlink(Node<K, V> node) {
+    node.previous.next = node.next;
+    node.next.previous = node.previous;
+    node.previous = null;
+    node.next = null;
+  }
+
+  /**
+   * An indexed mapping, also used as the sentinel of each bucket's circular list.
+   */
+  static final class Node<K, V> {
+    private final K key;
+    private final V value;
+    private final long expirationTime;
+    private Node<K, V> previous;
+    private Node<K, V> next;
+
+    Node(K key, V value, long expirationTime) {
+      this.key = key;
+      this.value = value;
+      this.expirationTime = expirationTime;
+      if (key == null) {
+        this.previous = this;
+        this.next = this;
+      }
+    }
+
+    K getKey() {
+      return key;
+    }
+
+    V getValue() {
+      return value;
+    }
+
+    long getExpirationTime() {
+      return expirationTime;
+    }
+  }
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.store.heap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks the mappings of an {@link OnHeapStore} to pick eviction victims following the Window TinyLFU policy.
+ * <P>
+ * New mappings enter a small LRU window. Mappings leaving the window become admission candidates for the main
+ * region, which is split in a probation and a protected LRU segment: the candidate is only kept if a
+ * {@link FrequencySketch} estimates it was requested more often than the probation victim it would replace. Hits on a
+ * probation mapping promote it to the protected segment. This keeps recency bursts from flushing frequently used
+ * mappings while scans only ever churn through the window.
+ * </P>
+ * <P>
+ * Events are not applied by the threads recording them: they go to ring buffers, striped by key so that the events of
+ * a key stay in order, and get applied in batches by whichever thread then acquires the policy lock without waiting.
+ * Queries drain the buffers first. Accesses finding their buffer full are simply not recorded, keeping reads
+ * non-blocking at the cost of some accuracy, whereas writes finding theirs full wait for it to be drained. The tracked
+ * state is not updated atomically with the store's map, so a selected victim must be checked against the map.
+ * </P>
+ */
+final class WindowTinyLfuPolicy<K> {
+
+  static final float WINDOW_RATIO = 0.01f;
+  static final float PROTECTED_RATIO = 0.8f;
+  static final long MAX_PRESIZED_KEYS = 1 << 20;
+
+  private static final int READ_BUFFER_SIZE = 16;
+  private static final int READ_DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+  private static final int WRITE_BUFFER_SIZE = 64;
+  private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+  private final RingBuffer<K>[] readBuffers;
+  private final RingBuffer<Event<K>>[] writeBuffers;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Map<K, Node<K>> nodes = new HashMap<K, Node<K>>();
+  private final FrequencySketch sketch = new FrequencySketch();
+  private final Segment<K> window = new Segment<K>();
+  private final Segment<K> probation = new Segment<K>();
+  private final Segment<K> protectedSegment = new Segment<K>();
+  private final boolean weighted;
+  private volatile long maximum;
+
+  /**
+   * @param maximum the total weight the store can hold
+   * @param weighted whether mappings are weighted, rather than all weighing one
+   */
+  @SuppressWarnings("unchecked")
+  WindowTinyLfuPolicy(long maximum, boolean weighted) {
+    this.weighted = weighted;
+    this.readBuffers = (RingBuffer<K>[]) new RingBuffer<?>[STRIPES];
+    this.writeBuffers = (RingBuffer<Event<K>>[]) new RingBuffer<?>[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      readBuffers[i] = new RingBuffer<K>(READ_BUFFER_SIZE);
+      writeBuffers[i] = new RingBuffer<Event<K>>(WRITE_BUFFER_SIZE);
+    }
+    setMaximum(maximum);
+  }
+
+  /**
+   * @param maximum the total weight the store can hold
+   */
+  void setMaximum(long maximum) {
+    lock.lock();
+    try {
+      this.maximum = maximum;
+      if (!weighted) {
+        // growing the sketch forgets all frequencies, so presize it when the number of keys is known
+        sketch.ensureCapacity(Math.min(maximum, MAX_PRESIZED_KEYS));
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Records a hit on a mapping, unless its buffer is full.
+   */
+  void recordAccess(K key) {
+    RingBuffer<K> buffer = readBuffers[stripe(key)];
+    if (buffer.offer(key) && buffer.pending() >= READ_DRAIN_THRESHOLD) {
+      tryDrain();
+    }
+  }
+
+  /**
+   * Records the installation of a mapping, either new or replacing a previous one.
+   *
+   * @param key the map key
+   * @param value the installed value, later used to match the removal
+   * @param weight the weight of the mapping
+   */
+  void recordWrite(K key, Object value, long weight) {
+    record(new Event<K>(Event.WRITE, key, value, weight));
+  }
+
+  /**
+   * Records the removal of a mapping, ignored if the mapping was already replaced.
+   *
+   * @param key the map key
+   * @param value the removed value
+   */
+  void recordRemoval(K key, Object value) {
+    record(new Event<K>(Event.REMOVAL, key, value, 0));
+  }
+
+  /**
+   * Stops tracking a key regardless of its value, used when a selected victim turns out to be no longer mapped.
+   */
+  void forget(K key) {
+    record(new Event<K>(Event.FORGET, key, null, 0));
+  }
+
+  private void record(Event<K> event) {
+    RingBuffer<Event<K>> buffer = writeBuffers[stripe(event.key)];
+    while (!buffer.offer(event)) {
+      lock.lock();
+      try {
+        drain();
+      } finally {
+        lock.unlock();
+      }
+    }
+    tryDrain();
+  }
+
+  void clear() {
+    lock.lock();
+    try {
+      drain();
+      nodes.clear();
+      window.clear();
+      probation.clear();
+      protectedSegment.clear();
+      sketch.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Picks the mapping to evict: the least frequent of the latest admission candidate and of the probation victim.
+   *
+   * @return the key to evict, or {@code null} if nothing is tracked
+   */
+  K selectVictim() {
+    lock.lock();
+    try {
+      drain();
+      long windowMaximum = windowMaximum();
+      while (window.weight > windowMaximum && window.first != null) {
+        Node<K> node = window.first;
+        window.unlink(node);
+        probation.addLast(node);
+      }
+
+      Node<K> victim = probation.first;
+      Node<K> candidate = probation.last;
+      if (victim == null) {
+        victim = protectedSegment.first != null ? protectedSegment.first : window.first;
+        return victim == null ? null : victim.key;
+      }
+      if (candidate == victim) {
+        return victim.key;
+      }
+      return sketch.frequency(candidate.key) > sketch.frequency(victim.key) ? victim.key : candidate.key;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int size() {
+    lock.lock();
+    try {
+      drain();
+      return nodes.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int frequency(K key) {
+    lock.lock();
+    try {
+      drain();
+      return sketch.frequency(key);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void tryDrain() {
+    if (lock.tryLock()) {
+      try {
+        drain();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Applies the buffered events, accesses first as they were mostly recorded before the writes still buffered. Only
+   * called under the lock.
+   */
+  private void drain() {
+    for (RingBuffer<K> buffer : readBuffers) {
+      for (K key; (key = buffer.poll()) != null; ) {
+        sketch.increment(key);
+        Node<K> node = nodes.get(key);
+        if (node != null) {
+          onHit(node);
+        }
+      }
+    }
+    for (RingBuffer<Event<K>> buffer : writeBuffers) {
+      for (Event<K> event; (event = buffer.poll()) != null; ) {
+        apply(event);
+      }
+    }
+  }
+
+  private void apply(Event<K> event) {
+    Node<K> node = nodes.get(event.key);
+    switch (event.type) {
+      case Event.WRITE:
+        sketch.increment(event.key);
+        if (node == null) {
+          node = new Node<K>(event.key, event.value, event.weight);
+          nodes.put(event.key, node);
+          window.addLast(node);
+          sketch.ensureCapacity(nodes.size());
+        } else {
+          node.value = event.value;
+          node.segment.weight += event.weight - node.weight;
+          node.weight = event.weight;
+          onHit(node);
+        }
+        break;
+      case Event.REMOVAL:
+        if (node != null && node.value == event.value) {
+          remove(node);
+        }
+        break;
+      default:
+        if (node != null) {
+          remove(node);
+        }
+    }
+  }
+
+  private static int stripe(Object key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+    return hash & (STRIPES - 1);
+  }
+
+  private void onHit(Node<K> node) {
+    if (node.segment == probation) {
+      probation.unlink(node);
+      protectedSegment.addLast(node);
+      long protectedMaximum = (long) ((maximum - windowMaximum()) * PROTECTED_RATIO);
+      while (protectedSegment.weight > protectedMaximum && protectedSegment.first != node) {
+        Node<K> demoted = protectedSegment.first;
+        protectedSegment.unlink(demoted);
+        probation.addLast(demoted);
+      }
+    } else {
+      node.segment.moveToLast(node);
+    }
+  }
+
+  private void remove(Node<K> node) {
+    nodes.remove(node.key);
+    node.segment.unlink(node);
+  }
+
+  private long windowMaximum() {
+    return Math.max(1L, (long) (maximum * WINDOW_RATIO));
+  }
+
+  private static final class Event<K> {
+    static final int WRITE = 0;
+    static final int REMOVAL = 1;
+    static final int FORGET = 2;
+
+    private final int type;
+    private final K key;
+    private final Object value;
+    private final long weight;
+
+    Event(int type, K key, Object value, long weight) {
+      this.type = type;
+      this.key = key;
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * A bounded buffer any thread can offer to, only polled under the policy lock.
+   */
+  private static final class RingBuffer<E> {
+    private final AtomicReferenceArray<E> elements;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    RingBuffer(int size) {
+      this.elements = new AtomicReferenceArray<E>(size);
+      this.mask = size - 1;
+    }
+
+    boolean offer(E element) {
+      while (true) {
+        long current = tail.get();
+        if (current - head.get() >= elements.length()) {
+          return false;
+        }
+        if (tail.compareAndSet(current, current + 1)) {
+          elements.lazySet((int) current & mask, element);
+          return true;
+        }
+      }
+    }
+
+    /**
+     * @return the next element, or {@code null} if there is none or the next one is not published yet
+     */
+    E poll() {
+      long current = head.get();
+      if (current == tail.get()) {
+        return null;
+      }
+      int index = (int) current & mask;
+      E element = elements.get(index);
+      if (element != null) {
+        elements.lazySet(index, null);
+        head.lazySet(current + 1);
+      }
+      return element;
+    }
+
+    int pending() {
+      return (int) (tail.get() - head.get());
+    }
+  }
+
+  private static final class Node<K> {
+    private final K key;
+    private Object value;
+    private long weight;
+    private Segment<K> segment;
+    private Node<K> previous;
+    private Node<K> next;
+
+    Node(K key, Object value, long weight) {
+      this.key = key;
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * An LRU ordered doubly linked list of nodes, least recently used first.
+   */
+  private static final class Segment<K> {
+    private Node<K> first;
+    private Node<K> last;
+    private long weight;
+
+    void addLast(Node<K> node) {
+      node.segment = this;
+      node.previous = last;
+      node.next = null;
+      if (last == null) {
+        first = node;
+      } else {
+        last.next = node;
+      }
+      last = node;
+      weight += node.weight;
+    }
+
+    void unlink(Node<K> node) {
+      if (node.previous == null) {
+        first = node.next;
+      } else {
+        node.previous.next = node.next;
+      }
+      if (node.next == null) {
+        last = node.previous;
+      } else {
+        node.next.previous = node.previous;
+      }
+      node.previous = null;
+      node.next = null;
+      node.segment = null;
+      weight -= node.weight;
+    }
+
+    void moveToLast(Node<K> node) {
+      if (node != last) {
+        unlink(node);
+        addLast(node);
+      }
+    }
+
+    void clear() {
+      first = null;
+      last = null;
+      weight = 0;
+    }
+  }
+}
@@ -17,12 +17,13 @@ package org.ehcache.internal.store.heap.holders;
 
 import org.ehcache.exceptions.SerializerException;
 import org.ehcache.expiry.Duration;
+import org.ehcache.internal.store.BinaryValueHolder;
 import org.ehcache.spi.cache.Store;
 import org.ehcache.spi.serialization.Serializer;
 
 import java.nio.ByteBuffer;
 
-public class SerializedOnHeapValueHolder<V> extends OnHeapValueHolder<V> {
+public class SerializedOnHeapValueHolder<V> extends OnHeapValueHolder<V> implements BinaryValueHolder<V> {
   private final ByteBuffer buffer;
   private final Serializer<V> serializer;
 
@@ -52,6 +53,22 @@ public class SerializedOnHeapValueHolder<V> extends OnHeapValueHolder<V> {
     this.accessed(now, expiration);
   }
 
+  public SerializedOnHeapValueHolder(Store.ValueHolder<V> valueHolder, ByteBuffer binaryValue, Serializer<V> serializer, long now, Duration expiration) {
+    super(valueHolder.getId(), valueHolder.creationTime(TIME_UNIT), valueHolder.expirationTime(TIME_UNIT));
+    if (serializer == null) {
+      throw new NullPointerException("null serializer");
+    }
+    this.serializer = serializer;
+    this.buffer = binaryValue.asReadOnlyBuffer();
+    this.setHits(valueHolder.hits());
+    this.accessed(now, expiration);
+  }
+
+  @Override
+  public ByteBuffer getBinaryValue(Serializer<V> serializer) {
+    return serializer == this.serializer ? buffer.duplicate() : null;
+  }
+
   @Override
   public final V value() {
     try {
@@ -16,8 +16,13 @@
 
 package org.ehcache.internal.store.offheap;
 
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -38,12 +43,17 @@ import org.ehcache.function.Function;
 import org.ehcache.function.NullaryFunction;
 import org.ehcache.function.Predicate;
 import org.ehcache.internal.TimeSource;
+import org.ehcache.internal.store.BinaryValueHolder;
+import org.ehcache.internal.store.InFlightLoads;
 import org.ehcache.internal.store.offheap.factories.EhcacheSegmentFactory;
+import org.ehcache.internal.store.offheap.portability.OffHeapValueHolderPortability;
 import org.ehcache.spi.cache.CacheStoreHelper;
 import org.ehcache.spi.cache.Store;
 import org.ehcache.spi.cache.tiering.AuthoritativeTier;
 import org.ehcache.spi.cache.tiering.CachingTier;
 import org.ehcache.spi.cache.tiering.LowerCachingTier;
+import org.ehcache.spi.serialization.BinaryComparableSerializer;
+import org.ehcache.spi.serialization.Serializer;
 import org.ehcache.statistics.StoreOperationOutcomes;
 import org.terracotta.offheapstore.Segment;
 import org.terracotta.offheapstore.exceptions.OversizeMappingException;
@@ -54,6 +64,7 @@ public abstract class AbstractOffHeapStore<K, V> implements AuthoritativeTier<K,
 
   private final Class<K> keyType;
   private final Class<V> valueType;
+  private final Serializer<V> valueSerializer;
   private final TimeSource timeSource;
 
   private final Expiry<? super K, ? super V> expiry;
@@ -64,6 +75,8 @@ public abstract class AbstractOffHeapStore<K, V> implements AuthoritativeTier<K,
   private final OperationObserver<StoreOperationOutcomes.EvictionOutcome> evictionObserver;
   private final OperationObserver<StoreOperationOutcomes.ExpirationOutcome> expirationObserver;
 
+  private final InFlightLoads<K, V> loads = new InFlightLoads<K, V>();
+
   private volatile Callable<Void> valve;
   private volatile StoreEventListener<K, V> eventListener = CacheEvents.nullStoreEventListener();
   protected BackingMapEvictionListener<K, V> mapEvictionListener;
@@ -72,6 +85,7 @@ public abstract class AbstractOffHeapStore<K, V> implements AuthoritativeTier<K,
   public AbstractOffHeapStore(String statisticsTag, Configuration<K, V> config, TimeSource timeSource) {
     keyType = config.getKeyType();
     valueType = config.getValueType();
+    valueSerializer = config.getValueSerializer();
     expiry = config.getExpiry();
 
     this.timeSource = timeSource;
@@ -204,6 +218,8 @@ public abstract class AbstractOffHeapStore<K, V> implements AuthoritativeTier<K,
     checkKey(key);
     checkValue(value);
 
+    final ByteBuffer binaryValue = comparableBinaryOf(value);
+    final int binaryValueHash = binaryValue == null ? 0 : OffHeapValueHolderPortability.binaryHash(binaryValue);
     final AtomicBoolean removed = new AtomicBoolean(false);
 
     backingMap().computeIfPresent(key, new BiFunction<K, OffHeapValueHolder<V>, OffHeapValueHolder<V>>() {
@@ -214,7 +230,7 @@ public abstract class AbstractOffHeapStore<K, V> implements AuthoritativeTier<K,
         if (mappedValue.isExpired(now, TimeUnit.MILLISECONDS)) {
           onExpiration(mappedKey, mappedValue);
           return null;
-        } else if (mappedValue.value().equals(value)) {
+        } else if (mappedValue.valueEquals(value, binaryValue, binaryValueHash)) {
           removed.set(true);
           return null;
         } else {
@@ -265,6 +281,8 @@ public abstract class AbstractOffHeapStore<K, V> implements AuthoritativeTier<K,
     checkValue(oldValue);
     checkValue(newValue);
 
+    final ByteBuffer binaryOldValue = comparableBinaryOf(oldValue);
+    final int binaryOldValueHash = binaryOldValue == null ? 0 : OffHeapValueHolderPortability.binaryHash(binaryOldValue);
     final AtomicBoolean replaced = new AtomicBoolean(false);
     BiFunction<K, OffHeapValueHolder<V>, OffHeapValueHolder<V>> mappingFunction = new BiFunction<K, OffHeapValueHolder<V>, OffHeapValueHolder<V>>() {
       @Override
@@ -276,7 +294,7 @@ public abstract class AbstractOffHeapStore<K, V> implements AuthoritativeTier<K,
             onExpiration(mappedKey, mappedValue);
           }
           return null;
-        } else if (oldValue.equals(mappedValue.value())) {
+        } else if (mappedValue.valueEquals(oldValue, binaryOldValue, binaryOldValueHash)) {
           replaced.set(true);
           return newUpdatedValueHolder(mappedKey, newValue, mappedValue, now);
         } else {
@@ -376,6 +394,8 @@ public abstract class AbstractOffHeapStore<K, V> implements AuthoritativeTier<K,
 
   private Store.ValueHolder<V> internalComputeIfAbsent(final K key, final Function<? super K, ? extends V> mappingFunction, boolean fault) throws CacheAccessException {
     checkKey(key);
+    // a load of the key in flight is waited for outside of the segment lock, it then installed its value
+    loads.await(key);
 
     BiFunction<K, OffHeapValueHolder<V>, OffHeapValueHolder<V>> computeFunction = new BiFunction<K, OffHeapValueHolder<V>, OffHeapValueHolder<V>>() {
       @Override
@@ -385,7 +405,7 @@ public abstract class AbstractOffHeapStore<K, V> implements AuthoritativeTier<K,
           if (mappedValue != null) {
             onExpiration(mappedKey, mappedValue);
           }
-          V computedValue = mappingFunction.apply(mappedKey);
+          V computedValue = loads.load(mappedKey, mappingFunction);
           if (computedValue == null) {
             return null;
           } else {
@@ -457,69 +477,359 @@ public abstract class AbstractOffHeapStore<K, V> implements AuthoritativeTier<K,
     return bulkCompute(keys, remappingFunction, REPLACE_EQUALS_TRUE);
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The remapping function is invoked once for all the keys, outside of any segment lock. Its results are then
+   * installed one segment at a time. A mapping that changed in between is computed again on its own, the remapping
+   * function being invoked with that single key under the lock of its segment, so that each key is still computed
+   * atomically. Entries returned for keys that were not requested are ignored.
+   */
   @Override
   public Map<K, ValueHolder<V>> bulkCompute(Set<? extends K> keys, final Function<Iterable<? extends Map.Entry<? extends K, ? extends V>>, Iterable<? extends Map.Entry<? extends K, ? extends V>>> remappingFunction, NullaryFunction<Boolean> replaceEqual) throws CacheAccessException {
-    Map<K, ValueHolder<V>> result = new HashMap<K, ValueHolder<V>>();
     for (K key : keys) {
       checkKey(key);
-      BiFunction<K, V, V> biFunction = new BiFunction<K, V, V>() {
-        @Override
-        public V apply(final K k, final V v) {
-          Map.Entry<K, V> entry = new Map.Entry<K, V>() {
-            @Override
-            public K getKey() {
-              return k;
-            }
+    }
+    EhcacheOffHeapBackingMap<K, OffHeapValueHolder<V>> map = backingMap();
+    List<Segment<K, OffHeapValueHolder<V>>> segments = map.getSegments();
+    List<List<K>> keysBySegment = groupBySegment(map, keys);
+
+    Map<K, OffHeapValueHolder<V>> observed = new HashMap<K, OffHeapValueHolder<V>>();
+    for (int i = 0; i < keysBySegment.size(); i++) {
+      List<K> segmentKeys = keysBySegment.get(i);
+      if (segmentKeys == null) {
+        continue;
+      }
+      Segment<K, OffHeapValueHolder<V>> segment = segments.get(i);
+      Lock lock = segment.writeLock();
+      lock.lock();
+      try {
+        long now = timeSource.getTimeMillis();
+        for (K key : segmentKeys) {
+          observed.put(key, liveValue(segment, key, now));
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
 
-            @Override
-            public V getValue() {
-              return v;
+    List<Map.Entry<K, V>> entries = new ArrayList<Map.Entry<K, V>>(keys.size());
+    for (K key : keys) {
+      OffHeapValueHolder<V> observedValue = observed.get(key);
+      entries.add(new AbstractMap.SimpleImmutableEntry<K, V>(key, observedValue == null ? null : observedValue.value()));
+    }
+    Map<K, V> computed = new HashMap<K, V>();
+    for (Map.Entry<? extends K, ? extends V> entry : remappingFunction.apply(entries)) {
+      checkKey(entry.getKey());
+      if (keys.contains(entry.getKey())) {
+        computed.put(entry.getKey(), entry.getValue());
+      }
+    }
+
+    Map<K, ValueHolder<V>> result = new HashMap<K, ValueHolder<V>>();
+    Map<K, OffHeapValueHolder<V>> oversized = new HashMap<K, OffHeapValueHolder<V>>();
+    List<K> contended = new ArrayList<K>();
+    for (int i = 0; i < keysBySegment.size(); i++) {
+      List<K> segmentKeys = keysBySegment.get(i);
+      if (segmentKeys == null) {
+        continue;
+      }
+      Segment<K, OffHeapValueHolder<V>> segment = segments.get(i);
+      Lock lock = segment.writeLock();
+      lock.lock();
+      try {
+        long now = timeSource.getTimeMillis();
+        for (K key : segmentKeys) {
+          if (!computed.containsKey(key)) {
+            continue;
+          }
+          OffHeapValueHolder<V> observedValue = observed.get(key);
+          OffHeapValueHolder<V> mappedValue = liveValue(segment, key, now);
+          if (!isSameMapping(observedValue, mappedValue)) {
+            contended.add(key);
+            continue;
+          }
+          OffHeapValueHolder<V> newValue = remapped(key, mappedValue, computed.get(key), replaceEqual, now);
+          if (newValue == null) {
+            if (mappedValue != null) {
+              segment.remove(key);
+            }
+          } else if (newValue != mappedValue) {
+            try {
+              segment.put(key, newValue);
+            } catch (OversizeMappingException e) {
+              // making room takes other segments' locks: install it once this one is released
+              oversized.put(key, newValue);
+              continue;
             }
+          }
+          result.put(key, newValue);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
 
+    for (Map.Entry<K, OffHeapValueHolder<V>> entry : oversized.entrySet()) {
+      final OffHeapValueHolder<V> observedValue = observed.get(entry.getKey());
+      final OffHeapValueHolder<V> newValue = entry.getValue();
+      final AtomicBoolean changed = new AtomicBoolean();
+      while (true) {
+        try {
+          OffHeapValueHolder<V> installed = map.compute(entry.getKey(), new BiFunction<K, OffHeapValueHolder<V>, OffHeapValueHolder<V>>() {
             @Override
-            public V setValue(V value) {
-              throw new UnsupportedOperationException();
+            public OffHeapValueHolder<V> apply(K mappedKey, OffHeapValueHolder<V> mappedValue) {
+              if (isSameMapping(observedValue, mappedValue)) {
+                return newValue;
+              }
+              changed.set(true);
+              return mappedValue;
             }
-          };
-          java.util.Iterator<? extends Map.Entry<? extends K, ? extends V>> iterator = remappingFunction.apply(Collections
-              .singleton(entry)).iterator();
-          Map.Entry<? extends K, ? extends V> result = iterator.next();
-          if (result != null) {
-            checkKey(result.getKey());
-            return result.getValue();
+          }, false);
+          if (changed.get()) {
+            contended.add(entry.getKey());
           } else {
-            return null;
+            result.put(entry.getKey(), installed);
           }
+          break;
+        } catch (OversizeMappingException e) {
+          handleOversizeMappingException(entry.getKey(), e);
         }
-      };
-      ValueHolder<V> computed = compute(key, biFunction, replaceEqual);
-      result.put(key, computed);
+      }
+    }
+
+    for (K key : contended) {
+      result.put(key, computeAlone(key, remappingFunction, replaceEqual));
     }
     return result;
   }
 
+  /**
+   * Computes a single key of a bulk computation, the remapping function being invoked with that key only. The mapping
+   * is left untouched if the function returns no entry for the key.
+   */
+  private ValueHolder<V> computeAlone(K key, final Function<Iterable<? extends Map.Entry<? extends K, ? extends V>>, Iterable<? extends Map.Entry<? extends K, ? extends V>>> remappingFunction, final NullaryFunction<Boolean> replaceEqual) throws CacheAccessException {
+    final AtomicBoolean remapped = new AtomicBoolean();
+    return compute(key, new BiFunction<K, V, V>() {
+      @Override
+      public V apply(K mappedKey, V mappedValue) {
+        Map.Entry<K, V> entry = new AbstractMap.SimpleImmutableEntry<K, V>(mappedKey, mappedValue);
+        for (Map.Entry<? extends K, ? extends V> computed : remappingFunction.apply(Collections.singleton(entry))) {
+          checkKey(computed.getKey());
+          if (mappedKey.equals(computed.getKey())) {
+            remapped.set(true);
+            return computed.getValue();
+          }
+        }
+        return mappedValue;
+      }
+    }, new NullaryFunction<Boolean>() {
+      @Override
+      public Boolean apply() {
+        return remapped.get() && replaceEqual.apply();
+      }
+    });
+  }
+
+  /**
+   * @return the holder to map {@code key} to, given the remapped value of its current mapping
+   */
+  private OffHeapValueHolder<V> remapped(K key, OffHeapValueHolder<V> mappedValue, V computedValue, NullaryFunction<Boolean> replaceEqual, long now) {
+    if (computedValue == null) {
+      return null;
+    }
+    V existingValue = mappedValue == null ? null : mappedValue.value();
+    if (safeEquals(existingValue, computedValue) && !replaceEqual.apply()) {
+      if (mappedValue != null) {
+        setAccessTimeAndExpiry(key, mappedValue, now);
+      }
+      return mappedValue;
+    }
+    checkValue(computedValue);
+    if (mappedValue != null) {
+      return newUpdatedValueHolder(key, computedValue, mappedValue, now);
+    } else {
+      return newCreateValueHolder(key, computedValue, now);
+    }
+  }
+
+  /**
+   * @return whether {@code current} is the very mapping {@code observed} was, both being possibly {@code null}
+   */
+  private static boolean isSameMapping(OffHeapValueHolder<?> observed, OffHeapValueHolder<?> current) {
+    if (observed == null) {
+      return current == null;
+    }
+    return current != null && current.getId() == observed.getId();
+  }
+
   @Override
   public Map<K, ValueHolder<V>> bulkComputeIfAbsent(Set<? extends K> keys, final Function<Iterable<? extends K>, Iterable<? extends Map.Entry<? extends K, ? extends V>>> mappingFunction) throws CacheAccessException {
-    Map<K, ValueHolder<V>> result = new HashMap<K, ValueHolder<V>>();
     for (K key : keys) {
       checkKey(key);
-      Function<K, V> function = new Function<K, V>() {
-        @Override
-        public V apply(K k) {
-          java.util.Iterator<? extends Map.Entry<? extends K, ? extends V>> iterator = mappingFunction.apply(Collections.singleton(k)).iterator();
-          Map.Entry<? extends K, ? extends V> result = iterator.next();
-          if (result != null) {
-            checkKey(result.getKey());
-            return result.getValue();
+    }
+    EhcacheOffHeapBackingMap<K, OffHeapValueHolder<V>> map = backingMap();
+    List<Segment<K, OffHeapValueHolder<V>>> segments = map.getSegments();
+    List<List<K>> keysBySegment = groupBySegment(map, keys);
+
+    Map<K, ValueHolder<V>> result = new HashMap<K, ValueHolder<V>>();
+    Set<K> absentKeys = new LinkedHashSet<K>();
+    for (int i = 0; i < keysBySegment.size(); i++) {
+      List<K> segmentKeys = keysBySegment.get(i);
+      if (segmentKeys == null) {
+        continue;
+      }
+      Segment<K, OffHeapValueHolder<V>> segment = segments.get(i);
+      Lock lock = segment.writeLock();
+      lock.lock();
+      try {
+        long now = timeSource.getTimeMillis();
+        for (K key : segmentKeys) {
+          OffHeapValueHolder<V> present = liveValue(segment, key, now);
+          if (present == null) {
+            absentKeys.add(key);
           } else {
-            return null;
+            setAccessTimeAndExpiry(key, present, now);
+            result.put(key, present);
           }
         }
-      };
-      ValueHolder<V> computed = computeIfAbsent(key, function);
-      result.put(key, computed);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    if (absentKeys.isEmpty()) {
+      return result;
+    }
+
+    // Single invocation of the mapping function for all absent keys, outside of any segment lock. A load is
+    // registered for each of these keys first, so that a concurrent computeIfAbsent waits for the batch rather than
+    // loading the key again. Keys already being loaded by another operation are left to it.
+    InFlightLoads<K, V>.Batch batch = loads.register(absentKeys);
+    try {
+      if (!batch.keys().isEmpty()) {
+        Map<K, V> computed = new HashMap<K, V>();
+        for (Map.Entry<? extends K, ? extends V> entry : mappingFunction.apply(batch.keys())) {
+          if (entry != null) {
+            checkKey(entry.getKey());
+            computed.put(entry.getKey(), entry.getValue());
+          }
+        }
+        batch.complete(computed);
+        installAbsent(batch.keys(), computed, result);
+      }
+
+      for (K key : absentKeys) {
+        if (!batch.keys().contains(key)) {
+          // resolves to the load of the operation that was already loading the key
+          result.put(key, internalComputeIfAbsent(key, new Function<K, V>() {
+            @Override
+            public V apply(K k) {
+              for (Map.Entry<? extends K, ? extends V> entry : mappingFunction.apply(Collections.singleton(k))) {
+                if (entry != null && k.equals(entry.getKey())) {
+                  return entry.getValue();
+                }
+              }
+              return null;
+            }
+          }, false));
+        }
+      }
+      return result;
+    } finally {
+      batch.release();
     }
-    return result;
+  }
+
+  /**
+   * Installs the values computed for absent keys one segment at a time, leaving any concurrently installed mapping in
+   * place.
+   */
+  private void installAbsent(Set<K> absentKeys, Map<K, V> computed, Map<K, ValueHolder<V>> result) throws CacheAccessException {
+    EhcacheOffHeapBackingMap<K, OffHeapValueHolder<V>> map = backingMap();
+    List<Segment<K, OffHeapValueHolder<V>>> segments = map.getSegments();
+
+    Map<K, OffHeapValueHolder<V>> oversized = new HashMap<K, OffHeapValueHolder<V>>();
+    List<List<K>> keysBySegment = groupBySegment(map, absentKeys);
+    for (int i = 0; i < keysBySegment.size(); i++) {
+      List<K> segmentKeys = keysBySegment.get(i);
+      if (segmentKeys == null) {
+        continue;
+      }
+      Segment<K, OffHeapValueHolder<V>> segment = segments.get(i);
+      Lock lock = segment.writeLock();
+      lock.lock();
+      try {
+        long now = timeSource.getTimeMillis();
+        for (K key : segmentKeys) {
+          OffHeapValueHolder<V> present = liveValue(segment, key, now);
+          if (present != null) {
+            setAccessTimeAndExpiry(key, present, now);
+            result.put(key, present);
+            continue;
+          }
+          V computedValue = computed.get(key);
+          OffHeapValueHolder<V> newValue = null;
+          if (computedValue != null) {
+            checkValue(computedValue);
+            newValue = newCreateValueHolder(key, computedValue, now);
+          }
+          if (newValue != null) {
+            try {
+              segment.put(key, newValue);
+            } catch (OversizeMappingException e) {
+              // making room takes other segments' locks: install it once this one is released
+              oversized.put(key, newValue);
+              continue;
+            }
+          }
+          result.put(key, newValue);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    for (Map.Entry<K, OffHeapValueHolder<V>> entry : oversized.entrySet()) {
+      final OffHeapValueHolder<V> newValue = entry.getValue();
+      result.put(entry.getKey(), internalComputeIfAbsent(entry.getKey(), new Function<K, V>() {
+        @Override
+        public V apply(K k) {
+          return newValue.value();
+        }
+      }, false));
+    }
+  }
+
+  /**
+   * Returns the unexpired mapping of {@code key} in {@code segment}, removing it if it expired.
+   * The caller holds the segment's write lock.
+   */
+  private OffHeapValueHolder<V> liveValue(Segment<K, OffHeapValueHolder<V>> segment, K key, long now) {
+    OffHeapValueHolder<V> mappedValue = segment.get(key);
+    if (mappedValue != null && mappedValue.isExpired(now, TimeUnit.MILLISECONDS)) {
+      segment.remove(key);
+      onExpiration(key, mappedValue);
+      return null;
+    }
+    return mappedValue;
+  }
+
+  /**
+   * Groups keys by the index of the segment they map to, the lists of segments no key maps to being {@code null}.
+   */
+  private static <K> List<List<K>> groupBySegment(EhcacheOffHeapBackingMap<K, ?> map, Set<? extends K> keys) {
+    List<List<K>> keysBySegment = new ArrayList<List<K>>(Collections.<List<K>>nCopies(map.getSegments().size(), null));
+    for (K key : keys) {
+      int index = map.getIndexFor(key.hashCode());
+      List<K> segmentKeys = keysBySegment.get(index);
+      if (segmentKeys == null) {
+        segmentKeys = new ArrayList<K>();
+        keysBySegment.set(index, segmentKeys);
+      }
+      segmentKeys.add(key);
+    }
+    return keysBySegment;
   }
 
   @Override
@@ -650,7 +960,7 @@ public abstract class AbstractOffHeapStore<K, V> implements AuthoritativeTier<K,
 
   /**
    * {@inheritDoc}
-   * Note that this implementation is only valid for a lower caching tier.
+   * Note that this implementation is only valid for a caching tier.
    */
   @Override
   public ValueHolder<V> getOrComputeIfAbsent(final K key, final Function<K, ValueHolder<V>> source) throws CacheAccessException {
@@ -658,7 +968,10 @@ public abstract class AbstractOffHeapStore<K, V> implements AuthoritativeTier<K,
       @Override
       public OffHeapValueHolder<V> apply(K k, OffHeapValueHolder<V> offHeapValueHolder) {
         if (offHeapValueHolder != null) {
-          throw new AssertionError();
+          if (!offHeapValueHolder.isExpired(timeSource.getTimeMillis(), TimeUnit.MILLISECONDS)) {
+            return offHeapValueHolder;
+          }
+          onExpiration(k, offHeapValueHolder);
         }
         ValueHolder<V> valueHolder = source.apply(k);
         if (valueHolder != null) {
@@ -724,8 +1037,21 @@ public abstract class AbstractOffHeapStore<K, V> implements AuthoritativeTier<K,
   }
 
   private OffHeapValueHolder<V> newTransferValueHolder(ValueHolder<V> valueHolder) {
-    return new OffHeapValueHolder<V>(valueHolder.getId(), valueHolder.value(), valueHolder.creationTime(OffHeapValueHolder.TIME_UNIT),
-        valueHolder.expirationTime(OffHeapValueHolder.TIME_UNIT), valueHolder.lastAccessTime(OffHeapValueHolder.TIME_UNIT), valueHolder.hits(), null);
+    ByteBuffer binaryValue = null;
+    if (valueHolder instanceof BinaryValueHolder) {
+      @SuppressWarnings("unchecked")
+      BinaryValueHolder<V> binaryValueHolder = (BinaryValueHolder<V>) valueHolder;
+      binaryValue = binaryValueHolder.getBinaryValue(valueSerializer);
+    }
+    if (binaryValue != null) {
+      // the other tier holds the value in our serial form already: move the bytes rather than the value
+      int binaryValueHash = valueSerializer instanceof BinaryComparableSerializer ? OffHeapValueHolderPortability.binaryHash(binaryValue) : 0;
+      return new OffHeapValueHolder<V>(valueHolder.getId(), binaryValue, binaryValueHash, valueSerializer, valueHolder.creationTime(OffHeapValueHolder.TIME_UNIT),
+          valueHolder.expirationTime(OffHeapValueHolder.TIME_UNIT), valueHolder.lastAccessTime(OffHeapValueHolder.TIME_UNIT), valueHolder.hits(), null);
+    } else {
+      return new OffHeapValueHolder<V>(valueHolder.getId(), valueHolder.value(), valueHolder.creationTime(OffHeapValueHolder.TIME_UNIT),
+          valueHolder.expirationTime(OffHeapValueHolder.TIME_UNIT), valueHolder.lastAccessTime(OffHeapValueHolder.TIME_UNIT), valueHolder.hits(), null);
+    }
   }
 
   public void handleOversizeMappingException(K key, OversizeMappingException cause) throws CacheAccessException {
@@ -784,6 +1110,18 @@ public abstract class AbstractOffHeapStore<K, V> implements AuthoritativeTier<K,
     return result;
   }
 
+  /**
+   * Serializes the given value when the value serializer is binary comparable, so that conditional operations can
+   * compare it against stored values without de-serializing them.
+   */
+  private ByteBuffer comparableBinaryOf(V value) {
+    if (valueSerializer instanceof BinaryComparableSerializer) {
+      return valueSerializer.serialize(value);
+    } else {
+      return null;
+    }
+  }
+
   private void checkKey(K keyObject) {
     if (keyObject == null) {
       throw new NullPointerException();
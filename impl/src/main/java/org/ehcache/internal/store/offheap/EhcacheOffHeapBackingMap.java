@@ -38,6 +38,8 @@ public interface EhcacheOffHeapBackingMap<K, V> extends ConcurrentMap<K, V> {
   Integer getAndSetMetadata(K key, int mask, int metadata);
 
   List<Segment<K, V>> getSegments();
+
+  int getIndexFor(int hash);
   
   boolean shrinkOthers(int excludedHash);
 }
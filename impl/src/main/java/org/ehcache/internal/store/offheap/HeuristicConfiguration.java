@@ -16,6 +16,7 @@
 
 package org.ehcache.internal.store.offheap;
 
+import org.terracotta.offheapstore.storage.PointerSize;
 import org.terracotta.offheapstore.util.DebuggingUtils;
 
 import static org.ehcache.internal.store.offheap.OffHeapStoreUtils.getAdvancedBooleanConfigProperty;
@@ -33,9 +34,11 @@ public class HeuristicConfiguration {
   private static final int MAXIMUM_CHUNK_SIZE = 1 * 1024 * 1024 * 1024;
   private static final int MINIMUM_SEGMENT_COUNT = 16;
   private static final int MAXIMUM_SEGMENT_COUNT = 16 * 1024;
+  private static final int LARGE_TIER_MAXIMUM_SEGMENT_COUNT = 64 * 1024;
+  private static final int LARGE_TIER_MINIMUM_PAGE_SIZE = 4 * 1024;
   private static final int MAXIMAL_SEGMENT_SIZE_RATIO = 4;
   private static final int INITIAL_SEGMENT_SIZE_RATIO = 16;
-  private static final int ASSUMED_KEY_VALUE_SIZE = 1024;
+  public static final int DEFAULT_ASSUMED_KEY_VALUE_SIZE = 1024;
 
   private static final int AGGRESSIVE_INITIAL_SEGMENT_SIZE_RATIO = 1;
 
@@ -48,30 +51,62 @@ public class HeuristicConfiguration {
   private final int maximalSegmentSizeRatio;
   private final int initialSegmentSizeRatio;
   private final int assumedKeyValueSize;
+  private final boolean largeTier;
 
   public HeuristicConfiguration(long maximumSize) {
+    this(maximumSize, DEFAULT_ASSUMED_KEY_VALUE_SIZE);
+  }
+
+  /**
+   * Creates a configuration sized for entries whose encoded key and value take about {@code assumedKeyValueSize}
+   * bytes.
+   *
+   * @param maximumSize the maximum size in bytes
+   * @param assumedKeyValueSize the expected encoded size of an entry in bytes
+   */
+  public HeuristicConfiguration(long maximumSize, int assumedKeyValueSize) {
+    this(maximumSize, assumedKeyValueSize, false);
+  }
+
+  /**
+   * Creates a configuration sized for entries whose encoded key and value take about {@code assumedKeyValueSize}
+   * bytes, for a large tier if {@code largeTier} is true.
+   * <p>
+   * A large tier spreads its entries over up to 64K segments instead of 16K, and addresses the data of each segment
+   * with long pointers so that no segment is limited to 2GB, whatever its share of hundreds of gigabytes.
+   *
+   * @param maximumSize the maximum size in bytes
+   * @param assumedKeyValueSize the expected encoded size of an entry in bytes
+   * @param largeTier whether the configuration is for a large tier
+   */
+  public HeuristicConfiguration(long maximumSize, int assumedKeyValueSize, boolean largeTier) {
+    if (assumedKeyValueSize <= 0) {
+      throw new IllegalArgumentException("Assumed key value size must be positive: " + assumedKeyValueSize);
+    }
     if (maximumSize < MINIMUM_MAX_MEMORY_IN_BYTES) {
         throw new IllegalArgumentException("The value of maxBytesLocalOffHeap is less than the minimum allowed value of " + MINIMUM_MAX_MEMORY +
                 ". Reconfigure maxBytesLocalOffHeap in ehcache.xml or programmatically.");
     }
     this.maximumSize = maximumSize;
+    this.largeTier = largeTier;
+    int defaultMaximumSegmentCount = largeTier ? LARGE_TIER_MAXIMUM_SEGMENT_COUNT : MAXIMUM_SEGMENT_COUNT;
 
     if (getAdvancedBooleanConfigProperty("aggressive", false)) {
       this.idealMaxSegmentSize = (int) getAdvancedMemorySizeConfigProperty("idealMaxSegmentSize", IDEAL_MAX_SEGMENT_SIZE);
       this.maximumChunkSize = (int) getAdvancedMemorySizeConfigProperty("maximumChunkSize", MAXIMUM_CHUNK_SIZE);
       this.minimumSegmentCount = (int) getAdvancedMemorySizeConfigProperty("minimumSegmentCount", MINIMUM_SEGMENT_COUNT);
-      this.maximumSegmentCount = (int) getAdvancedMemorySizeConfigProperty("maximumSegmentCount", MAXIMUM_SEGMENT_COUNT);
+      this.maximumSegmentCount = (int) getAdvancedMemorySizeConfigProperty("maximumSegmentCount", defaultMaximumSegmentCount);
       this.maximalSegmentSizeRatio = (int) getAdvancedMemorySizeConfigProperty("maximalSegmentSizeRatio", MAXIMAL_SEGMENT_SIZE_RATIO);
       this.initialSegmentSizeRatio = (int) getAdvancedMemorySizeConfigProperty("initialSegmentSizeRatio", AGGRESSIVE_INITIAL_SEGMENT_SIZE_RATIO);
-      this.assumedKeyValueSize = (int) getAdvancedMemorySizeConfigProperty("assumedKeyValueSize", ASSUMED_KEY_VALUE_SIZE);
+      this.assumedKeyValueSize = (int) getAdvancedMemorySizeConfigProperty("assumedKeyValueSize", assumedKeyValueSize);
     } else {
       this.idealMaxSegmentSize = (int) getAdvancedMemorySizeConfigProperty("idealMaxSegmentSize", IDEAL_MAX_SEGMENT_SIZE);
       this.maximumChunkSize = (int) getAdvancedMemorySizeConfigProperty("maximumChunkSize", MAXIMUM_CHUNK_SIZE);
       this.minimumSegmentCount = (int) getAdvancedMemorySizeConfigProperty("minimumSegmentCount", MINIMUM_SEGMENT_COUNT);
-      this.maximumSegmentCount = (int) getAdvancedMemorySizeConfigProperty("maximumSegmentCount", MAXIMUM_SEGMENT_COUNT);
+      this.maximumSegmentCount = (int) getAdvancedMemorySizeConfigProperty("maximumSegmentCount", defaultMaximumSegmentCount);
       this.maximalSegmentSizeRatio = (int) getAdvancedMemorySizeConfigProperty("maximalSegmentSizeRatio", MAXIMAL_SEGMENT_SIZE_RATIO);
       this.initialSegmentSizeRatio = (int) getAdvancedMemorySizeConfigProperty("initialSegmentSizeRatio", INITIAL_SEGMENT_SIZE_RATIO);
-      this.assumedKeyValueSize = (int) getAdvancedMemorySizeConfigProperty("assumedKeyValueSize", ASSUMED_KEY_VALUE_SIZE);
+      this.assumedKeyValueSize = (int) getAdvancedMemorySizeConfigProperty("assumedKeyValueSize", assumedKeyValueSize);
     }
   }
 
@@ -87,12 +122,36 @@ public class HeuristicConfiguration {
     return (int) Math.min(getMaximumSize(), maximumChunkSize);
   }
 
+  public int getAssumedKeyValueSize() {
+    return assumedKeyValueSize;
+  }
+
   public int getConcurrency() {
     return Integer.highestOneBit((int) Math.min(maximumSegmentCount, Math.max(minimumSegmentCount, getMaximumSize() / idealMaxSegmentSize)));
   }
 
+  /**
+   * Returns the size of the pointers addressing the data of a segment.
+   */
+  public PointerSize getPointerSize() {
+    return largeTier ? PointerSize.LONG : PointerSize.INT;
+  }
+
   public int getInitialSegmentTableSize() {
-    return Math.max(1, getSegmentDataPageSize() / assumedKeyValueSize);
+    return Math.max(1, getInitialSegmentDataPageSize() / assumedKeyValueSize);
+  }
+
+  /**
+   * Returns the size of the first data page of a segment. Following pages double in size up to
+   * {@link #getSegmentDataPageSize()}, so that the many segments of a sparsely filled large tier each only hold
+   * small pages.
+   */
+  public int getInitialSegmentDataPageSize() {
+    if (largeTier) {
+      return Math.min(getSegmentDataPageSize(), Integer.highestOneBit(Math.max(LARGE_TIER_MINIMUM_PAGE_SIZE, assumedKeyValueSize)));
+    } else {
+      return getSegmentDataPageSize();
+    }
   }
 
   public int getSegmentDataPageSize() {
@@ -100,7 +159,7 @@ public class HeuristicConfiguration {
   }
 
   private long getInitialSegmentCapacity() {
-    return getMaximumSize() / (getConcurrency() * initialSegmentSizeRatio * (assumedKeyValueSize + 16));
+    return Math.max(1L, getMaximumSize() / ((long) getConcurrency() * initialSegmentSizeRatio * (assumedKeyValueSize + 16)));
   }
 
   @Override
@@ -111,7 +170,10 @@ public class HeuristicConfiguration {
     sb.append("Maximum Chunk Size         : ").append(DebuggingUtils.toBase2SuffixedString(getMaximumChunkSize())).append("B\n");
     sb.append("Concurrency                : ").append(getConcurrency()).append("\n");
     sb.append("Initial Segment Table Size : ").append(DebuggingUtils.toBase2SuffixedString(getInitialSegmentTableSize())).append(" slots\n");
+    sb.append("Initial Data Page Size     : ").append(DebuggingUtils.toBase2SuffixedString(getInitialSegmentDataPageSize())).append("B\n");
     sb.append("Segment Data Page Size     : ").append(DebuggingUtils.toBase2SuffixedString(getSegmentDataPageSize())).append("B\n");
+    sb.append("Assumed Key Value Size     : ").append(DebuggingUtils.toBase2SuffixedString(getAssumedKeyValueSize())).append("B\n");
+    sb.append("Pointer Size               : ").append(getPointerSize()).append("\n");
     return sb.toString();
   }
 
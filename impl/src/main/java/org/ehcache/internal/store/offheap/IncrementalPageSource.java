@@ -0,0 +1,177 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store.offheap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terracotta.offheapstore.buffersource.BufferSource;
+import org.terracotta.offheapstore.paging.OffHeapStorageArea;
+import org.terracotta.offheapstore.paging.Page;
+import org.terracotta.offheapstore.paging.PageSource;
+import org.terracotta.offheapstore.paging.UpfrontAllocatingPageSource;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link PageSource} reserving its memory in chunks as the maps using it grow, instead of all of it upfront.
+ * <p>
+ * Each chunk is served by its own {@link UpfrontAllocatingPageSource}. Allocations first try the existing chunks,
+ * then reserve a new one while the maximum size allows it, and only then steal pages from victims. When given an
+ * executor, the page source also reserves a chunk in the background as soon as the last one starts being used, so
+ * that growing rarely waits for the memory to be allocated and zeroed.
+ */
+class IncrementalPageSource implements PageSource {
+
+  private static final Logger LOG = LoggerFactory.getLogger(IncrementalPageSource.class);
+
+  private final BufferSource bufferSource;
+  private final long maximumSize;
+  private final int chunkSize;
+  private final Executor reservationExecutor;
+
+  private final List<UpfrontAllocatingPageSource> chunks = new CopyOnWriteArrayList<UpfrontAllocatingPageSource>();
+  private final Map<Page, PageSource> pageOwners = Collections.synchronizedMap(new IdentityHashMap<Page, PageSource>());
+
+  private final Lock growthLock = new ReentrantLock();
+  private final AtomicBoolean reservingAhead = new AtomicBoolean();
+  private volatile long reservedSize;
+
+  IncrementalPageSource(BufferSource bufferSource, long maximumSize, int chunkSize, Executor reservationExecutor) {
+    this.bufferSource = bufferSource;
+    this.maximumSize = maximumSize;
+    this.chunkSize = chunkSize;
+    this.reservationExecutor = reservationExecutor;
+    reserveAhead();
+  }
+
+  @Override
+  public Page allocate(int size, boolean thief, boolean victim, OffHeapStorageArea owner) {
+    int scanned = 0;
+    while (true) {
+      List<UpfrontAllocatingPageSource> current = chunks;
+      for (int i = scanned; i < current.size(); i++) {
+        UpfrontAllocatingPageSource chunk = current.get(i);
+        Page page = chunk.allocate(size, false, victim, owner);
+        if (page != null) {
+          if (i == current.size() - 1) {
+            reserveAhead();
+          }
+          return owned(page, chunk);
+        }
+      }
+      scanned = current.size();
+      if (!reserveChunk(scanned)) {
+        break;
+      }
+    }
+
+    if (thief) {
+      for (UpfrontAllocatingPageSource chunk : chunks) {
+        Page page = chunk.allocate(size, true, victim, owner);
+        if (page != null) {
+          return owned(page, chunk);
+        }
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public void free(Page page) {
+    PageSource chunk = pageOwners.remove(page);
+    if (chunk == null) {
+      throw new IllegalArgumentException("Page not allocated by this page source: " + page);
+    }
+    chunk.free(page);
+  }
+
+  long getReservedSize() {
+    return reservedSize;
+  }
+
+  private Page owned(Page page, PageSource chunk) {
+    pageOwners.put(page, chunk);
+    return page;
+  }
+
+  /**
+   * Reserves a new chunk unless another one got reserved since the caller saw {@code knownChunks} of them.
+   *
+   * @return true if there are more chunks than {@code knownChunks}, false if the maximum size is reached
+   */
+  private boolean reserveChunk(int knownChunks) {
+    growthLock.lock();
+    try {
+      if (chunks.size() > knownChunks) {
+        return true;
+      }
+      long size = Math.min(chunkSize, maximumSize - reservedSize);
+      if (size <= 0) {
+        return false;
+      }
+      UpfrontAllocatingPageSource chunk;
+      try {
+        chunk = new UpfrontAllocatingPageSource(bufferSource, size, (int) size, (int) size);
+      } catch (IllegalArgumentException e) {
+        LOG.warn("Could not reserve another {} bytes of off-heap memory, {} bytes reserved so far", size, reservedSize, e);
+        return false;
+      } catch (OutOfMemoryError e) {
+        LOG.warn("Could not reserve another {} bytes of off-heap memory, {} bytes reserved so far", size, reservedSize, e);
+        return false;
+      }
+      chunks.add(chunk);
+      reservedSize += size;
+      return true;
+    } finally {
+      growthLock.unlock();
+    }
+  }
+
+  /**
+   * Reserves the next chunk in the background, if there is an executor and room for one.
+   */
+  private void reserveAhead() {
+    Executor executor = reservationExecutor;
+    if (executor == null || reservedSize >= maximumSize || !reservingAhead.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            reserveChunk(chunks.size());
+          } finally {
+            reservingAhead.set(false);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Not reserving off-heap memory ahead of demand", e);
+      reservingAhead.set(false);
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.store.offheap;
+
+import org.terracotta.offheapstore.paging.OffHeapStorageArea;
+import org.terracotta.offheapstore.paging.Page;
+import org.terracotta.offheapstore.paging.PageSource;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link PageSource} refusing to allocate beyond a limit that can be lowered at runtime, making the maps using it
+ * evict to stay within the limit. Memory already reserved by the delegate is not returned to it.
+ */
+class LimitedPageSource implements PageSource {
+
+  private final PageSource delegate;
+  private final AtomicLong allocatedSize = new AtomicLong();
+  private volatile long limit;
+
+  LimitedPageSource(PageSource delegate, long limit) {
+    this.delegate = delegate;
+    this.limit = limit;
+  }
+
+  @Override
+  public Page allocate(int size, boolean thief, boolean victim, OffHeapStorageArea owner) {
+    if (allocatedSize.addAndGet(size) > limit) {
+      allocatedSize.addAndGet(-size);
+      return null;
+    }
+    Page page = delegate.allocate(size, thief, victim, owner);
+    if (page == null) {
+      allocatedSize.addAndGet(-size);
+    } else if (page.size() != size) {
+      allocatedSize.addAndGet(page.size() - size);
+    }
+    return page;
+  }
+
+  @Override
+  public void free(Page page) {
+    allocatedSize.addAndGet(-page.size());
+    delegate.free(page);
+  }
+
+  long getAllocatedSize() {
+    return allocatedSize.get();
+  }
+
+  long getLimit() {
+    return limit;
+  }
+
+  void setLimit(long limit) {
+    this.limit = limit;
+  }
+}
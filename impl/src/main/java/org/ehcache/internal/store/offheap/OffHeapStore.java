@@ -16,8 +16,11 @@
 
 package org.ehcache.internal.store.offheap;
 
+import org.ehcache.CacheConfigurationChangeEvent;
 import org.ehcache.CacheConfigurationChangeListener;
+import org.ehcache.CacheConfigurationProperty;
 import org.ehcache.config.ResourcePool;
+import org.ehcache.config.ResourcePools;
 import org.ehcache.config.ResourceType;
 import org.ehcache.config.units.MemoryUnit;
 import org.ehcache.exceptions.CacheAccessException;
@@ -30,11 +33,13 @@ import org.ehcache.internal.store.offheap.portability.SerializerPortability;
 import org.ehcache.spi.ServiceProvider;
 import org.ehcache.spi.cache.Store;
 import org.ehcache.spi.cache.tiering.AuthoritativeTier;
+import org.ehcache.spi.cache.tiering.CachingTier;
 import org.ehcache.spi.cache.tiering.LowerCachingTier;
 import org.ehcache.spi.serialization.SerializationProvider;
 import org.ehcache.spi.serialization.Serializer;
 import org.ehcache.spi.service.ServiceConfiguration;
 import org.ehcache.spi.service.ServiceDependencies;
+import org.ehcache.statistics.StoreOperationOutcomes;
 import org.ehcache.util.ConcurrentWeakIdentityHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,32 +47,81 @@ import org.terracotta.offheapstore.paging.PageSource;
 import org.terracotta.offheapstore.paging.UpfrontAllocatingPageSource;
 import org.terracotta.offheapstore.pinning.PinnableSegment;
 import org.terracotta.offheapstore.storage.OffHeapBufferStorageEngine;
-import org.terracotta.offheapstore.storage.PointerSize;
 import org.terracotta.offheapstore.storage.portability.Portability;
 import org.terracotta.offheapstore.util.Factory;
+import org.terracotta.statistics.StatisticsManager;
+import org.terracotta.statistics.observer.OperationObserver;
 
+import java.lang.ref.WeakReference;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.ehcache.config.EvictionVeto;
 import org.ehcache.function.Predicates;
 
 import static org.ehcache.internal.store.offheap.OffHeapStoreUtils.getBufferSource;
+import static org.ehcache.spi.ServiceLocator.findSingletonAmongst;
+import static org.terracotta.statistics.StatisticBuilder.operation;
 
 /**
  * OffHeapStore
  */
-public class OffHeapStore<K, V> extends AbstractOffHeapStore<K, V> {
+public class OffHeapStore<K, V> extends AbstractOffHeapStore<K, V> implements CachingTier<K, V> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(OffHeapStore.class);
+
+  static final int SHRINK_BATCH_SIZE = 1000;
 
   private final Predicate<Map.Entry<K, OffHeapValueHolder<V>>> evictionVeto;
   private final Serializer<K> keySerializer;
   private final Serializer<V> valueSerializer;
   private final long sizeInBytes;
+  private final OffHeapStoreServiceConfiguration.AllocationMode allocationMode;
+  private final int expectedEntrySize;
+  private final boolean largeTier;
 
   private volatile EhcacheConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>> map;
+  private volatile HeuristicConfiguration geometry;
+  private volatile LimitedPageSource pageSource;
+
+  private final OperationObserver<StoreOperationOutcomes.ShrinkOutcome> shrinkObserver = operation(StoreOperationOutcomes.ShrinkOutcome.class).named("shrink").of(this).tag("local-offheap").build();
+  private final AtomicBoolean shrinking = new AtomicBoolean();
+  private volatile Executor maintenanceExecutor;
+
+  private final CacheConfigurationChangeListener cacheConfigurationChangeListener = new CacheConfigurationChangeListener() {
+    @Override
+    public void cacheConfigurationChange(CacheConfigurationChangeEvent event) {
+      if (event.getProperty().equals(CacheConfigurationProperty.UPDATESIZE)) {
+        ResourcePool offHeapPool = ((ResourcePools) event.getNewValue()).getPoolForResource(ResourceType.Core.OFFHEAP);
+        LimitedPageSource source = pageSource;
+        if (offHeapPool != null && source != null) {
+          // the memory reserved upfront bounds the limit
+          long limit = Math.min(((MemoryUnit) offHeapPool.getUnit()).toBytes(offHeapPool.getSize()), sizeInBytes);
+          if (limit != source.getLimit()) {
+            LOG.info("Setting size: " + offHeapPool.getSize() + " " + offHeapPool.getUnit());
+            source.setLimit(limit);
+            if (source.getAllocatedSize() > limit) {
+              shrink();
+            }
+          }
+        }
+      }
+    }
+  };
 
   public OffHeapStore(final Configuration<K, V> config, TimeSource timeSource, long sizeInBytes) {
+    this(config, timeSource, sizeInBytes, new OffHeapStoreServiceConfiguration());
+  }
+
+  public OffHeapStore(final Configuration<K, V> config, TimeSource timeSource, long sizeInBytes, OffHeapStoreServiceConfiguration offHeapStoreConfig) {
     super("local-offheap", config, timeSource);
     EvictionVeto<? super K, ? super V> veto = config.getEvictionVeto();
     if (veto != null) {
@@ -78,20 +132,170 @@ public class OffHeapStore<K, V> extends AbstractOffHeapStore<K, V> {
     this.keySerializer = config.getKeySerializer();
     this.valueSerializer = config.getValueSerializer();
     this.sizeInBytes = sizeInBytes;
+    this.allocationMode = offHeapStoreConfig.getAllocationMode();
+    this.expectedEntrySize = offHeapStoreConfig.getExpectedEntrySize();
+    this.largeTier = offHeapStoreConfig.isLargeTier();
+
+    registerGeometryStatistics(this);
+  }
+
+  /**
+   * Exposes the segment geometry of the given store. The statistics only hold the store weakly, so that they do not
+   * keep it, and the memory it reserved, from being collected once the store is gone.
+   */
+  private static void registerGeometryStatistics(OffHeapStore<?, ?> store) {
+    final WeakReference<OffHeapStore<?, ?>> storeRef = new WeakReference<OffHeapStore<?, ?>>(store);
+    Set<String> tags = Collections.singleton("local-offheap");
+    StatisticsManager.createPassThroughStatistic(store, "segmentCount", tags, new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        HeuristicConfiguration geometry = geometryOf(storeRef.get());
+        return geometry == null ? 0 : geometry.getConcurrency();
+      }
+    });
+    StatisticsManager.createPassThroughStatistic(store, "dataPageSize", tags, new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        HeuristicConfiguration geometry = geometryOf(storeRef.get());
+        return geometry == null ? 0 : geometry.getSegmentDataPageSize();
+      }
+    });
+    StatisticsManager.createPassThroughStatistic(store, "assumedEntrySize", tags, new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        HeuristicConfiguration geometry = geometryOf(storeRef.get());
+        return geometry == null ? 0 : geometry.getAssumedKeyValueSize();
+      }
+    });
+    StatisticsManager.createPassThroughStatistic(store, "tableCapacity", tags, new Callable<Long>() {
+      @Override
+      public Long call() {
+        OffHeapStore<?, ?> current = storeRef.get();
+        EhcacheConcurrentOffHeapClockCache<?, ?> map = current == null ? null : current.map;
+        return map == null ? 0L : map.getTableCapacity();
+      }
+    });
+    StatisticsManager.createPassThroughStatistic(store, "observedEntrySize", tags, new Callable<Long>() {
+      @Override
+      public Long call() {
+        OffHeapStore<?, ?> current = storeRef.get();
+        return current == null ? 0L : current.getObservedEntrySize();
+      }
+    });
+  }
+
+  private static HeuristicConfiguration geometryOf(OffHeapStore<?, ?> store) {
+    return store == null ? null : store.geometry;
+  }
+
+  /**
+   * Returns the average number of bytes the entries stored so far occupy, {@code 0} when there are none.
+   */
+  long getObservedEntrySize() {
+    EhcacheConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>> current = map;
+    if (current == null) {
+      return 0L;
+    }
+    long entries = current.getSize();
+    return entries == 0 ? 0L : current.getDataOccupiedMemory() / entries;
   }
 
   @Override
   public List<CacheConfigurationChangeListener> getConfigurationChangeListeners() {
-    return Collections.emptyList();
+    return Collections.singletonList(cacheConfigurationChangeListener);
+  }
+
+  /**
+   * Sets the executor on which the store shrinks after its size got reduced, and reserves memory ahead of the demand
+   * when allocating incrementally. Without one, the thread updating the size does the shrinking and memory only gets
+   * reserved when needed.
+   */
+  void setMaintenanceExecutor(Executor maintenanceExecutor) {
+    this.maintenanceExecutor = maintenanceExecutor;
+  }
+
+  /**
+   * Evicts until the allocated memory fits the limit, in batches of {@link #SHRINK_BATCH_SIZE} segment shrinks, unless
+   * a shrink is already running: it reads the limit again before each step.
+   */
+  private void shrink() {
+    if (!shrinking.compareAndSet(false, true)) {
+      return;
+    }
+    shrinkObserver.begin();
+    final Executor executor = maintenanceExecutor;
+    if (executor != null) {
+      try {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            if (shrinkBatch()) {
+              try {
+                executor.execute(this);
+              } catch (RejectedExecutionException e) {
+                LOG.debug("Finishing shrink on the current thread", e);
+                while (shrinkBatch()) {
+                  // keep going
+                }
+              }
+            }
+          }
+        });
+        return;
+      } catch (RejectedExecutionException e) {
+        LOG.debug("Shrinking on the calling thread", e);
+      }
+    }
+    while (shrinkBatch()) {
+      // keep going
+    }
+  }
+
+  /**
+   * Shrinks the backing map a batch of times towards the limit.
+   * @return true if more batches are needed, false once the shrink completed or gave up
+   */
+  boolean shrinkBatch() {
+    EhcacheConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>> localMap = map;
+    LimitedPageSource source = pageSource;
+    for (int i = 0; i < SHRINK_BATCH_SIZE; i++) {
+      if (localMap == null || source.getAllocatedSize() <= source.getLimit()) {
+        shrinkObserver.end(StoreOperationOutcomes.ShrinkOutcome.SUCCESS);
+        shrinking.set(false);
+        // a size update racing with the check above left its shrink to this one
+        if (localMap != null && source.getAllocatedSize() > source.getLimit()) {
+          shrink();
+        }
+        return false;
+      }
+      if (!localMap.shrink()) {
+        LOG.warn("Giving up shrinking to {} bytes, nothing left to evict", source.getLimit());
+        shrinkObserver.end(StoreOperationOutcomes.ShrinkOutcome.FAILURE);
+        shrinking.set(false);
+        return false;
+      }
+    }
+    return true;
   }
 
   private EhcacheConcurrentOffHeapClockCache<K, OffHeapValueHolder<V>> createBackingMap(long size, Serializer<K> keySerializer, Serializer<V> valueSerializer, Predicate<Map.Entry<K, OffHeapValueHolder<V>>> evictionVeto) {
-    HeuristicConfiguration config = new HeuristicConfiguration(size);
-    PageSource source = new UpfrontAllocatingPageSource(getBufferSource(), config.getMaximumSize(), config.getMaximumChunkSize(), config.getMinimumChunkSize());
+    int assumedEntrySize = expectedEntrySize > 0 ? expectedEntrySize : HeuristicConfiguration.DEFAULT_ASSUMED_KEY_VALUE_SIZE;
+    HeuristicConfiguration config = new HeuristicConfiguration(size, assumedEntrySize, largeTier);
+    geometry = config;
+    PageSource reservingSource;
+    if (allocationMode == OffHeapStoreServiceConfiguration.AllocationMode.INCREMENTAL) {
+      reservingSource = new IncrementalPageSource(getBufferSource(), config.getMaximumSize(), config.getMinimumChunkSize(), maintenanceExecutor);
+    } else {
+      reservingSource = new UpfrontAllocatingPageSource(getBufferSource(), config.getMaximumSize(), config.getMaximumChunkSize(), config.getMinimumChunkSize());
+    }
+    LimitedPageSource source = new LimitedPageSource(reservingSource, config.getMaximumSize());
+    pageSource = source;
     Portability<K> keyPortability = new SerializerPortability<K>(keySerializer);
     Portability<OffHeapValueHolder<V>> elementPortability = new OffHeapValueHolderPortability<V>(valueSerializer);
-    Factory<OffHeapBufferStorageEngine<K, OffHeapValueHolder<V>>> storageEngineFactory = OffHeapBufferStorageEngine.createFactory(PointerSize.INT, source, config
-        .getSegmentDataPageSize(), keyPortability, elementPortability, false, true);
+    // growing data pages cannot be stolen, the segments then make room by evicting
+    boolean victim = config.getInitialSegmentDataPageSize() == config.getSegmentDataPageSize();
+    Factory<OffHeapBufferStorageEngine<K, OffHeapValueHolder<V>>> storageEngineFactory = OffHeapBufferStorageEngine.createFactory(config.getPointerSize(), source, config
+        .getInitialSegmentDataPageSize(), config.getSegmentDataPageSize(), keyPortability, elementPortability, false, victim);
 
     Factory<? extends PinnableSegment<K, OffHeapValueHolder<V>>> segmentFactory = new EhcacheSegmentFactory<K, OffHeapValueHolder<V>>(
                                                                                                          source,
@@ -109,12 +313,13 @@ public class OffHeapStore<K, V> extends AbstractOffHeapStore<K, V> {
   }
 
   @ServiceDependencies({TimeSourceService.class, SerializationProvider.class})
-  public static class Provider implements Store.Provider, AuthoritativeTier.Provider, LowerCachingTier.Provider {
+  public static class Provider implements Store.Provider, AuthoritativeTier.Provider, CachingTier.Provider, LowerCachingTier.Provider {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Provider.class);
 
     private volatile ServiceProvider serviceProvider;
     private final Set<Store<?, ?>> createdStores = Collections.newSetFromMap(new ConcurrentWeakIdentityHashMap<Store<?, ?>, Boolean>());
+    private ExecutorService maintenanceExecutor;
 
     @Override
     public <K, V> OffHeapStore<K, V> createStore(Configuration<K, V> storeConfig, ServiceConfiguration<?>... serviceConfigs) {
@@ -130,11 +335,42 @@ public class OffHeapStore<K, V> extends AbstractOffHeapStore<K, V> {
       MemoryUnit unit = (MemoryUnit)offHeapPool.getUnit();
 
 
-      OffHeapStore<K, V> offHeapStore = new OffHeapStore<K, V>(storeConfig, timeSource, unit.toBytes(offHeapPool.getSize()));
+      OffHeapStoreServiceConfiguration offHeapStoreConfig = findSingletonAmongst(OffHeapStoreServiceConfiguration.class, (Object[]) serviceConfigs);
+      if (offHeapStoreConfig == null) {
+        offHeapStoreConfig = new OffHeapStoreServiceConfiguration();
+      }
+
+      OffHeapStore<K, V> offHeapStore = new OffHeapStore<K, V>(storeConfig, timeSource, unit.toBytes(offHeapPool.getSize()), offHeapStoreConfig);
       createdStores.add(offHeapStore);
+      offHeapStore.setMaintenanceExecutor(new Executor() {
+        @Override
+        public void execute(Runnable command) {
+          getMaintenanceExecutor().execute(command);
+        }
+      });
       return offHeapStore;
     }
 
+    /**
+     * @throws RejectedExecutionException if the provider is stopped, rather than starting a thread nothing would stop
+     */
+    private synchronized ExecutorService getMaintenanceExecutor() {
+      if (serviceProvider == null) {
+        throw new RejectedExecutionException("OffHeapStore.Provider is stopped");
+      }
+      if (maintenanceExecutor == null) {
+        maintenanceExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "OffHeapStore Maintenance Thread");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+      }
+      return maintenanceExecutor;
+    }
+
     @Override
     public void releaseStore(Store<?, ?> resource) {
       if (!createdStores.contains(resource)) {
@@ -171,6 +407,12 @@ public class OffHeapStore<K, V> extends AbstractOffHeapStore<K, V> {
     public void stop() {
       this.serviceProvider = null;
       createdStores.clear();
+      synchronized (this) {
+        if (maintenanceExecutor != null) {
+          maintenanceExecutor.shutdownNow();
+          maintenanceExecutor = null;
+        }
+      }
     }
 
     @Override
@@ -189,12 +431,21 @@ public class OffHeapStore<K, V> extends AbstractOffHeapStore<K, V> {
     }
 
     @Override
-    public <K, V> LowerCachingTier<K, V> createCachingTier(Configuration<K, V> storeConfig, ServiceConfiguration<?>... serviceConfigs) {
+    public <K, V> OffHeapStore<K, V> createCachingTier(Configuration<K, V> storeConfig, ServiceConfiguration<?>... serviceConfigs) {
       return createStore(storeConfig, serviceConfigs);
     }
 
+    @Override
+    public void releaseCachingTier(CachingTier<?, ?> resource) {
+      releaseTier(resource);
+    }
+
     @Override
     public void releaseCachingTier(LowerCachingTier<?, ?> resource) {
+      releaseTier(resource);
+    }
+
+    private void releaseTier(Object resource) {
       if (!createdStores.contains(resource)) {
         throw new IllegalArgumentException("Given caching tier is not managed by this provider : " + resource);
       }
@@ -222,8 +473,17 @@ public class OffHeapStore<K, V> extends AbstractOffHeapStore<K, V> {
       }
     }
 
+    @Override
+    public void initCachingTier(CachingTier<?, ?> resource) {
+      initTier(resource);
+    }
+
     @Override
     public void initCachingTier(LowerCachingTier<?, ?> resource) {
+      initTier(resource);
+    }
+
+    private void initTier(Object resource) {
       if (!createdStores.contains(resource)) {
         throw new IllegalArgumentException("Given caching tier is not managed by this provider : " + resource);
       }
@@ -0,0 +1,108 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store.offheap;
+
+import org.ehcache.spi.service.ServiceConfiguration;
+
+/**
+ * Configures how an {@link OffHeapStore} reserves its memory and lays out its segments.
+ */
+public class OffHeapStoreServiceConfiguration implements ServiceConfiguration<OffHeapStore.Provider> {
+
+  /**
+   * How the memory of an off-heap store gets reserved.
+   */
+  public enum AllocationMode {
+    /**
+     * All the memory is reserved when the store is initialized.
+     */
+    UPFRONT,
+    /**
+     * Memory is reserved in chunks as the store grows, the next chunk being reserved in the background ahead of the
+     * demand. The store is usable right away, whatever its size.
+     */
+    INCREMENTAL
+  }
+
+  private final AllocationMode allocationMode;
+  private final int expectedEntrySize;
+  private final boolean largeTier;
+
+  public OffHeapStoreServiceConfiguration() {
+    this(AllocationMode.UPFRONT);
+  }
+
+  public OffHeapStoreServiceConfiguration(AllocationMode allocationMode) {
+    this(allocationMode, 0);
+  }
+
+  /**
+   * Creates a configuration for a store whose entries, once serialized, take about {@code expectedEntrySize} bytes.
+   * The segment tables and data pages are sized from it; with {@code 0} they are sized for 1KB per entry. The
+   * {@code observedEntrySize} statistic of the store tells the mean size of the entries it holds.
+   *
+   * @param allocationMode how the memory gets reserved
+   * @param expectedEntrySize the expected serialized size of a key and its value in bytes, or {@code 0}
+   */
+  public OffHeapStoreServiceConfiguration(AllocationMode allocationMode, int expectedEntrySize) {
+    this(allocationMode, expectedEntrySize, false);
+  }
+
+  /**
+   * Creates a configuration for a store that may be a large tier, of up to hundreds of gigabytes. A large tier is
+   * split in up to 64K segments instead of 16K, each addressing its data with long pointers. Combine it with
+   * {@link AllocationMode#INCREMENTAL} so that the memory gets reserved as the tier fills.
+   *
+   * @param allocationMode how the memory gets reserved
+   * @param expectedEntrySize the expected serialized size of a key and its value in bytes, or {@code 0}
+   * @param largeTier whether the store is a large tier
+   */
+  public OffHeapStoreServiceConfiguration(AllocationMode allocationMode, int expectedEntrySize, boolean largeTier) {
+    if (allocationMode == null) {
+      throw new NullPointerException("Allocation mode must not be null");
+    }
+    if (expectedEntrySize < 0) {
+      throw new IllegalArgumentException("Expected entry size must not be negative: " + expectedEntrySize);
+    }
+    this.allocationMode = allocationMode;
+    this.expectedEntrySize = expectedEntrySize;
+    this.largeTier = largeTier;
+  }
+
+  public AllocationMode getAllocationMode() {
+    return allocationMode;
+  }
+
+  /**
+   * Returns the expected serialized size of an entry in bytes, {@code 0} when not known.
+   */
+  public int getExpectedEntrySize() {
+    return expectedEntrySize;
+  }
+
+  /**
+   * @return whether the store is a large tier
+   */
+  public boolean isLargeTier() {
+    return largeTier;
+  }
+
+  @Override
+  public Class<OffHeapStore.Provider> getServiceType() {
+    return OffHeapStore.Provider.class;
+  }
+}
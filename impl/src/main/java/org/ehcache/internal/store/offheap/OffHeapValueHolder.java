@@ -16,21 +16,28 @@
 
 package org.ehcache.internal.store.offheap;
 
+import org.ehcache.exceptions.SerializerException;
+import org.ehcache.internal.store.BinaryValueHolder;
 import org.ehcache.internal.store.offheap.portability.OffHeapValueHolderPortability;
 import org.ehcache.spi.cache.AbstractValueHolder;
 import org.ehcache.spi.cache.Store;
+import org.ehcache.spi.serialization.Serializer;
 import org.terracotta.offheapstore.storage.portability.WriteContext;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.TimeUnit;
 
 /**
 * OffHeapValueHolder
 */
-public final class OffHeapValueHolder<V> extends AbstractValueHolder<V> {
+public final class OffHeapValueHolder<V> extends AbstractValueHolder<V> implements BinaryValueHolder<V> {
 
   public static final TimeUnit TIME_UNIT = TimeUnit.MILLISECONDS;
 
-  private final V value;
+  private volatile V value;
+  private final ByteBuffer binaryValue;
+  private final int binaryValueHash;
+  private final Serializer<V> serializer;
   private final WriteContext writeContext;
 
   public OffHeapValueHolder(long id, V value, long creationTime, long expireTime) {
@@ -41,13 +48,62 @@ public final class OffHeapValueHolder<V> extends AbstractValueHolder<V> {
     super(id, creationTime, expireTime);
     setLastAccessTime(lastAccessTime, TIME_UNIT);
     this.value = value;
+    this.binaryValue = null;
+    this.binaryValueHash = 0;
+    this.serializer = null;
+    this.setHits(hits);
+    this.writeContext = writeContext;
+  }
+
+  public OffHeapValueHolder(long id, ByteBuffer binaryValue, int binaryValueHash, Serializer<V> serializer, long creationTime, long expireTime, long lastAccessTime, long hits, WriteContext writeContext) {
+    super(id, creationTime, expireTime);
+    setLastAccessTime(lastAccessTime, TIME_UNIT);
+    this.binaryValue = binaryValue;
+    this.binaryValueHash = binaryValueHash;
+    this.serializer = serializer;
     this.setHits(hits);
     this.writeContext = writeContext;
   }
 
   @Override
   public V value() {
-    return value;
+    V v = value;
+    if (v == null) {
+      try {
+        v = serializer.read(binaryValue.duplicate());
+      } catch (ClassNotFoundException e) {
+        throw new SerializerException(e);
+      }
+      value = v;
+    }
+    return v;
+  }
+
+  @Override
+  public ByteBuffer getBinaryValue(Serializer<V> serializer) {
+    if (binaryValue != null && serializer == this.serializer) {
+      return binaryValue.asReadOnlyBuffer();
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Checks whether this holder's value equals the given one. When both serial forms are available they are compared
+   * instead, first rejecting on the stored hash, which avoids de-serializing this holder's value. Callers must only
+   * provide a serial form when the value serializer is binary comparable.
+   *
+   * @param other the value to compare to
+   * @param otherBinary the serial form of {@code other}, or {@code null}
+   * @param otherHash the hash of {@code otherBinary}, as computed by {@link OffHeapValueHolderPortability#binaryHash(ByteBuffer)}
+   * @return {@code true} if this holder's value equals {@code other}
+   */
+  public boolean valueEquals(V other, ByteBuffer otherBinary, int otherHash) {
+    if (otherBinary != null && binaryValue != null) {
+      return otherHash == binaryValueHash && binaryValue.equals(otherBinary);
+    } else {
+      return value().equals(other);
+    }
   }
 
   @Override
@@ -58,7 +114,7 @@ public final class OffHeapValueHolder<V> extends AbstractValueHolder<V> {
     OffHeapValueHolder that = (OffHeapValueHolder)other;
 
     if (!super.equals(that)) return false;
-    if (!value.equals(that.value)) return false;
+    if (!value().equals(that.value())) return false;
 
     return true;
   }
@@ -71,7 +127,7 @@ public final class OffHeapValueHolder<V> extends AbstractValueHolder<V> {
   @Override
   public int hashCode() {
     int result = 1;
-    result = 31 * result + value.hashCode();
+    result = 31 * result + value().hashCode();
     result = 31 * result + super.hashCode();
     return result;
   }
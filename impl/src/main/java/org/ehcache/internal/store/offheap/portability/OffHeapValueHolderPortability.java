@@ -17,14 +17,13 @@
 package org.ehcache.internal.store.offheap.portability;
 
 import org.ehcache.internal.store.offheap.OffHeapValueHolder;
+import org.ehcache.spi.serialization.BinaryComparableSerializer;
 import org.ehcache.spi.serialization.Serializer;
 
 import org.terracotta.offheapstore.storage.portability.WriteBackPortability;
 import org.terracotta.offheapstore.storage.portability.WriteContext;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import org.ehcache.exceptions.SerializerException;
 
 /**
  * OffHeapValueHolderPortability
@@ -35,24 +34,51 @@ public class OffHeapValueHolderPortability<V> implements WriteBackPortability<Of
   public static final int EXPIRE_TIME_OFFSET = 24;
   public static final int HITS_OFFSET = 32;
 
-  // 5 longs: id, access, expire, creation time, hits
-  private static final int FIELDS_OVERHEAD = 40;
+  /**
+   * Version of the encoding, to be bumped on any change to it so that persisted stores with another one get
+   * rejected. Version 1 had no hash of the serialized value.
+   */
+  public static final int LAYOUT_VERSION = 2;
+
+  // 5 longs: id, access, expire, creation time, hits and 1 int: hash of the serialized value
+  private static final int FIELDS_OVERHEAD = 44;
 
   private final Serializer<V> serializer;
+  private final boolean binaryComparable;
 
   public OffHeapValueHolderPortability(Serializer<V> serializer) {
     this.serializer = serializer;
+    this.binaryComparable = serializer instanceof BinaryComparableSerializer;
+  }
+
+  /**
+   * Hashes the remaining bytes of the given serial form, leaving its position untouched.
+   *
+   * @param binary the serial form to hash
+   * @return the hash
+   */
+  public static int binaryHash(ByteBuffer binary) {
+    int hash = 1;
+    for (int i = binary.position(); i < binary.limit(); i++) {
+      hash = 31 * hash + binary.get(i);
+    }
+    return hash;
   }
 
   @Override
   public ByteBuffer encode(OffHeapValueHolder<V> valueHolder) {
-    ByteBuffer serialized = serializer.serialize(valueHolder.value());
+    ByteBuffer serialized = valueHolder.getBinaryValue(serializer);
+    if (serialized == null) {
+      serialized = serializer.serialize(valueHolder.value());
+    }
+    int hash = binaryComparable ? binaryHash(serialized) : 0;
     ByteBuffer byteBuffer = ByteBuffer.allocate(serialized.remaining() + FIELDS_OVERHEAD);
     byteBuffer.putLong(valueHolder.getId());
     byteBuffer.putLong(valueHolder.creationTime(OffHeapValueHolder.TIME_UNIT));
     byteBuffer.putLong(valueHolder.lastAccessTime(OffHeapValueHolder.TIME_UNIT));
     byteBuffer.putLong(valueHolder.expirationTime(OffHeapValueHolder.TIME_UNIT));
     byteBuffer.putLong(valueHolder.hits());
+    byteBuffer.putInt(hash);
     byteBuffer.put(serialized);
     byteBuffer.flip();
     return byteBuffer;
@@ -70,16 +96,15 @@ public class OffHeapValueHolderPortability<V> implements WriteBackPortability<Of
 
   @Override
   public OffHeapValueHolder<V> decode(ByteBuffer byteBuffer, WriteContext writeContext) {
-    try {
-      long id = byteBuffer.getLong();
-      long creationTime = byteBuffer.getLong();
-      long lastAccessTime = byteBuffer.getLong();
-      long expireTime = byteBuffer.getLong();
-      long hits = byteBuffer.getLong();
-      OffHeapValueHolder<V> valueHolder = new OffHeapValueHolder<V>(id, serializer.read(byteBuffer), creationTime, expireTime, lastAccessTime, hits, writeContext);
-      return valueHolder;
-    } catch (ClassNotFoundException e) {
-      throw new SerializerException(e);
-    }
+    long id = byteBuffer.getLong();
+    long creationTime = byteBuffer.getLong();
+    long lastAccessTime = byteBuffer.getLong();
+    long expireTime = byteBuffer.getLong();
+    long hits = byteBuffer.getLong();
+    int hash = byteBuffer.getInt();
+    // the buffer only stays valid under the segment lock, hence the copy
+    ByteBuffer binaryValue = ByteBuffer.allocate(byteBuffer.remaining());
+    binaryValue.put(byteBuffer).flip();
+    return new OffHeapValueHolder<V>(id, binaryValue, hash, serializer, creationTime, expireTime, lastAccessTime, hits, writeContext);
   }
 }
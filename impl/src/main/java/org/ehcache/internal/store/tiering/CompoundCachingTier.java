@@ -33,7 +33,17 @@ import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.ehcache.spi.ServiceLocator.findSingletonAmongst;
 
@@ -44,31 +54,209 @@ public class CompoundCachingTier<K, V> implements CachingTier<K, V> {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CompoundCachingTier.class);
 
+  private static final int DEMOTION_BATCH_SIZE = 64;
+
+  private static final Function<Object, Store.ValueHolder<Object>> NO_SOURCE = new Function<Object, Store.ValueHolder<Object>>() {
+    @Override
+    public Store.ValueHolder<Object> apply(Object key) {
+      return null;
+    }
+  };
+
   private final CachingTier<K, V> higher;
   private final LowerCachingTier<K, V> lower;
+  private final boolean inclusive;
   private volatile InvalidationListener<K, V> invalidationListener;
 
+  private final BlockingQueue<Map.Entry<K, Store.ValueHolder<V>>> demotionQueue;
+  private final ConcurrentMap<K, Store.ValueHolder<V>> inFlightDemotions = new ConcurrentHashMap<K, Store.ValueHolder<V>>();
+  private final ConcurrentMap<K, Store.ValueHolder<V>> promotedMappings = new ConcurrentHashMap<K, Store.ValueHolder<V>>();
+  private final Executor demotionExecutor;
+  private final AtomicBoolean drainScheduled = new AtomicBoolean();
+  private final Runnable drainTask = new Runnable() {
+    @Override
+    public void run() {
+      drainDemotions();
+    }
+  };
+
   public CompoundCachingTier(CachingTier<K, V> higher, final LowerCachingTier<K, V> lower) {
+    this(higher, lower, 0, null);
+  }
+
+  public CompoundCachingTier(CachingTier<K, V> higher, final LowerCachingTier<K, V> lower, int demotionQueueSize, Executor demotionExecutor) {
+    this(higher, lower, demotionQueueSize, demotionExecutor, false);
+  }
+
+  /**
+   * Creates a compound caching tier that hands the mappings evicted from the higher tier over to the lower one.
+   * <P>
+   *   When {@code demotionQueueSize} is positive the demotions are queued and written into the lower tier in batches
+   *   by the given executor, keys in flight remain visible to readers until they land in the lower tier.
+   *   When the queue is full the demotion happens on the evicting thread.
+   * </P>
+   * <P>
+   *   An inclusive compound tier leaves the lower tier's copy in place when a mapping gets promoted, demoting it again
+   *   is then free as long as the lower tier still holds that same mapping. Evicting such a copy from the lower tier
+   *   is not reported as an invalidation while the higher tier holds the mapping.
+   * </P>
+   *
+   * @param higher the higher caching tier
+   * @param lower the lower caching tier
+   * @param demotionQueueSize the capacity of the demotion queue, {@code 0} to demote synchronously
+   * @param demotionExecutor the executor draining the demotion queue
+   * @param inclusive whether the lower tier keeps the mappings promoted to the higher one
+   */
+  public CompoundCachingTier(CachingTier<K, V> higher, final LowerCachingTier<K, V> lower, int demotionQueueSize, Executor demotionExecutor, final boolean inclusive) {
+    if (demotionQueueSize < 0) {
+      throw new IllegalArgumentException("Demotion queue size must be positive or zero, was " + demotionQueueSize);
+    }
+    if (demotionQueueSize > 0 && demotionExecutor == null) {
+      throw new IllegalArgumentException("Asynchronous demotion requires an executor");
+    }
     this.higher = higher;
     this.lower = lower;
+    this.inclusive = inclusive;
+    this.demotionQueue = demotionQueueSize > 0 ? new ArrayBlockingQueue<Map.Entry<K, Store.ValueHolder<V>>>(demotionQueueSize) : null;
+    this.demotionExecutor = demotionExecutor;
     this.higher.setInvalidationListener(new InvalidationListener<K, V>() {
       @Override
       public void onInvalidation(final K key, final Store.ValueHolder<V> valueHolder) {
-        try {
-          CompoundCachingTier.this.lower.getOrComputeIfAbsent(key, new Function<K, Store.ValueHolder<V>>() {
-            @Override
-            public Store.ValueHolder<V> apply(K k) {
-              return valueHolder;
-            }
-          });
-        } catch (CacheAccessException cae) {
-          notifyInvalidation(key, valueHolder);
-          LOGGER.warn("Error overflowing '{}' into lower caching tier {}", key, lower, cae);
+        if (inclusive) {
+          promotedMappings.remove(key);
         }
+        if (demotionQueue != null) {
+          inFlightDemotions.put(key, valueHolder);
+          if (demotionQueue.offer(new AbstractMap.SimpleImmutableEntry<K, Store.ValueHolder<V>>(key, valueHolder))) {
+            scheduleDrain();
+            return;
+          }
+          if (!inFlightDemotions.remove(key, valueHolder)) {
+            return;
+          }
+        }
+        demote(key, valueHolder);
       }
     });
   }
 
+  private void demote(final K key, final Store.ValueHolder<V> valueHolder) {
+    try {
+      writeToLower(key, valueHolder, new Function<K, Store.ValueHolder<V>>() {
+        @Override
+        public Store.ValueHolder<V> apply(K k) {
+          return valueHolder;
+        }
+      });
+    } catch (CacheAccessException cae) {
+      notifyInvalidation(key, valueHolder);
+      LOGGER.warn("Error overflowing '{}' into lower caching tier {}", key, lower, cae);
+    }
+  }
+
+  /**
+   * Writes an in flight mapping into the lower tier, unless it was promoted back or invalidated meanwhile.
+   * The in flight entry is only released while the lower tier holds the key's lock so that a concurrent reader
+   * either claims it or finds it in the lower tier.
+   */
+  private void demoteInFlight(final K key, final Store.ValueHolder<V> valueHolder) {
+    if (inFlightDemotions.get(key) != valueHolder) {
+      return;
+    }
+    try {
+      writeToLower(key, valueHolder, new Function<K, Store.ValueHolder<V>>() {
+        @Override
+        public Store.ValueHolder<V> apply(K k) {
+          return inFlightDemotions.remove(k, valueHolder) ? valueHolder : null;
+        }
+      });
+      // the lower tier may have kept its own copy without consulting the in flight entry
+      inFlightDemotions.remove(key, valueHolder);
+    } catch (CacheAccessException cae) {
+      inFlightDemotions.remove(key, valueHolder);
+      notifyInvalidation(key, valueHolder);
+      LOGGER.warn("Error overflowing '{}' into lower caching tier {}", key, lower, cae);
+    }
+  }
+
+  /**
+   * Stores the demoted mapping in the lower tier. When inclusive, the lower tier may return the copy it already holds
+   * instead, which is only kept when it has the same id and expiration time, i.e. it is the copy the mapping was
+   * promoted from.
+   */
+  private void writeToLower(K key, Store.ValueHolder<V> valueHolder, Function<K, Store.ValueHolder<V>> source) throws CacheAccessException {
+    Store.ValueHolder<V> stored = lower.getOrComputeIfAbsent(key, source);
+    if (inclusive && stored != null && !isSameMapping(stored, valueHolder)) {
+      lower.invalidate(key);
+      lower.getOrComputeIfAbsent(key, source);
+    }
+  }
+
+  private static boolean isSameMapping(Store.ValueHolder<?> a, Store.ValueHolder<?> b) {
+    return a.getId() == b.getId() && a.expirationTime(TimeUnit.MILLISECONDS) == b.expirationTime(TimeUnit.MILLISECONDS);
+  }
+
+  private void scheduleDrain() {
+    if (drainScheduled.compareAndSet(false, true)) {
+      try {
+        demotionExecutor.execute(drainTask);
+      } catch (RejectedExecutionException ree) {
+        drainDemotions();
+      }
+    }
+  }
+
+  private void drainDemotions() {
+    List<Map.Entry<K, Store.ValueHolder<V>>> batch = new ArrayList<Map.Entry<K, Store.ValueHolder<V>>>(DEMOTION_BATCH_SIZE);
+    do {
+      try {
+        while (demotionQueue.drainTo(batch, DEMOTION_BATCH_SIZE) > 0) {
+          for (Map.Entry<K, Store.ValueHolder<V>> demotion : batch) {
+            demoteInFlight(demotion.getKey(), demotion.getValue());
+          }
+          batch.clear();
+        }
+      } finally {
+        drainScheduled.set(false);
+      }
+    } while (!demotionQueue.isEmpty() && drainScheduled.compareAndSet(false, true));
+  }
+
+  private Store.ValueHolder<V> invalidateInFlight(K key) {
+    promotedMappings.remove(key);
+    Store.ValueHolder<V> valueHolder = inFlightDemotions.remove(key);
+    if (valueHolder != null) {
+      notifyInvalidation(key, valueHolder);
+    }
+    return valueHolder;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <K, V> Function<K, Store.ValueHolder<V>> noSource() {
+    return (Function) NO_SOURCE;
+  }
+
+  void discardDemotions() {
+    if (demotionQueue != null) {
+      demotionQueue.clear();
+    }
+    inFlightDemotions.clear();
+    promotedMappings.clear();
+  }
+
+  /**
+   * Tells whether the given mapping of the lower tier is also held by the higher one, either promoted or on its way
+   * down. Its eviction from the lower tier then leaves it cached: the higher tier writes it back when demoting it.
+   */
+  private boolean isHeldAbove(K key, Store.ValueHolder<V> valueHolder) {
+    Store.ValueHolder<V> promoted = promotedMappings.get(key);
+    if (promoted != null && isSameMapping(promoted, valueHolder)) {
+      return true;
+    }
+    Store.ValueHolder<V> inFlight = inFlightDemotions.get(key);
+    return inFlight != null && isSameMapping(inFlight, valueHolder);
+  }
+
   private void notifyInvalidation(K key, Store.ValueHolder<V> p) {
     final InvalidationListener<K, V> invalidationListener = this.invalidationListener;
     if (invalidationListener != null) {
@@ -99,10 +287,22 @@ public class CompoundCachingTier<K, V> implements CachingTier<K, V> {
         @Override
         public Store.ValueHolder<V> apply(K k) {
           try {
-            Store.ValueHolder<V> valueHolder = lower.getAndRemove(k);
+            Store.ValueHolder<V> valueHolder = inFlightDemotions.remove(k);
             if (valueHolder != null) {
               return valueHolder;
             }
+            if (inclusive) {
+              valueHolder = lower.getOrComputeIfAbsent(k, CompoundCachingTier.<K, V>noSource());
+              if (valueHolder != null) {
+                promotedMappings.put(k, valueHolder);
+                return valueHolder;
+              }
+            } else {
+              valueHolder = lower.getAndRemove(k);
+              if (valueHolder != null) {
+                return valueHolder;
+              }
+            }
 
             return source.apply(k);
           } catch (CacheAccessException cae) {
@@ -122,6 +322,7 @@ public class CompoundCachingTier<K, V> implements CachingTier<K, V> {
         @Override
         public K apply() {
           try {
+            invalidateInFlight(key);
             lower.invalidate(key);
           } catch (CacheAccessException cae) {
             throw new ComputationException(cae);
@@ -141,6 +342,7 @@ public class CompoundCachingTier<K, V> implements CachingTier<K, V> {
         @Override
         public K apply() {
           try {
+            invalidateInFlight(key);
             lower.invalidate(key, function);
           } catch (CacheAccessException cae) {
             throw new ComputationException(cae);
@@ -158,14 +360,28 @@ public class CompoundCachingTier<K, V> implements CachingTier<K, V> {
     try {
       higher.clear();
     } finally {
+      inFlightDemotions.clear();
+      promotedMappings.clear();
       lower.clear();
     }
   }
 
   @Override
-  public void setInvalidationListener(InvalidationListener<K, V> invalidationListener) {
+  public void setInvalidationListener(final InvalidationListener<K, V> invalidationListener) {
     this.invalidationListener = invalidationListener;
-    lower.setInvalidationListener(invalidationListener);
+    if (inclusive) {
+      lower.setInvalidationListener(new InvalidationListener<K, V>() {
+        @Override
+        public void onInvalidation(K key, Store.ValueHolder<V> valueHolder) {
+          // the authority must keep the mapping faulted for as long as the higher tier caches it
+          if (!isHeldAbove(key, valueHolder)) {
+            invalidationListener.onInvalidation(key, valueHolder);
+          }
+        }
+      });
+    } else {
+      lower.setInvalidationListener(invalidationListener);
+    }
   }
 
   @Override
@@ -181,6 +397,7 @@ public class CompoundCachingTier<K, V> implements CachingTier<K, V> {
   public static class Provider implements CachingTier.Provider {
     private volatile ServiceProvider serviceProvider;
     private final ConcurrentMap<CachingTier<?, ?>, Map.Entry<CachingTier.Provider, LowerCachingTier.Provider>> providersMap = new ConcurrentWeakIdentityHashMap<CachingTier<?, ?>, Map.Entry<CachingTier.Provider, LowerCachingTier.Provider>>();
+    private ExecutorService demotionExecutor;
 
     @Override
     public <K, V> CachingTier<K, V> createCachingTier(Store.Configuration<K, V> storeConfig, ServiceConfiguration<?>... serviceConfigs) {
@@ -199,11 +416,36 @@ public class CompoundCachingTier<K, V> implements CachingTier<K, V> {
       LowerCachingTier.Provider lowerProvider = serviceProvider.getService(compoundCachingTierServiceConfiguration.lowerProvider());
       LowerCachingTier<K, V> lowerCachingTier = lowerProvider.createCachingTier(storeConfig, serviceConfigs);
 
-      CompoundCachingTier<K, V> compoundCachingTier = new CompoundCachingTier<K, V>(higherCachingTier, lowerCachingTier);
+      int demotionQueueSize = compoundCachingTierServiceConfiguration.demotionQueueSize();
+      Executor executor = null;
+      if (demotionQueueSize > 0) {
+        executor = new Executor() {
+          @Override
+          public void execute(Runnable command) {
+            getDemotionExecutor().execute(command);
+          }
+        };
+      }
+      CompoundCachingTier<K, V> compoundCachingTier = new CompoundCachingTier<K, V>(higherCachingTier, lowerCachingTier, demotionQueueSize, executor,
+          compoundCachingTierServiceConfiguration.inclusive());
       providersMap.put(compoundCachingTier, new AbstractMap.SimpleEntry<CachingTier.Provider, LowerCachingTier.Provider>(higherProvider, lowerProvider));
       return compoundCachingTier;
     }
 
+    private synchronized ExecutorService getDemotionExecutor() {
+      if (demotionExecutor == null) {
+        demotionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "CompoundCachingTier Demotion Thread");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+      }
+      return demotionExecutor;
+    }
+
     @Override
     public void releaseCachingTier(CachingTier<?, ?> resource) {
       if (!providersMap.containsKey(resource)) {
@@ -212,6 +454,7 @@ public class CompoundCachingTier<K, V> implements CachingTier<K, V> {
       CompoundCachingTier compoundCachingTier = (CompoundCachingTier) resource;
       Map.Entry<CachingTier.Provider, LowerCachingTier.Provider> entry = providersMap.get(resource);
 
+      compoundCachingTier.discardDemotions();
       entry.getKey().releaseCachingTier(compoundCachingTier.higher);
       entry.getValue().releaseCachingTier(compoundCachingTier.lower);
     }
@@ -237,6 +480,12 @@ public class CompoundCachingTier<K, V> implements CachingTier<K, V> {
     public void stop() {
       this.serviceProvider = null;
       this.providersMap.clear();
+      synchronized (this) {
+        if (demotionExecutor != null) {
+          demotionExecutor.shutdownNow();
+          demotionExecutor = null;
+        }
+      }
     }
   }
 
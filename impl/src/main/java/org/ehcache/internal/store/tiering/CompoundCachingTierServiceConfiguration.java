@@ -26,6 +26,8 @@ public class CompoundCachingTierServiceConfiguration implements ServiceConfigura
 
   private Class<? extends CachingTier.Provider> higherProvider;
   private Class<? extends LowerCachingTier.Provider> lowerProvider;
+  private int demotionQueueSize;
+  private boolean inclusive;
 
   public Class<? extends CachingTier.Provider> higherProvider() {
     return higherProvider;
@@ -45,6 +47,41 @@ public class CompoundCachingTierServiceConfiguration implements ServiceConfigura
     return this;
   }
 
+  public int demotionQueueSize() {
+    return demotionQueueSize;
+  }
+
+  /**
+   * Makes the mappings evicted from the higher tier move to the lower tier in the background, through a queue of the
+   * given capacity. {@code 0}, the default, demotes on the evicting thread.
+   *
+   * @param demotionQueueSize the demotion queue capacity
+   * @return this configuration
+   */
+  public CompoundCachingTierServiceConfiguration demotionQueueSize(int demotionQueueSize) {
+    if (demotionQueueSize < 0) {
+      throw new IllegalArgumentException("Demotion queue size must be positive or zero, was " + demotionQueueSize);
+    }
+    this.demotionQueueSize = demotionQueueSize;
+    return this;
+  }
+
+  public boolean inclusive() {
+    return inclusive;
+  }
+
+  /**
+   * Makes the lower tier keep its copy of the mappings promoted to the higher tier, so that evicting them from the
+   * higher tier again does not rewrite them. Mostly useful for read-mostly caches.
+   *
+   * @param inclusive whether the tiers are inclusive
+   * @return this configuration
+   */
+  public CompoundCachingTierServiceConfiguration inclusive(boolean inclusive) {
+    this.inclusive = inclusive;
+    return this;
+  }
+
   @Override
   public Class<CompoundCachingTier.Provider> getServiceType() {
     return CompoundCachingTier.Provider.class;
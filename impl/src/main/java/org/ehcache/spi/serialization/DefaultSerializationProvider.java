@@ -17,6 +17,7 @@
 package org.ehcache.spi.serialization;
 
 import org.ehcache.config.SerializerConfiguration;
+import org.ehcache.config.serializer.CompressionConfiguration;
 import org.ehcache.config.serializer.DefaultSerializerConfiguration;
 import org.ehcache.config.serializer.DefaultSerializationProviderConfiguration;
 import org.ehcache.exceptions.CachePersistenceException;
@@ -38,6 +39,7 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import org.ehcache.internal.serialization.CompactJavaSerializer;
 import org.ehcache.internal.serialization.CompactPersistentJavaSerializer;
+import org.ehcache.internal.serialization.CompressingSerializer;
 
 import static org.ehcache.spi.ServiceLocator.findSingletonAmongst;
 
@@ -72,11 +74,18 @@ public class DefaultSerializationProvider implements SerializationProvider {
 
   @Override
   public <T> Serializer<T> createValueSerializer(Class<T> clazz, ClassLoader classLoader, ServiceConfiguration<?>... configs) throws UnsupportedTypeException {
+    Serializer<T> serializer;
     if (findSingletonAmongst(PersistenceSpaceIdentifier.class, (Object[]) configs) == null) {
-      return transientProvider.createValueSerializer(clazz, classLoader, configs);
+      serializer = transientProvider.createValueSerializer(clazz, classLoader, configs);
     } else {
-      return persistentProvider.createValueSerializer(clazz, classLoader, configs);
+      serializer = persistentProvider.createValueSerializer(clazz, classLoader, configs);
     }
+    CompressionConfiguration compression = findSingletonAmongst(CompressionConfiguration.class, (Object[]) configs);
+    if (compression != null) {
+      serializer = CompressingSerializer.wrap(serializer, compression.getThreshold());
+      LOG.info("Compressing serialized <{}> values of at least {} bytes", clazz.getName(), compression.getThreshold());
+    }
+    return serializer;
   }
 
   @Override
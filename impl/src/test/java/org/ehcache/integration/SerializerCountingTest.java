@@ -103,7 +103,7 @@ public class SerializerCountingTest {
     printSerializationCounters("Get Offheap faulted");
 
     cache.put(42L, "Wrong ...");
-    assertCounters(1, 0, 3, 1, 2, 0);
+    assertCounters(1, 0, 3, 1, 1, 0);
     printSerializationCounters("Put OffHeap (update faulted)");
   }
 
@@ -120,14 +120,14 @@ public class SerializerCountingTest {
     assertCounters(1, 0, 0, 1, 0, 0);
     printSerializationCounters("Put Offheap");
     cache.get(42L);
-    assertCounters(1, 1, 2, 1, 2, 0);
+    assertCounters(1, 1, 2, 0, 2, 0);
     printSerializationCounters("Get Offheap fault");
     cache.get(42L);
     assertCounters(0, 0, 0, 0, 2, 0);
     printSerializationCounters("Get Offheap faulted");
 
     cache.put(42L, "Wrong ...");
-    assertCounters(1, 0, 3, 1, 2, 0);
+    assertCounters(1, 0, 3, 1, 1, 0);
     printSerializationCounters("Put OffHeap (update faulted)");
   }
 
@@ -0,0 +1,91 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal;
+
+import org.ehcache.spi.ServiceLocator;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TickingTimeSourceTest {
+
+  @Test
+  public void testReadsSystemClockWhenNotStarted() throws Exception {
+    TickingTimeSource timeSource = new TickingTimeSource(1, TimeUnit.HOURS);
+    long before = System.currentTimeMillis();
+    Thread.sleep(2);
+    assertThat(timeSource.getTimeMillis(), greaterThan(before));
+  }
+
+  @Test
+  public void testTimeIsCachedUntilNextTick() throws Exception {
+    TickingTimeSource timeSource = new TickingTimeSource(1, TimeUnit.HOURS);
+    timeSource.start();
+    try {
+      long time = timeSource.getTimeMillis();
+      Thread.sleep(10);
+      assertThat(timeSource.getTimeMillis(), is(time));
+    } finally {
+      timeSource.stop();
+    }
+  }
+
+  @Test
+  public void testTimeAdvancesWhileTicking() throws Exception {
+    TickingTimeSource timeSource = new TickingTimeSource(1, TimeUnit.MILLISECONDS);
+    timeSource.start();
+    try {
+      long time = timeSource.getTimeMillis();
+      long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+      while (timeSource.getTimeMillis() == time && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+      assertThat(timeSource.getTimeMillis(), greaterThan(time));
+    } finally {
+      timeSource.stop();
+    }
+  }
+
+  @Test
+  public void testFallsBackToSystemClockOnceStopped() throws Exception {
+    TickingTimeSource timeSource = new TickingTimeSource(1, TimeUnit.HOURS);
+    timeSource.start();
+    timeSource.stop();
+    long before = System.currentTimeMillis();
+    assertThat(timeSource.getTimeMillis(), greaterThanOrEqualTo(before));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsNonPositiveResolution() {
+    new TickingTimeSource(0, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void testSelectedThroughConfiguration() {
+    ServiceLocator serviceLocator = new ServiceLocator();
+    TimeSourceService timeSourceService = serviceLocator.getOrCreateServiceFor(new TimeSourceConfiguration(10, TimeUnit.MILLISECONDS));
+    assertThat(timeSourceService, instanceOf(TickingTimeSourceService.class));
+    assertThat(timeSourceService.getTimeSource(), instanceOf(TickingTimeSource.class));
+  }
+}
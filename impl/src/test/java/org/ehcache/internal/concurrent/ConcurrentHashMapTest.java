@@ -17,9 +17,13 @@
 package org.ehcache.internal.concurrent;
 
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Map.Entry;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.ehcache.function.BiFunction;
 import org.ehcache.function.Predicate;
 import org.ehcache.function.Predicates;
 import org.junit.Test;
@@ -120,6 +124,40 @@ public class ConcurrentHashMapTest {
         assertThat(sample, hasSize(10));
     }
     
+    @Test
+    public void testVisitFromVisitsAllMappingsOnce() {
+        ConcurrentHashMap<String, String> map = new ConcurrentHashMap<String, String>();
+        for (int i = 0; i < 1000; i++) {
+          map.put(Integer.toString(i), Integer.toString(i));
+        }
+        final Set<String> visited = new HashSet<String>();
+        map.visitFrom(new Random().nextInt(), new BiFunction<String, String, Boolean>() {
+          @Override
+          public Boolean apply(String key, String value) {
+            assertThat(visited.add(key), is(true));
+            assertThat(value, is(key));
+            return false;
+          }
+        });
+        assertThat(visited, hasSize(1000));
+    }
+
+    @Test
+    public void testVisitFromStopsWhenAsked() {
+        ConcurrentHashMap<String, String> map = new ConcurrentHashMap<String, String>();
+        for (int i = 0; i < 1000; i++) {
+          map.put(Integer.toString(i), Integer.toString(i));
+        }
+        final AtomicInteger visits = new AtomicInteger();
+        map.visitFrom(new Random().nextInt(), new BiFunction<String, String, Boolean>() {
+          @Override
+          public Boolean apply(String key, String value) {
+            return visits.incrementAndGet() == 8;
+          }
+        });
+        assertThat(visits.get(), is(8));
+    }
+
     @Test
     public void testReplaceWithWeirdBehavior() {
         ConcurrentHashMap<String, Element> elementMap = new ConcurrentHashMap<String, Element>();
@@ -0,0 +1,123 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.serialization;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.fail;
+
+public class BlockCompressorTest {
+
+  @Test
+  public void testEmptyAndTinyInputs() {
+    for (int length = 0; length < 32; length++) {
+      byte[] input = new byte[length];
+      Arrays.fill(input, (byte) 'a');
+      assertRoundTrip(input);
+    }
+  }
+
+  @Test
+  public void testCompressibleInput() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      sb.append("{\"id\":").append(i).append(",\"name\":\"entry\",\"tags\":[\"a\",\"b\"]}");
+    }
+    byte[] input = sb.toString().getBytes();
+    int compressedLength = assertRoundTrip(input);
+    assertThat(compressedLength, lessThan(input.length / 3));
+  }
+
+  @Test
+  public void testIncompressibleInput() {
+    byte[] input = new byte[10000];
+    new Random(42).nextBytes(input);
+    int compressedLength = assertRoundTrip(input);
+    assertThat(compressedLength, lessThanOrEqualTo(BlockCompressor.maxCompressedLength(input.length)));
+  }
+
+  @Test
+  public void testLongRunsAndOverlappingMatches() {
+    byte[] input = new byte[100000];
+    Arrays.fill(input, 0, 50000, (byte) 7);
+    for (int i = 50000; i < input.length; i++) {
+      input[i] = (byte) (i % 3);
+    }
+    assertRoundTrip(input);
+  }
+
+  @Test
+  public void testMatchesBeyondWindowAreNotUsed() {
+    Random random = new Random(7);
+    byte[] block = new byte[1024];
+    random.nextBytes(block);
+    byte[] input = new byte[200 * 1024];
+    for (int i = 0; i < input.length; i += 70 * 1024) {
+      System.arraycopy(block, 0, input, i, Math.min(block.length, input.length - i));
+    }
+    assertRoundTrip(input);
+  }
+
+  @Test
+  public void testOffsets() {
+    byte[] input = "abcabcabcabcabcabcabcabcabcabcabcabcabcabc".getBytes();
+    byte[] src = new byte[input.length + 10];
+    System.arraycopy(input, 0, src, 7, input.length);
+    byte[] compressed = new byte[3 + BlockCompressor.maxCompressedLength(input.length)];
+    int compressedLength = BlockCompressor.compress(src, 7, input.length, compressed, 3);
+    byte[] output = new byte[input.length + 5];
+    BlockCompressor.decompress(compressed, 3, compressedLength, output, 5, input.length);
+    assertThat(Arrays.copyOfRange(output, 5, output.length), is(input));
+  }
+
+  @Test
+  public void testCorruptedInputIsDetected() {
+    byte[] input = new byte[1000];
+    Arrays.fill(input, (byte) 1);
+    byte[] compressed = new byte[BlockCompressor.maxCompressedLength(input.length)];
+    int compressedLength = BlockCompressor.compress(input, 0, input.length, compressed, 0);
+    try {
+      BlockCompressor.decompress(compressed, 0, compressedLength - 1, new byte[input.length], 0, input.length);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      BlockCompressor.decompress(compressed, 0, compressedLength, new byte[input.length - 1], 0, input.length - 1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private static int assertRoundTrip(byte[] input) {
+    byte[] compressed = new byte[BlockCompressor.maxCompressedLength(input.length)];
+    int compressedLength = BlockCompressor.compress(input, 0, input.length, compressed, 0);
+    byte[] output = new byte[input.length];
+    BlockCompressor.decompress(compressed, 0, compressedLength, output, 0, output.length);
+    assertThat(output, is(input));
+    return compressedLength;
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.serialization;
+
+import org.ehcache.spi.serialization.BinaryComparableSerializer;
+import org.ehcache.spi.serialization.Serializer;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+
+public class CompressingSerializerTest {
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testSmallValuesAreNotCompressed() throws Exception {
+    CompressingSerializer<Serializable> serializer = new CompressingSerializer<Serializable>(new CompactJavaSerializer(null), 512);
+    ByteBuffer uncompressed = new CompactJavaSerializer(null).serialize("small");
+
+    ByteBuffer serialized = serializer.serialize("small");
+
+    assertThat(serialized, is(uncompressed));
+    assertThat((String) serializer.read(serialized), is("small"));
+    assertThat(serializer.getCompressionRatio(), is(1.0));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testLargeValuesAreCompressed() throws Exception {
+    CompressingSerializer<Serializable> serializer = new CompressingSerializer<Serializable>(new CompactJavaSerializer(null), 512);
+    ArrayList<String> value = compressibleValue();
+    int uncompressedLength = new CompactJavaSerializer(null).serialize(value).remaining();
+
+    ByteBuffer serialized = serializer.serialize(value);
+
+    assertThat(serialized.remaining(), lessThan(uncompressedLength / 3));
+    assertThat(serializer.read(serialized.duplicate()), is((Serializable) value));
+    assertThat(serializer.equals(value, serialized.duplicate()), is(true));
+    assertThat(serializer.getCompressionRatio(), greaterThan(3.0));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testIncompressibleValuesAreStoredAsIs() throws Exception {
+    CompressingSerializer<Serializable> serializer = new CompressingSerializer<Serializable>(new CompactJavaSerializer(null), 0);
+    byte[] value = new byte[4096];
+    new Random(42).nextBytes(value);
+    int uncompressedLength = new CompactJavaSerializer(null).serialize(value).remaining();
+
+    ByteBuffer serialized = serializer.serialize(value);
+
+    assertThat(serialized.remaining(), is(uncompressedLength));
+    assertThat((byte[]) serializer.read(serialized), is(value));
+  }
+
+  @Test
+  public void testUncompressedSerialFormsStartingLikeCompressedOnesAreEscaped() throws Exception {
+    CompressingSerializer<Integer> serializer = new CompressingSerializer<Integer>(new IntegerSerializer(null), 512);
+
+    ByteBuffer escaped = serializer.serialize(0xEC5A0102);
+    ByteBuffer plain = serializer.serialize(42);
+
+    assertThat(escaped.remaining(), is(7));
+    assertThat(serializer.read(escaped.duplicate()), is(0xEC5A0102));
+    assertThat(serializer.equals(0xEC5A0102, escaped.duplicate()), is(true));
+    assertThat(plain.remaining(), is(4));
+    assertThat(serializer.read(plain), is(42));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testReadsFromDirectBuffers() throws Exception {
+    Serializer<Serializable> serializer = new CompressingSerializer<Serializable>(new CompactJavaSerializer(null), 0);
+    ArrayList<String> value = compressibleValue();
+    ByteBuffer serialized = serializer.serialize(value);
+    ByteBuffer direct = ByteBuffer.allocateDirect(serialized.remaining() + 8);
+    direct.position(8);
+    direct.put(serialized).position(8);
+
+    assertThat(serializer.read(direct.slice()), is((Serializable) value));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testWrappingKeepsBinaryComparability() throws Exception {
+    assertThat(CompressingSerializer.wrap(new StringSerializer(null), 0), instanceOf(BinaryComparableSerializer.class));
+    assertThat(CompressingSerializer.wrap((Serializer) new CompactJavaSerializer(null), 0), not(instanceOf(BinaryComparableSerializer.class)));
+  }
+
+  private static ArrayList<String> compressibleValue() {
+    ArrayList<String> value = new ArrayList<String>();
+    for (int i = 0; i < 200; i++) {
+      value.add("{\"id\":" + i + ",\"name\":\"entry\",\"tags\":[\"a\",\"b\"]}");
+    }
+    return value;
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.serialization;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class LongSerializerTest {
+
+  private final LongSerializer serializer = new LongSerializer(getClass().getClassLoader());
+
+  @Test
+  public void testRoundTrip() {
+    for (long l : new long[] { 0L, 1L, -1L, Long.MIN_VALUE, Long.MAX_VALUE }) {
+      ByteBuffer binary = serializer.serialize(l);
+      assertThat(binary.remaining(), is(8));
+      assertThat(serializer.read(binary), is(l));
+      assertThat(serializer.equals(l, binary), is(true));
+      assertThat(serializer.equals(l + 1, binary), is(false));
+    }
+  }
+
+  @Test
+  public void testEqualsRejectsOtherLengths() {
+    assertThat(serializer.equals(0L, ByteBuffer.allocate(4)), is(false));
+  }
+}
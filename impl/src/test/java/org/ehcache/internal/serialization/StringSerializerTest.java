@@ -0,0 +1,68 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.serialization;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class StringSerializerTest {
+
+  private final StringSerializer serializer = new StringSerializer(getClass().getClassLoader());
+
+  @Test
+  public void testRoundTrip() {
+    for (String s : new String[] { "", "a", "hello world", "caf\u00e9", "\u65e5\u672c\u8a9e", "a\ud800b" }) {
+      ByteBuffer binary = serializer.serialize(s);
+      assertThat(serializer.read(binary), is(s));
+      assertThat(serializer.equals(s, binary), is(true));
+    }
+  }
+
+  @Test
+  public void testOneBytePerCharacterWhenPossible() {
+    assertThat(serializer.serialize("caf\u00e9").remaining(), is(5));
+    assertThat(serializer.serialize("\u65e5\u672c").remaining(), is(5));
+  }
+
+  @Test
+  public void testEqualsRejectsDifferentStrings() {
+    ByteBuffer binary = serializer.serialize("abc");
+    assertThat(serializer.equals("abd", binary), is(false));
+    assertThat(serializer.equals("ab", binary), is(false));
+    assertThat(serializer.equals("abc\u65e5", binary), is(false));
+  }
+
+  @Test
+  public void testEqualStringsHaveEqualSerialForms() {
+    assertThat(serializer.serialize(new String("some key")), is(serializer.serialize("some key")));
+  }
+
+  @Test
+  public void testReadAndEqualsHonourBufferPosition() {
+    ByteBuffer binary = ByteBuffer.allocate(16);
+    binary.position(3);
+    binary.put(serializer.serialize("xyz"));
+    binary.flip().position(3);
+    assertThat(serializer.read(binary), is("xyz"));
+    assertThat(serializer.equals("xyz", binary), is(true));
+    assertThat(binary.position(), is(3));
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.sizeof;
+
+import org.junit.Test;
+
+import static org.ehcache.internal.sizeof.ReflectionSizeOfEngine.ARRAY_HEADER_SIZE;
+import static org.ehcache.internal.sizeof.ReflectionSizeOfEngine.align;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+
+public class ReflectionSizeOfEngineTest {
+
+  private final ReflectionSizeOfEngine sizeOfEngine = new ReflectionSizeOfEngine(1000);
+
+  @Test
+  public void testPrimitiveArray() {
+    assertThat(sizeOfEngine.sizeof(new long[100]), is(align(ARRAY_HEADER_SIZE + 800)));
+    assertThat(sizeOfEngine.sizeof(new byte[3]), is(align(ARRAY_HEADER_SIZE + 3)));
+  }
+
+  @Test
+  public void testBiggerGraphIsBigger() {
+    assertThat(sizeOfEngine.sizeof(chain(10)), greaterThan(sizeOfEngine.sizeof(chain(5))));
+    assertThat(sizeOfEngine.sizeof(new String(new char[100])), greaterThan(sizeOfEngine.sizeof("")));
+  }
+
+  @Test
+  public void testSharedObjectsAreCountedOnce() {
+    Node node = chain(3);
+    assertThat(sizeOfEngine.sizeof(node, node), is(sizeOfEngine.sizeof(node)));
+    assertThat(sizeOfEngine.sizeof(node, node.next), is(sizeOfEngine.sizeof(node)));
+  }
+
+  @Test
+  public void testCyclesTerminate() {
+    Node node = chain(3);
+    node.next.next.next = node;
+    assertThat(sizeOfEngine.sizeof(node), is(sizeOfEngine.sizeof(chain(3))));
+  }
+
+  @Test
+  public void testMaxDepth() {
+    ReflectionSizeOfEngine shallowEngine = new ReflectionSizeOfEngine(2);
+    assertThat(shallowEngine.sizeof(chain(10)), is(sizeOfEngine.sizeof(chain(3))));
+  }
+
+  @Test
+  public void testSharedInfrastructureIsIgnored() {
+    Node node = new Node();
+    node.payload = Thread.currentThread();
+    assertThat(sizeOfEngine.sizeof(node), is(sizeOfEngine.sizeof(new Node())));
+    node.payload = String.class;
+    assertThat(sizeOfEngine.sizeof(node), is(sizeOfEngine.sizeof(new Node())));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidMaxDepth() {
+    new ReflectionSizeOfEngine(0);
+  }
+
+  private static Node chain(int length) {
+    Node head = null;
+    for (int i = 0; i < length; i++) {
+      Node node = new Node();
+      node.next = head;
+      head = node;
+    }
+    return head;
+  }
+
+  private static final class Node {
+    private Node next;
+    private Object payload;
+    private long value;
+  }
+}
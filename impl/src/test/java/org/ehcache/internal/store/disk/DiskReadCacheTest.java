@@ -0,0 +1,132 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.store.disk;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class DiskReadCacheTest {
+
+  @Test
+  public void testCachedRecordIsCopied() {
+    DiskReadCache cache = new DiskReadCache(1024, 1);
+    ByteBuffer record = ByteBuffer.wrap(new byte[] {1, 2, 3});
+    cache.put(1L, record, cache.stamp(1L));
+    assertThat(record.remaining(), is(3));
+    record.put(2, (byte) 42);
+
+    ByteBuffer cached = cache.get(1L).buffer();
+    assertThat(cached.remaining(), is(3));
+    assertThat(cached.get(2), is((byte) 3));
+    cached.position(3);
+    assertThat(cache.get(1L).buffer().remaining(), is(3));
+    assertThat(cache.get(2L), nullValue());
+  }
+
+  @Test
+  public void testInvalidationDuringReadPreventsCaching() {
+    DiskReadCache cache = new DiskReadCache(1024, 1);
+    long stamp = cache.stamp(1L);
+    cache.invalidate(1L);
+    cache.put(1L, ByteBuffer.wrap(new byte[] {1}), stamp);
+    assertThat(cache.get(1L), nullValue());
+
+    cache.put(1L, ByteBuffer.wrap(new byte[] {1}), cache.stamp(1L));
+    cache.invalidate(1L);
+    assertThat(cache.get(1L), nullValue());
+  }
+
+  @Test
+  public void testUpdatePatchesTheCachedRecord() {
+    DiskReadCache cache = new DiskReadCache(1024, 1);
+    cache.put(1L, ByteBuffer.allocate(16), cache.stamp(1L));
+    long stamp = cache.stamp(2L);
+    cache.update(1L, 8, 42L);
+    assertThat(cache.get(1L).buffer().getLong(8), is(42L));
+
+    cache.put(2L, ByteBuffer.allocate(16), stamp);
+    assertThat(cache.get(2L).buffer().getLong(8), is(0L));
+  }
+
+  @Test
+  public void testUpdateDuringReadPreventsCaching() {
+    DiskReadCache cache = new DiskReadCache(1024, 1);
+    long stamp = cache.stamp(1L);
+    cache.update(1L, 8, 42L);
+    cache.put(1L, ByteBuffer.allocate(16), stamp);
+    assertThat(cache.get(1L), nullValue());
+
+    cache.update(1L, 8, 42L);
+    cache.put(1L, ByteBuffer.allocate(16), cache.stamp(1L));
+    assertThat(cache.get(1L).buffer().getLong(8), is(0L));
+  }
+
+  @Test
+  public void testCapacityIsNeverExceeded() {
+    DiskReadCache cache = new DiskReadCache(4096, 1);
+    for (int i = 0; i < 1000; i++) {
+      cache.put(i, ByteBuffer.allocate(1 + (i * 37) % 1000), cache.stamp(i));
+      assertThat(cache.getAllocatedMemory(), lessThanOrEqualTo(4096L));
+    }
+    assertThat(cache.get(999L).buffer().remaining(), is(1 + (999 * 37) % 1000));
+    assertThat(cache.get(0L), nullValue());
+  }
+
+  @Test
+  public void testPinnedRecordIsNotReusedUntilReleased() {
+    DiskReadCache cache = new DiskReadCache(64, 1);
+    cache.put(1L, ByteBuffer.wrap(new byte[] {1}), cache.stamp(1L));
+    DiskReadCache.CachedRecord pinned = cache.get(1L);
+    cache.invalidate(1L);
+
+    cache.put(2L, ByteBuffer.wrap(new byte[] {2}), cache.stamp(2L));
+    assertThat(cache.get(2L), nullValue());
+    assertThat(pinned.buffer().get(0), is((byte) 1));
+
+    pinned.release();
+    cache.put(2L, ByteBuffer.wrap(new byte[] {2}), cache.stamp(2L));
+    assertThat(cache.get(2L).buffer().get(0), is((byte) 2));
+    assertThat(cache.getAllocatedMemory(), is(64L));
+  }
+
+  @Test
+  public void testEvictedRecordStaysReadableWhilePinned() {
+    DiskReadCache cache = new DiskReadCache(64, 1);
+    cache.put(1L, ByteBuffer.wrap(new byte[] {1}), cache.stamp(1L));
+    DiskReadCache.CachedRecord pinned = cache.get(1L);
+
+    cache.put(2L, ByteBuffer.wrap(new byte[] {2}), cache.stamp(2L));
+    assertThat(cache.get(1L), nullValue());
+    assertThat(pinned.buffer().get(0), is((byte) 1));
+    pinned.release();
+  }
+
+  @Test
+  public void testRecordLargerThanTheCacheIsNotCached() {
+    DiskReadCache cache = new DiskReadCache(1024, 1);
+    cache.put(1L, ByteBuffer.allocate(2048), cache.stamp(1L));
+    assertThat(cache.get(1L), nullValue());
+    assertThat(cache.getAllocatedMemory(), is(0L));
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.store.disk;
+
+import org.ehcache.internal.serialization.StringSerializer;
+import org.ehcache.internal.store.offheap.portability.SerializerPortability;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+public class DiskStoreJournalTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private SerializerPortability<String> portability;
+
+  @Before
+  public void setUp() {
+    portability = new SerializerPortability<String>(new StringSerializer(getClass().getClassLoader()));
+  }
+
+  @Test
+  public void testReplayAppliesChangesInOrder() throws Exception {
+    DiskStoreJournal<String, String> journal = newJournal(DiskStoreJournal.DEFAULT_MINIMUM_COMPACTION_SIZE);
+    journal.open();
+    put(journal, "a", "1");
+    put(journal, "b", "2");
+    journal.onRemoval("a");
+    put(journal, "b", "3");
+    put(journal, "c", "4");
+    journal.close();
+
+    Map<String, String> map = new HashMap<String, String>();
+    assertThat(newJournal(DiskStoreJournal.DEFAULT_MINIMUM_COMPACTION_SIZE).replay(map), is(5L));
+    assertThat(map.size(), is(2));
+    assertThat(map, hasEntry("b", "3"));
+    assertThat(map, hasEntry("c", "4"));
+  }
+
+  @Test
+  public void testReplayOfClear() throws Exception {
+    DiskStoreJournal<String, String> journal = newJournal(DiskStoreJournal.DEFAULT_MINIMUM_COMPACTION_SIZE);
+    journal.open();
+    put(journal, "a", "1");
+    journal.onClear();
+    put(journal, "b", "2");
+    journal.close();
+
+    Map<String, String> map = new HashMap<String, String>();
+    newJournal(DiskStoreJournal.DEFAULT_MINIMUM_COMPACTION_SIZE).replay(map);
+    assertThat(map, is(Collections.singletonMap("b", "2")));
+  }
+
+  @Test
+  public void testReplayStopsAtTornRecord() throws Exception {
+    DiskStoreJournal<String, String> journal = newJournal(DiskStoreJournal.DEFAULT_MINIMUM_COMPACTION_SIZE);
+    journal.open();
+    put(journal, "a", "1");
+    put(journal, "b", "2");
+    journal.close();
+
+    File[] files = folder.getRoot().listFiles();
+    assertThat(files.length, is(1));
+    RandomAccessFile file = new RandomAccessFile(files[0], "rw");
+    try {
+      file.setLength(file.length() - 3);
+    } finally {
+      file.close();
+    }
+
+    Map<String, String> map = new HashMap<String, String>();
+    assertThat(newJournal(DiskStoreJournal.DEFAULT_MINIMUM_COMPACTION_SIZE).replay(map), is(1L));
+    assertThat(map, is(Collections.singletonMap("a", "1")));
+  }
+
+  @Test
+  public void testCompactionKeepsLiveMappings() throws Exception {
+    DiskStoreJournal<String, String> journal = newJournal(0);
+    journal.open();
+    Map<String, String> live = new HashMap<String, String>();
+    for (int i = 0; i < 100; i++) {
+      put(journal, "key", "value" + i);
+      live.put("key", "value" + i);
+    }
+    put(journal, "other", "value");
+    live.put("other", "value");
+    long sizeBeforeCompaction = journal.size();
+
+    journal.checkpoint(live.entrySet(), 1);
+    assertThat(journal.size(), lessThanOrEqualTo(sizeBeforeCompaction / 10));
+
+    put(journal, "late", "value");
+    journal.close();
+    assertThat(folder.getRoot().listFiles().length, is(2));
+
+    Map<String, String> map = new HashMap<String, String>();
+    newJournal(0).replay(map);
+    assertThat(map.size(), is(3));
+    assertThat(map, hasEntry("key", "value99"));
+    assertThat(map, hasEntry("other", "value"));
+    assertThat(map, hasEntry("late", "value"));
+  }
+
+  @Test
+  public void testChangesDoNotWaitForTheLogFile() throws Exception {
+    final DiskStoreJournal<String, String> journal = newJournal(DiskStoreJournal.DEFAULT_MINIMUM_COMPACTION_SIZE);
+    journal.open();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      synchronized (journal) {
+        executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            put(journal, "a", "1");
+          }
+        }).get(10, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdown();
+    }
+    journal.close();
+
+    Map<String, String> map = new HashMap<String, String>();
+    newJournal(DiskStoreJournal.DEFAULT_MINIMUM_COMPACTION_SIZE).replay(map);
+    assertThat(map, is(Collections.singletonMap("a", "1")));
+  }
+
+  @Test
+  public void testLoggingResumesAfterExistingFiles() throws Exception {
+    DiskStoreJournal<String, String> journal = newJournal(DiskStoreJournal.DEFAULT_MINIMUM_COMPACTION_SIZE);
+    journal.open();
+    put(journal, "a", "1");
+    journal.close();
+
+    journal = newJournal(DiskStoreJournal.DEFAULT_MINIMUM_COMPACTION_SIZE);
+    journal.open();
+    put(journal, "a", "2");
+    journal.close();
+
+    Map<String, String> map = new HashMap<String, String>();
+    newJournal(DiskStoreJournal.DEFAULT_MINIMUM_COMPACTION_SIZE).replay(map);
+    assertThat(map, is(Collections.singletonMap("a", "2")));
+  }
+
+  private void put(DiskStoreJournal<String, String> journal, String key, String value) {
+    journal.onPut(portability.encode(key), portability.encode(value));
+  }
+
+  private DiskStoreJournal<String, String> newJournal(long minimumCompactionSize) {
+    return new DiskStoreJournal<String, String>(folder.getRoot(), portability, portability, minimumCompactionSize);
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store.disk;
+
+import org.ehcache.internal.store.disk.DiskWriteExecutor.QueuedWrite;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class DiskWriteExecutorTest {
+
+  private final DiskWriteExecutor executor = new DiskWriteExecutor(Executors.defaultThreadFactory(), 2);
+  private final CountDownLatch writerBlocked = new CountDownLatch(1);
+
+  @After
+  public void tearDown() throws InterruptedException {
+    writerBlocked.countDown();
+    executor.shutdownNow();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testReservationsAreBoundedByTheCapacity() {
+    blockWriter();
+    QueuedWrite first = queueWrite();
+    queueWrite();
+    assertThat(executor.getQueuedWrites(), is(2));
+    assertThat(executor.reserve(false), nullValue());
+
+    assertThat(executor.cancel(first), is(true));
+    assertThat(executor.getQueuedWrites(), is(1));
+    assertThat(executor.getCoalescedWrites(), is(1L));
+    assertThat(executor.cancel(first), is(false));
+    assertThat(executor.getCoalescedWrites(), is(1L));
+
+    QueuedWrite write = executor.reserve(false);
+    assertThat(write, notNullValue());
+    executor.endReservation(write);
+    assertThat(executor.reserve(false), notNullValue());
+  }
+
+  @Test
+  public void testOnlyReservedTasksCountAgainstTheCapacity() throws Exception {
+    blockWriter();
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        // nothing
+      }
+    });
+    queueWrite();
+    queueWrite();
+    assertThat(executor.getQueuedWrites(), is(2));
+    assertThat(executor.getQueue().size(), is(3));
+
+    QueuedWrite forced = executor.forceReserve();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        // nothing
+      }
+    });
+    executor.endReservation(forced);
+    assertThat(executor.getQueuedWrites(), is(3));
+  }
+
+  @Test
+  public void testBlockedReservationWaitsForTheWriter() throws Exception {
+    blockWriter();
+    queueWrite();
+    queueWrite();
+
+    final AtomicReference<Object> reserved = new AtomicReference<Object>();
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        reserved.set(executor.reserve(true));
+      }
+    };
+    waiter.start();
+    waiter.join(100);
+    assertThat(waiter.isAlive(), is(true));
+
+    writerBlocked.countDown();
+    waiter.join(TimeUnit.SECONDS.toMillis(10));
+    assertThat(reserved.get(), instanceOf(QueuedWrite.class));
+  }
+
+  @Test
+  public void testShutdownWakesBlockedReservations() throws Exception {
+    blockWriter();
+    queueWrite();
+    queueWrite();
+
+    final AtomicReference<Object> reserved = new AtomicReference<Object>();
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          reserved.set(executor.reserve(true));
+        } catch (RejectedExecutionException e) {
+          reserved.set(e);
+        }
+      }
+    };
+    waiter.start();
+    waiter.join(100);
+    assertThat(waiter.isAlive(), is(true));
+
+    executor.shutdown();
+    waiter.join(TimeUnit.SECONDS.toMillis(10));
+    assertThat(reserved.get(), instanceOf(RejectedExecutionException.class));
+  }
+
+  @Test
+  public void testLagIsTheAgeOfTheOldestQueuedWrite() throws Exception {
+    assertThat(executor.getOldestQueuedWriteAge(TimeUnit.MILLISECONDS), is(0L));
+    blockWriter();
+    queueWrite();
+    Thread.sleep(20);
+    queueWrite();
+    assertThat(executor.getOldestQueuedWriteAge(TimeUnit.MILLISECONDS), greaterThanOrEqualTo(20L));
+  }
+
+  private void blockWriter() {
+    final CountDownLatch writerStarted = new CountDownLatch(1);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        writerStarted.countDown();
+        try {
+          writerBlocked.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    try {
+      writerStarted.await();
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private QueuedWrite queueWrite() {
+    QueuedWrite write = executor.reserve(false);
+    assertThat(write, notNullValue());
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          // nothing
+        }
+      });
+    } finally {
+      executor.endReservation(write);
+    }
+    assertThat(write.isQueued(), is(true));
+    return write;
+  }
+}
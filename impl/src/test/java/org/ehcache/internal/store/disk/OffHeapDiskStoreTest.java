@@ -16,6 +16,9 @@
 
 package org.ehcache.internal.store.disk;
 
+import org.ehcache.Cache;
+import org.ehcache.Ehcache;
+import org.ehcache.config.CacheConfigurationBuilder;
 import org.ehcache.config.EvictionVeto;
 import org.ehcache.config.ResourcePoolsBuilder;
 import org.ehcache.config.StoreConfigurationImpl;
@@ -26,8 +29,10 @@ import org.ehcache.expiry.Expiry;
 import org.ehcache.internal.SystemTimeSource;
 import org.ehcache.internal.TimeSource;
 import org.ehcache.internal.persistence.TestLocalPersistenceService;
+import org.ehcache.internal.serialization.CompressingSerializer;
 import org.ehcache.internal.store.offheap.AbstractOffHeapStore;
 import org.ehcache.internal.store.offheap.AbstractOffHeapStoreTest;
+import org.ehcache.internal.store.offheap.portability.OffHeapValueHolderPortability;
 import org.ehcache.spi.ServiceLocator;
 import org.ehcache.spi.cache.Store;
 import org.ehcache.spi.serialization.DefaultSerializationProvider;
@@ -38,12 +43,27 @@ import org.ehcache.spi.service.LocalPersistenceService.PersistenceSpaceIdentifie
 import org.ehcache.spi.service.FileBasedPersistenceContext;
 import org.junit.Rule;
 import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.terracotta.offheapstore.OffHeapHashMap;
+import org.terracotta.offheapstore.Segment;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.ehcache.expiry.Expirations.noExpiration;
 import static org.ehcache.spi.TestServiceProvider.providerContaining;
 import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.both;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
@@ -70,7 +90,548 @@ public class OffHeapDiskStoreTest extends AbstractOffHeapStoreTest {
       destroyStore(offHeapDiskStore);
     }
   }
+
+  @Test
+  public void testRecoveryFromSegmentIndexes() throws Exception {
+    FileBasedPersistenceContext persistenceContext = getPersistenceContext();
+    OffHeapDiskStore<String, String> offHeapDiskStore = createAndInitStore(persistenceContext, new OffHeapDiskStoreServiceConfiguration().diskSegments(8));
+    try {
+      for (int i = 0; i < 1000; i++) {
+        offHeapDiskStore.put("key" + i, "value" + i);
+      }
+
+      OffHeapDiskStore.Provider.close(offHeapDiskStore);
+      for (int i = 0; i < 8; i++) {
+        assertThat(new File(persistenceContext.getDirectory(), "ehcache-disk-store.index." + i).isFile(), is(true));
+      }
+
+      OffHeapDiskStore.Provider.init(offHeapDiskStore);
+      assertThat(awaitRecovery(offHeapDiskStore), is(true));
+      for (int i = 0; i < 1000; i++) {
+        assertThat(offHeapDiskStore.get("key" + i).value(), is("value" + i));
+      }
+    } finally {
+      destroyStore(offHeapDiskStore);
+    }
+  }
+
+  @Test
+  public void testUnrecoveredSegmentMissesWhileOthersServe() throws Exception {
+    FileBasedPersistenceContext persistenceContext = getPersistenceContext();
+    OffHeapDiskStore<String, String> offHeapDiskStore = createAndInitStore(persistenceContext, new OffHeapDiskStoreServiceConfiguration().diskSegments(2).missWhileRecovering(true));
+    try {
+      for (int i = 0; i < 100; i++) {
+        offHeapDiskStore.put("key" + i, "value" + i);
+      }
+
+      OffHeapDiskStore.Provider.close(offHeapDiskStore);
+      new FileOutputStream(new File(persistenceContext.getDirectory(), "ehcache-disk-store.index.1")).close();
+
+      OffHeapDiskStore.Provider.init(offHeapDiskStore);
+      EhcachePersistentConcurrentOffHeapClockCache<String, ?> backingMap = (EhcachePersistentConcurrentOffHeapClockCache<String, ?>) offHeapDiskStore.backingMap();
+      assertThat(backingMap.awaitRecovery(), is(false));
+      int hits = 0;
+      for (int i = 0; i < 100; i++) {
+        String key = "key" + i;
+        if (backingMap.isRecovering(key)) {
+          assertThat(offHeapDiskStore.get(key), nullValue());
+          assertThat(offHeapDiskStore.getAndFault(key), nullValue());
+        } else {
+          assertThat(offHeapDiskStore.get(key).value(), is("value" + i));
+          hits++;
+        }
+      }
+      assertThat(hits, is(both(greaterThan(0)).and(lessThan(100))));
+    } finally {
+      destroyStore(offHeapDiskStore);
+    }
+    assertThat(new File(persistenceContext.getDirectory(), "ehcache-disk-store.index").exists(), is(false));
+  }
+
+  @Test
+  public void testCorruptSegmentIndexFailsWritesOnItsSegment() throws Exception {
+    FileBasedPersistenceContext persistenceContext = getPersistenceContext();
+    OffHeapDiskStore<String, String> offHeapDiskStore = createAndInitStore(persistenceContext, new OffHeapDiskStoreServiceConfiguration().diskSegments(2));
+    try {
+      for (int i = 0; i < 100; i++) {
+        offHeapDiskStore.put("key" + i, "value" + i);
+      }
+
+      OffHeapDiskStore.Provider.close(offHeapDiskStore);
+      FileOutputStream corrupt = new FileOutputStream(new File(persistenceContext.getDirectory(), "ehcache-disk-store.index.1"));
+      try {
+        corrupt.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+      } finally {
+        corrupt.close();
+      }
+
+      OffHeapDiskStore.Provider.init(offHeapDiskStore);
+      EhcachePersistentConcurrentOffHeapClockCache<String, ?> backingMap = (EhcachePersistentConcurrentOffHeapClockCache<String, ?>) offHeapDiskStore.backingMap();
+      int hits = 0;
+      for (int i = 0; i < 100; i++) {
+        String key = "key" + i;
+        if (backingMap.isFailed(key)) {
+          assertThat(offHeapDiskStore.get(key), nullValue());
+          try {
+            offHeapDiskStore.put(key, "newValue" + i);
+            fail("Expected CacheAccessException");
+          } catch (CacheAccessException e) {
+            // expected
+          }
+        } else {
+          assertThat(offHeapDiskStore.get(key).value(), is("value" + i));
+          offHeapDiskStore.put(key, "newValue" + i);
+          hits++;
+        }
+      }
+      assertThat(hits, is(both(greaterThan(0)).and(lessThan(100))));
+
+      int iterated = 0;
+      Store.Iterator<Cache.Entry<String, Store.ValueHolder<String>>> iterator = offHeapDiskStore.iterator();
+      while (iterator.hasNext()) {
+        iterator.next();
+        iterated++;
+      }
+      assertThat(iterated, is(hits));
+      offHeapDiskStore.clear();
+      assertThat(offHeapDiskStore.iterator().hasNext(), is(false));
+    } finally {
+      destroyStore(offHeapDiskStore);
+    }
+    assertThat(new File(persistenceContext.getDirectory(), "ehcache-disk-store.index").exists(), is(false));
+  }
+
+  @Test
+  public void testIndexOfAnotherValueLayoutIsRejected() throws Exception {
+    FileBasedPersistenceContext persistenceContext = getPersistenceContext();
+    OffHeapDiskStore<String, String> offHeapDiskStore = createAndInitStore(persistenceContext, new OffHeapDiskStoreServiceConfiguration().diskSegments(2));
+    try {
+      offHeapDiskStore.put("key1", "value1");
+
+      OffHeapDiskStore.Provider.close(offHeapDiskStore);
+      File dataFile = new File(persistenceContext.getDirectory(), "ehcache-disk-store.data");
+      ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(new File(persistenceContext.getDirectory(), "ehcache-disk-store.index")));
+      try {
+        output.writeLong(dataFile.lastModified());
+        output.writeInt(OffHeapDiskStore.INDEX_MAGIC);
+        output.writeInt(OffHeapValueHolderPortability.LAYOUT_VERSION - 1);
+        output.writeInt(0);
+        output.writeInt(2);
+      } finally {
+        output.close();
+      }
+
+      OffHeapDiskStore.Provider.init(offHeapDiskStore);
+      assertThat(offHeapDiskStore.get("key1"), nullValue());
+    } finally {
+      destroyStore(offHeapDiskStore);
+    }
+  }
+
+  @Test
+  public void testIndexOfAnotherValueFormatIsRejected() throws Exception {
+    FileBasedPersistenceContext persistenceContext = getPersistenceContext();
+    OffHeapDiskStore<String, String> offHeapDiskStore = createAndInitStore(persistenceContext, new OffHeapDiskStoreServiceConfiguration().diskSegments(2));
+    try {
+      offHeapDiskStore.put("key1", "value1");
+
+      OffHeapDiskStore.Provider.close(offHeapDiskStore);
+      File dataFile = new File(persistenceContext.getDirectory(), "ehcache-disk-store.data");
+      ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(new File(persistenceContext.getDirectory(), "ehcache-disk-store.index")));
+      try {
+        output.writeLong(dataFile.lastModified());
+        output.writeInt(OffHeapDiskStore.INDEX_MAGIC);
+        output.writeInt(OffHeapValueHolderPortability.LAYOUT_VERSION);
+        output.writeInt(CompressingSerializer.FORMAT_VERSION);
+        output.writeInt(2);
+      } finally {
+        output.close();
+      }
+
+      OffHeapDiskStore.Provider.init(offHeapDiskStore);
+      assertThat(offHeapDiskStore.get("key1"), nullValue());
+    } finally {
+      destroyStore(offHeapDiskStore);
+    }
+  }
+
+  private static boolean awaitRecovery(OffHeapDiskStore<?, ?> store) {
+    return ((EhcachePersistentConcurrentOffHeapClockCache<?, ?>) store.backingMap()).awaitRecovery();
+  }
   
+  @Test
+  public void testJournaledRecoveryAfterCrash() throws Exception {
+    FileBasedPersistenceContext persistenceContext = getPersistenceContext();
+    OffHeapDiskStore<String, String> offHeapDiskStore = createAndInitStore(persistenceContext, new OffHeapDiskStoreServiceConfiguration().checkpointInterval(1, TimeUnit.SECONDS));
+    try {
+      for (int i = 0; i < 100; i++) {
+        offHeapDiskStore.put("key" + i, "value" + i);
+      }
+      for (int i = 0; i < 10; i++) {
+        offHeapDiskStore.remove("key" + i);
+      }
+      offHeapDiskStore.put("key10", "updated");
+
+      OffHeapDiskStore.Provider.close(offHeapDiskStore);
+      // a crash leaves the data file and the journal, but no index
+      assertThat(new File(persistenceContext.getDirectory(), "ehcache-disk-store.index").delete(), is(true));
+
+      OffHeapDiskStore.Provider.init(offHeapDiskStore);
+      for (int i = 0; i < 10; i++) {
+        assertThat(offHeapDiskStore.get("key" + i), nullValue());
+      }
+      assertThat(offHeapDiskStore.get("key10").value(), is("updated"));
+      for (int i = 11; i < 100; i++) {
+        assertThat(offHeapDiskStore.get("key" + i).value(), is("value" + i));
+      }
+    } finally {
+      destroyStore(offHeapDiskStore);
+    }
+  }
+
+  @Test
+  public void testJournaledRecoveryAfterCheckpointAndClear() throws Exception {
+    FileBasedPersistenceContext persistenceContext = getPersistenceContext();
+    OffHeapDiskStore<String, String> offHeapDiskStore = createAndInitStore(persistenceContext, new OffHeapDiskStoreServiceConfiguration().checkpointInterval(1, TimeUnit.SECONDS));
+    try {
+      offHeapDiskStore.put("key1", "value1");
+      offHeapDiskStore.clear();
+      offHeapDiskStore.put("key2", "value2");
+      offHeapDiskStore.checkpoint();
+      offHeapDiskStore.put("key3", "value3");
+
+      OffHeapDiskStore.Provider.close(offHeapDiskStore);
+      assertThat(new File(persistenceContext.getDirectory(), "ehcache-disk-store.index").delete(), is(true));
+
+      OffHeapDiskStore.Provider.init(offHeapDiskStore);
+      assertThat(offHeapDiskStore.get("key1"), nullValue());
+      assertThat(offHeapDiskStore.get("key2").value(), is("value2"));
+      assertThat(offHeapDiskStore.get("key3").value(), is("value3"));
+    } finally {
+      destroyStore(offHeapDiskStore);
+    }
+  }
+
+  @Test
+  public void testConfiguredSegmentsAndWriterThreads() throws Exception {
+    OffHeapDiskStore<String, String> offHeapDiskStore = createAndInitStore(getPersistenceContext("writers"), new OffHeapDiskStoreServiceConfiguration().diskSegments(4).writerConcurrency(2));
+    try {
+      EhcachePersistentConcurrentOffHeapClockCache<?, ?> backingMap = (EhcachePersistentConcurrentOffHeapClockCache<?, ?>) offHeapDiskStore.backingMap();
+      assertThat(backingMap.getSegments().size(), is(4));
+
+      // writer threads start with their first write
+      for (int i = 0; i < 100; i++) {
+        offHeapDiskStore.put("key" + i, "value" + i);
+      }
+
+      int writerThreads = 0;
+      for (Thread thread : Thread.getAllStackTraces().keySet()) {
+        if (thread.getName().startsWith("Ehcache Disk Write Thread [writers_")) {
+          writerThreads++;
+        }
+      }
+      assertThat(writerThreads, is(2));
+    } finally {
+      destroyStore(offHeapDiskStore);
+    }
+  }
+
+  @Test
+  public void testCompactionRelocatesMappingsToTheFreedSpace() throws Exception {
+    OffHeapDiskStore<String, String> offHeapDiskStore = createAndInitStore(getPersistenceContext(),
+        new OffHeapDiskStoreServiceConfiguration().diskSegments(1).compactionBytesPerSecond(Long.MAX_VALUE));
+    try {
+      for (int i = 0; i < 1000; i++) {
+        offHeapDiskStore.put("key" + i, "value" + i);
+      }
+      for (int i = 0; i < 900; i++) {
+        offHeapDiskStore.remove("key" + i);
+      }
+      assertThat(offHeapDiskStore.getFragmentation(), greaterThan(0.5));
+
+      long reclaimed = offHeapDiskStore.compactSegments(new CountDownLatch(1));
+      assertThat(reclaimed, greaterThan(0L));
+      for (int i = 900; i < 1000; i++) {
+        assertThat(offHeapDiskStore.get("key" + i).value(), is("value" + i));
+      }
+
+      OffHeapDiskStore.Provider.close(offHeapDiskStore);
+      OffHeapDiskStore.Provider.init(offHeapDiskStore);
+      for (int i = 900; i < 1000; i++) {
+        assertThat(offHeapDiskStore.get("key" + i).value(), is("value" + i));
+      }
+      assertThat(offHeapDiskStore.compactSegments(new CountDownLatch(1)), is(0L));
+    } finally {
+      destroyStore(offHeapDiskStore);
+    }
+  }
+
+  @Test
+  public void testCompactionKeepsMappingsWrittenAndRemovedBetweenBatches() throws Exception {
+    final OffHeapDiskStore<String, String> offHeapDiskStore = createAndInitStore(getPersistenceContext(),
+        new OffHeapDiskStoreServiceConfiguration().diskSegments(1).compactionBytesPerSecond(1000));
+    try {
+      for (int i = 0; i < 1000; i++) {
+        offHeapDiskStore.put("key" + i, "value" + i);
+      }
+      for (int i = 0; i < 900; i++) {
+        offHeapDiskStore.remove("key" + i);
+      }
+
+      final CountDownLatch stop = new CountDownLatch(1);
+      Thread compactor = new Thread() {
+        @Override
+        public void run() {
+          try {
+            offHeapDiskStore.compactSegments(stop);
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+        }
+      };
+      compactor.start();
+      try {
+        for (int i = 900; i < 1000; i += 2) {
+          offHeapDiskStore.remove("key" + i);
+        }
+        for (int i = 0; i < 100; i++) {
+          offHeapDiskStore.put("other" + i, "value" + i);
+        }
+      } finally {
+        stop.countDown();
+        compactor.join();
+      }
+
+      for (int i = 900; i < 1000; i++) {
+        if (i % 2 == 0) {
+          assertThat(offHeapDiskStore.get("key" + i), nullValue());
+        } else {
+          assertThat(offHeapDiskStore.get("key" + i).value(), is("value" + i));
+        }
+      }
+      for (int i = 0; i < 100; i++) {
+        assertThat(offHeapDiskStore.get("other" + i).value(), is("value" + i));
+      }
+    } finally {
+      destroyStore(offHeapDiskStore);
+    }
+  }
+
+  @Test
+  public void testReadCacheServesReadsAndSeesWrites() throws Exception {
+    OffHeapDiskStore<String, String> offHeapDiskStore = createAndInitStore(getPersistenceContext(),
+        new OffHeapDiskStoreServiceConfiguration().diskSegments(2).readCacheSize(MemoryUnit.KB.toBytes(64)));
+    try {
+      for (int i = 0; i < 100; i++) {
+        offHeapDiskStore.put("key" + i, "value" + i);
+      }
+      for (int i = 0; i < 100; i++) {
+        assertThat(offHeapDiskStore.get("key" + i).value(), is("value" + i));
+      }
+      int cached = 0;
+      for (Segment<?, ?> segment : ((EhcachePersistentConcurrentOffHeapClockCache<?, ?>) offHeapDiskStore.backingMap()).getSegments()) {
+        cached += ((CachingFileBackedStorageEngine<?, ?>) ((OffHeapHashMap<?, ?>) segment).getStorageEngine()).getReadCache().size();
+      }
+      assertThat(cached, greaterThan(0));
+
+      for (int i = 0; i < 50; i++) {
+        offHeapDiskStore.put("key" + i, "updated" + i);
+      }
+      for (int i = 50; i < 100; i++) {
+        offHeapDiskStore.remove("key" + i);
+      }
+      for (int i = 0; i < 50; i++) {
+        assertThat(offHeapDiskStore.get("key" + i).value(), is("updated" + i));
+      }
+      for (int i = 50; i < 100; i++) {
+        assertThat(offHeapDiskStore.get("key" + i), nullValue());
+      }
+
+      OffHeapDiskStore.Provider.close(offHeapDiskStore);
+      OffHeapDiskStore.Provider.init(offHeapDiskStore);
+      for (int i = 0; i < 50; i++) {
+        assertThat(offHeapDiskStore.get("key" + i).value(), is("updated" + i));
+      }
+    } finally {
+      destroyStore(offHeapDiskStore);
+    }
+  }
+
+  @Test
+  public void testFullWriteQueueFailsNewWrites() throws Exception {
+    OffHeapDiskStore<String, String> offHeapDiskStore = createAndInitStore(getPersistenceContext(), writeQueueConfig(DiskWriteBackpressure.FAIL));
+    CountDownLatch writerBlocked = blockWriter(offHeapDiskStore);
+    try {
+      for (int i = 0; i < 4; i++) {
+        offHeapDiskStore.put("key" + i, "value" + i);
+      }
+      assertThat(offHeapDiskStore.getWriteWorkers().getTotalQueueSize(), is(4L));
+      try {
+        offHeapDiskStore.put("key4", "value4");
+        fail("CacheAccessException expected");
+      } catch (CacheAccessException e) {
+        assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+      }
+      assertThat(offHeapDiskStore.getWriteWorkers().getRejectedWrites(), is(1L));
+      assertThat(offHeapDiskStore.get("key4"), nullValue());
+
+      // an update supersedes the queued write of its key
+      long coalesced = offHeapDiskStore.getWriteWorkers().getCoalescedWrites();
+      offHeapDiskStore.put("key0", "updated0");
+      assertThat(offHeapDiskStore.getWriteWorkers().getTotalQueueSize(), is(4L));
+      assertThat(offHeapDiskStore.getWriteWorkers().getCoalescedWrites(), is(coalesced + 1));
+
+      writerBlocked.countDown();
+      awaitWriteQueue(offHeapDiskStore);
+      offHeapDiskStore.put("key4", "value4");
+      assertThat(offHeapDiskStore.get("key0").value(), is("updated0"));
+      assertThat(offHeapDiskStore.get("key4").value(), is("value4"));
+    } finally {
+      writerBlocked.countDown();
+      destroyStore(offHeapDiskStore);
+    }
+  }
+
+  @Test
+  public void testFullWriteQueueFailsCachePutsThroughTheResilienceStrategy() throws Exception {
+    OffHeapDiskStore<String, String> offHeapDiskStore = createAndInitStore(getPersistenceContext(), writeQueueConfig(DiskWriteBackpressure.FAIL));
+    Ehcache<String, String> cache = new Ehcache<String, String>(
+        CacheConfigurationBuilder.newCacheConfigurationBuilder().buildConfig(String.class, String.class),
+        offHeapDiskStore, LoggerFactory.getLogger(Ehcache.class + "-" + "OffHeapDiskStoreTest"));
+    cache.init();
+    CountDownLatch writerBlocked = blockWriter(offHeapDiskStore);
+    try {
+      for (int i = 0; i < 4; i++) {
+        cache.put("key" + i, "value" + i);
+      }
+      cache.put("key4", "value4");
+      assertThat(offHeapDiskStore.getWriteWorkers().getRejectedWrites(), is(1L));
+      assertThat(cache.get("key4"), nullValue());
+      assertThat(cache.putIfAbsent("key5", "value5"), nullValue());
+      assertThat(cache.get("key5"), nullValue());
+
+      writerBlocked.countDown();
+      awaitWriteQueue(offHeapDiskStore);
+      cache.put("key4", "value4");
+      assertThat(cache.get("key4"), is("value4"));
+    } finally {
+      writerBlocked.countDown();
+      cache.close();
+      destroyStore(offHeapDiskStore);
+    }
+  }
+
+  @Test
+  public void testFullWriteQueueEvictsQueuedMappings() throws Exception {
+    OffHeapDiskStore<String, String> offHeapDiskStore = createAndInitStore(getPersistenceContext(), writeQueueConfig(DiskWriteBackpressure.EVICT));
+    CountDownLatch writerBlocked = blockWriter(offHeapDiskStore);
+    try {
+      for (int i = 0; i < 5; i++) {
+        offHeapDiskStore.put("key" + i, "value" + i);
+      }
+      assertThat(offHeapDiskStore.getWriteWorkers().getTotalQueueSize(), is(4L));
+      assertThat(offHeapDiskStore.getWriteWorkers().getDroppedWrites(), is(1L));
+      assertThat(offHeapDiskStore.get("key4").value(), is("value4"));
+      int present = 0;
+      for (int i = 0; i < 4; i++) {
+        if (offHeapDiskStore.get("key" + i) != null) {
+          present++;
+        }
+      }
+      assertThat(present, is(3));
+    } finally {
+      writerBlocked.countDown();
+      destroyStore(offHeapDiskStore);
+    }
+  }
+
+  @Test
+  public void testFullWriteQueueBlocksNewWrites() throws Exception {
+    final OffHeapDiskStore<String, String> offHeapDiskStore = createAndInitStore(getPersistenceContext(), writeQueueConfig(DiskWriteBackpressure.BLOCK));
+    CountDownLatch writerBlocked = blockWriter(offHeapDiskStore);
+    try {
+      for (int i = 0; i < 4; i++) {
+        offHeapDiskStore.put("key" + i, "value" + i);
+      }
+      Thread writer = new Thread() {
+        @Override
+        public void run() {
+          try {
+            offHeapDiskStore.put("key4", "value4");
+          } catch (CacheAccessException e) {
+            throw new AssertionError(e);
+          }
+        }
+      };
+      writer.start();
+      writer.join(100);
+      assertThat(writer.isAlive(), is(true));
+      assertThat(offHeapDiskStore.getWriteWorkers().getQueueLag(), greaterThan(0L));
+
+      writerBlocked.countDown();
+      writer.join(TimeUnit.SECONDS.toMillis(10));
+      assertThat(writer.isAlive(), is(false));
+      for (int i = 0; i < 5; i++) {
+        assertThat(offHeapDiskStore.get("key" + i).value(), is("value" + i));
+      }
+    } finally {
+      writerBlocked.countDown();
+      destroyStore(offHeapDiskStore);
+    }
+  }
+
+  private static OffHeapDiskStoreServiceConfiguration writeQueueConfig(DiskWriteBackpressure backpressure) {
+    return new OffHeapDiskStoreServiceConfiguration().diskSegments(1).writeQueueCapacity(4).writeQueueBackpressure(backpressure);
+  }
+
+  /**
+   * Waits for the writer threads of the store to make room in their queue.
+   */
+  private static void awaitWriteQueue(OffHeapDiskStore<String, String> store) {
+    for (DiskWriteExecutor writer : store.getWriteWorkers().getWriters()) {
+      writer.awaitCapacity();
+    }
+  }
+
+  /**
+   * Keeps the writer thread of the store busy until the returned latch is released.
+   */
+  private static CountDownLatch blockWriter(OffHeapDiskStore<String, String> store) throws Exception {
+    // the writer thread starts with the first write
+    store.put("warmup", "warmup");
+    store.remove("warmup");
+    final CountDownLatch writerStarted = new CountDownLatch(1);
+    final CountDownLatch writerBlocked = new CountDownLatch(1);
+    for (DiskWriteExecutor writer : store.getWriteWorkers().getWriters()) {
+      writer.execute(new Runnable() {
+        @Override
+        public void run() {
+          writerStarted.countDown();
+          try {
+            writerBlocked.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+    }
+    writerStarted.await();
+    return writerBlocked;
+  }
+
+  private OffHeapDiskStore<String, String> createAndInitStore(FileBasedPersistenceContext persistenceContext, OffHeapDiskStoreServiceConfiguration diskStoreConfig) throws UnsupportedTypeException {
+    SerializationProvider serializationProvider = new DefaultSerializationProvider(null);
+    serializationProvider.start(providerContaining(persistenceService));
+    ClassLoader classLoader = getClass().getClassLoader();
+    Serializer<String> keySerializer = serializationProvider.createKeySerializer(String.class, classLoader);
+    Serializer<String> valueSerializer = serializationProvider.createValueSerializer(String.class, classLoader);
+    StoreConfigurationImpl<String, String> storeConfiguration = new StoreConfigurationImpl<String, String>(String.class, String.class, null, null, classLoader, noExpiration(), null, keySerializer, valueSerializer);
+    OffHeapDiskStore<String, String> offHeapStore = new OffHeapDiskStore<String, String>(persistenceContext, storeConfiguration, SystemTimeSource.INSTANCE,
+        MemoryUnit.MB.toBytes(1), diskStoreConfig);
+    OffHeapDiskStore.Provider.init(offHeapStore);
+    return offHeapStore;
+  }
+
   @Override
   protected OffHeapDiskStore<String, String> createAndInitStore(final TimeSource timeSource, final Expiry<? super String, ? super String> expiry) {
     try {
@@ -136,8 +697,12 @@ public class OffHeapDiskStoreTest extends AbstractOffHeapStoreTest {
   }
 
   private FileBasedPersistenceContext getPersistenceContext() {
+    return getPersistenceContext("cache");
+  }
+
+  private FileBasedPersistenceContext getPersistenceContext(String alias) {
     try {
-      PersistenceSpaceIdentifier space = persistenceService.getOrCreatePersistenceSpace("cache");
+      PersistenceSpaceIdentifier space = persistenceService.getOrCreatePersistenceSpace(alias);
       return persistenceService.createPersistenceContextWithin(space, "store");
     } catch (CachePersistenceException e) {
       throw new AssertionError(e);
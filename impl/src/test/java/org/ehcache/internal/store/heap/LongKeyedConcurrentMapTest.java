@@ -0,0 +1,187 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.store.heap;
+
+import org.ehcache.function.Function;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class LongKeyedConcurrentMapTest {
+
+  @Test
+  public void testBasicOperations() {
+    LongKeyedConcurrentMap<String> map = new LongKeyedConcurrentMap<String>();
+
+    assertThat(map.putIfAbsent(0L, "zero"), nullValue());
+    assertThat(map.putIfAbsent(0L, "other"), is("zero"));
+    assertThat(map.putIfAbsent(-1L, "minus one"), nullValue());
+    assertThat(map.get(0L), is("zero"));
+    assertThat(map.get(-1L), is("minus one"));
+    assertThat(map.get(1L), nullValue());
+    assertThat(map.size(), is(2));
+
+    assertThat(map.replace(0L, "other", "nil"), is(false));
+    assertThat(map.replace(0L, "zero", "nil"), is(true));
+    assertThat(map.get(0L), is("nil"));
+
+    assertThat(map.remove(0L, "zero"), is(false));
+    assertThat(map.remove(0L, "nil"), is(true));
+    assertThat(map.remove(-1L), is("minus one"));
+    assertThat(map.get(0L), nullValue());
+    assertThat(map.get(-1L), nullValue());
+    assertThat(map.size(), is(0));
+
+    assertThat(map.putIfAbsent(0L, "again"), nullValue());
+    assertThat(map.get(0L), is("again"));
+  }
+
+  @Test
+  public void testCompute() {
+    LongKeyedConcurrentMap<String> map = new LongKeyedConcurrentMap<String>();
+
+    assertThat(map.computeIfPresent(1L, constant("one")), nullValue());
+    assertThat(map.get(1L), nullValue());
+    assertThat(map.compute(1L, constant("one")), is("one"));
+    assertThat(map.computeIfPresent(1L, new Function<String, String>() {
+      @Override
+      public String apply(String mapped) {
+        return mapped + "!";
+      }
+    }), is("one!"));
+    assertThat(map.get(1L), is("one!"));
+    assertThat(map.compute(1L, constant(null)), nullValue());
+    assertThat(map.get(1L), nullValue());
+    assertThat(map.size(), is(0));
+  }
+
+  @Test
+  public void testGrowsAndShrinksThroughRemovals() {
+    LongKeyedConcurrentMap<Long> map = new LongKeyedConcurrentMap<Long>();
+    for (int round = 0; round < 3; round++) {
+      for (long i = 0; i < 10000; i++) {
+        assertThat(map.putIfAbsent(i * 31, i), nullValue());
+      }
+      assertThat(map.size(), is(10000));
+      for (long i = 0; i < 10000; i++) {
+        assertThat(map.get(i * 31), is(i));
+      }
+      for (long i = 0; i < 10000; i += 2) {
+        assertThat(map.remove(i * 31), is(i));
+      }
+      assertThat(map.size(), is(5000));
+      for (long i = 0; i < 10000; i++) {
+        assertThat(map.get(i * 31), is(i % 2 == 0 ? null : i));
+      }
+      map.clear();
+      assertThat(map.size(), is(0));
+    }
+  }
+
+  @Test
+  public void testCursorVisitsAllMappingsOnce() {
+    LongKeyedConcurrentMap<Long> map = new LongKeyedConcurrentMap<Long>();
+    for (long i = 0; i < 1000; i++) {
+      map.putIfAbsent(i, i);
+    }
+
+    Set<Long> seen = new HashSet<Long>();
+    LongKeyedConcurrentMap<Long>.Cursor cursor = map.cursor(0x9e3779b9);
+    while (cursor.advance()) {
+      assertThat(cursor.value(), is(cursor.key()));
+      assertThat(seen.add(cursor.key()), is(true));
+      if (cursor.key() % 2 == 0) {
+        assertThat(cursor.remove(), is(true));
+      }
+    }
+    assertThat(seen.size(), is(1000));
+    assertThat(map.size(), is(500));
+  }
+
+  @Test
+  public void testConcurrentAccess() throws Exception {
+    final LongKeyedConcurrentMap<Long> map = new LongKeyedConcurrentMap<Long>();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Map<Integer, Future<Void>> futures = new HashMap<Integer, Future<Void>>();
+      for (int t = 0; t < 4; t++) {
+        final int thread = t;
+        futures.put(t, executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() {
+            Random random = new Random(thread);
+            for (int i = 0; i < 100000; i++) {
+              // each thread owns the keys congruent to its index, and checks its own writes
+              long key = random.nextInt(1000) * 4L + thread;
+              if (random.nextBoolean()) {
+                map.compute(key, new Function<Long, Long>() {
+                  @Override
+                  public Long apply(Long mapped) {
+                    return mapped == null ? 1L : mapped + 1;
+                  }
+                });
+                if (map.get(key) == null) {
+                  throw new AssertionError("lost key " + key);
+                }
+              } else {
+                map.remove(key);
+                if (map.get(key) != null) {
+                  throw new AssertionError("resurrected key " + key);
+                }
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures.values()) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    int count = 0;
+    LongKeyedConcurrentMap<Long>.Cursor cursor = map.cursor();
+    while (cursor.advance()) {
+      count++;
+    }
+    assertThat(map.size(), is(count));
+  }
+
+  private static Function<String, String> constant(final String value) {
+    return new Function<String, String>() {
+      @Override
+      public String apply(String mapped) {
+        return value;
+      }
+    };
+  }
+}
@@ -33,6 +33,10 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.ehcache.config.ResourcePoolsBuilder.newResourcePoolsBuilder;
 import static org.hamcrest.Matchers.is;
@@ -348,4 +352,100 @@ public class OnHeapStoreBulkMethodsTest {
     assertThat(store.get(5), is(nullValue()));
   }
 
+  @Test
+  public void testBulkComputeIfAbsentCallsFunctionOnceForAllAbsentKeys() throws Exception {
+    Store.Configuration<Number, CharSequence> configuration = mockStoreConfig();
+
+    OnHeapStore<Number, CharSequence> store = new OnHeapStore<Number, CharSequence>(configuration, SystemTimeSource.INSTANCE, DEFAULT_COPIER, DEFAULT_COPIER);
+    store.put(1, "one");
+
+    final AtomicInteger invocations = new AtomicInteger();
+    final Set<Number> requestedKeys = new HashSet<Number>();
+    Map<Number, Store.ValueHolder<CharSequence>> result = store.bulkComputeIfAbsent(new HashSet<Number>(Arrays.asList(1, 2, 3, 4)), new Function<Iterable<? extends Number>, Iterable<? extends Map.Entry<? extends Number, ? extends CharSequence>>>() {
+      @Override
+      public Iterable<? extends Map.Entry<? extends Number, ? extends CharSequence>> apply(Iterable<? extends Number> numbers) {
+        invocations.incrementAndGet();
+        Map<Number, CharSequence> result = new HashMap<Number, CharSequence>();
+        for (Number key : numbers) {
+          requestedKeys.add(key);
+          result.put(key, "value" + key);
+        }
+        return result.entrySet();
+      }
+    });
+
+    assertThat(invocations.get(), is(1));
+    assertThat(requestedKeys, Matchers.<Number>containsInAnyOrder(2, 3, 4));
+    assertThat(result.size(), is(4));
+    assertThat(result.get(1).value(), Matchers.<CharSequence>equalTo("one"));
+    assertThat(result.get(2).value(), Matchers.<CharSequence>equalTo("value2"));
+    assertThat(store.get(3).value(), Matchers.<CharSequence>equalTo("value3"));
+    assertThat(store.get(4).value(), Matchers.<CharSequence>equalTo("value4"));
+  }
+
+  @Test
+  public void testComputeIfAbsentWaitsForTheBatchLoadingItsKey() throws Exception {
+    Store.Configuration<Number, CharSequence> configuration = mockStoreConfig();
+
+    final OnHeapStore<Number, CharSequence> store = new OnHeapStore<Number, CharSequence>(configuration, SystemTimeSource.INSTANCE, DEFAULT_COPIER, DEFAULT_COPIER);
+
+    final CountDownLatch batchLoading = new CountDownLatch(1);
+    final CountDownLatch releaseBatch = new CountDownLatch(1);
+    final AtomicReference<Throwable> batchFailure = new AtomicReference<Throwable>();
+    Thread batch = new Thread() {
+      @Override
+      public void run() {
+        try {
+          store.bulkComputeIfAbsent(new HashSet<Number>(Arrays.asList(1, 2)), new Function<Iterable<? extends Number>, Iterable<? extends Map.Entry<? extends Number, ? extends CharSequence>>>() {
+            @Override
+            public Iterable<? extends Map.Entry<? extends Number, ? extends CharSequence>> apply(Iterable<? extends Number> numbers) {
+              batchLoading.countDown();
+              try {
+                releaseBatch.await();
+              } catch (InterruptedException e) {
+                throw new AssertionError(e);
+              }
+              Map<Number, CharSequence> result = new HashMap<Number, CharSequence>();
+              for (Number key : numbers) {
+                result.put(key, "batch" + key);
+              }
+              return result.entrySet();
+            }
+          });
+        } catch (Throwable t) {
+          batchFailure.set(t);
+        }
+      }
+    };
+    batch.start();
+    batchLoading.await();
+
+    final AtomicInteger singleLoads = new AtomicInteger();
+    final AtomicReference<Store.ValueHolder<CharSequence>> single = new AtomicReference<Store.ValueHolder<CharSequence>>();
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        single.set(store.computeIfAbsent(1, new Function<Number, CharSequence>() {
+          @Override
+          public CharSequence apply(Number key) {
+            singleLoads.incrementAndGet();
+            return "single" + key;
+          }
+        }));
+      }
+    };
+    reader.start();
+    reader.join(100);
+    assertThat(reader.isAlive(), is(true));
+
+    releaseBatch.countDown();
+    batch.join(TimeUnit.SECONDS.toMillis(10));
+    reader.join(TimeUnit.SECONDS.toMillis(10));
+    assertThat(batchFailure.get(), nullValue());
+    assertThat(singleLoads.get(), is(0));
+    assertThat(single.get().value(), Matchers.<CharSequence>equalTo("batch1"));
+    assertThat(store.get(1).value(), Matchers.<CharSequence>equalTo("batch1"));
+    assertThat(store.get(2).value(), Matchers.<CharSequence>equalTo("batch2"));
+  }
+
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store.heap;
+
+import org.ehcache.Cache;
+import org.ehcache.config.EvictionPrioritizer;
+import org.ehcache.config.EvictionVeto;
+import org.ehcache.config.ResourcePools;
+import org.ehcache.config.units.EntryUnit;
+import org.ehcache.config.units.MemoryUnit;
+import org.ehcache.expiry.Expirations;
+import org.ehcache.expiry.Expiry;
+import org.ehcache.internal.SystemTimeSource;
+import org.ehcache.internal.copy.IdentityCopier;
+import org.ehcache.internal.sizeof.ReflectionSizeOfEngine;
+import org.ehcache.internal.sizeof.SizeOfEngine;
+import org.ehcache.spi.cache.Store;
+import org.ehcache.spi.copy.Copier;
+import org.ehcache.spi.serialization.Serializer;
+import org.junit.Test;
+import org.mockito.Matchers;
+
+import static org.ehcache.config.ResourcePoolsBuilder.newResourcePoolsBuilder;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class OnHeapStoreByteSizingTest {
+
+  private static final Copier DEFAULT_COPIER = new IdentityCopier();
+
+  @Test
+  public void testEvictsOnBytes() throws Exception {
+    OnHeapStore<String, String> store = newStore(new ReflectionSizeOfEngine(1000));
+
+    for (int i = 0; i < 100; i++) {
+      store.put("key" + i, new String(new char[100]));
+    }
+
+    assertThat(count(store), greaterThan(0));
+    assertThat(count(store), lessThan(100));
+  }
+
+  @Test
+  public void testMappingBiggerThanCapacityIsEvicted() throws Exception {
+    OnHeapStore<String, String> store = newStore(new ReflectionSizeOfEngine(1000));
+
+    store.put("key", new String(new char[1024]));
+
+    assertThat(store.containsKey("key"), is(false));
+  }
+
+  @Test
+  public void testGrowingUpdateEvicts() throws Exception {
+    OnHeapStore<String, String> store = newStore(new ReflectionSizeOfEngine(1000));
+    store.put("key", "value");
+    assertThat(store.containsKey("key"), is(true));
+
+    store.replace("key", new String(new char[1024]));
+
+    assertThat(store.containsKey("key"), is(false));
+  }
+
+  @Test
+  public void testAccountingFollowsRemovals() throws Exception {
+    SizeOfEngine sizeOfEngine = mock(SizeOfEngine.class);
+    when(sizeOfEngine.sizeof(Matchers.<Object>anyVararg())).thenReturn(100L);
+    OnHeapStore<String, String> store = newStore(sizeOfEngine);
+
+    for (int i = 0; i < 20; i++) {
+      store.put("key" + i, "value");
+    }
+    assertThat(count(store), is(10));
+
+    Store.Iterator<Cache.Entry<String, Store.ValueHolder<String>>> iterator = store.iterator();
+    for (int i = 0; i < 5; i++) {
+      store.remove(iterator.next().getKey());
+    }
+    assertThat(count(store), is(5));
+
+    for (int i = 0; i < 5; i++) {
+      store.put("other" + i, "value");
+    }
+    assertThat(count(store), is(10));
+
+    store.clear();
+    for (int i = 0; i < 10; i++) {
+      store.put("key" + i, "value");
+    }
+    assertThat(count(store), is(10));
+  }
+
+  @Test
+  public void testOnlyHoldersOfStoresSizedInBytesCarryASize() throws Exception {
+    SizeOfEngine sizeOfEngine = mock(SizeOfEngine.class);
+    when(sizeOfEngine.sizeof(Matchers.<Object>anyVararg())).thenReturn(100L);
+    OnHeapStore<String, String> sized = newStore(sizeOfEngine);
+    sized.put("key", "value");
+    assertThat(((SizedValueHolder) sized.get("key")).size(), is(100L));
+
+    OnHeapStore<String, String> counted = new OnHeapStore<String, String>(newConfiguration(newResourcePoolsBuilder().heap(10, EntryUnit.ENTRIES).build()),
+        SystemTimeSource.INSTANCE, DEFAULT_COPIER, DEFAULT_COPIER);
+    counted.put("key", "value");
+    assertThat(counted.get("key"), not(instanceOf(SizedValueHolder.class)));
+  }
+
+  private static int count(OnHeapStore<String, String> store) throws Exception {
+    int count = 0;
+    Store.Iterator<Cache.Entry<String, Store.ValueHolder<String>>> iterator = store.iterator();
+    while (iterator.hasNext()) {
+      iterator.next();
+      count++;
+    }
+    return count;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static OnHeapStore<String, String> newStore(SizeOfEngine sizeOfEngine) {
+    return new OnHeapStore<String, String>(newConfiguration(newResourcePoolsBuilder().heap(1, MemoryUnit.KB).build()),
+        SystemTimeSource.INSTANCE, DEFAULT_COPIER, DEFAULT_COPIER, sizeOfEngine);
+  }
+
+  private static Store.Configuration<String, String> newConfiguration(final ResourcePools resourcePools) {
+    return new Store.Configuration<String, String>() {
+      @Override
+      public Class<String> getKeyType() {
+        return String.class;
+      }
+
+      @Override
+      public Class<String> getValueType() {
+        return String.class;
+      }
+
+      @Override
+      public EvictionVeto<? super String, ? super String> getEvictionVeto() {
+        return null;
+      }
+
+      @Override
+      public EvictionPrioritizer<? super String, ? super String> getEvictionPrioritizer() {
+        return null;
+      }
+
+      @Override
+      public ClassLoader getClassLoader() {
+        return getClass().getClassLoader();
+      }
+
+      @Override
+      public Expiry<? super String, ? super String> getExpiry() {
+        return Expirations.noExpiration();
+      }
+
+      @Override
+      public ResourcePools getResourcePools() {
+        return resourcePools;
+      }
+
+      @Override
+      public Serializer<String> getKeySerializer() {
+        throw new AssertionError();
+      }
+
+      @Override
+      public Serializer<String> getValueSerializer() {
+        throw new AssertionError();
+      }
+    };
+  }
+}
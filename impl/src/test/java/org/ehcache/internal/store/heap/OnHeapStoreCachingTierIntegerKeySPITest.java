@@ -0,0 +1,127 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store.heap;
+
+import org.ehcache.config.ResourcePools;
+import org.ehcache.config.StoreConfigurationImpl;
+import org.ehcache.config.units.EntryUnit;
+import org.ehcache.internal.SystemTimeSource;
+import org.ehcache.internal.copy.IdentityCopier;
+import org.ehcache.internal.store.heap.holders.CopiedOnHeapValueHolder;
+import org.ehcache.internal.tier.CachingTierFactory;
+import org.ehcache.internal.tier.CachingTierSPITest;
+import org.ehcache.spi.ServiceLocator;
+import org.ehcache.spi.ServiceProvider;
+import org.ehcache.spi.cache.Store;
+import org.ehcache.spi.cache.tiering.CachingTier;
+import org.ehcache.spi.copy.Copier;
+import org.ehcache.spi.service.ServiceConfiguration;
+import org.junit.Before;
+
+import static org.ehcache.config.ResourcePoolsBuilder.newResourcePoolsBuilder;
+
+/**
+ * This factory instantiates a CachingTier mapping primitive keys
+ */
+public class OnHeapStoreCachingTierIntegerKeySPITest extends CachingTierSPITest<Integer, String> {
+
+  private CachingTierFactory<Integer, String> cachingTierFactory;
+
+  @Override
+  protected CachingTierFactory<Integer, String> getCachingTierFactory() {
+    return cachingTierFactory;
+  }
+
+  @Before
+  public void setUp() {
+    cachingTierFactory = new CachingTierFactory<Integer, String>() {
+
+      private final Copier DEFAULT_COPIER = new IdentityCopier();
+
+      @Override
+      public CachingTier<Integer, String> newCachingTier() {
+        return newCachingTier(null);
+      }
+
+      @Override
+      public CachingTier<Integer, String> newCachingTier(long capacity) {
+        return newCachingTier((Long) capacity);
+      }
+
+      private CachingTier<Integer, String> newCachingTier(Long capacity) {
+        Store.Configuration<Integer, String> config = new StoreConfigurationImpl<Integer, String>(getKeyType(), getValueType(), null, null,
+                ClassLoader.getSystemClassLoader(), null, buildResourcePools(capacity), null, null);
+        
+        return new OnHeapStore<Integer, String>(config, SystemTimeSource.INSTANCE, DEFAULT_COPIER, DEFAULT_COPIER, null, false, true);
+      }
+      
+      @Override
+      public Store.ValueHolder<String> newValueHolder(final String value) {
+        return new CopiedOnHeapValueHolder<String>(value, SystemTimeSource.INSTANCE.getTimeMillis(), DEFAULT_COPIER);
+      }
+
+      @Override
+      public Store.Provider newProvider() {
+        return new OnHeapStore.Provider();
+      }
+
+      private ResourcePools buildResourcePools(Comparable<Long> capacityConstraint) {
+        if (capacityConstraint == null) {
+          return newResourcePoolsBuilder().heap(Long.MAX_VALUE, EntryUnit.ENTRIES).build();
+        } else {
+          return newResourcePoolsBuilder().heap((Long)capacityConstraint, EntryUnit.ENTRIES).build();
+        }
+      }
+
+      @Override
+      public Class<Integer> getKeyType() {
+        return Integer.class;
+      }
+
+      @Override
+      public Class<String> getValueType() {
+        return String.class;
+      }
+
+      @Override
+      public ServiceConfiguration<?>[] getServiceConfigurations() {
+        return new ServiceConfiguration[0];
+      }
+
+      @Override
+      public Integer createKey(long seed) {
+        return (int) seed;
+      }
+
+      @Override
+      public String createValue(long seed) {
+        return new String("" + seed);
+      }
+
+      @Override
+      public void disposeOf(CachingTier tier) {
+      }
+
+      @Override
+      public ServiceProvider getServiceProvider() {
+        return new ServiceLocator();
+      }
+
+    };
+  }
+
+}
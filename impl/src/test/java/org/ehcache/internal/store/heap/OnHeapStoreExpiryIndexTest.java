@@ -0,0 +1,175 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.store.heap;
+
+import org.ehcache.config.EvictionPrioritizer;
+import org.ehcache.config.EvictionVeto;
+import org.ehcache.config.ResourcePools;
+import org.ehcache.events.StoreEventListener;
+import org.ehcache.expiry.Duration;
+import org.ehcache.expiry.Expirations;
+import org.ehcache.expiry.Expiry;
+import org.ehcache.internal.TimeSource;
+import org.ehcache.internal.copy.IdentityCopier;
+import org.ehcache.spi.cache.Store;
+import org.ehcache.spi.copy.Copier;
+import org.ehcache.spi.serialization.Serializer;
+import org.junit.Test;
+import org.mockito.Matchers;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.ehcache.config.ResourcePoolsBuilder.newResourcePoolsBuilder;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class OnHeapStoreExpiryIndexTest {
+
+  private static final Copier DEFAULT_COPIER = new IdentityCopier();
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testExpiredMappingsAreRemoved() throws Exception {
+    TestTimeSource timeSource = new TestTimeSource();
+    OnHeapStore<String, String> store = newStore(timeSource, Expirations.<String, String>timeToLiveExpiration(new Duration(10, TimeUnit.SECONDS)));
+    StoreEventListener<String, String> listener = mock(StoreEventListener.class);
+    store.enableStoreEventNotifications(listener);
+
+    store.put("short", "value");
+    timeSource.advanceTime(5000);
+    store.put("long", "value");
+
+    timeSource.advanceTime(6000);
+    store.expireIndexedMappings();
+    timeSource.advanceTime(1100);
+    store.expireIndexedMappings();
+
+    verify(listener).onExpiration(eq("short"), Matchers.<Store.ValueHolder<String>>any());
+    verify(listener, never()).onExpiration(eq("long"), Matchers.<Store.ValueHolder<String>>any());
+
+    timeSource.advanceTime(10000);
+    store.expireIndexedMappings();
+    verify(listener).onExpiration(eq("long"), Matchers.<Store.ValueHolder<String>>any());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testAccessedMappingIsReindexed() throws Exception {
+    TestTimeSource timeSource = new TestTimeSource();
+    OnHeapStore<String, String> store = newStore(timeSource, Expirations.<String, String>timeToIdleExpiration(new Duration(10, TimeUnit.SECONDS)));
+    StoreEventListener<String, String> listener = mock(StoreEventListener.class);
+    store.enableStoreEventNotifications(listener);
+
+    store.put("key", "value");
+    timeSource.advanceTime(8000);
+    assertThat(store.get("key").value(), is("value"));
+
+    timeSource.advanceTime(4000);
+    store.expireIndexedMappings();
+    verify(listener, never()).onExpiration(eq("key"), Matchers.<Store.ValueHolder<String>>any());
+
+    timeSource.advanceTime(8000);
+    store.expireIndexedMappings();
+    verify(listener).onExpiration(eq("key"), Matchers.<Store.ValueHolder<String>>any());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testRemovedMappingIsUnindexed() throws Exception {
+    TestTimeSource timeSource = new TestTimeSource();
+    OnHeapStore<String, String> store = newStore(timeSource, Expirations.<String, String>timeToLiveExpiration(new Duration(10, TimeUnit.SECONDS)));
+    StoreEventListener<String, String> listener = mock(StoreEventListener.class);
+    store.enableStoreEventNotifications(listener);
+
+    store.put("key", "value");
+    store.put("other", "value");
+    store.remove("key");
+    store.replace("other", "newValue");
+    timeSource.advanceTime(20000);
+    store.expireIndexedMappings();
+
+  }
+
+  @SuppressWarnings("unchecked")
+  private static OnHeapStore<String, String> newStore(TimeSource timeSource, final Expiry<? super String, ? super String> expiry) {
+    return new OnHeapStore<String, String>(new Store.Configuration<String, String>() {
+      @Override
+      public Class<String> getKeyType() {
+        return String.class;
+      }
+
+      @Override
+      public Class<String> getValueType() {
+        return String.class;
+      }
+
+      @Override
+      public EvictionVeto<? super String, ? super String> getEvictionVeto() {
+        return null;
+      }
+
+      @Override
+      public EvictionPrioritizer<? super String, ? super String> getEvictionPrioritizer() {
+        return null;
+      }
+
+      @Override
+      public ClassLoader getClassLoader() {
+        return getClass().getClassLoader();
+      }
+
+      @Override
+      public Expiry<? super String, ? super String> getExpiry() {
+        return expiry;
+      }
+
+      @Override
+      public ResourcePools getResourcePools() {
+        return newResourcePoolsBuilder().heap(100, org.ehcache.config.units.EntryUnit.ENTRIES).build();
+      }
+
+      @Override
+      public Serializer<String> getKeySerializer() {
+        throw new AssertionError();
+      }
+
+      @Override
+      public Serializer<String> getValueSerializer() {
+        throw new AssertionError();
+      }
+    }, timeSource, DEFAULT_COPIER, DEFAULT_COPIER, null, true);
+  }
+
+  private static class TestTimeSource implements TimeSource {
+
+    private long time = 0;
+
+    @Override
+    public long getTimeMillis() {
+      return time;
+    }
+
+    private void advanceTime(long delta) {
+      this.time += delta;
+    }
+  }
+}
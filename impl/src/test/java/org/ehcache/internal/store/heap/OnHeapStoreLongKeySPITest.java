@@ -0,0 +1,141 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store.heap;
+
+import org.ehcache.config.EvictionVeto;
+import org.ehcache.config.ResourcePools;
+import org.ehcache.config.StoreConfigurationImpl;
+import org.ehcache.config.units.EntryUnit;
+import org.ehcache.expiry.Expirations;
+import org.ehcache.expiry.Expiry;
+import org.ehcache.internal.SystemTimeSource;
+import org.ehcache.internal.TimeSource;
+import org.ehcache.internal.copy.IdentityCopier;
+import org.ehcache.internal.store.StoreFactory;
+import org.ehcache.internal.store.StoreSPITest;
+import org.ehcache.internal.store.heap.holders.CopiedOnHeapValueHolder;
+import org.ehcache.spi.ServiceLocator;
+import org.ehcache.spi.cache.Store;
+import org.ehcache.spi.copy.Copier;
+import org.ehcache.spi.service.ServiceConfiguration;
+import org.junit.Before;
+
+import static org.ehcache.config.ResourcePoolsBuilder.newResourcePoolsBuilder;
+
+/**
+ * Test the {@link org.ehcache.internal.store.heap.OnHeapStore} compliance to the
+ * {@link org.ehcache.spi.cache.Store} contract when mapping primitive keys.
+ */
+
+public class OnHeapStoreLongKeySPITest extends StoreSPITest<Long, Long> {
+
+  private StoreFactory<Long, Long> storeFactory;
+
+  @Override
+  protected StoreFactory<Long, Long> getStoreFactory() {
+    return storeFactory;
+  }
+
+  @Before
+  public void setUp() {
+    storeFactory = new StoreFactory<Long, Long>() {
+
+      final Copier DEFAULT_COPIER = new IdentityCopier();
+
+      @Override
+      public Store<Long, Long> newStore() {
+        return newStore(null, null, Expirations.noExpiration(), SystemTimeSource.INSTANCE);
+      }
+
+      @Override
+      public Store<Long, Long> newStoreWithCapacity(long capacity) {
+        return newStore(capacity, null, Expirations.noExpiration(), SystemTimeSource.INSTANCE);
+      }
+
+      @Override
+      public Store<Long, Long> newStoreWithExpiry(Expiry<Long, Long> expiry, TimeSource timeSource) {
+        return newStore(null, null, expiry, timeSource);
+      }
+
+      @Override
+      public Store<Long, Long> newStoreWithEvictionVeto(EvictionVeto<Long, Long> evictionVeto) {
+        return newStore(null, evictionVeto, Expirations.noExpiration(), SystemTimeSource.INSTANCE);
+      }
+      
+      private Store<Long, Long> newStore(Long capacity, EvictionVeto<Long, Long> evictionVeto, Expiry<? super Long, ? super Long> expiry, TimeSource timeSource) {
+        ResourcePools resourcePools = buildResourcePools(capacity);
+        Store.Configuration<Long, Long> config = new StoreConfigurationImpl<Long, Long>(getKeyType(), getValueType(), evictionVeto, null, getClass().getClassLoader(), expiry, resourcePools, null, null);
+        return new OnHeapStore<Long, Long>(config, timeSource, DEFAULT_COPIER, DEFAULT_COPIER, null, false, true);
+      }
+
+      @Override
+      public Store.ValueHolder<Long> newValueHolder(final Long value) {
+        return new CopiedOnHeapValueHolder<Long>(value, SystemTimeSource.INSTANCE.getTimeMillis(), DEFAULT_COPIER);
+      }
+
+      private ResourcePools buildResourcePools(Comparable<Long> capacityConstraint) {
+        if (capacityConstraint == null) {
+          return newResourcePoolsBuilder().heap(Long.MAX_VALUE, EntryUnit.ENTRIES).build();
+        } else {
+          return newResourcePoolsBuilder().heap((Long)capacityConstraint, EntryUnit.ENTRIES).build();
+        }
+      }
+
+      @Override
+      public Class<Long> getKeyType() {
+        return Long.class;
+      }
+
+      @Override
+      public Class<Long> getValueType() {
+        return Long.class;
+      }
+
+      @Override
+      public ServiceConfiguration<?>[] getServiceConfigurations() {
+        return new ServiceConfiguration[0];
+      }
+
+      @Override
+      public Long createKey(long seed) {
+        return seed;
+      }
+
+      @Override
+      public Long createValue(long seed) {
+        return seed;
+      }
+
+      @Override
+      public void close(final Store<Long, Long> store) {
+        OnHeapStore.Provider.close((OnHeapStore)store);
+      }
+
+      @Override
+      public ServiceLocator getServiceProvider() {
+        ServiceLocator locator = new ServiceLocator();
+        try {
+          locator.startAllServices();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+        return locator;
+      }
+    };
+  }
+
+}
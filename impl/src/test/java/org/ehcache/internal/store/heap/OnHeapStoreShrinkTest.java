@@ -0,0 +1,205 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.store.heap;
+
+import org.ehcache.CacheConfigurationChangeEvent;
+import org.ehcache.CacheConfigurationChangeListener;
+import org.ehcache.CacheConfigurationProperty;
+import org.ehcache.config.ResourcePools;
+import org.ehcache.config.StoreConfigurationImpl;
+import org.ehcache.config.units.EntryUnit;
+import org.ehcache.events.StoreEventListener;
+import org.ehcache.expiry.Expirations;
+import org.ehcache.internal.SystemTimeSource;
+import org.ehcache.internal.copy.IdentityCopier;
+import org.ehcache.spi.ServiceLocator;
+import org.ehcache.spi.cache.Store;
+import org.junit.Test;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.ehcache.config.ResourcePoolsBuilder.newResourcePoolsBuilder;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class OnHeapStoreShrinkTest {
+
+  @Test
+  public void testReducingCapacityEvictsImmediately() throws Exception {
+    OnHeapStore<String, String> store = newStore(1000);
+    final AtomicInteger evictions = new AtomicInteger();
+    store.enableStoreEventNotifications(new CountingEvictionListener(evictions));
+    fill(store, 1000);
+
+    resize(store, 1000, 100);
+
+    assertThat(count(store), lessThanOrEqualTo(100));
+    assertThat(evictions.get(), is(1000 - count(store)));
+  }
+
+  @Test
+  public void testShrinkRunsInBatchesOnExecutor() throws Exception {
+    OnHeapStore<String, String> store = newStore(3000);
+    final Queue<Runnable> tasks = new LinkedList<Runnable>();
+    store.setShrinkExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        tasks.add(command);
+      }
+    });
+    fill(store, 3000);
+
+    resize(store, 3000, 100);
+    assertThat(count(store), is(3000));
+
+    int batches = 0;
+    for (Runnable task; (task = tasks.poll()) != null; batches++) {
+      task.run();
+    }
+    assertThat(count(store), lessThanOrEqualTo(100));
+    assertThat(batches, is((3000 - 100 + OnHeapStore.SHRINK_BATCH_SIZE - 1) / OnHeapStore.SHRINK_BATCH_SIZE));
+  }
+
+  @Test
+  public void testShrinkFinishesInlineWhenResubmissionIsRejected() throws Exception {
+    OnHeapStore<String, String> store = newStore(3000);
+    final Queue<Runnable> tasks = new LinkedList<Runnable>();
+    store.setShrinkExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        if (!tasks.isEmpty()) {
+          throw new RejectedExecutionException();
+        }
+        tasks.add(command);
+      }
+    });
+    fill(store, 3000);
+
+    resize(store, 3000, 100);
+    tasks.peek().run();
+    assertThat(count(store), lessThanOrEqualTo(100));
+
+    tasks.clear();
+    resize(store, 3000, 10);
+    tasks.poll().run();
+    assertThat(count(store), lessThanOrEqualTo(10));
+  }
+
+  @Test
+  public void testShrinkRunsInlineOnceTheProviderIsStopped() throws Exception {
+    ServiceLocator serviceLocator = new ServiceLocator(new OnHeapStore.Provider());
+    serviceLocator.startAllServices();
+    OnHeapStore.Provider provider = serviceLocator.getService(OnHeapStore.Provider.class);
+    OnHeapStore<String, String> store = provider.createStore(configuration(1000));
+    provider.initStore(store);
+    fill(store, 1000);
+
+    provider.stop();
+    resize(store, 1000, 100);
+
+    assertThat(count(store), lessThanOrEqualTo(100));
+  }
+
+  @Test
+  public void testCancelledShrinkStops() throws Exception {
+    OnHeapStore<String, String> store = newStore(3000);
+    final Queue<Runnable> tasks = new LinkedList<Runnable>();
+    store.setShrinkExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        tasks.add(command);
+      }
+    });
+    fill(store, 3000);
+
+    resize(store, 3000, 100);
+    store.cancelShrink();
+    tasks.poll().run();
+
+    assertThat(count(store), is(3000));
+    assertThat(tasks.isEmpty(), is(true));
+  }
+
+  @Test
+  public void testCapacityCanBeRestored() throws Exception {
+    OnHeapStore<String, String> store = newStore(1000);
+    fill(store, 1000);
+
+    resize(store, 1000, 10);
+    resize(store, 1000, 1000);
+    fill(store, 1000);
+
+    assertThat(count(store), is(1000));
+  }
+
+  private static void resize(OnHeapStore<String, String> store, long configured, long updated) {
+    ResourcePools configuredPools = newResourcePoolsBuilder().heap(configured, EntryUnit.ENTRIES).build();
+    ResourcePools updatedPools = newResourcePoolsBuilder().heap(updated, EntryUnit.ENTRIES).build();
+    for (CacheConfigurationChangeListener listener : store.getConfigurationChangeListeners()) {
+      listener.cacheConfigurationChange(new CacheConfigurationChangeEvent(CacheConfigurationProperty.UPDATESIZE, configuredPools, updatedPools));
+    }
+  }
+
+  private static void fill(OnHeapStore<String, String> store, int count) throws Exception {
+    for (int i = 0; i < count; i++) {
+      store.put("key" + i, "value" + i);
+    }
+  }
+
+  private static int count(OnHeapStore<String, String> store) throws Exception {
+    int count = 0;
+    for (Store.Iterator<?> iterator = store.iterator(); iterator.hasNext(); iterator.next()) {
+      count++;
+    }
+    return count;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static OnHeapStore<String, String> newStore(long capacity) {
+    return new OnHeapStore<String, String>(configuration(capacity), SystemTimeSource.INSTANCE, new IdentityCopier(), new IdentityCopier());
+  }
+
+  private static StoreConfigurationImpl<String, String> configuration(long capacity) {
+    return new StoreConfigurationImpl<String, String>(String.class, String.class,
+        null, null, OnHeapStoreShrinkTest.class.getClassLoader(), Expirations.noExpiration(),
+        newResourcePoolsBuilder().heap(capacity, EntryUnit.ENTRIES).build(), null, null);
+  }
+
+  private static class CountingEvictionListener implements StoreEventListener<String, String> {
+
+    private final AtomicInteger evictions;
+
+    CountingEvictionListener(AtomicInteger evictions) {
+      this.evictions = evictions;
+    }
+
+    @Override
+    public void onEviction(String key, Store.ValueHolder<String> valueHolder) {
+      evictions.incrementAndGet();
+    }
+
+    @Override
+    public void onExpiration(String key, Store.ValueHolder<String> valueHolder) {
+    }
+  }
+}
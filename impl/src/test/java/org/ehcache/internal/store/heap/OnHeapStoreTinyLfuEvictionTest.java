@@ -0,0 +1,149 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store.heap;
+
+import org.ehcache.config.Eviction;
+import org.ehcache.config.EvictionPrioritizer;
+import org.ehcache.config.StoreConfigurationImpl;
+import org.ehcache.config.units.EntryUnit;
+import org.ehcache.expiry.Expirations;
+import org.ehcache.internal.TestTimeSource;
+import org.ehcache.internal.copy.IdentityCopier;
+import org.ehcache.spi.copy.Copier;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.ehcache.config.ResourcePoolsBuilder.newResourcePoolsBuilder;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ * Compares the hit ratio of the Window TinyLFU policy with the sampled LRU one on synthetic traces.
+ */
+public class OnHeapStoreTinyLfuEvictionTest {
+
+  private static final int CAPACITY = 1000;
+  private static final int KEY_SPACE = 20000;
+  private static final int ACCESSES = 200000;
+
+  private static final Copier DEFAULT_COPIER = new IdentityCopier();
+
+  @Test
+  public void testCapacityIsHonored() throws Exception {
+    OnHeapStore<Long, Long> store = newStore(new TestTimeSource(), Eviction.Prioritizer.TINY_LFU);
+    for (long i = 0; i < 10 * CAPACITY; i++) {
+      store.put(i, i);
+    }
+    int count = 0;
+    for (long i = 0; i < 10 * CAPACITY; i++) {
+      if (store.containsKey(i)) {
+        count++;
+      }
+    }
+    assertThat(count, lessThanOrEqualTo(CAPACITY));
+    assertThat(count, greaterThan(CAPACITY / 2));
+  }
+
+  @Test
+  public void testFrequentKeySurvivesScan() throws Exception {
+    TestTimeSource timeSource = new TestTimeSource();
+    OnHeapStore<Long, Long> store = newStore(timeSource, Eviction.Prioritizer.TINY_LFU);
+    store.put(-1L, -1L);
+    for (int i = 0; i < 10; i++) {
+      timeSource.advanceTime(1);
+      store.get(-1L);
+    }
+    for (long i = 0; i < 10 * CAPACITY; i++) {
+      timeSource.advanceTime(1);
+      store.put(i, i);
+    }
+    assertThat(store.containsKey(-1L), is(true));
+  }
+
+  @Test
+  public void testZipfianHitRatio() throws Exception {
+    long[] trace = zipfianTrace(new Random(42), ACCESSES);
+
+    double lru = hitRatio(Eviction.Prioritizer.LRU, trace);
+    double tinyLfu = hitRatio(Eviction.Prioritizer.TINY_LFU, trace);
+
+    assertThat(tinyLfu, greaterThan(lru));
+  }
+
+  @Test
+  public void testScanResistance() throws Exception {
+    Random random = new Random(42);
+    long[] trace = zipfianTrace(random, ACCESSES);
+    long scanKey = KEY_SPACE;
+    for (int i = 0; i < trace.length; i++) {
+      // every 10000 accesses, a scan of 2000 keys never requested again
+      if (i % 10000 < 2000) {
+        trace[i] = scanKey++;
+      }
+    }
+
+    double lru = hitRatio(Eviction.Prioritizer.LRU, trace);
+    double tinyLfu = hitRatio(Eviction.Prioritizer.TINY_LFU, trace);
+
+    assertThat(tinyLfu, greaterThan(lru));
+  }
+
+  static double hitRatio(EvictionPrioritizer<Object, Object> prioritizer, long[] trace) throws Exception {
+    TestTimeSource timeSource = new TestTimeSource();
+    OnHeapStore<Long, Long> store = newStore(timeSource, prioritizer);
+    int hits = 0;
+    for (long key : trace) {
+      timeSource.advanceTime(1);
+      if (store.get(key) != null) {
+        hits++;
+      } else {
+        store.put(key, key);
+      }
+    }
+    return (double) hits / trace.length;
+  }
+
+  /**
+   * Keys drawn from a Zipf distribution of exponent 0.9 over {@link #KEY_SPACE} keys.
+   */
+  static long[] zipfianTrace(Random random, int length) {
+    double[] cdf = new double[KEY_SPACE];
+    double sum = 0;
+    for (int i = 0; i < KEY_SPACE; i++) {
+      sum += 1.0 / Math.pow(i + 1, 0.9);
+      cdf[i] = sum;
+    }
+    long[] trace = new long[length];
+    for (int i = 0; i < length; i++) {
+      int index = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+      trace[i] = index < 0 ? -index - 1 : index;
+    }
+    return trace;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static OnHeapStore<Long, Long> newStore(TestTimeSource timeSource, EvictionPrioritizer<Object, Object> prioritizer) {
+    return new OnHeapStore<Long, Long>(new StoreConfigurationImpl<Long, Long>(Long.class, Long.class, null, prioritizer,
+        OnHeapStoreTinyLfuEvictionTest.class.getClassLoader(), Expirations.noExpiration(),
+        newResourcePoolsBuilder().heap(CAPACITY, EntryUnit.ENTRIES).build(), null, null),
+        timeSource, DEFAULT_COPIER, DEFAULT_COPIER);
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.internal.store.heap;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+public class TimerWheelTest {
+
+  @Test
+  public void testExpiresOnlyDueNodes() {
+    TimerWheel<String, String> wheel = new TimerWheel<String, String>(0L);
+    wheel.schedule("a", "1", 100L);
+    wheel.schedule("b", "2", 5000L);
+    assertThat(wheel.size(), is(2));
+
+    assertThat(wheel.advance(50L), is(empty()));
+    assertThat(keys(wheel.advance(2000L)), containsInAnyOrder("a"));
+    assertThat(wheel.size(), is(1));
+    assertThat(keys(wheel.advance(6000L)), containsInAnyOrder("b"));
+    assertThat(wheel.size(), is(0));
+  }
+
+  @Test
+  public void testCancelledNodeIsNotExpired() {
+    TimerWheel<String, String> wheel = new TimerWheel<String, String>(0L);
+    wheel.schedule("a", "1", 100L);
+    wheel.cancel("1");
+    wheel.cancel("1");
+
+    assertThat(wheel.size(), is(0));
+    assertThat(wheel.advance(10000L), is(empty()));
+  }
+
+  @Test
+  public void testCascadesLongDelays() {
+    TimerWheel<String, String> wheel = new TimerWheel<String, String>(0L);
+    long hour = 60L * 60L * 1000L;
+    long day = 24L * hour;
+    wheel.schedule("hour", "1", hour);
+    wheel.schedule("day", "2", day);
+    wheel.schedule("month", "3", 30L * day);
+
+    List<String> expired = new ArrayList<String>();
+    for (long now = 0; now <= 31L * day; now += 10L * 60L * 1000L) {
+      for (TimerWheel.Node<String, String> node : wheel.advance(now)) {
+        assertThat(node.getExpirationTime() <= now, is(true));
+        assertThat(now - node.getExpirationTime() < 10L * 60L * 1000L, is(true));
+        expired.add(node.getKey());
+      }
+    }
+    assertThat(expired, containsInAnyOrder("hour", "day", "month"));
+    assertThat(wheel.size(), is(0));
+  }
+
+  @Test
+  public void testAlreadyExpiredNodeIsReturnedOnNextAdvance() {
+    TimerWheel<String, String> wheel = new TimerWheel<String, String>(0L);
+    wheel.advance(10000L);
+    wheel.schedule("a", "1", 500L);
+
+    assertThat(keys(wheel.advance(12000L)), containsInAnyOrder("a"));
+  }
+
+  private static List<String> keys(List<TimerWheel.Node<String, String>> nodes) {
+    List<String> keys = new ArrayList<String>();
+    for (TimerWheel.Node<String, String> node : nodes) {
+      keys.add(node.getKey());
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store.heap;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+
+public class WindowTinyLfuPolicyTest {
+
+  @Test
+  public void testEmptyPolicyHasNoVictim() {
+    WindowTinyLfuPolicy<String> policy = new WindowTinyLfuPolicy<String>(10, false);
+    assertThat(policy.selectVictim(), nullValue());
+  }
+
+  @Test
+  public void testInfrequentCandidateRejected() {
+    WindowTinyLfuPolicy<String> policy = new WindowTinyLfuPolicy<String>(2, false);
+    Object value = new Object();
+    policy.recordWrite("popular", value, 1);
+    for (int i = 0; i < 5; i++) {
+      policy.recordAccess("popular");
+    }
+    policy.recordWrite("candidate", value, 1);
+    policy.recordWrite("new", value, 1);
+
+    assertThat(policy.selectVictim(), is("candidate"));
+  }
+
+  @Test
+  public void testFrequentCandidateAdmitted() {
+    WindowTinyLfuPolicy<String> policy = new WindowTinyLfuPolicy<String>(2, false);
+    Object value = new Object();
+    policy.recordWrite("old", value, 1);
+    policy.recordWrite("candidate", value, 1);
+    for (int i = 0; i < 5; i++) {
+      policy.recordAccess("candidate");
+    }
+    policy.recordWrite("new", value, 1);
+
+    assertThat(policy.selectVictim(), is("old"));
+  }
+
+  @Test
+  public void testRemovalOfReplacedValueIsIgnored() {
+    WindowTinyLfuPolicy<String> policy = new WindowTinyLfuPolicy<String>(10, false);
+    Object oldValue = new Object();
+    Object newValue = new Object();
+    policy.recordWrite("key", oldValue, 1);
+    policy.recordWrite("key", newValue, 1);
+
+    policy.recordRemoval("key", oldValue);
+    assertThat(policy.size(), is(1));
+    policy.recordRemoval("key", newValue);
+    assertThat(policy.size(), is(0));
+  }
+
+  @Test
+  public void testConcurrentWritesAndRemovalsAreAllApplied() throws Exception {
+    final WindowTinyLfuPolicy<String> policy = new WindowTinyLfuPolicy<String>(100000, false);
+    final Object value = new Object();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int thread = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 10000; i++) {
+            String key = thread + "-" + i;
+            policy.recordWrite(key, value, 1);
+            policy.recordAccess(key);
+            if (i % 2 == 0) {
+              policy.recordRemoval(key, value);
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(policy.size(), is(threads.length * 5000));
+  }
+
+  @Test
+  public void testSketchAges() {
+    FrequencySketch sketch = new FrequencySketch();
+    for (int i = 0; i < 10; i++) {
+      sketch.increment("key");
+    }
+    assertThat(sketch.frequency("key"), is(10));
+    for (int i = 0; i < 10 * sketch.width(); i++) {
+      sketch.increment(i);
+    }
+    assertThat(sketch.frequency("key"), lessThan(10));
+  }
+}
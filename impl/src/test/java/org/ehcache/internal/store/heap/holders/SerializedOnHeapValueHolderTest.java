@@ -25,10 +25,12 @@ import org.junit.Test;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.util.concurrent.Exchanger;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
@@ -97,6 +99,26 @@ public class SerializedOnHeapValueHolderTest {
     valueHolder.value();
   }
 
+  @Test
+  public void testBinaryValueOnlyExposedToItsSerializer() {
+    JavaSerializer<String> serializer = new JavaSerializer<String>(getClass().getClassLoader());
+    SerializedOnHeapValueHolder<String> valueHolder = new SerializedOnHeapValueHolder<String>("foo", 1L, serializer);
+
+    assertThat(valueHolder.getBinaryValue(serializer), equalTo(serializer.serialize("foo")));
+    assertThat(valueHolder.getBinaryValue(new JavaSerializer<String>(getClass().getClassLoader())), nullValue());
+  }
+
+  @Test
+  public void testCreationFromBinaryValue() {
+    JavaSerializer<String> serializer = new JavaSerializer<String>(getClass().getClassLoader());
+    SerializedOnHeapValueHolder<String> source = new SerializedOnHeapValueHolder<String>("foo", 1L, serializer);
+
+    SerializedOnHeapValueHolder<String> valueHolder = new SerializedOnHeapValueHolder<String>(source, source.getBinaryValue(serializer), serializer, 2L, null);
+    assertThat(valueHolder.value(), equalTo("foo"));
+    assertThat(valueHolder.creationTime(TimeUnit.MILLISECONDS), is(1L));
+    assertThat(valueHolder.lastAccessTime(TimeUnit.MILLISECONDS), is(2L));
+  }
+
   private static class ReadExchangeSerializer implements Serializer<String> {
 
     private final Exchanger<ByteBuffer> exchanger;
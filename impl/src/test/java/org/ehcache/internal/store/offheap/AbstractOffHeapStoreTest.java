@@ -17,8 +17,16 @@
 package org.ehcache.internal.store.offheap;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.ehcache.Cache;
@@ -60,6 +68,243 @@ import org.terracotta.statistics.StatisticsManager;
  */
 public abstract class AbstractOffHeapStoreTest {
 
+  @Test
+  public void testBulkComputeIfAbsentCallsFunctionOnceForAllAbsentKeys() throws Exception {
+    TestTimeSource timeSource = new TestTimeSource();
+    AbstractOffHeapStore<String, String> offHeapStore = createAndInitStore(timeSource, Expirations.noExpiration());
+
+    try {
+      offHeapStore.put("1", "one");
+
+      final AtomicInteger invocations = new AtomicInteger();
+      final List<String> requestedKeys = new ArrayList<String>();
+      Map<String, Store.ValueHolder<String>> result = offHeapStore.bulkComputeIfAbsent(new HashSet<String>(Arrays.asList("1", "2", "3")), new Function<Iterable<? extends String>, Iterable<? extends Map.Entry<? extends String, ? extends String>>>() {
+        @Override
+        public Iterable<? extends Map.Entry<? extends String, ? extends String>> apply(Iterable<? extends String> keys) {
+          invocations.incrementAndGet();
+          Map<String, String> computed = new HashMap<String, String>();
+          for (String key : keys) {
+            requestedKeys.add(key);
+            computed.put(key, "value" + key);
+          }
+          return computed.entrySet();
+        }
+      });
+
+      assertThat(invocations.get(), is(1));
+      assertThat(requestedKeys, containsInAnyOrder("2", "3"));
+      assertThat(result.get("1").value(), equalTo("one"));
+      assertThat(result.get("2").value(), equalTo("value2"));
+      assertThat(offHeapStore.get("3").value(), equalTo("value3"));
+    } finally {
+      destroyStore(offHeapStore);
+    }
+  }
+
+  @Test
+  public void testBulkComputeCallsFunctionOnceForAllKeys() throws Exception {
+    TestTimeSource timeSource = new TestTimeSource();
+    AbstractOffHeapStore<String, String> offHeapStore = createAndInitStore(timeSource, Expirations.noExpiration());
+
+    try {
+      final Set<String> keys = new HashSet<String>();
+      for (int i = 0; i < 1000; i++) {
+        keys.add(Integer.toString(i));
+        offHeapStore.put(Integer.toString(i), "old" + i);
+      }
+      keys.add("new");
+
+      final AtomicInteger invocations = new AtomicInteger();
+      final Map<String, String> existing = new HashMap<String, String>();
+      Map<String, Store.ValueHolder<String>> result = offHeapStore.bulkCompute(keys, new Function<Iterable<? extends Map.Entry<? extends String, ? extends String>>, Iterable<? extends Map.Entry<? extends String, ? extends String>>>() {
+        @Override
+        public Iterable<? extends Map.Entry<? extends String, ? extends String>> apply(Iterable<? extends Map.Entry<? extends String, ? extends String>> entries) {
+          invocations.incrementAndGet();
+          Map<String, String> computed = new HashMap<String, String>();
+          for (Map.Entry<? extends String, ? extends String> entry : entries) {
+            existing.put(entry.getKey(), entry.getValue());
+            computed.put(entry.getKey(), entry.getKey().equals("0") ? null : "value" + entry.getKey());
+          }
+          return computed.entrySet();
+        }
+      });
+
+      assertThat(invocations.get(), is(1));
+      assertThat(existing.keySet(), equalTo(keys));
+      assertThat(existing.get("1"), equalTo("old1"));
+      assertThat(existing.get("new"), nullValue());
+      assertThat(result.get("0"), nullValue());
+      assertThat(result.get("1").value(), equalTo("value1"));
+      assertThat(offHeapStore.get("0"), nullValue());
+      assertThat(offHeapStore.get("999").value(), equalTo("value999"));
+      assertThat(offHeapStore.get("new").value(), equalTo("valuenew"));
+    } finally {
+      destroyStore(offHeapStore);
+    }
+  }
+
+  @Test
+  public void testBulkComputeInvokesFunctionOutsideOfSegmentLocks() throws Exception {
+    TestTimeSource timeSource = new TestTimeSource();
+    final AbstractOffHeapStore<String, String> offHeapStore = createAndInitStore(timeSource, Expirations.noExpiration());
+
+    try {
+      offHeapStore.put("1", "old1");
+      offHeapStore.put("2", "old2");
+
+      final AtomicReference<Boolean> concurrentPutDone = new AtomicReference<Boolean>();
+      final List<Map<String, String>> invocations = new ArrayList<Map<String, String>>();
+      Map<String, Store.ValueHolder<String>> result = offHeapStore.bulkCompute(new HashSet<String>(Arrays.asList("1", "2")), new Function<Iterable<? extends Map.Entry<? extends String, ? extends String>>, Iterable<? extends Map.Entry<? extends String, ? extends String>>>() {
+        @Override
+        public Iterable<? extends Map.Entry<? extends String, ? extends String>> apply(Iterable<? extends Map.Entry<? extends String, ? extends String>> entries) {
+          Map<String, String> seen = new HashMap<String, String>();
+          for (Map.Entry<? extends String, ? extends String> entry : entries) {
+            seen.put(entry.getKey(), entry.getValue());
+          }
+          invocations.add(seen);
+          if (invocations.size() == 1) {
+            Thread thread = new Thread() {
+              @Override
+              public void run() {
+                try {
+                  offHeapStore.put("1", "concurrent");
+                } catch (CacheAccessException e) {
+                  throw new AssertionError(e);
+                }
+              }
+            };
+            thread.start();
+            try {
+              thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+              throw new AssertionError(e);
+            }
+            concurrentPutDone.set(!thread.isAlive());
+          }
+          Map<String, String> computed = new HashMap<String, String>();
+          for (Map.Entry<String, String> entry : seen.entrySet()) {
+            computed.put(entry.getKey(), entry.getValue() + "-computed");
+          }
+          computed.put("unrequested", "value");
+          return computed.entrySet();
+        }
+      });
+
+      assertThat(concurrentPutDone.get(), is(true));
+      assertThat(invocations.size(), is(2));
+      assertThat(invocations.get(1), equalTo(Collections.singletonMap("1", "concurrent")));
+      assertThat(result.get("1").value(), equalTo("concurrent-computed"));
+      assertThat(offHeapStore.get("1").value(), equalTo("concurrent-computed"));
+      assertThat(result.get("2").value(), equalTo("old2-computed"));
+      assertThat(offHeapStore.get("2").value(), equalTo("old2-computed"));
+      assertThat(result.containsKey("unrequested"), is(false));
+      assertThat(offHeapStore.get("unrequested"), nullValue());
+    } finally {
+      destroyStore(offHeapStore);
+    }
+  }
+
+  @Test
+  public void testComputeIfAbsentWaitsForTheBatchLoadingItsKey() throws Exception {
+    final AbstractOffHeapStore<String, String> offHeapStore = createAndInitStore(new TestTimeSource(), Expirations.noExpiration());
+
+    try {
+      final CountDownLatch batchLoading = new CountDownLatch(1);
+      final CountDownLatch releaseBatch = new CountDownLatch(1);
+      final AtomicReference<Throwable> batchFailure = new AtomicReference<Throwable>();
+      Thread batch = new Thread() {
+        @Override
+        public void run() {
+          try {
+            offHeapStore.bulkComputeIfAbsent(new HashSet<String>(Arrays.asList("1", "2")), new Function<Iterable<? extends String>, Iterable<? extends Map.Entry<? extends String, ? extends String>>>() {
+              @Override
+              public Iterable<? extends Map.Entry<? extends String, ? extends String>> apply(Iterable<? extends String> keys) {
+                batchLoading.countDown();
+                try {
+                  releaseBatch.await();
+                } catch (InterruptedException e) {
+                  throw new AssertionError(e);
+                }
+                Map<String, String> result = new HashMap<String, String>();
+                for (String key : keys) {
+                  result.put(key, "batch" + key);
+                }
+                return result.entrySet();
+              }
+            });
+          } catch (Throwable t) {
+            batchFailure.set(t);
+          }
+        }
+      };
+      batch.start();
+      batchLoading.await();
+
+      final AtomicInteger singleLoads = new AtomicInteger();
+      final AtomicReference<Store.ValueHolder<String>> single = new AtomicReference<Store.ValueHolder<String>>();
+      Thread reader = new Thread() {
+        @Override
+        public void run() {
+          try {
+            single.set(offHeapStore.computeIfAbsent("1", new Function<String, String>() {
+              @Override
+              public String apply(String key) {
+                singleLoads.incrementAndGet();
+                return "single" + key;
+              }
+            }));
+          } catch (CacheAccessException e) {
+            throw new AssertionError(e);
+          }
+        }
+      };
+      reader.start();
+      reader.join(100);
+      assertThat(reader.isAlive(), is(true));
+
+      releaseBatch.countDown();
+      batch.join(TimeUnit.SECONDS.toMillis(10));
+      reader.join(TimeUnit.SECONDS.toMillis(10));
+      assertThat(batchFailure.get(), nullValue());
+      assertThat(singleLoads.get(), is(0));
+      assertThat(single.get().value(), equalTo("batch1"));
+      assertThat(offHeapStore.get("1").value(), equalTo("batch1"));
+      assertThat(offHeapStore.get("2").value(), equalTo("batch2"));
+    } finally {
+      destroyStore(offHeapStore);
+    }
+  }
+
+  @Test
+  public void testBulkComputeSeesExpiredMappingsAsAbsent() throws Exception {
+    TestTimeSource timeSource = new TestTimeSource();
+    AbstractOffHeapStore<String, String> offHeapStore = createAndInitStore(timeSource, Expirations.timeToLiveExpiration(new Duration(10, TimeUnit.MILLISECONDS)));
+
+    try {
+      offHeapStore.put("expired", "value");
+      timeSource.advanceTime(20);
+      offHeapStore.put("live", "value");
+
+      final Map<String, String> existing = new HashMap<String, String>();
+      offHeapStore.bulkCompute(new HashSet<String>(Arrays.asList("expired", "live")), new Function<Iterable<? extends Map.Entry<? extends String, ? extends String>>, Iterable<? extends Map.Entry<? extends String, ? extends String>>>() {
+        @Override
+        public Iterable<? extends Map.Entry<? extends String, ? extends String>> apply(Iterable<? extends Map.Entry<? extends String, ? extends String>> entries) {
+          for (Map.Entry<? extends String, ? extends String> entry : entries) {
+            existing.put(entry.getKey(), entry.getValue());
+          }
+          return Collections.singletonMap("live", "newValue").entrySet();
+        }
+      });
+
+      assertThat(existing.get("expired"), nullValue());
+      assertThat(existing.get("live"), equalTo("value"));
+      assertThat(offHeapStore.get("expired"), nullValue());
+      assertThat(offHeapStore.get("live").value(), equalTo("newValue"));
+    } finally {
+      destroyStore(offHeapStore);
+    }
+  }
+
   @Test
   public void testGetAndRemove() throws Exception {
     TestTimeSource timeSource = new TestTimeSource();
@@ -124,17 +369,12 @@ public abstract class AbstractOffHeapStoreTest {
 
       timeSource.advanceTime(20);
 
-      try {
-        offHeapStore.getOrComputeIfAbsent("1", new Function<String, Store.ValueHolder<String>>() {
-          @Override
-          public Store.ValueHolder<String> apply(String key) {
-            return new SimpleValueHolder<String>("un", timeSource.getTimeMillis(), 15);
-          }
-        });
-        fail("expected AssertionError");
-      } catch (AssertionError ae) {
-        // expected
-      }
+      assertThat(offHeapStore.getOrComputeIfAbsent("1", new Function<String, Store.ValueHolder<String>>() {
+        @Override
+        public Store.ValueHolder<String> apply(String key) {
+          return new SimpleValueHolder<String>("un", timeSource.getTimeMillis(), 15);
+        }
+      }).value(), equalTo("un"));
     } finally {
       destroyStore(offHeapStore);
     }
@@ -0,0 +1,66 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store.offheap;
+
+import org.junit.Test;
+import org.terracotta.offheapstore.storage.PointerSize;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class HeuristicConfigurationTest {
+
+  private static final long GB = 1024L * 1024 * 1024;
+  private static final long TB = 1024 * GB;
+
+  @Test
+  public void testDefaultTierIsCappedAt16KSegmentsWithIntPointers() {
+    HeuristicConfiguration configuration = new HeuristicConfiguration(TB);
+    assertThat(configuration.getConcurrency(), is(16 * 1024));
+    assertThat(configuration.getPointerSize(), is(PointerSize.INT));
+    assertThat(configuration.getInitialSegmentDataPageSize(), is(configuration.getSegmentDataPageSize()));
+  }
+
+  @Test
+  public void testLargeTierUsesMoreSegmentsWithLongPointers() {
+    HeuristicConfiguration configuration = new HeuristicConfiguration(TB, HeuristicConfiguration.DEFAULT_ASSUMED_KEY_VALUE_SIZE, true);
+    assertThat(configuration.getConcurrency(), is(32 * 1024));
+    assertThat(configuration.getPointerSize(), is(PointerSize.LONG));
+    assertThat(configuration.getInitialSegmentDataPageSize(), is(4 * 1024));
+    assertThat(configuration.getSegmentDataPageSize(), greaterThan(4 * 1024));
+    assertThat(configuration.getInitialSegmentTableSize(), is(4));
+
+    assertThat(new HeuristicConfiguration(4 * TB, HeuristicConfiguration.DEFAULT_ASSUMED_KEY_VALUE_SIZE, true).getConcurrency(), is(64 * 1024));
+  }
+
+  @Test
+  public void testLargeTierOfLargeEntriesHasValidGeometry() {
+    HeuristicConfiguration configuration = new HeuristicConfiguration(4 * TB, 50 * 1024, true);
+    assertThat(configuration.getSegmentDataPageSize(), greaterThan(0));
+    assertThat(configuration.getInitialSegmentTableSize(), greaterThanOrEqualTo(1));
+    assertThat(configuration.getMinimumChunkSize(), greaterThanOrEqualTo(configuration.getSegmentDataPageSize()));
+  }
+
+  @Test
+  public void testSegmentsHoldAtLeastOneEntryInitially() {
+    HeuristicConfiguration configuration = new HeuristicConfiguration(TB, 16 * 1024 * 1024, true);
+    assertThat(configuration.getSegmentDataPageSize(), is(16 * 1024 * 1024));
+    assertThat(configuration.getInitialSegmentTableSize(), is(1));
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ehcache.internal.store.offheap;
+
+import org.junit.Test;
+import org.terracotta.offheapstore.buffersource.OffHeapBufferSource;
+import org.terracotta.offheapstore.paging.Page;
+
+import java.util.concurrent.Executor;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class IncrementalPageSourceTest {
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  @Test
+  public void testNothingReservedBeforeFirstAllocation() {
+    IncrementalPageSource source = new IncrementalPageSource(new OffHeapBufferSource(), 4 * CHUNK_SIZE, CHUNK_SIZE, null);
+    assertThat(source.getReservedSize(), is(0L));
+  }
+
+  @Test
+  public void testReservesChunksAsNeededUpToMaximum() {
+    IncrementalPageSource source = new IncrementalPageSource(new OffHeapBufferSource(), 2 * CHUNK_SIZE, CHUNK_SIZE, null);
+
+    assertThat(source.allocate(CHUNK_SIZE, false, false, null), notNullValue());
+    assertThat(source.getReservedSize(), is((long) CHUNK_SIZE));
+
+    assertThat(source.allocate(CHUNK_SIZE, false, false, null), notNullValue());
+    assertThat(source.getReservedSize(), is(2L * CHUNK_SIZE));
+
+    assertThat(source.allocate(CHUNK_SIZE, false, false, null), nullValue());
+    assertThat(source.getReservedSize(), is(2L * CHUNK_SIZE));
+  }
+
+  @Test
+  public void testLastChunkIsTruncatedToMaximum() {
+    IncrementalPageSource source = new IncrementalPageSource(new OffHeapBufferSource(), CHUNK_SIZE + CHUNK_SIZE / 2, CHUNK_SIZE, null);
+
+    assertThat(source.allocate(CHUNK_SIZE, false, false, null), notNullValue());
+    assertThat(source.allocate(CHUNK_SIZE / 2, false, false, null), notNullValue());
+    assertThat(source.getReservedSize(), is((long) CHUNK_SIZE + CHUNK_SIZE / 2));
+    assertThat(source.allocate(CHUNK_SIZE / 2, false, false, null), nullValue());
+  }
+
+  @Test
+  public void testFreedPagesAreReused() {
+    IncrementalPageSource source = new IncrementalPageSource(new OffHeapBufferSource(), CHUNK_SIZE, CHUNK_SIZE, null);
+
+    Page page = source.allocate(CHUNK_SIZE, false, false, null);
+    assertThat(source.allocate(CHUNK_SIZE, false, false, null), nullValue());
+
+    source.free(page);
+    assertThat(source.allocate(CHUNK_SIZE, false, false, null), notNullValue());
+    assertThat(source.getReservedSize(), is((long) CHUNK_SIZE));
+  }
+
+  @Test
+  public void testFreeingForeignPageFails() {
+    IncrementalPageSource source = new IncrementalPageSource(new OffHeapBufferSource(), CHUNK_SIZE, CHUNK_SIZE, null);
+    IncrementalPageSource other = new IncrementalPageSource(new OffHeapBufferSource(), CHUNK_SIZE, CHUNK_SIZE, null);
+
+    Page page = other.allocate(CHUNK_SIZE / 2, false, false, null);
+    try {
+      source.free(page);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testReservesAheadOnExecutor() {
+    Executor sameThread = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    };
+    IncrementalPageSource source = new IncrementalPageSource(new OffHeapBufferSource(), 4 * CHUNK_SIZE, CHUNK_SIZE, sameThread);
+    assertThat(source.getReservedSize(), is((long) CHUNK_SIZE));
+
+    source.allocate(CHUNK_SIZE / 2, false, false, null);
+    assertThat(source.getReservedSize(), is(2L * CHUNK_SIZE));
+
+    source.allocate(CHUNK_SIZE / 2, false, false, null);
+    source.allocate(CHUNK_SIZE / 2, false, false, null);
+    assertThat(source.getReservedSize(), is(3L * CHUNK_SIZE));
+  }
+}
@@ -16,16 +16,51 @@
 
 package org.ehcache.internal.store.offheap;
 
+import org.ehcache.CacheConfigurationChangeEvent;
+import org.ehcache.CacheConfigurationChangeListener;
+import org.ehcache.CacheConfigurationProperty;
 import org.ehcache.config.EvictionVeto;
+import org.ehcache.config.ResourcePools;
 import org.ehcache.config.StoreConfigurationImpl;
 import org.ehcache.config.units.MemoryUnit;
+import org.ehcache.expiry.Expirations;
 import org.ehcache.expiry.Expiry;
+import org.ehcache.function.Function;
+import org.ehcache.internal.SystemTimeSource;
 import org.ehcache.internal.TimeSource;
+import org.ehcache.internal.serialization.CompactJavaSerializer;
+import org.ehcache.internal.serialization.StringSerializer;
+import org.ehcache.internal.store.heap.holders.SerializedOnHeapValueHolder;
 import static org.ehcache.spi.TestServiceProvider.providerContaining;
 import org.ehcache.spi.serialization.DefaultSerializationProvider;
 import org.ehcache.spi.serialization.SerializationProvider;
 import org.ehcache.spi.serialization.Serializer;
 import org.ehcache.spi.serialization.UnsupportedTypeException;
+import org.ehcache.spi.cache.Store;
+import org.junit.Test;
+import org.terracotta.context.TreeNode;
+import org.terracotta.statistics.StatisticsManager;
+import org.terracotta.statistics.ValueStatistic;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+import static org.ehcache.config.ResourcePoolsBuilder.newResourcePoolsBuilder;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.terracotta.context.query.Matchers.attributes;
+import static org.terracotta.context.query.Matchers.context;
+import static org.terracotta.context.query.Matchers.hasAttribute;
+import static org.terracotta.context.query.QueryBuilder.queryBuilder;
 
 public class OffHeapStoreTest extends AbstractOffHeapStoreTest {
 
@@ -67,4 +102,162 @@ public class OffHeapStoreTest extends AbstractOffHeapStoreTest {
   protected void destroyStore(AbstractOffHeapStore<?, ?> store) {
     OffHeapStore.Provider.close((OffHeapStore<?, ?>) store);
   }
+
+  @Test
+  public void testReducingSizeEvictsImmediately() throws Exception {
+    OffHeapStore<String, byte[]> store = createAndInitStore(SystemTimeSource.INSTANCE, Expirations.noExpiration(), null);
+    try {
+      fill(store, 100);
+      int before = count(store);
+      assertThat(before, greaterThan(90));
+
+      ResourcePools configuredPools = newResourcePoolsBuilder().offheap(1, MemoryUnit.MB).build();
+      ResourcePools updatedPools = newResourcePoolsBuilder().offheap(256, MemoryUnit.KB).build();
+      for (CacheConfigurationChangeListener listener : store.getConfigurationChangeListeners()) {
+        listener.cacheConfigurationChange(new CacheConfigurationChangeEvent(CacheConfigurationProperty.UPDATESIZE, configuredPools, updatedPools));
+      }
+      int after = count(store);
+      assertThat(after, lessThan(before / 2));
+
+      fill(store, 100);
+      assertThat(count(store), lessThan(before / 2));
+    } finally {
+      destroyStore(store);
+    }
+  }
+
+  @Test
+  public void testFaultingSerializedValueHolderMovesBytes() throws Exception {
+    ClassLoader classLoader = getClass().getClassLoader();
+    StringSerializer valueSerializer = spy(new StringSerializer(classLoader));
+    StoreConfigurationImpl<String, String> storeConfiguration = new StoreConfigurationImpl<String, String>(String.class, String.class, null, null, classLoader,
+        Expirations.noExpiration(), null, new StringSerializer(classLoader), valueSerializer);
+    OffHeapStore<String, String> store = new OffHeapStore<String, String>(storeConfiguration, SystemTimeSource.INSTANCE, MemoryUnit.MB.toBytes(1));
+    OffHeapStore.Provider.init(store);
+    try {
+      final SerializedOnHeapValueHolder<String> heapValueHolder = new SerializedOnHeapValueHolder<String>("value", 1L, valueSerializer);
+      store.getOrComputeIfAbsent("key", new Function<String, Store.ValueHolder<String>>() {
+        @Override
+        public Store.ValueHolder<String> apply(String key) {
+          return heapValueHolder;
+        }
+      });
+
+      verify(valueSerializer, times(1)).serialize(anyString());
+      verify(valueSerializer, never()).read(any(ByteBuffer.class));
+      assertThat(store.get("key").value(), is("value"));
+    } finally {
+      destroyStore(store);
+    }
+  }
+
+  @Test
+  public void testIncrementalAllocationStoresAndEvicts() throws Exception {
+    ClassLoader classLoader = getClass().getClassLoader();
+    StoreConfigurationImpl<String, byte[]> storeConfiguration = new StoreConfigurationImpl<String, byte[]>(String.class, byte[].class, null, null, classLoader,
+        Expirations.noExpiration(), null, new StringSerializer(classLoader), new CompactJavaSerializer<byte[]>(classLoader));
+    OffHeapStore<String, byte[]> store = new OffHeapStore<String, byte[]>(storeConfiguration, SystemTimeSource.INSTANCE, MemoryUnit.MB.toBytes(1),
+        new OffHeapStoreServiceConfiguration(OffHeapStoreServiceConfiguration.AllocationMode.INCREMENTAL));
+    OffHeapStore.Provider.init(store);
+    try {
+      fill(store, 100);
+      int filled = count(store);
+      assertThat(filled, greaterThan(90));
+
+      fill(store, 200);
+      assertThat(count(store), lessThan(200));
+      assertThat(count(store), greaterThan(90));
+    } finally {
+      destroyStore(store);
+    }
+  }
+
+  @Test
+  public void testGeometryFollowsExpectedEntrySize() throws Exception {
+    ClassLoader classLoader = getClass().getClassLoader();
+    StoreConfigurationImpl<String, byte[]> storeConfiguration = new StoreConfigurationImpl<String, byte[]>(String.class, byte[].class, null, null, classLoader,
+        Expirations.noExpiration(), null, new StringSerializer(classLoader), new CompactJavaSerializer<byte[]>(classLoader));
+    OffHeapStore<String, byte[]> defaultStore = new OffHeapStore<String, byte[]>(storeConfiguration, SystemTimeSource.INSTANCE, MemoryUnit.MB.toBytes(64));
+    OffHeapStore<String, byte[]> smallEntriesStore = new OffHeapStore<String, byte[]>(storeConfiguration, SystemTimeSource.INSTANCE, MemoryUnit.MB.toBytes(64),
+        new OffHeapStoreServiceConfiguration(OffHeapStoreServiceConfiguration.AllocationMode.UPFRONT, 64));
+    OffHeapStore.Provider.init(defaultStore);
+    OffHeapStore.Provider.init(smallEntriesStore);
+    try {
+      assertThat(this.<Integer>statistic(smallEntriesStore, "assumedEntrySize"), is(64));
+      assertThat(this.<Long>statistic(smallEntriesStore, "tableCapacity"), greaterThan(this.<Long>statistic(defaultStore, "tableCapacity")));
+      assertThat(this.<Long>statistic(smallEntriesStore, "observedEntrySize"), is(0L));
+
+      for (int i = 0; i < 100; i++) {
+        smallEntriesStore.put("key" + i, new byte[32]);
+      }
+      assertThat(this.<Long>statistic(smallEntriesStore, "observedEntrySize"), greaterThan(32L));
+      assertThat(this.<Long>statistic(smallEntriesStore, "observedEntrySize"), lessThan(256L));
+    } finally {
+      destroyStore(defaultStore);
+      destroyStore(smallEntriesStore);
+    }
+  }
+
+  @Test
+  public void testLargeTierStoresAndEvicts() throws Exception {
+    ClassLoader classLoader = getClass().getClassLoader();
+    StoreConfigurationImpl<String, byte[]> storeConfiguration = new StoreConfigurationImpl<String, byte[]>(String.class, byte[].class, null, null, classLoader,
+        Expirations.noExpiration(), null, new StringSerializer(classLoader), new CompactJavaSerializer<byte[]>(classLoader));
+    OffHeapStore<String, byte[]> store = new OffHeapStore<String, byte[]>(storeConfiguration, SystemTimeSource.INSTANCE, MemoryUnit.MB.toBytes(1),
+        new OffHeapStoreServiceConfiguration(OffHeapStoreServiceConfiguration.AllocationMode.UPFRONT, 0, true));
+    OffHeapStore.Provider.init(store);
+    try {
+      fill(store, 200);
+      int count = count(store);
+      assertThat(count, greaterThan(90));
+      assertThat(count, lessThan(200));
+      assertThat(store.get("key199").value().length, is(8 * 1024));
+    } finally {
+      destroyStore(store);
+    }
+  }
+
+  @Test
+  public void testSparseLargeTier() throws Exception {
+    ClassLoader classLoader = getClass().getClassLoader();
+    StoreConfigurationImpl<String, byte[]> storeConfiguration = new StoreConfigurationImpl<String, byte[]>(String.class, byte[].class, null, null, classLoader,
+        Expirations.noExpiration(), null, new StringSerializer(classLoader), new CompactJavaSerializer<byte[]>(classLoader));
+    OffHeapStore<String, byte[]> store = new OffHeapStore<String, byte[]>(storeConfiguration, SystemTimeSource.INSTANCE, MemoryUnit.GB.toBytes(128),
+        new OffHeapStoreServiceConfiguration(OffHeapStoreServiceConfiguration.AllocationMode.INCREMENTAL, 0, true));
+    OffHeapStore.Provider.init(store);
+    try {
+      assertThat(this.<Integer>statistic(store, "segmentCount"), is(4096));
+      fill(store, 10000);
+      assertThat(count(store), is(10000));
+      for (int i = 0; i < 10000; i++) {
+        assertThat(store.get("key" + i).value().length, is(8 * 1024));
+      }
+    } finally {
+      destroyStore(store);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T extends Number> T statistic(OffHeapStore<?, ?> store, String name) {
+    StatisticsManager statisticsManager = new StatisticsManager();
+    statisticsManager.root(store);
+    Set<TreeNode> nodes = statisticsManager.query(queryBuilder().descendants()
+        .filter(context(attributes(hasAttribute("name", name)))).build());
+    assertThat(nodes, hasSize(1));
+    return ((ValueStatistic<T>) nodes.iterator().next().getContext().attributes().get("this")).value();
+  }
+
+  private static void fill(OffHeapStore<String, byte[]> store, int count) throws Exception {
+    for (int i = 0; i < count; i++) {
+      store.put("key" + i, new byte[8 * 1024]);
+    }
+  }
+
+  private static int count(OffHeapStore<String, byte[]> store) throws Exception {
+    int count = 0;
+    for (Store.Iterator<?> iterator = store.iterator(); iterator.hasNext(); iterator.next()) {
+      count++;
+    }
+    return count;
+  }
 }
\ No newline at end of file
@@ -16,6 +16,7 @@
 
 package org.ehcache.internal.store.offheap;
 
+import org.ehcache.internal.serialization.StringSerializer;
 import org.ehcache.internal.store.offheap.portability.OffHeapValueHolderPortability;
 import org.ehcache.spi.cache.AbstractValueHolder;
 import org.ehcache.spi.serialization.DefaultSerializationProvider;
@@ -33,7 +34,10 @@ import org.ehcache.spi.serialization.UnsupportedTypeException;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 
 public class OffHeapValueHolderPortabilityTest {
@@ -80,4 +84,38 @@ public class OffHeapValueHolderPortabilityTest {
     verify(writeContext).setLong(OffHeapValueHolderPortability.HITS_OFFSET, 8L);
   }
 
-}
\ No newline at end of file
+  @Test
+  public void testDecodedValueIsDeserializedLazily() throws Exception {
+    StringSerializer serializer = spy(new StringSerializer(getClass().getClassLoader()));
+    OffHeapValueHolderPortability<String> portability = new OffHeapValueHolderPortability<String>(serializer);
+    OffHeapValueHolder<String> decoded = portability.decode(portability.encode(originalValue));
+
+    verify(serializer, never()).read(any(ByteBuffer.class));
+    assertThat(decoded.value(), equalTo("aValue"));
+  }
+
+  @Test
+  public void testBinaryComparableValuesAreComparedWithoutDeserialization() throws Exception {
+    StringSerializer serializer = spy(new StringSerializer(getClass().getClassLoader()));
+    OffHeapValueHolderPortability<String> portability = new OffHeapValueHolderPortability<String>(serializer);
+    OffHeapValueHolder<String> decoded = portability.decode(portability.encode(originalValue));
+
+    ByteBuffer same = serializer.serialize("aValue");
+    ByteBuffer other = serializer.serialize("anotherValue");
+    assertThat(decoded.valueEquals("aValue", same, OffHeapValueHolderPortability.binaryHash(same)), equalTo(true));
+    assertThat(decoded.valueEquals("anotherValue", other, OffHeapValueHolderPortability.binaryHash(other)), equalTo(false));
+    verify(serializer, never()).read(any(ByteBuffer.class));
+  }
+
+  @Test
+  public void testReEncodingDecodedHolderReusesSerialForm() throws Exception {
+    StringSerializer serializer = spy(new StringSerializer(getClass().getClassLoader()));
+    OffHeapValueHolderPortability<String> portability = new OffHeapValueHolderPortability<String>(serializer);
+    ByteBuffer encoded = portability.encode(originalValue);
+    OffHeapValueHolder<String> decoded = portability.decode(encoded.duplicate());
+
+    assertThat(portability.encode(decoded), equalTo(encoded));
+    verify(serializer, never()).read(any(ByteBuffer.class));
+  }
+
+}
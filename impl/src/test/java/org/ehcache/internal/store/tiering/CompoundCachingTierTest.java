@@ -28,6 +28,9 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -37,9 +40,11 @@ import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -330,6 +335,240 @@ public class CompoundCachingTierTest {
     assertThat(lowerTierValueHolder.get(), is(nullValue()));
   }
 
+  @Test
+  public void testAsynchronousDemotionWritesIntoLowerTier() throws Exception {
+    CachingTier<String, String> higherTier = mock(CachingTier.class);
+    LowerCachingTier<String, String> lowerTier = mock(LowerCachingTier.class);
+    final Store.ValueHolder<String> valueHolder = mock(Store.ValueHolder.class);
+
+    final ArgumentCaptor<CachingTier.InvalidationListener> higherTierInvalidationListenerArg = ArgumentCaptor.forClass(CachingTier.InvalidationListener.class);
+    doNothing().when(higherTier).setInvalidationListener(higherTierInvalidationListenerArg.capture());
+    final AtomicReference<Store.ValueHolder<String>> lowerTierValueHolder = new AtomicReference<Store.ValueHolder<String>>();
+    final ArgumentCaptor<Function> functionArg = ArgumentCaptor.forClass(Function.class);
+    final ArgumentCaptor<String> keyArg = ArgumentCaptor.forClass(String.class);
+    when(lowerTier.getOrComputeIfAbsent(keyArg.capture(), functionArg.capture())).then(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        Object apply = functionArg.getValue().apply(keyArg.getValue());
+        lowerTierValueHolder.set((Store.ValueHolder<String>) apply);
+        return apply;
+      }
+    });
+
+    ManualExecutor executor = new ManualExecutor();
+    new CompoundCachingTier<String, String>(higherTier, lowerTier, 16, executor);
+
+    higherTierInvalidationListenerArg.getValue().onInvalidation("1", valueHolder);
+    verify(lowerTier, never()).getOrComputeIfAbsent(anyString(), any(Function.class));
+
+    executor.runAll();
+    assertThat(lowerTierValueHolder.get(), is(valueHolder));
+  }
+
+  @Test
+  public void testGetOrComputeIfAbsentFindsValueBeingDemoted() throws Exception {
+    CachingTier<String, String> higherTier = mock(CachingTier.class);
+    LowerCachingTier<String, String> lowerTier = mock(LowerCachingTier.class);
+    final Store.ValueHolder<String> valueHolder = mock(Store.ValueHolder.class);
+
+    final ArgumentCaptor<CachingTier.InvalidationListener> higherTierInvalidationListenerArg = ArgumentCaptor.forClass(CachingTier.InvalidationListener.class);
+    doNothing().when(higherTier).setInvalidationListener(higherTierInvalidationListenerArg.capture());
+    final ArgumentCaptor<Function> higherFunctionArg = ArgumentCaptor.forClass(Function.class);
+    final ArgumentCaptor<String> higherKeyArg = ArgumentCaptor.forClass(String.class);
+    when(higherTier.getOrComputeIfAbsent(higherKeyArg.capture(), higherFunctionArg.capture())).then(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        return higherFunctionArg.getValue().apply(higherKeyArg.getValue());
+      }
+    });
+    final AtomicReference<Store.ValueHolder<String>> lowerTierValueHolder = new AtomicReference<Store.ValueHolder<String>>();
+    final ArgumentCaptor<Function> lowerFunctionArg = ArgumentCaptor.forClass(Function.class);
+    final ArgumentCaptor<String> lowerKeyArg = ArgumentCaptor.forClass(String.class);
+    when(lowerTier.getOrComputeIfAbsent(lowerKeyArg.capture(), lowerFunctionArg.capture())).then(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        Object apply = lowerFunctionArg.getValue().apply(lowerKeyArg.getValue());
+        lowerTierValueHolder.set((Store.ValueHolder<String>) apply);
+        return apply;
+      }
+    });
+
+    ManualExecutor executor = new ManualExecutor();
+    CompoundCachingTier<String, String> compoundCachingTier = new CompoundCachingTier<String, String>(higherTier, lowerTier, 16, executor);
+
+    higherTierInvalidationListenerArg.getValue().onInvalidation("1", valueHolder);
+
+    final AtomicBoolean computed = new AtomicBoolean(false);
+    assertThat(compoundCachingTier.getOrComputeIfAbsent("1", new Function<String, Store.ValueHolder<String>>() {
+      @Override
+      public Store.ValueHolder<String> apply(String s) {
+        computed.set(true);
+        return null;
+      }
+    }), is(valueHolder));
+    assertThat(computed.get(), is(false));
+    verify(lowerTier, never()).getAndRemove(anyString());
+
+    executor.runAll();
+    assertThat(lowerTierValueHolder.get(), is(nullValue()));
+  }
+
+  @Test
+  public void testInvalidateDiscardsValueBeingDemoted() throws Exception {
+    CachingTier<String, String> higherTier = mock(CachingTier.class);
+    LowerCachingTier<String, String> lowerTier = mock(LowerCachingTier.class);
+    final Store.ValueHolder<String> valueHolder = mock(Store.ValueHolder.class);
+
+    final ArgumentCaptor<CachingTier.InvalidationListener> higherTierInvalidationListenerArg = ArgumentCaptor.forClass(CachingTier.InvalidationListener.class);
+    doNothing().when(higherTier).setInvalidationListener(higherTierInvalidationListenerArg.capture());
+    doAnswer(new Answer() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        ((NullaryFunction) invocation.getArguments()[1]).apply();
+        return null;
+      }
+    }).when(higherTier).invalidate(anyString(), any(NullaryFunction.class));
+
+    ManualExecutor executor = new ManualExecutor();
+    CompoundCachingTier<String, String> compoundCachingTier = new CompoundCachingTier<String, String>(higherTier, lowerTier, 16, executor);
+    final AtomicReference<Store.ValueHolder<String>> invalidated = new AtomicReference<Store.ValueHolder<String>>();
+    compoundCachingTier.setInvalidationListener(new CachingTier.InvalidationListener<String, String>() {
+      @Override
+      public void onInvalidation(String key, Store.ValueHolder<String> valueHolder) {
+        invalidated.set(valueHolder);
+      }
+    });
+
+    higherTierInvalidationListenerArg.getValue().onInvalidation("1", valueHolder);
+    compoundCachingTier.invalidate("1");
+    assertThat(invalidated.get(), is(valueHolder));
+
+    executor.runAll();
+    verify(lowerTier, never()).getOrComputeIfAbsent(anyString(), any(Function.class));
+  }
+
+  @Test
+  public void testFullDemotionQueueDemotesSynchronously() throws Exception {
+    CachingTier<String, String> higherTier = mock(CachingTier.class);
+    LowerCachingTier<String, String> lowerTier = mock(LowerCachingTier.class);
+    final Store.ValueHolder<String> valueHolder = mock(Store.ValueHolder.class);
+
+    final ArgumentCaptor<CachingTier.InvalidationListener> higherTierInvalidationListenerArg = ArgumentCaptor.forClass(CachingTier.InvalidationListener.class);
+    doNothing().when(higherTier).setInvalidationListener(higherTierInvalidationListenerArg.capture());
+
+    ManualExecutor executor = new ManualExecutor();
+    new CompoundCachingTier<String, String>(higherTier, lowerTier, 1, executor);
+
+    higherTierInvalidationListenerArg.getValue().onInvalidation("1", valueHolder);
+    higherTierInvalidationListenerArg.getValue().onInvalidation("2", valueHolder);
+    verify(lowerTier, never()).getOrComputeIfAbsent(eq("1"), any(Function.class));
+    verify(lowerTier, times(1)).getOrComputeIfAbsent(eq("2"), any(Function.class));
+  }
+
+  @Test
+  public void testInclusivePromotionKeepsLowerTierCopy() throws Exception {
+    CachingTier<String, String> higherTier = mock(CachingTier.class);
+    LowerCachingTier<String, String> lowerTier = mock(LowerCachingTier.class);
+    final Store.ValueHolder<String> valueHolder = mock(Store.ValueHolder.class);
+
+    final ArgumentCaptor<Function> functionArg = ArgumentCaptor.forClass(Function.class);
+    final ArgumentCaptor<String> keyArg = ArgumentCaptor.forClass(String.class);
+    when(higherTier.getOrComputeIfAbsent(keyArg.capture(), functionArg.capture())).then(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        return functionArg.getValue().apply(keyArg.getValue());
+      }
+    });
+    when(lowerTier.getOrComputeIfAbsent(anyString(), any(Function.class))).thenReturn(valueHolder);
+
+    CompoundCachingTier<String, String> compoundCachingTier = new CompoundCachingTier<String, String>(higherTier, lowerTier, 0, null, true);
+
+    final AtomicBoolean computed = new AtomicBoolean(false);
+    assertThat(compoundCachingTier.getOrComputeIfAbsent("1", new Function<String, Store.ValueHolder<String>>() {
+      @Override
+      public Store.ValueHolder<String> apply(String s) {
+        computed.set(true);
+        return null;
+      }
+    }), is(valueHolder));
+    assertThat(computed.get(), is(false));
+    verify(lowerTier, never()).getAndRemove(anyString());
+  }
+
+  @Test
+  public void testInclusiveDemotionKeepsUnchangedLowerTierCopy() throws Exception {
+    CachingTier<String, String> higherTier = mock(CachingTier.class);
+    LowerCachingTier<String, String> lowerTier = mock(LowerCachingTier.class);
+    Store.ValueHolder<String> lowerTierValueHolder = mock(Store.ValueHolder.class);
+    when(lowerTierValueHolder.getId()).thenReturn(42L);
+    Store.ValueHolder<String> higherTierValueHolder = mock(Store.ValueHolder.class);
+    when(higherTierValueHolder.getId()).thenReturn(42L);
+
+    final ArgumentCaptor<CachingTier.InvalidationListener> higherTierInvalidationListenerArg = ArgumentCaptor.forClass(CachingTier.InvalidationListener.class);
+    doNothing().when(higherTier).setInvalidationListener(higherTierInvalidationListenerArg.capture());
+    when(lowerTier.getOrComputeIfAbsent(anyString(), any(Function.class))).thenReturn(lowerTierValueHolder);
+
+    new CompoundCachingTier<String, String>(higherTier, lowerTier, 0, null, true);
+
+    higherTierInvalidationListenerArg.getValue().onInvalidation("1", higherTierValueHolder);
+    verify(lowerTier, times(1)).getOrComputeIfAbsent(eq("1"), any(Function.class));
+    verify(lowerTier, never()).invalidate(anyString());
+  }
+
+  @Test
+  public void testInclusiveDemotionReplacesStaleLowerTierCopy() throws Exception {
+    CachingTier<String, String> higherTier = mock(CachingTier.class);
+    LowerCachingTier<String, String> lowerTier = mock(LowerCachingTier.class);
+    Store.ValueHolder<String> lowerTierValueHolder = mock(Store.ValueHolder.class);
+    when(lowerTierValueHolder.getId()).thenReturn(41L);
+    Store.ValueHolder<String> higherTierValueHolder = mock(Store.ValueHolder.class);
+    when(higherTierValueHolder.getId()).thenReturn(42L);
+
+    final ArgumentCaptor<CachingTier.InvalidationListener> higherTierInvalidationListenerArg = ArgumentCaptor.forClass(CachingTier.InvalidationListener.class);
+    doNothing().when(higherTier).setInvalidationListener(higherTierInvalidationListenerArg.capture());
+    when(lowerTier.getOrComputeIfAbsent(anyString(), any(Function.class))).thenReturn(lowerTierValueHolder, higherTierValueHolder);
+
+    new CompoundCachingTier<String, String>(higherTier, lowerTier, 0, null, true);
+
+    higherTierInvalidationListenerArg.getValue().onInvalidation("1", higherTierValueHolder);
+    verify(lowerTier, times(1)).invalidate("1");
+    verify(lowerTier, times(2)).getOrComputeIfAbsent(eq("1"), any(Function.class));
+  }
+
+  @Test
+  public void testInclusiveLowerTierEvictionIsNotReportedWhileHigherTierHoldsMapping() throws Exception {
+    CachingTier<String, String> higherTier = mock(CachingTier.class);
+    LowerCachingTier<String, String> lowerTier = mock(LowerCachingTier.class);
+    Store.ValueHolder<String> valueHolder = mock(Store.ValueHolder.class);
+    when(valueHolder.getId()).thenReturn(42L);
+
+    final ArgumentCaptor<Function> functionArg = ArgumentCaptor.forClass(Function.class);
+    final ArgumentCaptor<String> keyArg = ArgumentCaptor.forClass(String.class);
+    when(higherTier.getOrComputeIfAbsent(keyArg.capture(), functionArg.capture())).then(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        return functionArg.getValue().apply(keyArg.getValue());
+      }
+    });
+    final ArgumentCaptor<CachingTier.InvalidationListener> higherTierInvalidationListenerArg = ArgumentCaptor.forClass(CachingTier.InvalidationListener.class);
+    doNothing().when(higherTier).setInvalidationListener(higherTierInvalidationListenerArg.capture());
+    final ArgumentCaptor<CachingTier.InvalidationListener> lowerTierInvalidationListenerArg = ArgumentCaptor.forClass(CachingTier.InvalidationListener.class);
+    doNothing().when(lowerTier).setInvalidationListener(lowerTierInvalidationListenerArg.capture());
+    when(lowerTier.getOrComputeIfAbsent(anyString(), any(Function.class))).thenReturn(valueHolder, null);
+
+    CompoundCachingTier<String, String> compoundCachingTier = new CompoundCachingTier<String, String>(higherTier, lowerTier, 0, null, true);
+    CachingTier.InvalidationListener<String, String> invalidationListener = mock(CachingTier.InvalidationListener.class);
+    compoundCachingTier.setInvalidationListener(invalidationListener);
+
+    assertThat(compoundCachingTier.getOrComputeIfAbsent("1", null), is(valueHolder));
+    lowerTierInvalidationListenerArg.getValue().onInvalidation("1", valueHolder);
+    verify(invalidationListener, never()).onInvalidation(anyString(), any(Store.ValueHolder.class));
+
+    higherTierInvalidationListenerArg.getValue().onInvalidation("1", valueHolder);
+    lowerTierInvalidationListenerArg.getValue().onInvalidation("1", valueHolder);
+    verify(invalidationListener, times(1)).onInvalidation("1", valueHolder);
+  }
+
   @Test
   public void testProviderPassesServiceConfigs() {
     CompoundCachingTier.Provider provider = new CompoundCachingTier.Provider();
@@ -349,6 +588,22 @@ public class CompoundCachingTierTest {
     });
   }
 
+  static class ManualExecutor implements Executor {
+
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    @Override
+    public void execute(Runnable command) {
+      tasks.add(command);
+    }
+
+    void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.remove(0).run();
+      }
+    }
+  }
+
   static class FakeLowerProvider implements LowerCachingTier.Provider {
 
     @Override
@@ -17,9 +17,11 @@ package org.ehcache.spi.serialization;
 
 import java.io.Serializable;
 import static java.lang.ClassLoader.getSystemClassLoader;
+import org.ehcache.config.serializer.CompressionConfiguration;
 import org.ehcache.config.serializer.DefaultSerializerConfiguration;
 import org.ehcache.config.serializer.DefaultSerializationProviderConfiguration;
 import org.ehcache.internal.serialization.CompactJavaSerializer;
+import org.ehcache.internal.serialization.CompressingSerializer;
 import org.ehcache.spi.ServiceProvider;
 import org.junit.Test;
 
@@ -65,6 +67,17 @@ public class DefaultSerializationProviderTest {
     assertThat(dsp.createValueSerializer(Object.class, ClassLoader.getSystemClassLoader(), dspConfig), instanceOf(TestSerializer.class));
   }
 
+  @Test
+  public void testCreateCompressingValueSerializer() throws Exception {
+    DefaultSerializationProvider dsp = new DefaultSerializationProvider(new DefaultSerializationProviderConfiguration());
+    dsp.start(providerContaining());
+
+    CompressionConfiguration compression = new CompressionConfiguration(1024);
+
+    assertThat(dsp.createValueSerializer(String.class, ClassLoader.getSystemClassLoader(), compression), instanceOf(CompressingSerializer.class));
+    assertThat(dsp.createKeySerializer(String.class, ClassLoader.getSystemClassLoader(), compression), instanceOf(CompactJavaSerializer.class));
+  }
+
   @Test
   public void testCreateSerializerWithFactoryConfig() throws Exception {
     DefaultSerializationProviderConfiguration dspfConfig = new DefaultSerializationProviderConfiguration();
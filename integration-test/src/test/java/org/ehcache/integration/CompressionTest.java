@@ -0,0 +1,86 @@
+/*
+ * Copyright Terracotta, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ehcache.integration;
+
+import org.ehcache.Cache;
+import org.ehcache.CacheManager;
+import org.ehcache.config.serializer.CompressionConfiguration;
+import org.ehcache.config.units.EntryUnit;
+import org.ehcache.config.units.MemoryUnit;
+import org.junit.Test;
+import org.terracotta.context.TreeNode;
+import org.terracotta.statistics.StatisticsManager;
+import org.terracotta.statistics.ValueStatistic;
+
+import java.util.Set;
+
+import static org.ehcache.CacheManagerBuilder.newCacheManagerBuilder;
+import static org.ehcache.config.CacheConfigurationBuilder.newCacheConfigurationBuilder;
+import static org.ehcache.config.ResourcePoolsBuilder.newResourcePoolsBuilder;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.terracotta.context.query.Matchers.attributes;
+import static org.terracotta.context.query.Matchers.context;
+import static org.terracotta.context.query.Matchers.hasAttribute;
+import static org.terracotta.context.query.QueryBuilder.queryBuilder;
+
+/**
+ * CompressionTest
+ */
+public class CompressionTest {
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testOffHeapValuesAreCompressed() throws Exception {
+    CacheManager cacheManager = newCacheManagerBuilder().withCache("compressed", newCacheConfigurationBuilder()
+        .withResourcePools(newResourcePoolsBuilder().heap(10, EntryUnit.ENTRIES).offheap(1, MemoryUnit.MB))
+        .add(new CompressionConfiguration(256))
+        .buildConfig(Long.class, String.class)).build(true);
+    try {
+      Cache<Long, String> cache = cacheManager.getCache("compressed", Long.class, String.class);
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < 100; i++) {
+        sb.append("{\"name\":\"value\",\"index\":").append(i).append('}');
+      }
+      String value = sb.toString();
+
+      for (long i = 0; i < 100; i++) {
+        cache.put(i, value + i);
+      }
+      for (long i = 0; i < 100; i++) {
+        assertThat(cache.get(i), is(value + i));
+      }
+
+      StatisticsManager statisticsManager = new StatisticsManager();
+      statisticsManager.root(cache);
+      Set<TreeNode> nodes = statisticsManager.query(queryBuilder().descendants()
+          .filter(context(attributes(hasAttribute("name", "compressionRatio")))).build());
+      assertThat(nodes, hasSize(1));
+      ValueStatistic<Double> ratio = (ValueStatistic<Double>) nodes.iterator().next().getContext().attributes().get("this");
+      assertThat(ratio.value(), greaterThan(3.0));
+
+      cacheManager.removeCache("compressed");
+      assertThat(statisticsManager.query(queryBuilder().descendants()
+          .filter(context(attributes(hasAttribute("name", "compressionRatio")))).build()), hasSize(0));
+    } finally {
+      cacheManager.close();
+    }
+  }
+}
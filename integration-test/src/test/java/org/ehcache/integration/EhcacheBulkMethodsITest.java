@@ -46,7 +46,6 @@ import java.util.Set;
 
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.core.Is.is;
-import static org.hamcrest.core.IsCollectionContaining.hasItem;
 import static org.hamcrest.core.IsCollectionContaining.hasItems;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
@@ -244,8 +243,7 @@ public class EhcacheBulkMethodsITest {
     CacheManagerBuilder<CacheManager> managerBuilder = CacheManagerBuilder.newCacheManagerBuilder().using(cacheLoaderWriterProvider);
     CacheManager cacheManager = managerBuilder.withCache("myCache", cacheConfiguration).build(true);
 
-    when(cacheLoaderWriter.loadAll(argThat(hasItem("key0")))).thenReturn( new HashMap(){{put("key0","value0");}});
-    when(cacheLoaderWriter.loadAll(argThat(hasItem("key2")))).thenReturn( new HashMap(){{put("key2","value2");}});
+    when(cacheLoaderWriter.loadAll(argThat(hasItems("key0", "key2")))).thenReturn( new HashMap(){{put("key0","value0"); put("key2","value2");}});
 
     Cache<String, String> myCache = cacheManager.getCache("myCache", String.class, String.class);
 
@@ -261,7 +259,7 @@ public class EhcacheBulkMethodsITest {
     assertThat(fewEntries.size(), is(2));
     assertThat(fewEntries.get("key0"), is("value0"));
     assertThat(fewEntries.get("key2"), is("value2"));
-
+    verify(cacheLoaderWriter, times(1)).loadAll(Matchers.any(Iterable.class));
   }
 
   @Test
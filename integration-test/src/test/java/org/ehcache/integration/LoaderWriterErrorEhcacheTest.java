@@ -105,6 +105,7 @@ public class LoaderWriterErrorEhcacheTest {
         Iterable<Integer> iterable = (Iterable) invocation.getArguments()[0];
 
         Map<Number, CharSequence> result = new HashMap<Number, CharSequence>();
+        Map<Number, Exception> failures = new HashMap<Number, Exception>();
 
         for (Integer i : iterable) {
           switch (i) {
@@ -112,7 +113,8 @@ public class LoaderWriterErrorEhcacheTest {
               result.put(1, "one");
               break;
             case 2:
-              throw new Exception("Mock Exception: cannot load 2");
+              failures.put(2, new Exception("Mock Exception: cannot load 2"));
+              break;
             case 3:
               result.put(3, "three");
               break;
@@ -124,6 +126,9 @@ public class LoaderWriterErrorEhcacheTest {
           }
         }
 
+        if (!failures.isEmpty()) {
+          throw new BulkCacheLoadingException(failures, result);
+        }
         return result;
       }
     });
@@ -16,15 +16,26 @@
 
 package org.ehcache.integration;
 
+import org.ehcache.Cache;
+import org.ehcache.CacheManager;
+import org.ehcache.config.ResourcePoolsBuilder;
+import org.ehcache.config.persistence.CacheManagerPersistenceConfiguration;
 import org.ehcache.config.units.EntryUnit;
 import org.ehcache.config.units.MemoryUnit;
 import org.ehcache.exceptions.StateTransitionException;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Arrays;
 
 import static org.ehcache.CacheManagerBuilder.newCacheManagerBuilder;
 import static org.ehcache.config.CacheConfigurationBuilder.newCacheConfigurationBuilder;
 import static org.ehcache.config.ResourcePoolsBuilder.newResourcePoolsBuilder;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
@@ -33,6 +44,9 @@ import static org.junit.Assert.fail;
  */
 public class TieringTest {
 
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   @Test
   public void testDiskTierWithoutPersistenceServiceFailsWithClearException() {
     try {
@@ -44,4 +58,44 @@ public class TieringTest {
       assertThat(e.getCause().getCause().getMessage(), containsString("No LocalPersistenceService could be found"));
     }
   }
+
+  @Test
+  public void testOffHeapOnlyCache() throws IOException {
+    assertHeapLessCacheWorks(newResourcePoolsBuilder().offheap(1, MemoryUnit.MB), 1000);
+  }
+
+  @Test
+  public void testDiskOnlyCache() throws IOException {
+    assertHeapLessCacheWorks(newResourcePoolsBuilder().disk(10, MemoryUnit.MB), 4000);
+  }
+
+  @Test
+  public void testOffHeapOverDiskCache() throws IOException {
+    // more data than fits off-heap: the caching tier has to fault from and flush to disk
+    assertHeapLessCacheWorks(newResourcePoolsBuilder().offheap(1, MemoryUnit.MB).disk(10, MemoryUnit.MB), 4000);
+  }
+
+  private void assertHeapLessCacheWorks(ResourcePoolsBuilder resourcePools, long entries) throws IOException {
+    CacheManager cacheManager = newCacheManagerBuilder()
+        .with(new CacheManagerPersistenceConfiguration(folder.newFolder("data")))
+        .withCache("heapless", newCacheConfigurationBuilder().withResourcePools(resourcePools)
+            .buildConfig(Long.class, byte[].class)).build(true);
+    try {
+      Cache<Long, byte[]> cache = cacheManager.getCache("heapless", Long.class, byte[].class);
+      byte[] value = new byte[512];
+      Arrays.fill(value, (byte) 42);
+      for (long i = 0; i < entries; i++) {
+        cache.put(i, value);
+      }
+      for (long i = 0; i < entries; i++) {
+        assertThat(Arrays.equals(cache.get(i), value), is(true));
+      }
+      cache.remove(0L);
+      assertThat(cache.get(0L), nullValue());
+      assertThat(cache.putIfAbsent(0L, value), nullValue());
+      assertThat(Arrays.equals(cache.get(0L), value), is(true));
+    } finally {
+      cacheManager.close();
+    }
+  }
 }
@@ -16,9 +16,11 @@
 package org.ehcache.management.providers.actions;
 
 import org.ehcache.Ehcache;
+import org.ehcache.internal.store.disk.OffHeapDiskStore;
 import org.ehcache.management.annotations.Exposed;
 import org.ehcache.management.annotations.Named;
 
+import static org.ehcache.management.utils.ContextHelper.findDiskStores;
 import static org.ehcache.management.utils.ConversionHelper.convert;
 
 /**
@@ -56,4 +58,11 @@ public class EhcacheActionWrapper {
     ehcache.put(convertedKey, convertedValue);
   }
 
+  @Exposed
+  public void compact() {
+    for (OffHeapDiskStore<?, ?> diskStore : findDiskStores(ehcache)) {
+      diskStore.compact();
+    }
+  }
+
 }
@@ -17,6 +17,7 @@ package org.ehcache.management.utils;
 
 import org.ehcache.Ehcache;
 import org.ehcache.EhcacheManager;
+import org.ehcache.internal.store.disk.OffHeapDiskStore;
 import org.terracotta.context.ContextManager;
 import org.terracotta.context.TreeNode;
 import org.terracotta.context.query.Matcher;
@@ -32,6 +33,8 @@ import java.util.Set;
 import static org.terracotta.context.query.Matchers.attributes;
 import static org.terracotta.context.query.Matchers.context;
 import static org.terracotta.context.query.Matchers.hasAttribute;
+import static org.terracotta.context.query.Matchers.identifier;
+import static org.terracotta.context.query.Matchers.subclassOf;
 import static org.terracotta.context.query.QueryBuilder.queryBuilder;
 
 /**
@@ -125,4 +128,21 @@ public abstract class ContextHelper {
     return (String) treeNode.getContext().attributes().get("CacheManagerName");
   }
 
+  public static Collection<OffHeapDiskStore<?, ?>> findDiskStores(Ehcache<?, ?> ehcache) {
+    TreeNode cacheNode = ContextManager.nodeFor(ehcache);
+    if (cacheNode == null) {
+      return Collections.emptyList();
+    }
+    Query query = queryBuilder().descendants().filter(context(identifier(subclassOf(OffHeapDiskStore.class)))).build();
+
+    Collection<OffHeapDiskStore<?, ?>> result = new ArrayList<OffHeapDiskStore<?, ?>>();
+    for (TreeNode treeNode : query.execute(Collections.singleton(cacheNode))) {
+      OffHeapDiskStore<?, ?> diskStore = (OffHeapDiskStore<?, ?>) treeNode.getContext().attributes().get("this");
+      if (diskStore != null) {
+        result.add(diskStore);
+      }
+    }
+    return result;
+  }
+
 }
@@ -53,12 +53,13 @@ public class EhcacheActionProviderTest {
     ehcacheActionProvider.register(mock(Ehcache.class));
 
     Set<Descriptor> descriptions = ehcacheActionProvider.descriptions();
-    assertThat(descriptions.size(), is(4));
+    assertThat(descriptions.size(), is(5));
     assertThat(descriptions, (Matcher) containsInAnyOrder(
         new CallDescriptor("remove", "void", Collections.singletonList(new CallDescriptor.Parameter("key", "java.lang.Object"))),
         new CallDescriptor("get", "java.lang.Object", Collections.singletonList(new CallDescriptor.Parameter("key", "java.lang.Object"))),
         new CallDescriptor("put", "void", Arrays.asList(new CallDescriptor.Parameter("key", "java.lang.Object"), new CallDescriptor.Parameter("value", "java.lang.Object"))),
-        new CallDescriptor("clear", "void", Collections.<CallDescriptor.Parameter>emptyList())
+        new CallDescriptor("clear", "void", Collections.<CallDescriptor.Parameter>emptyList()),
+        new CallDescriptor("compact", "void", Collections.<CallDescriptor.Parameter>emptyList())
     ));
   }
 
@@ -23,8 +23,13 @@ import org.ehcache.EhcacheManager;
 import org.ehcache.config.CacheConfiguration;
 import org.ehcache.config.CacheConfigurationBuilder;
 import org.ehcache.config.ResourcePoolsBuilder;
+import org.ehcache.config.persistence.CacheManagerPersistenceConfiguration;
 import org.ehcache.config.units.EntryUnit;
+import org.ehcache.config.units.MemoryUnit;
+import org.ehcache.internal.store.disk.OffHeapDiskStore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.util.Collection;
 
@@ -39,6 +44,9 @@ import static org.hamcrest.Matchers.startsWith;
  */
 public class ContextHelperTest {
 
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
   @Test
   public void testFindCacheNames() throws Exception {
     CacheConfiguration<Long, String> cacheConfiguration = CacheConfigurationBuilder.newCacheConfigurationBuilder()
@@ -124,4 +132,29 @@ public class ContextHelperTest {
     }
   }
 
+  @Test
+  public void testFindDiskStores() throws Exception {
+    CacheConfiguration<Long, String> heapCacheConfiguration = CacheConfigurationBuilder.newCacheConfigurationBuilder()
+        .withResourcePools(ResourcePoolsBuilder.newResourcePoolsBuilder().heap(10, EntryUnit.ENTRIES).build())
+        .buildConfig(Long.class, String.class);
+    CacheConfiguration<Long, String> diskCacheConfiguration = CacheConfigurationBuilder.newCacheConfigurationBuilder()
+        .withResourcePools(ResourcePoolsBuilder.newResourcePoolsBuilder().heap(10, EntryUnit.ENTRIES).disk(1, MemoryUnit.MB).build())
+        .buildConfig(Long.class, String.class);
+
+    CacheManager cacheManager = CacheManagerBuilder.newCacheManagerBuilder()
+        .with(new CacheManagerPersistenceConfiguration(folder.newFolder("disk-stores")))
+        .withCache("heap-cache", heapCacheConfiguration)
+        .withCache("disk-cache", diskCacheConfiguration)
+        .build(true);
+
+    try {
+      Collection<OffHeapDiskStore<?, ?>> heapDiskStores = ContextHelper.findDiskStores((Ehcache<?, ?>) cacheManager.getCache("heap-cache", Long.class, String.class));
+      assertThat(heapDiskStores.isEmpty(), is(true));
+      Collection<OffHeapDiskStore<?, ?>> diskStores = ContextHelper.findDiskStores((Ehcache<?, ?>) cacheManager.getCache("disk-cache", Long.class, String.class));
+      assertThat(diskStores.size(), is(1));
+    } finally {
+      cacheManager.close();
+    }
+  }
+
 }
@@ -25,6 +25,7 @@ import org.ehcache.config.xml.model.CacheIntegrationType;
 import org.ehcache.config.xml.model.CacheTemplateType;
 import org.ehcache.config.xml.model.CacheType;
 import org.ehcache.config.xml.model.ConfigType;
+import org.ehcache.config.xml.model.DiskStoreSettingsType;
 import org.ehcache.config.xml.model.EventFiringType;
 import org.ehcache.config.xml.model.EventOrderingType;
 import org.ehcache.config.xml.model.EventType;
@@ -355,6 +356,17 @@ class ConfigurationParser {
             }
             return null;
           }
+
+          @Override
+          public DiskStoreSettings diskStoreSettings() {
+            for (BaseCacheType source : sources) {
+              final DiskStoreSettingsType diskStoreSettings = source.getDiskStoreSettings();
+              if (diskStoreSettings != null) {
+                return new XmlDiskStoreSettings(diskStoreSettings);
+              }
+            }
+            return null;
+          }
         });
       }
     }
@@ -543,6 +555,12 @@ class ConfigurationParser {
             final CacheIntegrationType.WriteBehind writebehind = integration != null ? integration.getWriteBehind(): null;
             return writebehind != null ? new XmlWriteBehind(writebehind) : null;
           }
+
+          @Override
+          public DiskStoreSettings diskStoreSettings() {
+            final DiskStoreSettingsType diskStoreSettings = cacheTemplate.getDiskStoreSettings();
+            return diskStoreSettings != null ? new XmlDiskStoreSettings(diskStoreSettings) : null;
+          }
         });
       }
     }
@@ -623,6 +641,8 @@ class ConfigurationParser {
     
     WriteBehind writeBehind();
 
+    DiskStoreSettings diskStoreSettings();
+
   }
 
   interface CacheDefinition extends CacheTemplate {
@@ -683,6 +703,14 @@ class ConfigurationParser {
     
   }
 
+  interface DiskStoreSettings {
+
+    int diskSegments();
+
+    int writerConcurrency();
+
+  }
+
   private static class XmlExpiry implements Expiry {
 
     final ExpiryType type;
@@ -811,4 +839,23 @@ class ConfigurationParser {
     }
     
   }
+
+  private static class XmlDiskStoreSettings implements DiskStoreSettings {
+
+    private final DiskStoreSettingsType diskStoreSettings;
+
+    private XmlDiskStoreSettings(DiskStoreSettingsType diskStoreSettings) {
+      this.diskStoreSettings = diskStoreSettings;
+    }
+
+    @Override
+    public int diskSegments() {
+      return diskStoreSettings.getDiskSegments().intValue();
+    }
+
+    @Override
+    public int writerConcurrency() {
+      return diskStoreSettings.getWriterConcurrency().intValue();
+    }
+  }
 }
@@ -31,6 +31,7 @@ import org.ehcache.config.persistence.CacheManagerPersistenceConfiguration;
 import org.ehcache.config.serializer.DefaultSerializerConfiguration;
 import org.ehcache.config.serializer.DefaultSerializationProviderConfiguration;
 import org.ehcache.config.writebehind.WriteBehindConfigurationBuilder;
+import org.ehcache.config.xml.ConfigurationParser.DiskStoreSettings;
 import org.ehcache.config.xml.ConfigurationParser.WriteBehind;
 import org.ehcache.config.xml.model.CopierType;
 import org.ehcache.config.xml.model.SerializerType;
@@ -42,6 +43,7 @@ import org.ehcache.config.xml.model.EventType;
 import org.ehcache.event.CacheEventListener;
 import org.ehcache.event.EventFiring;
 import org.ehcache.event.EventOrdering;
+import org.ehcache.internal.store.disk.OffHeapDiskStoreServiceConfiguration;
 import org.ehcache.spi.copy.Copier;
 import org.ehcache.spi.loaderwriter.CacheLoaderWriter;
 import org.ehcache.spi.serialization.Serializer;
@@ -272,6 +274,10 @@ public class XmlConfiguration implements Configuration {
           builder = builder.add(writeBehindConfigurationBuilder);
         }
       }
+      if (cacheDefinition.diskStoreSettings() != null) {
+        DiskStoreSettings diskStoreSettings = cacheDefinition.diskStoreSettings();
+        builder = builder.add(new OffHeapDiskStoreServiceConfiguration().diskSegments(diskStoreSettings.diskSegments()).writerConcurrency(diskStoreSettings.writerConcurrency()));
+      }
       if(cacheDefinition.listeners()!= null) {
         for (ConfigurationParser.Listener listener : cacheDefinition.listeners()) {
           final Class<CacheEventListener<?, ?>> cacheEventListenerClass = (Class<CacheEventListener<?, ?>>) getClassForName(listener.className(), cacheClassLoader);
@@ -461,6 +467,10 @@ public class XmlConfiguration implements Configuration {
         builder = builder.add(writeBehindConfigurationBuilder);
       }
     }
+    if (cacheTemplate.diskStoreSettings() != null) {
+      DiskStoreSettings diskStoreSettings = cacheTemplate.diskStoreSettings();
+      builder = builder.add(new OffHeapDiskStoreServiceConfiguration().diskSegments(diskStoreSettings.diskSegments()).writerConcurrency(diskStoreSettings.writerConcurrency()));
+    }
     if(cacheTemplate.listeners()!= null) {
       for (ConfigurationParser.Listener listener : cacheTemplate.listeners()) {
         final Class<CacheEventListener<?, ?>> cacheEventListenerClass = (Class<CacheEventListener<?, ?>>)getClassForName(listener.className(), defaultClassLoader);
@@ -46,6 +46,7 @@ import org.ehcache.expiry.Duration;
 import org.ehcache.expiry.Expirations;
 import org.ehcache.expiry.Expiry;
 import org.ehcache.internal.copy.SerializingCopier;
+import org.ehcache.internal.store.disk.OffHeapDiskStoreServiceConfiguration;
 import org.ehcache.spi.copy.Copier;
 import org.ehcache.spi.loaderwriter.WriteBehindConfiguration;
 import org.ehcache.spi.serialization.Serializer;
@@ -80,6 +81,7 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import org.ehcache.util.ClassLoading;
 
+import static org.ehcache.spi.ServiceLocator.findSingletonAmongst;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
@@ -140,6 +142,14 @@ public class XmlConfigurationTest {
     assertThat(example.buildConfig(Object.class, Object.class).getEvictionPrioritizer(), sameInstance((EvictionPrioritizer) Eviction.Prioritizer.LFU));
   }
 
+  @SuppressWarnings("rawtypes")
+  @Test
+  public void testTinyLfuPrioritizerCache() throws Exception {
+    XmlConfiguration xmlConfig = new XmlConfiguration(XmlConfigurationTest.class.getResource("/configs/tinylfu-cache.xml"));
+
+    assertThat(xmlConfig.getCacheConfigurations().get("foo").getEvictionPrioritizer(), sameInstance((EvictionPrioritizer)Eviction.Prioritizer.TINY_LFU));
+  }
+
   @Test
   public void testNonExistentVetoClassInCacheThrowsException() throws Exception {
     try {
@@ -529,6 +539,22 @@ public class XmlConfigurationTest {
     
   }
 
+  @Test
+  public void testDiskStoreSettings() throws Exception {
+    final URL resource = XmlConfigurationTest.class.getResource("/configs/disk-store-settings.xml");
+    XmlConfiguration xmlConfig = new XmlConfiguration(resource);
+
+    Collection<ServiceConfiguration<?>> serviceConfiguration = xmlConfig.getCacheConfigurations().get("tuned").getServiceConfigurations();
+    OffHeapDiskStoreServiceConfiguration diskStoreConfig = findSingletonAmongst(OffHeapDiskStoreServiceConfiguration.class, serviceConfiguration.toArray());
+    assertThat(diskStoreConfig.getDiskSegments(), is(32));
+    assertThat(diskStoreConfig.getWriterConcurrency(), is(4));
+
+    serviceConfiguration = xmlConfig.newCacheConfigurationBuilderFromTemplate("example").buildConfig(Number.class, String.class).getServiceConfigurations();
+    diskStoreConfig = findSingletonAmongst(OffHeapDiskStoreServiceConfiguration.class, serviceConfiguration.toArray());
+    assertThat(diskStoreConfig.getDiskSegments(), is(16));
+    assertThat(diskStoreConfig.getWriterConcurrency(), is(2));
+  }
+
   @Test
   public void testCacheEventListener() throws Exception {
     final URL resource = XmlConfigurationTest.class.getResource("/configs/ehcache-cacheEventListener.xml");